@@ -0,0 +1,129 @@
+package simpleatmsystem.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.ToLongFunction;
+import simpleatmsystem.comparators.AmountComparator;
+import simpleatmsystem.lib.AmountAggregates;
+import simpleatmsystem.lib.BinaryTree;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.models.Money;
+import simpleatmsystem.models.TransactionsEntry;
+
+/**
+ * AggregatesBenchmark ------------------- Compares the scalar and SIMD
+ * implementations of lib.AmountAggregates, and the count of the
+ * transactions within an amount range done by scanning the amounts against
+ * the same count done by BinaryTree.rangeSearch (the explorer's path, on a
+ * balanced tree of the same transactions).
+ *
+ * Scans report nanoseconds per element; range counts report nanoseconds
+ * per query, for ranges selecting about 1%, 10% and 50% of the
+ * transactions. The ratio column is scalar / vector (above 1 means SIMD is
+ * faster), and for range counts tree / vector.
+ *
+ * The SIMD implementation must be built (ant -Dvector.enabled=true) and
+ * needs the Vector API module: run with --add-modules jdk.incubator.vector,
+ * otherwise both columns are scalar.
+ *
+ * Usage (after ant bench): java --add-modules jdk.incubator.vector -cp
+ * dist/SimpleATMSystem.jar:build/bench/classes
+ * simpleatmsystem.bench.AggregatesBenchmark [size] [iterationMillis]
+ */
+public class AggregatesBenchmark {
+
+    private static final long[] BOUNDS = {1_000, 10_000, 100_000, 1_000_000};
+
+    private final long[] cents;
+    private final BinaryTree<TransactionsEntry> tree = new BinaryTree<>();
+    private final MicroBenchmark harness;
+    private final AmountAggregates scalar = AmountAggregates.scalar();
+    private final AmountAggregates vector = AmountAggregates.get();
+
+    private AggregatesBenchmark(int size, long iterationMillis) {
+        this.harness = new MicroBenchmark(3, 5, iterationMillis);
+        Random random = new Random(42);
+        cents = new long[size];
+        MyArrayList<TransactionsEntry> sorted = new MyArrayList<>();
+        for (int i = 0; i < size; i++) {
+            // Amounts from 0.01 to 20000.00
+            cents[i] = 1 + random.nextInt(2_000_000);
+        }
+        long[] ordered = cents.clone();
+        Arrays.sort(ordered);
+        for (long value : ordered) {
+            sorted.add(new TransactionsEntry(Money.toAmount(value), ""));
+        }
+        tree.loadSorted(sorted, AmountComparator.INSTANCE);
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long iterationMillis = args.length > 1 ? Long.parseLong(args[1]) : 200;
+
+        AggregatesBenchmark benchmark = new AggregatesBenchmark(size, iterationMillis);
+        System.out.printf("Size: %d | Implementation: %s | Warmup: 3 x %d ms | Measurement: 5 x %d ms%n",
+                size, benchmark.vector.getName(), iterationMillis, iterationMillis);
+        benchmark.scans();
+        benchmark.rangeCounts();
+    }
+
+    private void scans() {
+        int n = cents.length;
+        System.out.printf("%-16s %14s %10s %14s %10s %8s%n",
+                "Scan", "scalar ns/el", "error", "vector ns/el", "error", "ratio");
+        print("sum", n,
+                a -> a.sum(cents, 0, n));
+        print("min", n,
+                a -> a.min(cents, 0, n));
+        print("max", n,
+                a -> a.max(cents, 0, n));
+        print("countInRange", n,
+                a -> a.countInRange(cents, 0, n, 50_000, 150_000));
+        print("histogram", n,
+                a -> a.histogram(cents, 0, n, BOUNDS)[0]);
+    }
+
+    private void print(String name, int operations, ToLongFunction<AmountAggregates> body) {
+        MicroBenchmark.Result s = harness.measure(operations, () -> scalar, body);
+        MicroBenchmark.Result v = harness.measure(operations, () -> vector, body);
+        System.out.printf("%-16s %14s %10s %14s %10s %8s%n", name,
+                format(s, s.getNanosPerOp()), format(s, s.getError()),
+                format(v, v.getNanosPerOp()), format(v, v.getError()),
+                ratio(s, v));
+    }
+
+    private void rangeCounts() {
+        int n = cents.length;
+        System.out.printf("%n%-16s %14s %10s %14s %10s %14s %10s %8s%n",
+                "Range count", "tree ns/q", "error", "scalar ns/q", "error",
+                "vector ns/q", "error", "ratio");
+        for (int percent : new int[]{1, 10, 50}) {
+            long low = 500_000;
+            long high = low + 2_000_000L * percent / 100;
+            TransactionsEntry min = new TransactionsEntry(Money.toAmount(low), "");
+            TransactionsEntry max = new TransactionsEntry(Money.toAmount(high), "");
+
+            MicroBenchmark.Result t = harness.measure(1, () -> tree,
+                    searched -> searched.rangeSearch(min, max, AmountComparator.INSTANCE).size());
+            MicroBenchmark.Result s = harness.measure(1, () -> scalar,
+                    a -> a.countInRange(cents, 0, n, low, high));
+            MicroBenchmark.Result v = harness.measure(1, () -> vector,
+                    a -> a.countInRange(cents, 0, n, low, high));
+            System.out.printf("%-16s %14s %10s %14s %10s %14s %10s %8s%n", percent + "% matching",
+                    format(t, t.getNanosPerOp()), format(t, t.getError()),
+                    format(s, s.getNanosPerOp()), format(s, s.getError()),
+                    format(v, v.getNanosPerOp()), format(v, v.getError()),
+                    ratio(t, v));
+        }
+    }
+
+    private static String ratio(MicroBenchmark.Result a, MicroBenchmark.Result b) {
+        return a.isFailed() || b.isFailed() ? "-"
+                : String.format("%.2f", a.getNanosPerOp() / b.getNanosPerOp());
+    }
+
+    private static String format(MicroBenchmark.Result result, double value) {
+        return result.isFailed() ? result.getFailure() : String.format("%.1f", value);
+    }
+}
@@ -0,0 +1,248 @@
+package simpleatmsystem.bench;
+
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import simpleatmsystem.exceptions.InsufficientFundsException;
+import simpleatmsystem.metrics.LatencyHistogram;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.SavingsAccount;
+
+/**
+ * AtmWorkloadBenchmark -------------------- End-to-end macro-benchmark: many
+ * threads drive the ATM operations (authenticate, deposit, withdraw, last
+ * transactions, explorer range query) on a large book of accounts, with
+ * the mix, account popularity and amounts synthesized by a
+ * WorkloadGenerator.
+ *
+ * After a warmup, it measures for a fixed time and reports the sustained
+ * throughput (overall, and the spread of the per-second throughput, which
+ * shows stalls such as GC pauses) and the latency percentiles of every
+ * operation.
+ *
+ * Operations go through the same methods as the menu: authentication uses
+ * the registry, a wrong PIN is entered now and then (--bad-pin percent of
+ * the authentications), and the other operations find their account by
+ * number first.
+ *
+ * Usage (after ant bench): java -cp dist/SimpleATMSystem.jar:build/bench/classes
+ * simpleatmsystem.bench.AtmWorkloadBenchmark
+ * [--accounts n] [--threads n] [--warmup seconds] [--seconds seconds]
+ * [--mix auth:40,deposit:20,withdraw:20,history:10,range:10]
+ * [--zipf exponent] [--amounts uniform|lognormal|cash] [--bad-pin percent]
+ */
+public class AtmWorkloadBenchmark {
+
+    private static final double INITIAL_BALANCE = 500;
+    private static final double FEE = 0.5;
+    private static final int LAST_N = 5;
+
+    private static final WorkloadGenerator.Operation[] OPERATIONS = WorkloadGenerator.Operation.values();
+
+    private final AccountRegistry registry = new AccountRegistry();
+    private final WorkloadGenerator generator;
+    private final String[] numbers;
+    private final int[] pins;
+    private final int badPinPercent;
+
+    /**
+     * Latencies of each operation, in nanoseconds
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private volatile boolean running = true;
+
+    private AtmWorkloadBenchmark(int accountsCount, WorkloadGenerator generator, int badPinPercent) {
+        this.generator = generator;
+        this.badPinPercent = badPinPercent;
+        this.numbers = new String[accountsCount];
+        this.pins = new int[accountsCount];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < accountsCount; i++) {
+            numbers[i] = "a" + i;
+            pins[i] = 1000 + i % 9000;
+            registry.add(i % 2 == 0
+                    ? new SavingsAccount(numbers[i], "Owner " + i, pins[i], INITIAL_BALANCE, 0.01)
+                    : new CheckingAccount(numbers[i], "Owner " + i, pins[i], INITIAL_BALANCE, FEE));
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int accountsCount = 1_000_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int warmupSeconds = 5;
+        int seconds = 10;
+        String mix = "auth:40,deposit:20,withdraw:20,history:10,range:10";
+        double zipf = 1.0;
+        WorkloadGenerator.AmountDistribution amounts = WorkloadGenerator.AmountDistribution.LOGNORMAL;
+        int badPinPercent = 1;
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                System.out.println("Missing value for option " + args[i]);
+                return;
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--accounts":
+                    accountsCount = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    mix = value;
+                    break;
+                case "--zipf":
+                    zipf = Double.parseDouble(value);
+                    break;
+                case "--amounts":
+                    amounts = WorkloadGenerator.AmountDistribution.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "--bad-pin":
+                    badPinPercent = Integer.parseInt(value);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        WorkloadGenerator generator = new WorkloadGenerator(mix, accountsCount, zipf, amounts);
+        long setupStart = System.nanoTime();
+        AtmWorkloadBenchmark benchmark = new AtmWorkloadBenchmark(accountsCount, generator, badPinPercent);
+        System.out.printf("Accounts: %d (created in %.1f s) | Threads: %d | Mix: %s | Zipf: %.2f | Amounts: %s%n",
+                accountsCount, (System.nanoTime() - setupStart) / 1e9, threads, mix, zipf,
+                amounts.name().toLowerCase(Locale.ROOT));
+        benchmark.run(threads, warmupSeconds, seconds);
+    }
+
+    // ===================== Running =====================
+    private void run(int threads, int warmupSeconds, int seconds) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom random = new SplittableRandom(1000 + t);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                while (running) {
+                    execute(random);
+                }
+            }, "workload-" + t);
+            workers[t].start();
+        }
+
+        start.countDown();
+        Thread.sleep(warmupSeconds * 1000L);
+
+        // Forget the warmup (operations in progress may be counted or not)
+        for (LatencyHistogram histogram : latencies) {
+            histogram.reset();
+        }
+        completed.reset();
+        rejected.reset();
+        denied.reset();
+
+        double[] perSecond = new double[seconds];
+        long begin = System.nanoTime();
+        long previousTime = begin;
+        long previousCount = 0;
+        for (int s = 0; s < seconds; s++) {
+            Thread.sleep(1000);
+            long now = System.nanoTime();
+            long count = completed.sum();
+            perSecond[s] = (count - previousCount) / ((now - previousTime) / 1e9);
+            previousTime = now;
+            previousCount = count;
+        }
+        long elapsed = System.nanoTime() - begin;
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        report(previousCount, elapsed, perSecond);
+    }
+
+    /**
+     * Runs one generated operation and records its latency.
+     */
+    private void execute(SplittableRandom random) {
+        WorkloadGenerator.Operation operation = generator.nextOperation(random);
+        int index = generator.nextAccount(random);
+        String number = numbers[index];
+
+        long start = System.nanoTime();
+        switch (operation) {
+            case AUTH:
+                int pin = random.nextInt(100) < badPinPercent ? -1 : pins[index];
+                if (registry.authenticate(number, pin) == null) {
+                    denied.increment();
+                }
+                break;
+            case DEPOSIT:
+                registry.find(number).deposite(generator.nextAmount(random));
+                break;
+            case WITHDRAW:
+                try {
+                    registry.find(number).withdraw(generator.nextAmount(random));
+                } catch (InsufficientFundsException ex) {
+                    rejected.increment();
+                }
+                break;
+            case HISTORY:
+                registry.find(number).getLastNTransactions(LAST_N);
+                break;
+            default:
+                double low = generator.nextAmount(random);
+                Account account = registry.find(number);
+                account.findTransactionsByAmount(low, low * 1.5);
+        }
+        latencies[operation.ordinal()].record(System.nanoTime() - start);
+        completed.increment();
+    }
+
+    private void report(long count, long elapsedNanos, double[] perSecond) {
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        double sum = 0;
+        for (double value : perSecond) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        System.out.printf("Operations: %d in %.1f s | Throughput: %.0f ops/s%n",
+                count, elapsedNanos / 1e9, count / (elapsedNanos / 1e9));
+        System.out.printf("Per second: min %.0f | mean %.0f | max %.0f ops/s%n",
+                min, sum / perSecond.length, max);
+        System.out.printf("Rejected withdrawals: %d | Denied authentications: %d%n",
+                rejected.sum(), denied.sum());
+
+        System.out.printf("%-10s %12s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "mean us", "p50 us", "p99 us", "p999 us", "max us");
+        for (WorkloadGenerator.Operation operation : OPERATIONS) {
+            LatencyHistogram.Snapshot snapshot = latencies[operation.ordinal()].snapshot();
+            System.out.printf("%-10s %12d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    operation.getKey(), snapshot.getCount(), snapshot.getMean() / 1e3,
+                    snapshot.getPercentile(0.50) / 1e3, snapshot.getPercentile(0.99) / 1e3,
+                    snapshot.getPercentile(0.999) / 1e3, snapshot.getMax() / 1e3);
+        }
+    }
+}
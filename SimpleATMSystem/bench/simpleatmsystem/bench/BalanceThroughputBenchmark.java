@@ -0,0 +1,116 @@
+package simpleatmsystem.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import simpleatmsystem.exceptions.InsufficientFundsException;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.Money;
+import simpleatmsystem.models.SavingsAccount;
+
+/**
+ * BalanceThroughputBenchmark ------------------------- Multi-threaded
+ * throughput benchmark for Account.deposite and Account.withdraw.
+ *
+ * Every thread performs a fixed number of random deposits and withdrawals on
+ * accounts picked at random from a small pool (a pool of 1 account is the
+ * worst case for contention). The share of deposits can be raised to model
+ * merchant or payroll accounts. At the end the benchmark checks that money was
+ * conserved: the sum of all balances must equal the initial balances plus
+ * every successful deposit minus every successful withdrawal (and fee).
+ *
+ * Usage (after ant bench): java -cp dist/SimpleATMSystem.jar:build/bench/classes
+ * simpleatmsystem.bench.BalanceThroughputBenchmark [threads] [accounts]
+ * [opsPerThread] [depositPercent]
+ */
+public class BalanceThroughputBenchmark {
+
+    private static final double INITIAL_BALANCE = 1000;
+    private static final double FEE = 0.5;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int accountsCount = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int opsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+        int depositPercent = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        Account[] accounts = new Account[accountsCount];
+        for (int i = 0; i < accountsCount; i++) {
+            accounts[i] = i % 2 == 0
+                    ? new SavingsAccount("S" + i, "Bench", 1234, INITIAL_BALANCE, 0.01)
+                    : new CheckingAccount("C" + i, "Bench", 1234, INITIAL_BALANCE, FEE);
+        }
+
+        // Net change in cents observed by each thread
+        long[] netCents = new long[threads];
+        long[] rejected = new long[threads];
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < opsPerThread; i++) {
+                    Account account = accounts[random.nextInt(accountsCount)];
+                    long cents = 1 + random.nextInt(10_000);
+                    double amount = Money.toAmount(cents);
+                    if (random.nextInt(100) < depositPercent) {
+                        account.deposite(amount);
+                        netCents[id] += cents;
+                    } else {
+                        try {
+                            account.withdraw(amount);
+                            netCents[id] -= cents;
+                            if (account instanceof CheckingAccount) {
+                                netCents[id] -= Money.toCents(FEE);
+                            }
+                        } catch (InsufficientFundsException ex) {
+                            rejected[id]++;
+                        }
+                    }
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long expected = accountsCount * Money.toCents(INITIAL_BALANCE);
+        long totalRejected = 0;
+        for (int t = 0; t < threads; t++) {
+            expected += netCents[t];
+            totalRejected += rejected[t];
+        }
+        long actual = 0;
+        for (Account account : accounts) {
+            actual += account.getBalanceCents();
+            if (account.getBalanceCents() < 0) {
+                System.out.println("ERROR: account " + account.getAccountNumber()
+                        + " was overdrawn!");
+            }
+        }
+
+        long totalOps = (long) threads * opsPerThread;
+        System.out.println("Threads: " + threads + " | Accounts: " + accountsCount
+                + " | Operations: " + totalOps
+                + " | Rejected withdrawals: " + totalRejected);
+        System.out.printf("Elapsed: %.1f ms | Throughput: %.0f ops/s%n",
+                elapsed / 1e6, totalOps / (elapsed / 1e9));
+        System.out.println(expected == actual
+                ? "Balances conserved: " + Money.toAmount(actual)
+                : "ERROR: expected " + Money.toAmount(expected)
+                + " but found " + Money.toAmount(actual));
+    }
+}
@@ -0,0 +1,495 @@
+package simpleatmsystem.bench;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import simpleatmsystem.lib.BinaryTree;
+import simpleatmsystem.lib.LinkedList;
+import simpleatmsystem.lib.LinkedQueue;
+import simpleatmsystem.lib.MyArrayList;
+
+/**
+ * CollectionsBenchmark -------------------- Compares the simpleatmsystem.lib
+ * collections with their JDK equivalents, operation by operation.
+ *
+ * - MyArrayList vs ArrayList: add, get, remove, iterate, contains, sort
+ * - LinkedList vs java.util.LinkedList: addFirst, addLast, get(int),
+ * remove(int), iterate
+ * - LinkedQueue vs ArrayDeque: enqueue, dequeue
+ * - BinaryTree vs TreeMap (used as a multiset, value to count): add,
+ * contains, rangeSearch, in-order traversal (inOrderList; the other
+ * traversals print every value)
+ *
+ * Each benchmark runs on random, sorted and duplicate-heavy (16 distinct
+ * values) input where the order of the input matters, and on random input
+ * otherwise. Results are in nanoseconds per element (or per lookup or
+ * query), with the ratio to the JDK collection: above 1 means the lib is
+ * slower. A benchmark that throws (a degenerate BinaryTree may overflow the
+ * stack) is reported as failed.
+ *
+ * Usage (after ant bench): java -cp dist/SimpleATMSystem.jar:build/bench/classes
+ * simpleatmsystem.bench.CollectionsBenchmark [size] [filter] [iterationMillis]
+ *
+ * where filter keeps the benchmarks whose name contains it (for example
+ * "tree" or "list.sort").
+ */
+public class CollectionsBenchmark {
+
+    private static final Comparator<Long> ORDER = Comparator.naturalOrder();
+
+    /**
+     * Number of lookups, queries or positional operations of one call
+     */
+    private static final int LOOKUPS = 1000;
+
+    private enum Input {
+        RANDOM, SORTED, DUPLICATES
+    }
+
+    private final int size;
+    private final String filter;
+    private final MicroBenchmark harness;
+    private final Random random = new Random(42);
+
+    private CollectionsBenchmark(int size, String filter, long iterationMillis) {
+        this.size = size;
+        this.filter = filter;
+        this.harness = new MicroBenchmark(3, 5, iterationMillis);
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        String filter = args.length > 1 ? args[1] : "";
+        long iterationMillis = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        CollectionsBenchmark benchmark = new CollectionsBenchmark(size, filter, iterationMillis);
+        System.out.printf("Size: %d | Warmup: 3 x %d ms | Measurement: 5 x %d ms%n",
+                size, iterationMillis, iterationMillis);
+        System.out.printf("%-22s %-11s %14s %10s %14s %10s %8s%n",
+                "Benchmark", "Input", "lib ns/op", "error", "jdk ns/op", "error", "ratio");
+        benchmark.arrayList();
+        benchmark.linkedList();
+        benchmark.queue();
+        benchmark.tree();
+    }
+
+    // ===================== MyArrayList =====================
+    private void arrayList() {
+        Long[] values = values(Input.RANDOM);
+        int[] indexes = indexes(LOOKUPS, size);
+
+        compare("list.add", Input.RANDOM, size,
+                () -> null, state -> {
+                    MyArrayList<Long> list = new MyArrayList<>();
+                    for (Long value : values) {
+                        list.add(value);
+                    }
+                    return list.size();
+                },
+                () -> null, state -> {
+                    ArrayList<Long> list = new ArrayList<>();
+                    for (Long value : values) {
+                        list.add(value);
+                    }
+                    return list.size();
+                });
+
+        MyArrayList<Long> myList = myArrayList(values);
+        ArrayList<Long> jdkList = arrayList(values);
+        compare("list.get", Input.RANDOM, LOOKUPS,
+                () -> myList, list -> {
+                    long sum = 0;
+                    for (int index : indexes) {
+                        sum += list.get(index);
+                    }
+                    return sum;
+                },
+                () -> jdkList, list -> {
+                    long sum = 0;
+                    for (int index : indexes) {
+                        sum += list.get(index);
+                    }
+                    return sum;
+                });
+        compare("list.iterate", Input.RANDOM, size,
+                () -> myList, list -> {
+                    long sum = 0;
+                    for (Long value : list) {
+                        sum += value;
+                    }
+                    return sum;
+                },
+                () -> jdkList, list -> {
+                    long sum = 0;
+                    for (Long value : list) {
+                        sum += value;
+                    }
+                    return sum;
+                });
+
+        Long[] probes = probes(values, LOOKUPS / 10);
+        compare("list.contains", Input.RANDOM, probes.length,
+                () -> myList, list -> {
+                    long found = 0;
+                    for (Long probe : probes) {
+                        found += list.contains(probe) ? 1 : 0;
+                    }
+                    return found;
+                },
+                () -> jdkList, list -> {
+                    long found = 0;
+                    for (Long probe : probes) {
+                        found += list.contains(probe) ? 1 : 0;
+                    }
+                    return found;
+                });
+
+        // Removes from the middle until empty: every remove shifts the tail
+        compare("list.remove", Input.RANDOM, size,
+                () -> myArrayList(values), list -> {
+                    while (list.size() > 0) {
+                        list.remove(list.size() / 2);
+                    }
+                    return list.size();
+                },
+                () -> arrayList(values), list -> {
+                    while (!list.isEmpty()) {
+                        list.remove(list.size() / 2);
+                    }
+                    return list.size();
+                });
+
+        for (Input input : Input.values()) {
+            Long[] unsorted = values(input);
+            compare("list.sort", input, size,
+                    () -> myArrayList(unsorted), list -> {
+                        list.sort(ORDER);
+                        return list.get(0);
+                    },
+                    () -> arrayList(unsorted), list -> {
+                        list.sort(ORDER);
+                        return list.get(0);
+                    });
+        }
+    }
+
+    // ===================== LinkedList =====================
+    private void linkedList() {
+        Long[] values = values(Input.RANDOM);
+        int[] indexes = indexes(LOOKUPS, size);
+
+        compare("linked.addFirst", Input.RANDOM, size,
+                () -> null, state -> {
+                    LinkedList<Long> list = new LinkedList<>();
+                    for (Long value : values) {
+                        list.addFirst(value);
+                    }
+                    return list.size();
+                },
+                () -> null, state -> {
+                    java.util.LinkedList<Long> list = new java.util.LinkedList<>();
+                    for (Long value : values) {
+                        list.addFirst(value);
+                    }
+                    return list.size();
+                });
+        compare("linked.addLast", Input.RANDOM, size,
+                () -> null, state -> {
+                    LinkedList<Long> list = new LinkedList<>();
+                    for (Long value : values) {
+                        list.addLast(value);
+                    }
+                    return list.size();
+                },
+                () -> null, state -> {
+                    java.util.LinkedList<Long> list = new java.util.LinkedList<>();
+                    for (Long value : values) {
+                        list.addLast(value);
+                    }
+                    return list.size();
+                });
+
+        LinkedList<Long> myList = linkedList(values);
+        java.util.LinkedList<Long> jdkList = new java.util.LinkedList<>(arrayList(values));
+        compare("linked.get", Input.RANDOM, LOOKUPS,
+                () -> myList, list -> {
+                    long sum = 0;
+                    for (int index : indexes) {
+                        sum += list.get(index);
+                    }
+                    return sum;
+                },
+                () -> jdkList, list -> {
+                    long sum = 0;
+                    for (int index : indexes) {
+                        sum += list.get(index);
+                    }
+                    return sum;
+                });
+        compare("linked.iterate", Input.RANDOM, size,
+                () -> myList, list -> {
+                    long sum = 0;
+                    for (Long value : list) {
+                        sum += value;
+                    }
+                    return sum;
+                },
+                () -> jdkList, list -> {
+                    long sum = 0;
+                    for (Long value : list) {
+                        sum += value;
+                    }
+                    return sum;
+                });
+
+        // Positional removes walk to the index first
+        int removes = Math.min(LOOKUPS, size / 2);
+        compare("linked.remove(int)", Input.RANDOM, removes,
+                () -> linkedList(values), list -> {
+                    for (int i = 0; i < removes; i++) {
+                        list.remove(list.size() / 2);
+                    }
+                    return list.size();
+                },
+                () -> new java.util.LinkedList<>(arrayList(values)), list -> {
+                    for (int i = 0; i < removes; i++) {
+                        list.remove(list.size() / 2);
+                    }
+                    return list.size();
+                });
+    }
+
+    // ===================== LinkedQueue =====================
+    private void queue() {
+        Long[] values = values(Input.RANDOM);
+
+        compare("queue.enqueue", Input.RANDOM, size,
+                () -> null, state -> {
+                    LinkedQueue<Long> queue = new LinkedQueue<>();
+                    for (Long value : values) {
+                        queue.enqueue(value);
+                    }
+                    return queue.size();
+                },
+                () -> null, state -> {
+                    ArrayDeque<Long> queue = new ArrayDeque<>();
+                    for (Long value : values) {
+                        queue.addLast(value);
+                    }
+                    return queue.size();
+                });
+        compare("queue.dequeue", Input.RANDOM, size,
+                () -> {
+                    LinkedQueue<Long> queue = new LinkedQueue<>();
+                    for (Long value : values) {
+                        queue.enqueue(value);
+                    }
+                    return queue;
+                }, queue -> {
+                    long sum = 0;
+                    while (!queue.isEmpty()) {
+                        sum += queue.dequeue();
+                    }
+                    return sum;
+                },
+                () -> new ArrayDeque<>(arrayList(values)), queue -> {
+                    long sum = 0;
+                    while (!queue.isEmpty()) {
+                        sum += queue.pollFirst();
+                    }
+                    return sum;
+                });
+    }
+
+    // ===================== BinaryTree =====================
+    private void tree() {
+        for (Input input : Input.values()) {
+            Long[] values = values(input);
+            Long[] probes = probes(values, LOOKUPS);
+            Long[][] ranges = ranges(values, LOOKUPS / 10);
+
+            compare("tree.add", input, size,
+                    () -> null, state -> binaryTree(values).getHeight(),
+                    () -> null, state -> treeMap(values).size());
+
+            BinaryTree<Long> myTree = binaryTree(values);
+            TreeMap<Long, Integer> jdkTree = treeMap(values);
+            compare("tree.contains", input, probes.length,
+                    () -> myTree, tree -> {
+                        long found = 0;
+                        for (Long probe : probes) {
+                            found += tree.contains(probe, ORDER) ? 1 : 0;
+                        }
+                        return found;
+                    },
+                    () -> jdkTree, tree -> {
+                        long found = 0;
+                        for (Long probe : probes) {
+                            found += tree.containsKey(probe) ? 1 : 0;
+                        }
+                        return found;
+                    });
+            compare("tree.rangeSearch", input, ranges.length,
+                    () -> myTree, tree -> {
+                        long found = 0;
+                        for (Long[] range : ranges) {
+                            found += tree.rangeSearch(range[0], range[1], ORDER).size();
+                        }
+                        return found;
+                    },
+                    () -> jdkTree, tree -> {
+                        long found = 0;
+                        for (Long[] range : ranges) {
+                            for (int count : tree.subMap(range[0], true, range[1], true).values()) {
+                                found += count;
+                            }
+                        }
+                        return found;
+                    });
+            compare("tree.inOrder", input, size,
+                    () -> myTree, tree -> {
+                        long sum = 0;
+                        for (Long value : tree.inOrderList()) {
+                            sum += value;
+                        }
+                        return sum;
+                    },
+                    () -> jdkTree, tree -> {
+                        long sum = 0;
+                        for (Map.Entry<Long, Integer> entry : tree.entrySet()) {
+                            sum += entry.getKey() * entry.getValue();
+                        }
+                        return sum;
+                    });
+        }
+    }
+
+    // ===================== Running =====================
+    /**
+     * Measures the lib and JDK versions of a benchmark (if it passes the
+     * filter) and prints one line.
+     */
+    private <S, T> void compare(String name, Input input, int operations,
+            Supplier<S> libSetup, ToLongFunction<S> libBody,
+            Supplier<T> jdkSetup, ToLongFunction<T> jdkBody) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        MicroBenchmark.Result lib = harness.measure(operations, libSetup, libBody);
+        MicroBenchmark.Result jdk = harness.measure(operations, jdkSetup, jdkBody);
+        System.out.printf("%-22s %-11s %14s %10s %14s %10s %8s%n",
+                name, input.name().toLowerCase(Locale.ROOT),
+                format(lib, lib.getNanosPerOp()), format(lib, lib.getError()),
+                format(jdk, jdk.getNanosPerOp()), format(jdk, jdk.getError()),
+                lib.isFailed() || jdk.isFailed() ? "-"
+                : String.format("%.2f", lib.getNanosPerOp() / jdk.getNanosPerOp()));
+    }
+
+    private static String format(MicroBenchmark.Result result, double value) {
+        return result.isFailed() ? result.getFailure() : String.format("%.1f", value);
+    }
+
+    // ===================== Inputs =====================
+    /**
+     * Boxed once here, so the benchmarks do not measure boxing.
+     */
+    private Long[] values(Input input) {
+        Long[] values = new Long[size];
+        for (int i = 0; i < size; i++) {
+            switch (input) {
+                case SORTED:
+                    values[i] = (long) i;
+                    break;
+                case DUPLICATES:
+                    values[i] = (long) random.nextInt(16);
+                    break;
+                default:
+                    values[i] = random.nextLong(size * 10L);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Values to look up: half present, half (most likely) absent.
+     */
+    private Long[] probes(Long[] values, int count) {
+        Long[] probes = new Long[count];
+        for (int i = 0; i < count; i++) {
+            probes[i] = i % 2 == 0 ? values[random.nextInt(values.length)]
+                    : Long.valueOf(-1 - random.nextInt(size));
+        }
+        return probes;
+    }
+
+    /**
+     * Ranges each covering about 1% of the values.
+     */
+    private Long[][] ranges(Long[] values, int count) {
+        long max = 0;
+        for (Long value : values) {
+            max = Math.max(max, value);
+        }
+        long width = Math.max(1, max / 100);
+        Long[][] ranges = new Long[count][];
+        for (int i = 0; i < count; i++) {
+            long min = random.nextLong(max + 1);
+            ranges[i] = new Long[]{min, min + width};
+        }
+        return ranges;
+    }
+
+    private int[] indexes(int count, int bound) {
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = random.nextInt(bound);
+        }
+        return indexes;
+    }
+
+    private static MyArrayList<Long> myArrayList(Long[] values) {
+        MyArrayList<Long> list = new MyArrayList<>();
+        for (Long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static ArrayList<Long> arrayList(Long[] values) {
+        ArrayList<Long> list = new ArrayList<>(values.length);
+        for (Long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static LinkedList<Long> linkedList(Long[] values) {
+        LinkedList<Long> list = new LinkedList<>();
+        for (Long value : values) {
+            list.addLast(value);
+        }
+        return list;
+    }
+
+    private static BinaryTree<Long> binaryTree(Long[] values) {
+        BinaryTree<Long> tree = new BinaryTree<>();
+        for (Long value : values) {
+            tree.add(value, ORDER);
+        }
+        return tree;
+    }
+
+    private static TreeMap<Long, Integer> treeMap(Long[] values) {
+        TreeMap<Long, Integer> tree = new TreeMap<>();
+        for (Long value : values) {
+            tree.merge(value, 1, Integer::sum);
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,148 @@
+package simpleatmsystem.bench;
+
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * MicroBenchmark -------------- A small benchmark harness in the spirit of
+ * JMH, for code that has to run without extra libraries.
+ *
+ * A benchmark is a setup, which builds a fresh state and is not measured,
+ * and a body, which runs a known number of operations on that state. The
+ * body is first run for some warmup iterations, so the JIT compiles it,
+ * then for the measurement iterations; each iteration repeats setup and
+ * body until it has measured at least the iteration time. The result is the
+ * mean time per operation with its spread over the iterations.
+ *
+ * Every body returns a value derived from its work (a sum, a count), which
+ * is folded into a volatile sink, so the JIT can not remove the work as dead
+ * code (what JMH's Blackhole is for).
+ *
+ * Limits compared to JMH: everything runs in one JVM (no forks), so
+ * benchmarks run later see the profile of the earlier ones; keep the
+ * comparisons that matter next to each other.
+ */
+public class MicroBenchmark {
+
+    /**
+     * Where body results go, so their work is never dead code
+     */
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+
+    /**
+     * @param warmupIterations iterations run before measuring
+     * @param measurementIterations iterations measured
+     * @param iterationMillis minimum measured time of each iteration
+     * @throws IllegalArgumentException if a count is not positive
+     */
+    public MicroBenchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+        if (warmupIterations < 0 || measurementIterations <= 0 || iterationMillis <= 0) {
+            throw new IllegalArgumentException("Iterations and time must be positive!");
+        }
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+    }
+
+    /**
+     * Measures a benchmark.
+     *
+     * @param <S> type of the state built by setup
+     * @param operations number of operations run by one call of the body
+     * @param setup builds the state of one call (not measured)
+     * @param body runs the operations on the state
+     * @return the time per operation, or a failed result if the body threw
+     * (for example a StackOverflowError on a degenerate tree)
+     */
+    public <S> Result measure(int operations, Supplier<S> setup, ToLongFunction<S> body) {
+        double[] nanosPerOp = new double[measurementIterations];
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration(operations, setup, body);
+            }
+            for (int i = 0; i < measurementIterations; i++) {
+                nanosPerOp[i] = iteration(operations, setup, body);
+            }
+        } catch (RuntimeException | StackOverflowError ex) {
+            return new Result(ex.getClass().getSimpleName());
+        }
+        return new Result(nanosPerOp);
+    }
+
+    private <S> double iteration(int operations, Supplier<S> setup, ToLongFunction<S> body) {
+        long measured = 0;
+        long calls = 0;
+        long fold = 0;
+        while (measured < iterationNanos) {
+            S state = setup.get();
+            long start = System.nanoTime();
+            fold += body.applyAsLong(state);
+            measured += System.nanoTime() - start;
+            calls++;
+        }
+        sink += fold;
+        return (double) measured / (calls * operations);
+    }
+
+    /**
+     * Result --------- Time per operation of one benchmark.
+     */
+    public static class Result {
+
+        private final double mean;
+        private final double error;
+        private final String failure;
+
+        Result(double[] nanosPerOp) {
+            double sum = 0;
+            for (double value : nanosPerOp) {
+                sum += value;
+            }
+            this.mean = sum / nanosPerOp.length;
+            double squares = 0;
+            for (double value : nanosPerOp) {
+                squares += (value - mean) * (value - mean);
+            }
+            this.error = nanosPerOp.length > 1 ? Math.sqrt(squares / (nanosPerOp.length - 1)) : 0;
+            this.failure = null;
+        }
+
+        Result(String failure) {
+            this.mean = Double.NaN;
+            this.error = Double.NaN;
+            this.failure = failure;
+        }
+
+        /**
+         * @return mean time per operation in nanoseconds (NaN if failed)
+         */
+        public double getNanosPerOp() {
+            return mean;
+        }
+
+        /**
+         * @return standard deviation over the measurement iterations
+         */
+        public double getError() {
+            return error;
+        }
+
+        /**
+         * @return true if the body threw
+         */
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        /**
+         * @return name of what the body threw (null if it did not fail)
+         */
+        public String getFailure() {
+            return failure;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package simpleatmsystem.bench;
+
+import java.util.Locale;
+import java.util.random.RandomGenerator;
+
+/**
+ * WorkloadGenerator ----------------- Synthesizes the ATM operations of a
+ * workload: which operation, on which account, for which amount.
+ *
+ * - Operations follow a mix of weights, for example
+ * "auth:40,deposit:20,withdraw:20,history:10,range:10".
+ * - Accounts are drawn from a Zipf distribution, so a few accounts get most
+ * of the traffic as in a real bank (exponent 0 spreads it evenly).
+ * - Amounts follow one of the AmountDistribution shapes.
+ *
+ * The generator holds no mutable state, so one instance is shared by all
+ * threads, each with its own random generator.
+ */
+public class WorkloadGenerator {
+
+    /**
+     * Operations of the ATM menu driven by the workload
+     */
+    public enum Operation {
+        AUTH("auth"), DEPOSIT("deposit"), WITHDRAW("withdraw"),
+        HISTORY("history"), RANGE("range");
+
+        private final String key;
+
+        Operation(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the name of the operation in a mix
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Shapes of the transaction amounts
+     */
+    public enum AmountDistribution {
+        /**
+         * Uniform between 1 and 500
+         */
+        UNIFORM,
+        /**
+         * Log-normal with a median of 60: mostly small amounts, a long tail
+         * of large ones
+         */
+        LOGNORMAL,
+        /**
+         * Cash withdrawal sizes (20, 40, 60, 100, 200), the small ones more
+         * often. Many equal amounts, the worst case of the amount tree.
+         */
+        CASH;
+
+        private static final double[] NOTES = {20, 40, 60, 100, 200};
+        private static final int[] NOTE_WEIGHTS = {30, 25, 20, 15, 10};
+
+        /**
+         * @param random source of randomness
+         * @return an amount with at most 2 decimals
+         */
+        public double sample(RandomGenerator random) {
+            switch (this) {
+                case UNIFORM:
+                    return (100 + random.nextInt(49_901)) / 100.0;
+                case LOGNORMAL:
+                    double amount = Math.exp(Math.log(60) + random.nextGaussian());
+                    return Math.max(1, Math.round(amount * 100) / 100.0);
+                default:
+                    int pick = random.nextInt(100);
+                    for (int i = 0; i < NOTES.length; i++) {
+                        pick -= NOTE_WEIGHTS[i];
+                        if (pick < 0) {
+                            return NOTES[i];
+                        }
+                    }
+                    return NOTES[NOTES.length - 1];
+            }
+        }
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /**
+     * Cumulative weights of the operations (same order as OPERATIONS)
+     */
+    private final int[] cumulativeWeights;
+    private final ZipfSampler accounts;
+    private final AmountDistribution amounts;
+
+    /**
+     * @param mix weights of the operations, see parseMix
+     * @param accountsCount number of accounts to draw from
+     * @param zipfExponent skew of the account popularity
+     * @param amounts shape of the amounts
+     * @throws IllegalArgumentException if the mix is invalid or the counts
+     * out of range
+     */
+    public WorkloadGenerator(String mix, int accountsCount, double zipfExponent,
+            AmountDistribution amounts) {
+        this.cumulativeWeights = parseMix(mix);
+        this.accounts = new ZipfSampler(accountsCount, zipfExponent);
+        this.amounts = amounts;
+    }
+
+    /**
+     * Parses a mix such as "auth:40,deposit:20,withdraw:20,history:10,range:10"
+     * (operations left out have weight 0).
+     *
+     * @return the cumulative weights, in Operation order
+     * @throws IllegalArgumentException if an operation is unknown, a weight
+     * negative or all weights 0
+     */
+    static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + part);
+            }
+            Operation operation = null;
+            for (Operation candidate : OPERATIONS) {
+                if (candidate.getKey().equals(pair[0].trim().toLowerCase(Locale.ROOT))) {
+                    operation = candidate;
+                }
+            }
+            if (operation == null) {
+                throw new IllegalArgumentException("Unknown operation in mix: " + pair[0]);
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight in mix: " + part);
+            }
+            weights[operation.ordinal()] = weight;
+        }
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            weights[i] = total;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("The mix has no operation!");
+        }
+        return weights;
+    }
+
+    /**
+     * @param random source of randomness
+     * @return the next operation, according to the mix
+     */
+    public Operation nextOperation(RandomGenerator random) {
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = 0;
+        while (pick >= cumulativeWeights[i]) {
+            i++;
+        }
+        return OPERATIONS[i];
+    }
+
+    /**
+     * @param random source of randomness
+     * @return index of the next account (0 is the most popular)
+     */
+    public int nextAccount(RandomGenerator random) {
+        return (int) accounts.sample(random) - 1;
+    }
+
+    /**
+     * @param random source of randomness
+     * @return the next amount
+     */
+    public double nextAmount(RandomGenerator random) {
+        return amounts.sample(random);
+    }
+}
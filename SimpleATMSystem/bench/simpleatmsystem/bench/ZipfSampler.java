@@ -0,0 +1,108 @@
+package simpleatmsystem.bench;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * ZipfSampler ----------- Draws ranks 1..n with Zipf probabilities: rank k
+ * is drawn with a probability proportional to 1 / k^exponent, so a few
+ * ranks are drawn very often and most very rarely (popular accounts).
+ *
+ * Uses rejection-inversion sampling (Hormann and Derflinger, "Rejection-
+ * inversion to generate variates from monotone discrete distributions",
+ * 1996): constant time and memory per sample whatever n, so millions of
+ * ranks need no table. An exponent of 0 gives the uniform distribution.
+ */
+public class ZipfSampler {
+
+    private final long n;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralN;
+    private final double s;
+
+    /**
+     * @param n number of ranks
+     * @param exponent skew (0: uniform, 1: classic Zipf, larger: more skewed)
+     * @throws IllegalArgumentException if n is not positive or exponent is
+     * negative
+     */
+    public ZipfSampler(long n, double exponent) {
+        if (n <= 0 || exponent < 0) {
+            throw new IllegalArgumentException("Zipf needs n > 0 and exponent >= 0!");
+        }
+        this.n = n;
+        this.exponent = exponent;
+        this.hIntegralX1 = hIntegral(1.5) - 1;
+        this.hIntegralN = hIntegral(n + 0.5);
+        this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    /**
+     * @param random source of randomness (one per thread)
+     * @return a rank between 1 and n
+     */
+    public long sample(RandomGenerator random) {
+        if (exponent == 0) {
+            return 1 + random.nextLong(n);
+        }
+        while (true) {
+            double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            long k = (long) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > n) {
+                k = n;
+            }
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k;
+            }
+        }
+    }
+
+    // ===================== Helpers of the method =====================
+    /**
+     * h(x) = 1 / x^exponent
+     */
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    /**
+     * Integral of h, up to a constant: (x^(1 - exponent) - 1) / (1 - exponent),
+     * or log(x) when the exponent is 1
+     */
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return expm1OverX((1 - exponent) * logX) * logX;
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = x * (1 - exponent);
+        if (t < -1) {
+            // Rounding can push t just below -1
+            t = -1;
+        }
+        return Math.exp(log1pOverX(t) * x);
+    }
+
+    /**
+     * (e^x - 1) / x, accurate near 0
+     */
+    private static double expm1OverX(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.expm1(x) / x;
+        }
+        return 1 + x / 2 * (1 + x / 3 * (1 + x / 4));
+    }
+
+    /**
+     * log(1 + x) / x, accurate near 0
+     */
+    private static double log1pOverX(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.log1p(x) / x;
+        }
+        return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+}
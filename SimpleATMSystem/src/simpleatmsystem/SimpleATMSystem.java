@@ -1,12 +1,38 @@
 package simpleatmsystem;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import simpleatmsystem.batch.BatchProcessor;
+import simpleatmsystem.batch.PipelinedBatchProcessor;
 import simpleatmsystem.exceptions.InsufficientFundsException;
 import simpleatmsystem.models.SavingsAccount;
 import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
 import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.Money;
+import simpleatmsystem.models.OffHeapAccountTable;
+import simpleatmsystem.models.RetentionPolicy;
+import simpleatmsystem.lib.AmountAggregates;
 import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.metrics.AtmMetrics;
 import java.util.Scanner;
 import simpleatmsystem.models.TransactionsEntry;
+import simpleatmsystem.persistence.Checkpointer;
+import simpleatmsystem.persistence.WriteAheadLog;
+import simpleatmsystem.server.AtmServer;
+import simpleatmsystem.services.BookFootprint;
+import simpleatmsystem.services.InterestBatchEngine;
+import simpleatmsystem.services.RetentionEngine;
+import simpleatmsystem.services.ShardedAccountBook;
 
 /**
  * SimpleATMSystem ---------------- This class contains the main (menu-driven)
@@ -30,6 +56,32 @@ import simpleatmsystem.models.TransactionsEntry;
  */
 public class SimpleATMSystem {
 
+    /**
+     * Applies the end-of-day interest to all savings accounts in parallel
+     */
+    private static final InterestBatchEngine INTEREST_BATCH = new InterestBatchEngine();
+
+    /**
+     * Latencies and outcomes of the operations (also available over JMX)
+     */
+    private static final AtmMetrics METRICS = AtmMetrics.global();
+
+    /**
+     * Sync period used by the PERIODIC write-ahead log policy
+     */
+    private static final long WAL_SYNC_PERIOD_MILLIS = 50;
+
+    /**
+     * Time between two slices of the retention engine (see --retention)
+     */
+    private static final long RETENTION_SLICE_PERIOD_MILLIS = 10;
+
+    /**
+     * Format of the transaction times shown by the transactions explorer
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     /**
      * Entry point of the program.
      *
@@ -37,16 +89,167 @@ public class SimpleATMSystem {
      * of Account objects using MyArrayList. - Continuously display the main
      * menu until the user chooses to exit.
      *
-     * @param args command-line arguments (not used)
+     * Options:
+     *
+     * --batch file: run the commands of the file (or "-" for the standard
+     * input) without any menu (see BatchProcessor)
+     *
+     * --batch-mode sequential|pipelined: run the batch on one thread
+     * (default) or as a pipeline of stages (see PipelinedBatchProcessor)
+     *
+     * --wal file: rebuild the accounts from this write-ahead log at startup
+     * and log every change to it
+     *
+     * --sync fsync|write|periodic: when changes are acknowledged relative to
+     * the log (default fsync, see WriteAheadLog.SyncPolicy)
+     *
+     * --snapshot file: restore the accounts from this snapshot before
+     * replaying the log, and write a checkpoint to it at exit (needs --wal)
+     *
+     * --checkpoint-interval seconds: also write a checkpoint periodically
+     *
+     * --replay-threads n: threads replaying the log at startup (default: one
+     * per processor)
+     *
+     * --serve port: serve the accounts to many clients over TCP on the
+     * loopback interface, instead of the menu (see AtmServer)
+     *
+     * --shards n: with --serve, threads executing the account operations
+     * (default: one per processor, see ShardedAccountBook)
+     *
+     * --retention policy: keep only the transactions of the last 30d (s, m,
+     * h or d), or the last 1000 ones of each account, removing the others
+     * in the background (see RetentionPolicy and RetentionEngine)
+     *
+     * --dormant heap|off-heap: where the accounts rebuilt at startup that
+     * nothing happened to since their creation are kept until first used
+     * (default heap, see OffHeapAccountTable; off-heap needs --batch or
+     * --serve, since the menu searches the accounts on the heap)
+     *
+     * @param args command-line arguments (see the options above)
      */
     public static void main(String[] args) {
+        String batchFile = null;
+        boolean pipelined = false;
+        int serverPort = -1;
+        String walFile = null;
+        WriteAheadLog.SyncPolicy syncPolicy = WriteAheadLog.SyncPolicy.FSYNC;
+        String snapshotFile = null;
+        long checkpointInterval = 0;
+        int replayThreads = WriteAheadLog.DEFAULT_REPLAY_THREADS;
+        int shardsCount = ShardedAccountBook.DEFAULT_SHARDS;
+        RetentionPolicy retention = null;
+        boolean dormantOffHeap = false;
+
+        for (int i = 0; i < args.length; i += 2) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) {
+                System.out.println("Missing value for option " + args[i]);
+                return;
+            }
+            switch (args[i]) {
+                case "--batch":
+                    batchFile = value;
+                    break;
+                case "--batch-mode":
+                    if (value.equalsIgnoreCase("pipelined")) {
+                        pipelined = true;
+                    } else if (value.equalsIgnoreCase("sequential")) {
+                        pipelined = false;
+                    } else {
+                        System.out.println("Unknown batch mode: " + value);
+                        return;
+                    }
+                    break;
+                case "--serve":
+                    serverPort = Integer.parseInt(value);
+                    break;
+                case "--wal":
+                    walFile = value;
+                    break;
+                case "--sync":
+                    syncPolicy = WriteAheadLog.SyncPolicy.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "--snapshot":
+                    snapshotFile = value;
+                    break;
+                case "--checkpoint-interval":
+                    checkpointInterval = Long.parseLong(value);
+                    break;
+                case "--replay-threads":
+                    replayThreads = Integer.parseInt(value);
+                    break;
+                case "--shards":
+                    shardsCount = Integer.parseInt(value);
+                    break;
+                case "--retention":
+                    retention = RetentionPolicy.parse(value);
+                    break;
+                case "--dormant":
+                    if (value.equalsIgnoreCase("off-heap")) {
+                        dormantOffHeap = true;
+                    } else if (value.equalsIgnoreCase("heap")) {
+                        dormantOffHeap = false;
+                    } else {
+                        System.out.println("Unknown dormant accounts mode: " + value);
+                        return;
+                    }
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        if (dormantOffHeap && batchFile == null && serverPort < 0) {
+            System.out.println("--dormant off-heap needs --batch or --serve");
+            return;
+        }
+
+        // Registry of all bank accounts (partitioned by account type)
+        AccountRegistry registry = new AccountRegistry(
+                dormantOffHeap ? new OffHeapAccountTable() : null);
+
+        AtmMetrics.registerMBean();
+
+        if (snapshotFile != null && walFile == null) {
+            System.out.println("--snapshot needs --wal");
+            return;
+        }
+        if (walFile != null && !openWriteAheadLog(Paths.get(walFile), syncPolicy,
+                snapshotFile == null ? null : Paths.get(snapshotFile), checkpointInterval,
+                replayThreads, registry)) {
+            return;
+        }
+        if (retention != null) {
+            new RetentionEngine(registry, retention).start(RETENTION_SLICE_PERIOD_MILLIS);
+        }
+
+        if (batchFile != null) {
+            runBatch(batchFile, registry, pipelined);
+            return;
+        }
+
+        if (serverPort >= 0) {
+            AtmServer server = new AtmServer(registry, INTEREST_BATCH, shardsCount);
+            try {
+                server.start(serverPort);
+            } catch (IOException ex) {
+                System.err.println("Error: " + ex.getMessage());
+                return;
+            }
+            // The server keeps running until the program is stopped
+            System.err.println("Serving on port " + server.getPort());
+            return;
+        }
+
         Scanner input = new Scanner(System.in);
 
         // Stores the user's menu choice
         int choice = 0;
 
         // Dynamic list to store all bank accounts
-        MyArrayList<Account> accounts = new MyArrayList<>();
+        MyArrayList<Account> accounts = registry.getAccounts();
 
         System.out.println("Welcome to the ATM System");
 
@@ -55,55 +258,167 @@ public class SimpleATMSystem {
             printMenu();
             choice = input.nextInt();
 
-            switch (choice) {
-                case 1:
-                    // Create a new Savings or Checking account
-                    Account newAccount = createAccount();
-
-//                    // Debug line to confirm account creation (for learning/testing only)
-//                    if (newAccount != null) {
-//                        System.out.println("Debug add: " +
-//                                newAccount.getAccountNumber());
-//                    }
-                    // Add the new account to the dynamic list
-                    if (newAccount != null) {
-                        accounts.add(newAccount);
-                    }
-                    break;
-
-                case 2:
-                    // Deposit money into an account
-                    depositToAccount(accounts);
-                    break;
-
-                case 3:
-                    // Withdraw money from an account
-                    withdrawFromAccount(accounts);
-                    break;
-
-                case 4:
-                    // Display the last N transactions
-                    showLastNTransactions(accounts);
-                    break;
-
-                case 5:
-                    // Display account summary
-                    showAccountSummary(accounts);
-                    break;
+            try {
+                switch (choice) {
+                    case 1:
+                        // Create a new Savings or Checking account
+                        Account newAccount = createAccount();
+
+    //                    // Debug line to confirm account creation (for learning/testing only)
+    //                    if (newAccount != null) {
+    //                        System.out.println("Debug add: " +
+    //                                newAccount.getAccountNumber());
+    //                    }
+                        // Add the new account to the registry
+                        if (newAccount != null) {
+                            registry.add(newAccount);
+                        }
+                        break;
+
+                    case 2:
+                        // Deposit money into an account
+                        depositToAccount(accounts);
+                        break;
+
+                    case 3:
+                        // Withdraw money from an account
+                        withdrawFromAccount(accounts);
+                        break;
+
+                    case 4:
+                        // Display the last N transactions
+                        showLastNTransactions(accounts);
+                        break;
+
+                    case 5:
+                        // Display account summary
+                        showAccountSummary(accounts);
+                        break;
+
+                    case 6:
+                        // Transactions Explorer
+                        transactionsExplorer(accounts);
+                        break;
+
+                    case 7:
+                        // Transfer money between two accounts
+                        transferBetweenAccounts(accounts);
+                        break;
+
+                    case 8:
+                        // Apply the end-of-day interest to all savings accounts
+                        System.out.println(INTEREST_BATCH.run(registry));
+                        break;
+                    case 9:
+                        // Latencies and outcomes of the operations so far
+                        System.out.println(METRICS.getReport());
+                        break;
+                    case 10:
+                        // Estimated heap taken by the accounts, by part
+                        System.out.println(BookFootprint.of(registry));
+                        break;
+                    case 0:
+                        // Exit the program
+                        System.exit(0);
+                        break;
+
+                    default:
+                        System.out.println("Wrong Input!");
+                }
+            } catch (UncheckedIOException ex) {
+                // The journal failed: the last change may not be durable,
+                // and no later change could be
+                System.out.println("Error: the journal can not be written: " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+    }
 
-                case 6:
-                    // Transactions Explorer
-                    transactionsExplorer(accounts);
-                    break;
-                case 0:
-                    // Exit the program
-                    System.exit(0);
-                    break;
+    /**
+     * Rebuilds the accounts from a snapshot (if any) and a write-ahead log,
+     * then opens the log and makes it the journal of all accounts. The log is
+     * closed (and its last entries synced) when the program exits, after a
+     * last checkpoint if a snapshot file is used.
+     *
+     * @param file the log file
+     * @param policy when changes are acknowledged relative to the log
+     * @param snapshotFile the snapshot file, or null for none
+     * @param checkpointInterval seconds between two checkpoints, or 0 for
+     * a checkpoint at exit only
+     * @param replayThreads threads replaying the log
+     * @param registry the (empty) registry receiving the rebuilt accounts
+     * @return false if the log can not be used
+     */
+    public static boolean openWriteAheadLog(Path file, WriteAheadLog.SyncPolicy policy,
+            Path snapshotFile, long checkpointInterval, int replayThreads,
+            AccountRegistry registry) {
+        try {
+            WriteAheadLog.ReplayReport replayed = snapshotFile == null
+                    ? WriteAheadLog.replay(file, registry, 0, account -> 0, replayThreads)
+                    : Checkpointer.recover(snapshotFile, file, registry, replayThreads);
+            System.err.println(replayed);
+
+            WriteAheadLog wal = WriteAheadLog.open(file, policy, WAL_SYNC_PERIOD_MILLIS,
+                    replayed.getLastSequence());
+            Account.setJournal(wal);
+
+            Checkpointer checkpointer = snapshotFile == null ? null
+                    : new Checkpointer(snapshotFile, registry, wal);
+            if (checkpointer != null && checkpointInterval > 0) {
+                checkpointer.start(checkpointInterval);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    if (checkpointer != null) {
+                        checkpointer.stop();
+                        checkpointer.checkpoint();
+                    }
+                    wal.close();
+                } catch (IOException ex) {
+                    System.err.println("Error: " + ex.getMessage());
+                }
+            }));
+            return true;
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return false;
+        }
+    }
 
-                default:
-                    System.out.println("Wrong Input!");
+    /**
+     * Runs a batch command file against the account registry and prints a
+     * short summary (commands, errors, throughput) to the standard error
+     * stream.
+     *
+     * @param fileName the command file, or "-" for the standard input
+     * @param registry the accounts the commands apply to
+     * @param pipelined true to run the commands as a pipeline of stages
+     */
+    public static void runBatch(String fileName, AccountRegistry registry, boolean pipelined) {
+        BatchProcessor processor = pipelined ? null
+                : new BatchProcessor(registry, INTEREST_BATCH);
+        PipelinedBatchProcessor pipeline = pipelined
+                ? new PipelinedBatchProcessor(registry, INTEREST_BATCH) : null;
+
+        long start = System.nanoTime();
+        try (InputStream in = fileName.equals("-") ? System.in
+                : new BufferedInputStream(new FileInputStream(fileName))) {
+            if (pipelined) {
+                pipeline.run(in, System.out);
+            } else {
+                processor.run(in, System.out);
             }
+        } catch (IOException | UncheckedIOException ex) {
+            // A journal failure stops the batch as well
+            System.err.println("Error: " + ex.getMessage());
+            return;
         }
+        long elapsed = System.nanoTime() - start;
+
+        long commands = pipelined ? pipeline.getCommandsCount() : processor.getCommandsCount();
+        long errors = pipelined ? pipeline.getErrorsCount() : processor.getErrorsCount();
+        System.err.printf("Processed %d commands (%d errors) in %.1f ms | %.0f ops/s%n",
+                commands, errors, elapsed / 1e6, commands / (elapsed / 1e9));
     }
 
     /**
@@ -118,6 +433,10 @@ public class SimpleATMSystem {
         System.out.println("4. Show the last N Transactions");
         System.out.println("5. Show the account summary");
         System.out.println("6. Show the Transactions Explorer (Tree)");
+        System.out.println("7. Transfer to another Account");
+        System.out.println("8. Run the end-of-day interest batch");
+        System.out.println("9. Show the operation metrics");
+        System.out.println("10. Show the memory footprint of the accounts");
         System.out.println("0. Exit");
         System.out.println("=====================================");
     }
@@ -192,19 +511,23 @@ public class SimpleATMSystem {
         String accountNumber = input.nextLine();
 
         // Linear search through the ArrayList
-        for (Account account : accounts) {
-            if (account.getAccountNumber().equalsIgnoreCase(accountNumber.trim())) {
-                System.out.println("Enter the Account PIN");
-                int inputPIN = input.nextInt();
-
-                if (account.checkPIN(inputPIN)) {
-                    return account;
-                } else {
-                    return null;
-                }
-            }
+        long start = System.nanoTime();
+        Account account = findAccount(accounts, accountNumber);
+        if (account == null) {
+            METRICS.record(AtmMetrics.Operation.AUTHENTICATE, AtmMetrics.Outcome.DENIED, start);
+            return null;
         }
-        return null;
+        long searchNanos = System.nanoTime() - start;
+
+        System.out.println("Enter the Account PIN");
+        int inputPIN = input.nextInt();
+
+        // The time spent typing the PIN is not part of the measure
+        start = System.nanoTime() - searchNanos;
+        boolean valid = account.checkPIN(inputPIN);
+        METRICS.record(AtmMetrics.Operation.AUTHENTICATE,
+                valid ? AtmMetrics.Outcome.SUCCESS : AtmMetrics.Outcome.DENIED, start);
+        return valid ? account : null;
     }
 
     /**
@@ -259,6 +582,57 @@ public class SimpleATMSystem {
         }
     }
 
+    /**
+     * Finds an account by its number (no PIN required).
+     *
+     * The method performs a linear search over the ArrayList of accounts.
+     *
+     * @param accounts dynamic list of stored accounts
+     * @param accountNumber the account number to look for
+     * @return the matching Account object, or null if there is none
+     */
+    public static Account findAccount(MyArrayList<Account> accounts, String accountNumber) {
+        for (Account account : accounts) {
+            if (account.getAccountNumber().equalsIgnoreCase(accountNumber.trim())) {
+                return account;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Transfers money from an authenticated account to another account.
+     *
+     * @param accounts dynamic list of stored accounts
+     */
+    public static void transferBetweenAccounts(MyArrayList<Account> accounts) {
+        Scanner input = new Scanner(System.in);
+        System.out.println("=============Transfer to Account===============");
+
+        Account account = authAccount(accounts);
+        if (account == null) {
+            System.out.println("Wrong Account number or PIN!");
+            return;
+        }
+
+        System.out.println("Enter the destination Account Number:");
+        Account target = findAccount(accounts, input.nextLine());
+        if (target == null) {
+            System.out.println("Destination account not found!");
+            return;
+        }
+
+        System.out.println("Enter the transfer amount:");
+        double amount = input.nextDouble();
+
+        try {
+            account.transferTo(target, amount);
+            System.out.println("Transfer Successful. | New Balance: " + account.getBalance());
+        } catch (IllegalArgumentException | InsufficientFundsException ex) {
+            System.out.println("Error: " + ex.getMessage());
+        }
+    }
+
     /**
      * Displays the most recent N transactions of an authenticated account.
      *
@@ -319,6 +693,12 @@ public class SimpleATMSystem {
         System.out.println("3- Show transactions tree hieght.");
         // 4- Show breadth-first traversal (level order)
         System.out.println("4- Show breadth-first traversal (level order)");
+        // 5- Show a summary of the transaction amounts
+        System.out.println("5- Show a summary of the transaction amounts");
+        // 6- Reverse or correct a transaction
+        System.out.println("6- Reverse or correct a transaction");
+        // 7- Show the transactions of a time window in range [min, max] amount
+        System.out.println("7- Show the transactions of a time window in range [min, max] amount.");
         // 0- Back
         System.out.println("0- Back");
 
@@ -329,7 +709,9 @@ public class SimpleATMSystem {
         switch (choice) {
             case 1:
                 System.out.println("=======Sorted Transactions by Amount========");
-                account.getTransactionsBinaryTree().inOrder();
+                for (TransactionsEntry te : account.getTransactionsByAmount()) {
+                    System.out.println(te.getMsg());
+                }
                 break;
             case 2:
                 System.out.println("Enter the min amount: ");
@@ -343,16 +725,107 @@ public class SimpleATMSystem {
                 System.out.println("======Transactions in Range [" + min + ", " + max + "]=======");
 
                 MyArrayList<TransactionsEntry> result = account
-                        .getTransactionsBinaryTree()
-                        .rangeSearch(min, max, account.getAmoutComparator());
+                        .findTransactionsByAmount(minAmount, maxAmount);
 
                 for (TransactionsEntry te : result) {
                     System.out.println(te.getMsg());
                 }
                 break;
+            case 5:
+                amountsSummary(account);
+                break;
+            case 6:
+                reverseOrCorrect(account, input);
+                break;
+            case 7:
+                transactionsInWindow(account, input);
+                break;
+
+        }
+
+    }
 
+    /**
+     * Asks for a time window (in minutes before now) and an amount range,
+     * and prints the matching transactions of an account, oldest first.
+     */
+    private static void transactionsInWindow(Account account, Scanner input) {
+        System.out.println("Enter how many minutes ago the window starts: ");
+        long fromMinutes = input.nextLong();
+        System.out.println("Enter how many minutes ago the window ends (0 for now): ");
+        long toMinutes = input.nextLong();
+        System.out.println("Enter the min amount: ");
+        double minAmount = input.nextDouble();
+        System.out.println("Enter the max amount: ");
+        double maxAmount = input.nextDouble();
+
+        long now = System.currentTimeMillis();
+        long from = now - fromMinutes * 60_000;
+        long to = now - toMinutes * 60_000;
+        System.out.println("======Transactions from " + TIME_FORMAT.format(Instant.ofEpochMilli(from))
+                + " to " + TIME_FORMAT.format(Instant.ofEpochMilli(to))
+                + " in Range [" + minAmount + ", " + maxAmount + "]=======");
+
+        for (TransactionsEntry te : account.findTransactions(from, to, minAmount, maxAmount)) {
+            System.out.println(TIME_FORMAT.format(Instant.ofEpochMilli(te.getTime())) + " " + te.getMsg());
         }
+    }
 
+    /**
+     * Lists the transactions of an account with their ids, then reverses the
+     * chosen one or corrects its amount.
+     */
+    private static void reverseOrCorrect(Account account, Scanner input) {
+        System.out.println("=======Transactions by Amount [id]========");
+        for (TransactionsEntry te : account.getTransactionsByAmount()) {
+            System.out.println("[" + te.getId() + "] " + te.getMsg());
+        }
+
+        System.out.println("Enter the id of the transaction:");
+        int id = input.nextInt();
+        System.out.println("Enter the correct amount (0 to reverse the transaction):");
+        double amount = input.nextDouble();
+
+        try {
+            if (amount == 0) {
+                account.reverseTransaction(id);
+                System.out.println("Transaction reversed. | New Balance: " + account.getBalance());
+            } else {
+                account.correctTransaction(id, amount);
+                System.out.println("Transaction corrected. | New Balance: " + account.getBalance());
+            }
+        } catch (IllegalArgumentException | InsufficientFundsException ex) {
+            System.out.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Prints the count, total, smallest and largest transaction amounts of
+     * an account, and how many fall into a few amount bands.
+     */
+    private static void amountsSummary(Account account) {
+        AmountAggregates aggregates = AmountAggregates.get();
+        long[] bounds = {Money.toCents(10), Money.toCents(100), Money.toCents(1000)};
+        String[] bands = {"below 10", "10 to 100", "100 to 1000", "1000 and above"};
+
+        // Scans the amounts under the account's lock, prints after
+        String summary = account.aggregateTransactionAmounts((cents, from, to) -> {
+            StringBuilder text = new StringBuilder();
+            text.append("Transactions: ").append(to - from).append('\n');
+            if (to == from) {
+                return text.toString();
+            }
+            text.append("Total: ").append(Money.toAmount(aggregates.sum(cents, from, to))).append('\n');
+            text.append("Smallest: ").append(Money.toAmount(aggregates.min(cents, from, to))).append('\n');
+            text.append("Largest: ").append(Money.toAmount(aggregates.max(cents, from, to))).append('\n');
+            int[] counts = aggregates.histogram(cents, from, to, bounds);
+            for (int k = 0; k < counts.length; k++) {
+                text.append(bands[k]).append(": ").append(counts[k]).append('\n');
+            }
+            return text.toString();
+        });
+        System.out.println("======Transaction Amounts Summary=======");
+        System.out.print(summary);
     }
 
 }
@@ -0,0 +1,363 @@
+package simpleatmsystem.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import simpleatmsystem.exceptions.InsufficientFundsException;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.Money;
+import simpleatmsystem.models.SavingsAccount;
+import simpleatmsystem.services.InterestBatchEngine;
+import simpleatmsystem.services.ShardedAccountBook;
+
+/**
+ * BatchProcessor -------------- Replays a file of ATM commands without any
+ * interaction.
+ *
+ * One command per line (blank lines and lines starting with # are ignored):
+ *
+ * create savings|checking accountNumber pin initialBalance rate|fee ownerName
+ * deposit accountNumber pin amount
+ * withdraw accountNumber pin amount
+ * transfer accountNumber pin targetAccountNumber amount
+ * query accountNumber pin
+ * history accountNumber pin n
+ * summary accountNumber pin
+ * interest
+ * quit
+ *
+ * The owner name is the rest of the line, so it may contain spaces. Every
+ * command produces one output line starting with OK or ERR, except history,
+ * whose "OK n" line is followed by n lines "- transaction". quit ends the
+ * input early. The input is read
+ * through a CommandReader and the output through one large buffer, so the
+ * processor is limited by the account operations, not by parsing or printing.
+ *
+ * The output is also flushed whenever the next command has not arrived yet,
+ * so the same processor serves interactive sessions (see server.AtmServer):
+ * a client waiting for its answer gets it, and a client sending many
+ * commands at once gets their answers in a few large writes.
+ *
+ * With a ShardedAccountBook, the commands changing accounts (and queries)
+ * are executed by the shard owning the account instead of the calling
+ * thread.
+ *
+ * create and interest need no PIN, so they can be turned off for untrusted
+ * input (see server.AtmServer, whose sessions only get the other commands).
+ */
+public class BatchProcessor {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final AccountRegistry registry;
+    private final InterestBatchEngine interestBatch;
+
+    /**
+     * Executes the account operations, or null to execute them on the
+     * calling thread
+     */
+    private final ShardedAccountBook shards;
+
+    /**
+     * False to reject the commands that are not about one authenticated
+     * account (create and interest), for network sessions
+     */
+    private final boolean adminCommands;
+
+    /**
+     * Reused for every output line
+     */
+    private final StringBuilder line = new StringBuilder(128);
+
+    private long commandsCount;
+    private long errorsCount;
+
+    /**
+     * Creates a processor working on the given registry.
+     *
+     * @param registry the accounts the commands apply to
+     * @param interestBatch used by interest commands
+     */
+    public BatchProcessor(AccountRegistry registry, InterestBatchEngine interestBatch) {
+        this(registry, interestBatch, null);
+    }
+
+    /**
+     * Creates a processor working on the given registry, whose account
+     * operations go through the given shards.
+     *
+     * @param registry the accounts the commands apply to
+     * @param interestBatch used by interest commands
+     * @param shards executes creations, deposits, withdrawals, transfers and
+     * queries (null to execute them on the calling thread)
+     */
+    public BatchProcessor(AccountRegistry registry, InterestBatchEngine interestBatch,
+            ShardedAccountBook shards) {
+        this(registry, interestBatch, shards, true);
+    }
+
+    /**
+     * Creates a processor working on the given registry, whose account
+     * operations go through the given shards.
+     *
+     * @param registry the accounts the commands apply to
+     * @param interestBatch used by interest commands
+     * @param shards executes creations, deposits, withdrawals, transfers and
+     * queries (null to execute them on the calling thread)
+     * @param adminCommands false to reject create and interest, which need
+     * no PIN (for untrusted input such as network sessions)
+     */
+    public BatchProcessor(AccountRegistry registry, InterestBatchEngine interestBatch,
+            ShardedAccountBook shards, boolean adminCommands) {
+        this.registry = registry;
+        this.interestBatch = interestBatch;
+        this.shards = shards;
+        this.adminCommands = adminCommands;
+    }
+
+    /**
+     * Runs all the commands of the input and writes one result line per
+     * command to the output. The output is flushed when the input has no
+     * buffered command left and at the end, not after each line.
+     *
+     * @param in the command input
+     * @param out where the results are written
+     * @throws IOException if reading or writing fails
+     * @throws UncheckedIOException if the journal fails (the commands after
+     * the failed one are not run)
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        run(in, out, BUFFER_SIZE);
+    }
+
+    /**
+     * Runs all the commands of the input with input and output buffers of
+     * the given size (see run(InputStream, OutputStream)).
+     *
+     * @param in the command input
+     * @param out where the results are written
+     * @param bufferSize size of each buffer, in bytes
+     * @throws IOException if reading or writing fails
+     * @throws UncheckedIOException if the journal fails (the commands after
+     * the failed one are not run)
+     */
+    public void run(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        CommandReader reader = new CommandReader(in, bufferSize);
+        OutputStream writer = new BufferedOutputStream(out, bufferSize);
+
+        while (true) {
+            if (!reader.hasBufferedLine()) {
+                // The next command may take a while: send what is ready
+                writer.flush();
+            }
+            if (!reader.nextLine()) {
+                break;
+            }
+            if (!reader.hasToken()) {
+                continue;
+            }
+            String command = null;
+            line.setLength(0);
+            try {
+                command = reader.nextWord();
+                if (command.startsWith("#")) {
+                    continue;
+                }
+                if (command.equalsIgnoreCase("quit")) {
+                    break;
+                }
+
+                commandsCount++;
+                execute(command, reader);
+            } catch (IllegalArgumentException | InsufficientFundsException ex) {
+                // NumberFormatException is an IllegalArgumentException too,
+                // and so is a token too long for the reader (even the
+                // command itself, which is then still counted)
+                if (command == null) {
+                    commandsCount++;
+                }
+                errorsCount++;
+                line.setLength(0);
+                line.append("ERR line ").append(reader.getLineNumber())
+                        .append(": ").append(ex.getMessage());
+            } catch (UncheckedIOException ex) {
+                // The journal failed: the change may be applied but is not
+                // durable, and no later command can be acknowledged
+                errorsCount++;
+                line.setLength(0);
+                line.append("ERR line ").append(reader.getLineNumber())
+                        .append(": journal failure\n");
+                writer.write(line.toString().getBytes(StandardCharsets.UTF_8));
+                writer.flush();
+                throw ex;
+            }
+            line.append('\n');
+            writer.write(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Executes one command and leaves its result in line.
+     */
+    private void execute(String command, CommandReader reader)
+            throws IOException, InsufficientFundsException {
+        String name = command.toLowerCase(Locale.ROOT);
+        if (!adminCommands && (name.equals("create") || name.equals("interest"))) {
+            throw new IllegalArgumentException("Command not allowed: " + command);
+        }
+        switch (name) {
+            case "create": {
+                String type = reader.nextWord();
+                String accountNumber = requireWord(reader.nextWord());
+                int pin = reader.nextInt();
+                double initialBalance = reader.nextDouble();
+                double rateOrFee = reader.nextDouble();
+                String ownerName = reader.restOfLine();
+
+                if (shards == null && registry.find(accountNumber) != null) {
+                    throw new IllegalArgumentException("Account " + accountNumber + " already exists!");
+                }
+                Account account;
+                if ("savings".equalsIgnoreCase(type)) {
+                    account = new SavingsAccount(accountNumber, ownerName, pin, initialBalance, rateOrFee);
+                } else if ("checking".equalsIgnoreCase(type)) {
+                    account = new CheckingAccount(accountNumber, ownerName, pin, initialBalance, rateOrFee);
+                } else {
+                    throw new IllegalArgumentException("Unknown account type: " + type);
+                }
+                if (shards != null) {
+                    // Checked and added by the shard of the number
+                    shards.create(account);
+                } else {
+                    registry.add(account);
+                }
+                line.append("OK created ").append(accountNumber);
+                break;
+            }
+            case "deposit": {
+                Account account = authenticate(reader);
+                double amount = reader.nextDouble();
+                if (shards != null) {
+                    appendBalance(account, shards.deposit(account, amount));
+                } else {
+                    account.deposite(amount);
+                    appendBalance(account);
+                }
+                break;
+            }
+            case "withdraw": {
+                Account account = authenticate(reader);
+                double amount = reader.nextDouble();
+                if (shards != null) {
+                    appendBalance(account, shards.withdraw(account, amount));
+                } else {
+                    account.withdraw(amount);
+                    appendBalance(account);
+                }
+                break;
+            }
+            case "transfer": {
+                Account account = authenticate(reader);
+                String targetNumber = requireWord(reader.nextWord());
+                Account target = registry.find(targetNumber);
+                if (target == null) {
+                    throw new IllegalArgumentException("Destination account not found!");
+                }
+                double amount = reader.nextDouble();
+                if (shards != null) {
+                    appendBalance(account, shards.transfer(account, target, amount));
+                } else {
+                    account.transferTo(target, amount);
+                    appendBalance(account);
+                }
+                break;
+            }
+            case "query": {
+                Account account = authenticate(reader);
+                if (shards != null) {
+                    appendBalance(account, shards.query(account));
+                } else {
+                    appendBalance(account);
+                }
+                line.append(' ').append(account.getAccountType());
+                break;
+            }
+            case "history": {
+                Account account = authenticate(reader);
+                int n = reader.nextInt();
+                if (n <= 0) {
+                    throw new IllegalArgumentException("The number of transactions must be positive!");
+                }
+                MyArrayList<String> transactions = account.getLastNTransactions(n);
+                line.append("OK ").append(transactions.size());
+                for (int i = 0; i < transactions.size(); i++) {
+                    line.append("\n- ").append(transactions.get(i));
+                }
+                break;
+            }
+            case "summary": {
+                Account account = authenticate(reader);
+                appendBalance(account);
+                line.append(' ').append(account.getAccountType())
+                        .append(' ').append(account.getOwnerName());
+                break;
+            }
+            case "interest":
+                line.append("OK ").append(interestBatch.run(registry));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    /**
+     * Reads an account number and a PIN and authenticates them.
+     */
+    private Account authenticate(CommandReader reader) throws IOException {
+        String accountNumber = requireWord(reader.nextWord());
+        int pin = reader.nextInt();
+        Account account = registry.authenticate(accountNumber, pin);
+        if (account == null) {
+            throw new IllegalArgumentException("Wrong Account number or PIN!");
+        }
+        return account;
+    }
+
+    private static String requireWord(String word) {
+        if (word == null) {
+            throw new IllegalArgumentException("Missing account number!");
+        }
+        return word;
+    }
+
+    private void appendBalance(Account account) {
+        appendBalance(account, account.getBalanceCents());
+    }
+
+    private void appendBalance(Account account, long balanceCents) {
+        line.append("OK ").append(account.getAccountNumber())
+                .append(' ').append(Money.toAmount(balanceCents));
+    }
+
+    /**
+     * @return number of commands executed so far
+     */
+    public long getCommandsCount() {
+        return commandsCount;
+    }
+
+    /**
+     * @return number of commands that failed so far
+     */
+    public long getErrorsCount() {
+        return errorsCount;
+    }
+}
@@ -0,0 +1,355 @@
+package simpleatmsystem.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CommandReader ------------- A fast, line-oriented tokenizer for batch
+ * command files.
+ *
+ * Unlike java.util.Scanner (regular expressions, one char at a time through
+ * a Reader), this reader pulls large blocks of bytes from the stream into its
+ * own buffer and parses numbers directly from those bytes. Tokens are
+ * separated by spaces or tabs and never continue past the end of a line, so a
+ * malformed line can be skipped without losing the following ones.
+ *
+ * Typical use: while (reader.nextLine()) { read the tokens of the line }
+ */
+public class CommandReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Longest accepted token (a line without spaces can not grow the
+     * scratch space without bound)
+     */
+    private static final int MAX_WORD_LENGTH = 1 << 16;
+
+    /**
+     * Exact powers of ten used by nextDouble
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    /**
+     * Scratch space for words (grown when a longer word is read)
+     */
+    private byte[] word = new byte[64];
+
+    /**
+     * Number of the current line (1-based, 0 before the first line)
+     */
+    private long lineNumber;
+
+    /**
+     * True when the current line has been read up to its end
+     */
+    private boolean atLineEnd = true;
+
+    /**
+     * Creates a reader over the given stream.
+     *
+     * @param in the stream to read commands from
+     */
+    public CommandReader(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a reader with a buffer of the given size (small buffers suit
+     * interactive sessions, where lines arrive one at a time).
+     *
+     * @param in the stream to read commands from
+     * @param bufferSize size of the read buffer, in bytes
+     */
+    public CommandReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Moves to the start of the next line, skipping whatever is left of the
+     * current one.
+     *
+     * @return false if the end of the input was reached
+     * @throws IOException if reading fails
+     */
+    public boolean nextLine() throws IOException {
+        if (!atLineEnd) {
+            int b;
+            do {
+                b = read();
+            } while (b != '\n' && b != -1);
+            if (b == -1) {
+                return false;
+            }
+        }
+        if (peek() == -1) {
+            return false;
+        }
+        atLineEnd = false;
+        lineNumber++;
+        return true;
+    }
+
+    /**
+     * Tells whether the start of the line after the current one is already
+     * buffered, so that nextLine will not wait for the stream. Callers can
+     * flush their output when it is not.
+     *
+     * @return true if another line is already buffered
+     */
+    public boolean hasBufferedLine() {
+        for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i + 1 < limit;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of the current line (1-based)
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Checks whether the current line has more tokens.
+     *
+     * @return true if another token can be read from the current line
+     * @throws IOException if reading fails
+     */
+    public boolean hasToken() throws IOException {
+        skipBlanks();
+        int b = peek();
+        return b != '\n' && b != -1;
+    }
+
+    /**
+     * Reads the next word of the current line.
+     *
+     * @return the word, or null if the line has no more tokens
+     * @throws IOException if reading fails
+     */
+    public String nextWord() throws IOException {
+        int length = readWord();
+        return length < 0 ? null : new String(word, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the rest of the current line (trimmed), for free text such as the
+     * owner name.
+     *
+     * @return the rest of the line, or an empty string
+     * @throws IOException if reading fails
+     */
+    public String restOfLine() throws IOException {
+        skipBlanks();
+        int length = 0;
+        int b;
+        while ((b = peek()) != '\n' && b != -1) {
+            position++;
+            if (length == word.length) {
+                word = grow(word);
+            }
+            word[length++] = (byte) b;
+        }
+        while (length > 0 && (word[length - 1] == ' ' || word[length - 1] == '\t'
+                || word[length - 1] == '\r')) {
+            length--;
+        }
+        return new String(word, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the next token as a whole number.
+     *
+     * @return the parsed number
+     * @throws IOException if reading fails
+     * @throws NumberFormatException if the token is missing or not a number
+     */
+    public long nextLong() throws IOException {
+        int length = readWord();
+        if (length <= 0) {
+            throw new NumberFormatException("Missing number on line " + lineNumber);
+        }
+        int i = 0;
+        boolean negative = word[0] == '-';
+        if (negative || word[0] == '+') {
+            i++;
+        }
+        if (i == length) {
+            throw badNumber(length);
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            int digit = word[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw badNumber(length);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads the next token as an int.
+     *
+     * @return the parsed number
+     * @throws IOException if reading fails
+     * @throws NumberFormatException if the token is missing, not a number or
+     * out of the int range
+     */
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Number out of range on line " + lineNumber);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads the next token as a decimal number such as 12, -3.5 or 0.125.
+     *
+     * The digits are accumulated in a long and divided once by a power of
+     * ten, which gives the correctly rounded double for up to 15 significant
+     * digits (more than enough for amounts and rates).
+     *
+     * @return the parsed number
+     * @throws IOException if reading fails
+     * @throws NumberFormatException if the token is missing or malformed
+     */
+    public double nextDouble() throws IOException {
+        int length = readWord();
+        if (length <= 0) {
+            throw new NumberFormatException("Missing number on line " + lineNumber);
+        }
+        int i = 0;
+        boolean negative = word[0] == '-';
+        if (negative || word[0] == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < length; i++) {
+            byte b = word[i];
+            if (b == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                // Exponents and other rare forms: let the JDK handle them
+                return Double.parseDouble(new String(word, 0, length, StandardCharsets.US_ASCII));
+            }
+            if (++digits > 15) {
+                return Double.parseDouble(new String(word, 0, length, StandardCharsets.US_ASCII));
+            }
+            mantissa = mantissa * 10 + digit;
+            if (scale >= 0) {
+                scale++;
+            }
+        }
+        if (digits == 0) {
+            throw badNumber(length);
+        }
+        double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // =========================================================
+    // Byte level helpers
+    // =========================================================
+    /**
+     * Reads the next word of the line into the scratch array.
+     *
+     * @return the word length, or -1 if the line has no more tokens
+     */
+    private int readWord() throws IOException {
+        if (!hasToken()) {
+            return -1;
+        }
+        int length = 0;
+        int b;
+        while ((b = peek()) != -1 && b > ' ') {
+            position++;
+            if (length == word.length) {
+                word = grow(word);
+            }
+            word[length++] = (byte) b;
+        }
+        return length;
+    }
+
+    private byte[] grow(byte[] array) {
+        if (array.length >= MAX_WORD_LENGTH) {
+            throw new IllegalArgumentException("Token too long on line " + lineNumber);
+        }
+        return Arrays.copyOf(array, array.length * 2);
+    }
+
+    /**
+     * Skips spaces, tabs and carriage returns, but not the end of the line.
+     */
+    private void skipBlanks() throws IOException {
+        int b;
+        while ((b = peek()) == ' ' || b == '\t' || b == '\r') {
+            position++;
+        }
+    }
+
+    private NumberFormatException badNumber(int length) {
+        return new NumberFormatException("Invalid number '"
+                + new String(word, 0, length, StandardCharsets.UTF_8)
+                + "' on line " + lineNumber);
+    }
+
+    /**
+     * @return the next byte without consuming it, or -1 at the end of input
+     */
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    /**
+     * @return the next byte, or -1 at the end of input
+     */
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            position = 0;
+            limit = 0;
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,673 @@
+package simpleatmsystem.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import simpleatmsystem.exceptions.InsufficientFundsException;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.lib.RingBuffer;
+import simpleatmsystem.metrics.AccountOperationEvent;
+import simpleatmsystem.metrics.AtmMetrics;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountJournal;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.BalanceChange;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.Money;
+import simpleatmsystem.models.SavingsAccount;
+import simpleatmsystem.services.InterestBatchEngine;
+
+/**
+ * PipelinedBatchProcessor ----------------------- Runs the same command files
+ * as BatchProcessor, with the same output, as a pipeline of four stages on
+ * four threads:
+ *
+ * - parse (the calling thread): reads the lines into commands
+ *
+ * - authenticate: finds the accounts and checks the PINs; creates the new
+ * accounts, so the commands after a create find them; runs interest
+ *
+ * - apply: changes the balances (Account.applyDeposit, applyWithdrawal,
+ * applyTransfer), which is where a command can be rejected for lack of
+ * funds, and reads the balances the output shows
+ *
+ * - record: records the applied changes (history, transactions tree and
+ * journal), reads the histories, waits once per batch for the journal
+ * entries to be durable, reports the operations to the metrics and Flight
+ * Recorder (as Account.deposite and the others do), then writes the output
+ *
+ * So the history and tree indexing and the journal are off the balance
+ * update path: the apply stage goes on with the next commands while the
+ * record stage indexes the previous ones. The stages are connected by
+ * bounded ring buffers and hand the commands over in batches. When a stage
+ * falls behind, its input buffer fills up and the stages before it wait
+ * (backpressure), so memory use stays bounded whatever the input size.
+ *
+ * Every stage handles the commands in input order, so the balances and the
+ * output are exactly those of BatchProcessor. interest is a barrier: the
+ * authenticate stage (the first one changing anything) runs it once every
+ * command before it is recorded, and only then goes on.
+ */
+public class PipelinedBatchProcessor {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Commands each ring buffer holds
+     */
+    private static final int RING_CAPACITY = 4096;
+
+    /**
+     * Maximum number of commands handed over at once
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * What a command does
+     */
+    private enum Kind {
+        CREATE, DEPOSIT, WITHDRAW, TRANSFER, QUERY, HISTORY, SUMMARY, INTEREST, END
+    }
+
+    private final AccountRegistry registry;
+    private final InterestBatchEngine interestBatch;
+
+    /**
+     * First unexpected failure of a stage; the stages then only pass the
+     * commands on, so that none of them blocks
+     */
+    private volatile RuntimeException failure;
+
+    /**
+     * Commands the record stage is done with (for the interest barrier)
+     */
+    private volatile long recordedCount;
+
+    private long commandsCount;
+    private long errorsCount;
+
+    /**
+     * Creates a processor working on the given registry.
+     *
+     * @param registry the accounts the commands apply to
+     * @param interestBatch used by interest commands
+     */
+    public PipelinedBatchProcessor(AccountRegistry registry, InterestBatchEngine interestBatch) {
+        this.registry = registry;
+        this.interestBatch = interestBatch;
+    }
+
+    /**
+     * Runs all the commands of the input and writes one result line per
+     * command to the output (see BatchProcessor for the commands).
+     *
+     * @param in the command input
+     * @param out where the results are written
+     * @throws IOException if reading or writing fails
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        failure = null;
+        recordedCount = 0;
+        commandsCount = 0;
+        errorsCount = 0;
+
+        RingBuffer<Command> parsed = new RingBuffer<>(RING_CAPACITY);
+        RingBuffer<Command> authenticated = new RingBuffer<>(RING_CAPACITY);
+        RingBuffer<Command> applied = new RingBuffer<>(RING_CAPACITY);
+        OutputStream writer = new BufferedOutputStream(out, BUFFER_SIZE);
+
+        Thread[] stages = {
+            startStage("batch-authenticate", () -> authenticateStage(parsed, authenticated)),
+            startStage("batch-apply", () -> applyStage(authenticated, applied)),
+            startStage("batch-record", () -> recordStage(applied, writer))
+        };
+
+        Exception readError = null;
+        try {
+            parseStage(new CommandReader(in, BUFFER_SIZE), parsed);
+        } catch (IOException | RuntimeException ex) {
+            // Let the stages finish what was handed over
+            readError = ex;
+            endInput(parsed);
+        }
+        for (Thread stage : stages) {
+            try {
+                stage.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the pipeline", ex);
+            }
+        }
+        if (readError instanceof IOException) {
+            throw (IOException) readError;
+        }
+        if (readError != null) {
+            throw (RuntimeException) readError;
+        }
+        RuntimeException error = failure;
+        if (error instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) error).getCause();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static Thread startStage(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            // Each batch waits for its journal entries once (see recordStage)
+            Account.deferDurability();
+            try {
+                stage.run();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Body of a stage thread
+     */
+    private interface Stage {
+
+        void run() throws InterruptedException;
+    }
+
+    // ===================== Parse =====================
+    private void parseStage(CommandReader reader, RingBuffer<Command> next) throws IOException {
+        Command[] batch = new Command[BATCH_SIZE];
+        int size = 0;
+        try {
+            while (reader.nextLine()) {
+                if (!reader.hasToken()) {
+                    continue;
+                }
+                String word = reader.nextWord();
+                if (word.startsWith("#")) {
+                    continue;
+                }
+                if (word.equalsIgnoreCase("quit")) {
+                    break;
+                }
+
+                Command command = new Command(reader.getLineNumber());
+                try {
+                    parse(command, word, reader);
+                } catch (IllegalArgumentException ex) {
+                    command.error = ex.getMessage();
+                }
+                batch[size++] = command;
+                // Hand over full batches, and whatever is ready when the
+                // next line has not arrived yet
+                if (size == BATCH_SIZE || !reader.hasBufferedLine()) {
+                    next.putAll(batch, size);
+                    size = 0;
+                }
+            }
+            batch[size++] = new Command(Kind.END);
+            next.putAll(batch, size);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the commands", ex);
+        }
+    }
+
+    private void endInput(RingBuffer<Command> next) {
+        try {
+            next.put(new Command(Kind.END));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void parse(Command command, String word, CommandReader reader)
+            throws IOException {
+        switch (word.toLowerCase(Locale.ROOT)) {
+            case "create":
+                command.kind = Kind.CREATE;
+                command.accountType = reader.nextWord();
+                command.accountNumber = requireWord(reader.nextWord());
+                command.pin = reader.nextInt();
+                command.initialBalance = reader.nextDouble();
+                command.rateOrFee = reader.nextDouble();
+                command.ownerName = reader.restOfLine();
+                break;
+            case "deposit":
+                command.kind = Kind.DEPOSIT;
+                readAccount(command, reader);
+                command.amount = reader.nextDouble();
+                break;
+            case "withdraw":
+                command.kind = Kind.WITHDRAW;
+                readAccount(command, reader);
+                command.amount = reader.nextDouble();
+                break;
+            case "transfer":
+                command.kind = Kind.TRANSFER;
+                readAccount(command, reader);
+                command.targetNumber = requireWord(reader.nextWord());
+                command.amount = reader.nextDouble();
+                break;
+            case "query":
+                command.kind = Kind.QUERY;
+                readAccount(command, reader);
+                break;
+            case "history":
+                command.kind = Kind.HISTORY;
+                readAccount(command, reader);
+                command.count = reader.nextInt();
+                if (command.count <= 0) {
+                    throw new IllegalArgumentException("The number of transactions must be positive!");
+                }
+                break;
+            case "summary":
+                command.kind = Kind.SUMMARY;
+                readAccount(command, reader);
+                break;
+            case "interest":
+                command.kind = Kind.INTEREST;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + word);
+        }
+    }
+
+    private static void readAccount(Command command, CommandReader reader) throws IOException {
+        command.accountNumber = requireWord(reader.nextWord());
+        command.pin = reader.nextInt();
+    }
+
+    private static String requireWord(String word) {
+        if (word == null) {
+            throw new IllegalArgumentException("Missing account number!");
+        }
+        return word;
+    }
+
+    // ===================== Authenticate =====================
+    private void authenticateStage(RingBuffer<Command> in, RingBuffer<Command> next)
+            throws InterruptedException {
+        Command[] batch = new Command[BATCH_SIZE];
+        long forwarded = 0;
+        while (true) {
+            int size = in.takeBatch(batch);
+            int from = 0;
+            boolean end = false;
+            for (int i = 0; i < size; i++) {
+                Command command = batch[i];
+                if (command.kind == Kind.END) {
+                    end = true;
+                    continue;
+                }
+                if (command.error != null || failure != null) {
+                    continue;
+                }
+                if (command.kind == Kind.INTEREST) {
+                    // Barrier: interest reads and records every balance
+                    next.putAll(slice(batch, from, i), i - from);
+                    forwarded += i - from;
+                    from = i;
+                    while (recordedCount < forwarded) {
+                        LockSupport.parkNanos(10_000);
+                    }
+                }
+                try {
+                    authenticate(command);
+                } catch (IllegalArgumentException ex) {
+                    command.error = ex.getMessage();
+                } catch (RuntimeException ex) {
+                    fail(ex);
+                }
+                command.sequence = Account.takeDeferredSequence();
+            }
+            next.putAll(slice(batch, from, size), size - from);
+            forwarded += size - from;
+            if (end) {
+                return;
+            }
+        }
+    }
+
+    private void authenticate(Command command) {
+        switch (command.kind) {
+            case CREATE: {
+                if (registry.find(command.accountNumber) != null) {
+                    throw new IllegalArgumentException("Account " + command.accountNumber
+                            + " already exists!");
+                }
+                Account account;
+                if ("savings".equalsIgnoreCase(command.accountType)) {
+                    account = new SavingsAccount(command.accountNumber, command.ownerName,
+                            command.pin, command.initialBalance, command.rateOrFee);
+                } else if ("checking".equalsIgnoreCase(command.accountType)) {
+                    account = new CheckingAccount(command.accountNumber, command.ownerName,
+                            command.pin, command.initialBalance, command.rateOrFee);
+                } else {
+                    throw new IllegalArgumentException("Unknown account type: " + command.accountType);
+                }
+                registry.add(account);
+                break;
+            }
+            case INTEREST:
+                // Records on the interest engine's threads
+                command.result = interestBatch.run(registry).toString();
+                break;
+            default:
+                command.account = registry.authenticate(command.accountNumber, command.pin);
+                if (command.account == null) {
+                    throw new IllegalArgumentException("Wrong Account number or PIN!");
+                }
+                if (command.kind == Kind.TRANSFER) {
+                    command.target = registry.find(command.targetNumber);
+                    if (command.target == null) {
+                        throw new IllegalArgumentException("Destination account not found!");
+                    }
+                }
+                break;
+        }
+    }
+
+    // ===================== Apply =====================
+    private void applyStage(RingBuffer<Command> in, RingBuffer<Command> next)
+            throws InterruptedException {
+        Command[] batch = new Command[BATCH_SIZE];
+        while (true) {
+            int size = in.takeBatch(batch);
+            boolean end = false;
+            for (int i = 0; i < size; i++) {
+                Command command = batch[i];
+                if (command.kind == Kind.END) {
+                    end = true;
+                } else if (command.error == null && failure == null) {
+                    start(command);
+                    try {
+                        apply(command);
+                    } catch (IllegalArgumentException | InsufficientFundsException ex) {
+                        command.error = ex.getMessage();
+                        command.outcome = AtmMetrics.outcomeOf(ex);
+                    } catch (RuntimeException ex) {
+                        command.outcome = AtmMetrics.Outcome.ERROR;
+                        fail(ex);
+                    }
+                }
+            }
+            next.putAll(batch, size);
+            if (end) {
+                return;
+            }
+        }
+    }
+
+    private static Command[] slice(Command[] batch, int from, int to) {
+        if (from == 0) {
+            return batch;
+        }
+        Command[] part = new Command[to - from];
+        System.arraycopy(batch, from, part, 0, part.length);
+        return part;
+    }
+
+    /**
+     * Starts measuring a deposit, withdrawal or transfer, which the record
+     * stage reports once it is durable (see Account.reportOperation)
+     */
+    private static void start(Command command) {
+        switch (command.kind) {
+            case DEPOSIT:
+                command.operation = AtmMetrics.Operation.DEPOSIT;
+                break;
+            case WITHDRAW:
+                command.operation = AtmMetrics.Operation.WITHDRAW;
+                break;
+            case TRANSFER:
+                command.operation = AtmMetrics.Operation.TRANSFER;
+                break;
+            default:
+                return;
+        }
+        command.event = new AccountOperationEvent();
+        command.event.begin();
+        command.startNanos = System.nanoTime();
+    }
+
+    private void apply(Command command) throws InsufficientFundsException {
+        switch (command.kind) {
+            case DEPOSIT:
+                command.change = command.account.applyDeposit(command.amount);
+                command.balanceCents = command.change.getBalanceAfterCents();
+                break;
+            case WITHDRAW:
+                command.change = command.account.applyWithdrawal(command.amount);
+                command.balanceCents = command.change.getBalanceAfterCents();
+                break;
+            case TRANSFER:
+                command.change = command.account.applyTransfer(command.target, command.amount);
+                command.balanceCents = command.change.getBalanceAfterCents();
+                break;
+            case QUERY:
+            case SUMMARY:
+                command.balanceCents = command.account.getBalanceCents();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // ===================== Record =====================
+    private void recordStage(RingBuffer<Command> in, OutputStream writer)
+            throws InterruptedException {
+        Command[] batch = new Command[BATCH_SIZE];
+        StringBuilder line = new StringBuilder(128);
+        while (true) {
+            int size = in.takeBatch(batch);
+            boolean end = false;
+            long sequence = 0;
+            for (int i = 0; i < size; i++) {
+                Command command = batch[i];
+                if (command.kind == Kind.END) {
+                    end = true;
+                    continue;
+                }
+                sequence = Math.max(sequence, command.sequence);
+                if (command.error != null || failure != null) {
+                    continue;
+                }
+                try {
+                    record(command);
+                } catch (RuntimeException ex) {
+                    fail(ex);
+                }
+            }
+
+            // One wait for the whole batch lets the journal sync it at once
+            sequence = Math.max(sequence, Account.takeDeferredSequence());
+            AccountJournal journal = Account.getJournal();
+            if (journal != null && sequence > 0 && failure == null) {
+                try {
+                    journal.awaitDurable(sequence);
+                } catch (RuntimeException ex) {
+                    fail(ex);
+                }
+            }
+            report(batch, size);
+
+            if (failure == null) {
+                try {
+                    for (int i = 0; i < size; i++) {
+                        if (batch[i].kind != Kind.END) {
+                            write(batch[i], line, writer);
+                        }
+                    }
+                    if (end || in.isEmpty()) {
+                        writer.flush();
+                    }
+                } catch (IOException ex) {
+                    fail(new UncheckedIOException(ex));
+                }
+            }
+            recordedCount += size;
+            if (end) {
+                return;
+            }
+        }
+    }
+
+    private void record(Command command) {
+        if (command.change != null) {
+            command.account.recordChange(command.change);
+        } else if (command.kind == Kind.HISTORY) {
+            command.transactions = command.account.getLastNTransactions(command.count);
+        }
+    }
+
+    /**
+     * Reports the operations of a batch, like Account.deposite, withdraw and
+     * transferTo do: the ones that were recorded succeeded unless the
+     * pipeline failed before they were durable.
+     */
+    private void report(Command[] batch, int size) {
+        for (int i = 0; i < size; i++) {
+            Command command = batch[i];
+            if (command.event != null) {
+                AtmMetrics.Outcome outcome = command.outcome != null ? command.outcome
+                        : failure == null ? AtmMetrics.Outcome.SUCCESS : AtmMetrics.Outcome.ERROR;
+                command.account.reportOperation(command.operation, command.amount, outcome,
+                        command.startNanos, command.event);
+            }
+        }
+    }
+
+    private void write(Command command, StringBuilder line, OutputStream writer)
+            throws IOException {
+        commandsCount++;
+        line.setLength(0);
+        if (command.error != null) {
+            errorsCount++;
+            line.append("ERR line ").append(command.lineNumber).append(": ").append(command.error);
+        } else {
+            switch (command.kind) {
+                case CREATE:
+                    line.append("OK created ").append(command.accountNumber);
+                    break;
+                case QUERY:
+                    appendBalance(line, command);
+                    line.append(' ').append(command.account.getAccountType());
+                    break;
+                case SUMMARY:
+                    appendBalance(line, command);
+                    line.append(' ').append(command.account.getAccountType())
+                            .append(' ').append(command.account.getOwnerName());
+                    break;
+                case HISTORY:
+                    line.append("OK ").append(command.transactions.size());
+                    for (int i = 0; i < command.transactions.size(); i++) {
+                        line.append("\n- ").append(command.transactions.get(i));
+                    }
+                    break;
+                case INTEREST:
+                    line.append("OK ").append(command.result);
+                    break;
+                default:
+                    appendBalance(line, command);
+                    break;
+            }
+        }
+        line.append('\n');
+        writer.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendBalance(StringBuilder line, Command command) {
+        line.append("OK ").append(command.account.getAccountNumber())
+                .append(' ').append(Money.toAmount(command.balanceCents));
+    }
+
+    private void fail(RuntimeException ex) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = ex;
+            }
+        }
+    }
+
+    /**
+     * @return number of commands executed by the last run
+     */
+    public long getCommandsCount() {
+        return commandsCount;
+    }
+
+    /**
+     * @return number of commands that failed in the last run
+     */
+    public long getErrorsCount() {
+        return errorsCount;
+    }
+
+    /**
+     * Command ------- One line of input on its way through the stages. Each
+     * stage fills in its own fields; the ring buffers publish them to the
+     * next stage.
+     */
+    private static class Command {
+
+        final long lineNumber;
+        Kind kind;
+
+        // Parsed
+        String accountNumber;
+        int pin;
+        String targetNumber;
+        double amount;
+        int count;
+        String accountType;
+        double initialBalance;
+        double rateOrFee;
+        String ownerName;
+
+        // Authenticated
+        Account account;
+        Account target;
+
+        // Measured (deposits, withdrawals and transfers)
+        AtmMetrics.Operation operation;
+        AccountOperationEvent event;
+        long startNanos;
+        AtmMetrics.Outcome outcome;
+
+        // Applied
+        BalanceChange change;
+        long balanceCents;
+        String result;
+
+        // Recorded
+        MyArrayList<String> transactions;
+
+        /**
+         * Highest journal sequence number logged for this command before
+         * the record stage
+         */
+        long sequence;
+
+        /**
+         * Why the command failed, or null
+         */
+        String error;
+
+        Command(long lineNumber) {
+            this.lineNumber = lineNumber;
+        }
+
+        Command(Kind kind) {
+            this.lineNumber = 0;
+            this.kind = kind;
+        }
+    }
+}
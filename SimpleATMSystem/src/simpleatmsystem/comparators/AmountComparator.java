@@ -13,6 +13,12 @@ import simpleatmsystem.models.TransactionsEntry;
  */
 public class AmountComparator implements Comparator<TransactionsEntry> {
 
+    /**
+     * Shared instance: the comparator is stateless, so one is enough for all
+     * accounts.
+     */
+    public static final AmountComparator INSTANCE = new AmountComparator();
+
     @Override
     public int compare(TransactionsEntry t1, TransactionsEntry t2) {
         return Double.compare(t1.getAmount(), t2.getAmount());
@@ -0,0 +1,177 @@
+package simpleatmsystem.lib;
+
+import java.util.Objects;
+
+/**
+ * AmountAggregates
+ * ----------------
+ * Aggregates over amounts kept in primitive arrays (cents, see
+ * models.Money): sum, minimum, maximum, count within [min, max] and
+ * histogram, over a range [from, to) of an array.
+ *
+ * get returns the fastest implementation available: the SIMD one, on the
+ * incubating Vector API (jdk.incubator.vector), when it was built (ant
+ * -Dvector.enabled=true, see build.xml) and the JVM runs with --add-modules
+ * jdk.incubator.vector, and this scalar one otherwise, or when
+ * -Dsimpleatmsystem.lib.vector=false. Both give the same results; scalar
+ * stays available for comparison (see bench.AggregatesBenchmark).
+ *
+ * A scan reads every value, which beats a tree search when a large part of
+ * the values match, or when the values are not indexed at all.
+ */
+public class AmountAggregates {
+
+    private static final AmountAggregates SCALAR = new AmountAggregates();
+    private static final AmountAggregates BEST = load();
+
+    AmountAggregates() {
+    }
+
+    /**
+     * Loads the SIMD implementation if it was built and its module is
+     * present. It is only referred to by name, so this class compiles and
+     * works without either.
+     */
+    private static AmountAggregates load() {
+        if (!Boolean.parseBoolean(System.getProperty("simpleatmsystem.lib.vector", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return SCALAR;
+        }
+        try {
+            return (AmountAggregates) Class.forName("simpleatmsystem.lib.VectorAmountAggregates")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return SCALAR;
+        }
+    }
+
+    /**
+     * @return the fastest implementation available
+     */
+    public static AmountAggregates get() {
+        return BEST;
+    }
+
+    /**
+     * @return the scalar implementation
+     */
+    public static AmountAggregates scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return "vector (n lanes)" or "scalar"
+     */
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * @param values the amounts
+     * @param from first index (inclusive)
+     * @param to last index (exclusive)
+     * @return the sum of values[from..to)
+     * @throws IndexOutOfBoundsException if the range is not in the array
+     */
+    public long sum(long[] values, int from, int to) {
+        Objects.checkFromToIndex(from, to, values.length);
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return the smallest of values[from..to), or Long.MAX_VALUE if the
+     * range is empty
+     * @throws IndexOutOfBoundsException if the range is not in the array
+     */
+    public long min(long[] values, int from, int to) {
+        Objects.checkFromToIndex(from, to, values.length);
+        long min = Long.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, values[i]);
+        }
+        return min;
+    }
+
+    /**
+     * @return the largest of values[from..to), or Long.MIN_VALUE if the
+     * range is empty
+     * @throws IndexOutOfBoundsException if the range is not in the array
+     */
+    public long max(long[] values, int from, int to) {
+        Objects.checkFromToIndex(from, to, values.length);
+        long max = Long.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    /**
+     * @param low smallest value counted
+     * @param high largest value counted
+     * @return how many of values[from..to) are within [low, high]
+     * @throws IndexOutOfBoundsException if the range is not in the array
+     */
+    public int countInRange(long[] values, int from, int to, long low, long high) {
+        Objects.checkFromToIndex(from, to, values.length);
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (values[i] >= low && values[i] <= high) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the values of each bucket delimited by bounds: bucket 0 holds
+     * the values below bounds[0], bucket k the values in [bounds[k - 1],
+     * bounds[k]), and the last bucket the values from the last bound up.
+     *
+     * @param bounds ascending bucket bounds
+     * @return bounds.length + 1 counts
+     * @throws IllegalArgumentException if the bounds are not ascending
+     * @throws IndexOutOfBoundsException if the range is not in the array
+     */
+    public int[] histogram(long[] values, int from, int to, long[] bounds) {
+        Objects.checkFromToIndex(from, to, values.length);
+        checkBounds(bounds);
+        int[] counts = new int[bounds.length + 1];
+        for (int i = from; i < to; i++) {
+            // Few buckets: a linear walk is as fast as a binary search
+            int bucket = 0;
+            while (bucket < bounds.length && values[i] >= bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+        }
+        return counts;
+    }
+
+    static void checkBounds(long[] bounds) {
+        for (int k = 1; k < bounds.length; k++) {
+            if (bounds[k] <= bounds[k - 1]) {
+                throw new IllegalArgumentException("Histogram bounds must be ascending!");
+            }
+        }
+    }
+
+    /**
+     * Turns the number of values at or above each bound into bucket counts
+     * (for implementations that count per bound).
+     */
+    static int[] bucketsFromAtLeast(int total, int[] atLeast) {
+        int[] counts = new int[atLeast.length + 1];
+        int previous = total;
+        for (int k = 0; k < atLeast.length; k++) {
+            counts[k] = previous - atLeast[k];
+            previous = atLeast[k];
+        }
+        counts[atLeast.length] = previous;
+        return counts;
+    }
+}
@@ -1,63 +1,161 @@
 package simpleatmsystem.lib;
 
 import java.util.Comparator;
-
+import java.util.function.ToLongFunction;
+
+/**
+ * BinaryTree ---------- Binary search tree ordered by a comparator passed to
+ * each operation.
+ *
+ * The tree keeps itself balanced the scapegoat way: an add that lands deeper
+ * than log(size) / log(3/2) levels rebuilds the lowest subtree on its path
+ * that is out of balance, and deletes rebuild the whole tree once a third of
+ * its largest size is gone. Add, delete and contains are O(log n)
+ * (amortized), whatever the order of the values, and the nodes need no
+ * balance field.
+ *
+ * Equal values are allowed; after a rebuild they can be on both sides of
+ * each other, so delete removes one of them, whichever it finds first. To
+ * delete a given value, order by a comparator that tells it apart from the
+ * others (a unique id after the key, for example).
+ */
 public class BinaryTree<E> {
 
+    /**
+     * A subtree is rebuilt when one of its children holds more than
+     * BALANCE_NUMERATOR / BALANCE_DENOMINATOR of its nodes
+     */
+    private static final int BALANCE_NUMERATOR = 2;
+    private static final int BALANCE_DENOMINATOR = 3;
+
+    /**
+     * 1 / log(3/2): a tree of n nodes may have log(n) * this edges on a path
+     */
+    private static final double DEPTH_FACTOR = 1 / Math.log((double) BALANCE_DENOMINATOR / BALANCE_NUMERATOR);
+
     private Node<E> root;
 
+    /**
+     * Number of values in the tree
+     */
+    private int size;
+
+    /**
+     * Largest size since the whole tree was last rebuilt (see delete)
+     */
+    private int maxSize;
+
+    /**
+     * Size of the subtree an add returns from while it looks for a subtree
+     * to rebuild, 0 when it does not
+     */
+    private int climbSize;
+
+    /**
+     * Set by deleteNode when it removed a value
+     */
+    private boolean deleted;
+
+    /**
+     * Number of levels of the tree (valid unless heightStale)
+     */
+    private int height;
+
+    /**
+     * Set when a delete or a bulk load may have changed the height, which is
+     * then recomputed on the next getHeight
+     */
+    private boolean heightStale;
+
+    /**
+     * Work counters, created when counting is first enabled (see
+     * StructureCounters)
+     */
+    private StructureCounters counters;
+
     public BinaryTree() {
         this.root = null;
     }
 
     public BinaryTree(E i) {
         this.root = new Node<>(i);
+        this.height = 1;
+        this.size = 1;
+        this.maxSize = 1;
     }
 
     // =========================================================
     // INSERT (supports duplicates by going RIGHT when cmp == 0)
     // =========================================================
-    private Node<E> addRecursive(Node<E> current, E value, Comparator<E> c) {
+    private Node<E> addRecursive(Node<E> current, E value, Comparator<E> c, int depth,
+            StructureCounters k) {
 
         if (current == null) {
+            // The new node is a leaf at this depth
+            if (depth > height) {
+                height = depth;
+            }
+            if (k != null) {
+                k.add(StructureCounters.Counter.NODES_VISITED, depth - 1);
+                k.add(StructureCounters.Counter.NODE_ALLOCATIONS, 1);
+            }
+            // Too deep: the ancestors look for a subtree to rebuild
+            climbSize = depth - 1 > Math.log(size + 1) * DEPTH_FACTOR ? 1 : 0;
             return new Node<>(value);
         }
 
         int cmp = c.compare(value, current.value);
 
         if (cmp < 0) {
-            current.left = addRecursive(current.left, value, c);
+            current.left = addRecursive(current.left, value, c, depth + 1, k);
         } else {
             // cmp > 0 OR cmp == 0 (duplicates)
-            current.right = addRecursive(current.right, value, c);
+            current.right = addRecursive(current.right, value, c, depth + 1, k);
         }
 
+        if (climbSize > 0) {
+            int subtree = climbSize + 1 + count(cmp < 0 ? current.right : current.left);
+            if (climbSize * BALANCE_DENOMINATOR > subtree * BALANCE_NUMERATOR) {
+                // current is the scapegoat
+                climbSize = 0;
+                return rebuild(current, subtree, k);
+            }
+            climbSize = subtree;
+        }
         return current;
     }
 
     public void add(E value, Comparator<E> c) {
-        root = addRecursive(root, value, c);
+        StructureCounters k = startCounting();
+        root = addRecursive(root, value, k == null ? c : k.counting(c), 1, k);
+        climbSize = 0;
+        size++;
+        maxSize = Math.max(maxSize, size);
     }
 
     // =========================================================
     // DELETE
     // =========================================================
-    private Node<E> deleteNode(Node<E> root, E value, Comparator<E> c) {
+    private Node<E> deleteNode(Node<E> root, E value, Comparator<E> c, StructureCounters k) {
 
-        if (root == null) { // base case
+        if (root == null) { // base case (not found)
             return root;
         }
+        if (k != null) {
+            k.add(StructureCounters.Counter.NODES_VISITED, 1);
+        }
 
         int cmp = c.compare(value, root.value);
 
         if (cmp < 0) {
-            root.left = deleteNode(root.left, value, c);
+            root.left = deleteNode(root.left, value, c, k);
 
         } else if (cmp > 0) {
-            root.right = deleteNode(root.right, value, c);
+            root.right = deleteNode(root.right, value, c, k);
 
         } else {
             // Found the node to delete (one occurrence)
+            deleted = true;
 
             // Case 1: no children
             if (root.left == null && root.right == null) {
@@ -75,7 +173,7 @@ public class BinaryTree<E> {
             } else {
                 Node<E> temp = findMinimum(root.right); // successor
                 root.value = temp.value;
-                root.right = deleteNode(root.right, temp.value, c);
+                root.right = deleteNode(root.right, temp.value, c, k);
             }
         }
 
@@ -89,29 +187,122 @@ public class BinaryTree<E> {
         return root;
     }
 
-    public void delete(E value, Comparator<E> c) {
-        this.root = this.deleteNode(this.root, value, c);
+    /**
+     * Deletes one value equal to the given one (according to c).
+     *
+     * @param value the value to delete
+     * @param c the comparator the tree is ordered by
+     * @return true if a value was deleted, false if none was equal
+     */
+    public boolean delete(E value, Comparator<E> c) {
+        StructureCounters k = startCounting();
+        this.deleted = false;
+        this.root = this.deleteNode(this.root, value, k == null ? c : k.counting(c), k);
+        boolean found = this.deleted;
+        if (found) {
+            this.size--;
+            this.heightStale = true;
+            if (this.size * BALANCE_DENOMINATOR < this.maxSize * BALANCE_NUMERATOR) {
+                this.root = rebuild(this.root, this.size, k);
+                this.maxSize = this.size;
+            }
+        }
+        return found;
+    }
+
+    // =========================================================
+    // REBUILD
+    // =========================================================
+    /**
+     * Counts the nodes of a subtree (iterative, see inOrderList).
+     */
+    private int count(Node<E> node) {
+        if (node == null) {
+            return 0;
+        }
+        int nodes = 0;
+        LinkedList<Node<E>> stack = new LinkedList<>();
+        stack.addFirst(node);
+        while (!stack.isEmpty()) {
+            Node<E> current = stack.getHead().getData();
+            stack.removeFirst();
+            nodes++;
+            if (current.left != null) {
+                stack.addFirst(current.left);
+            }
+            if (current.right != null) {
+                stack.addFirst(current.right);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Relinks the nodes of a subtree into a balanced subtree (no node is
+     * allocated).
+     *
+     * @param node the root of the subtree
+     * @param nodes the number of nodes of the subtree
+     * @return the new root of the subtree
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Node<E> rebuild(Node<E> node, int nodes, StructureCounters k) {
+        if (k != null) {
+            k.add(StructureCounters.Counter.NODES_VISITED, nodes);
+        }
+        Node<E>[] sorted = new Node[nodes];
+        LinkedList<Node<E>> stack = new LinkedList<>();
+        Node<E> current = node;
+        int i = 0;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.addFirst(current);
+                current = current.left;
+            }
+            current = stack.getHead().getData();
+            stack.removeFirst();
+            sorted[i++] = current;
+            current = current.right;
+        }
+        heightStale = true;
+        return link(sorted, 0, nodes - 1);
+    }
+
+    private Node<E> link(Node<E>[] sorted, int from, int to) {
+        if (from > to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        Node<E> node = sorted[middle];
+        node.left = link(sorted, from, middle - 1);
+        node.right = link(sorted, middle + 1, to);
+        return node;
     }
 
     // =========================================================
     // CONTAINS
     // =========================================================
-    private boolean containsNodeRecursive(Node<E> current, E value, Comparator<E> c) {
+    private boolean containsNodeRecursive(Node<E> current, E value, Comparator<E> c,
+            StructureCounters k) {
 
         if (current == null) {
             return false;
         }
+        if (k != null) {
+            k.add(StructureCounters.Counter.NODES_VISITED, 1);
+        }
         if (c.compare(value, current.value) == 0) {
             return true;
         }
 
         return c.compare(value, current.value) < 0
-                ? containsNodeRecursive(current.left, value, c)
-                : containsNodeRecursive(current.right, value, c);
+                ? containsNodeRecursive(current.left, value, c, k)
+                : containsNodeRecursive(current.right, value, c, k);
     }
 
     public boolean contains(E value, Comparator<E> c) {
-        return containsNodeRecursive(root, value, c);
+        StructureCounters k = startCounting();
+        return containsNodeRecursive(root, value, k == null ? c : k.counting(c), k);
     }
 
     // =========================================================
@@ -182,29 +373,221 @@ public class BinaryTree<E> {
         }
     }
 
+    // =========================================================
+    // BULK EXPORT / LOAD
+    // =========================================================
+    /**
+     * Returns all values in sorted (in-order) order.
+     *
+     * Iterative, so the depth of the tree does not matter.
+     */
+    public MyArrayList<E> inOrderList() {
+        MyArrayList<E> result = new MyArrayList<>();
+        LinkedList<Node<E>> stack = new LinkedList<>();
+        Node<E> current = root;
+
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.addFirst(current);
+                current = current.left;
+            }
+            current = stack.getHead().getData();
+            stack.removeFirst();
+            result.add(current.value);
+            current = current.right;
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the content of the tree with the given sorted values, building
+     * a balanced tree in O(n) instead of n calls to add.
+     *
+     * @param sorted values sorted by c
+     * @param c the comparator the tree is ordered by
+     */
+    public void loadSorted(MyArrayList<E> sorted, Comparator<E> c) {
+        root = buildBalanced(sorted, 0, sorted.size() - 1);
+        size = sorted.size();
+        maxSize = size;
+        heightStale = true;
+    }
+
+    private Node<E> buildBalanced(MyArrayList<E> sorted, int from, int to) {
+        if (from > to) {
+            return null;
+        }
+
+        int middle = (from + to) >>> 1;
+        Node<E> node = new Node<>(sorted.get(middle));
+        node.left = buildBalanced(sorted, from, middle - 1);
+        node.right = buildBalanced(sorted, middle + 1, to);
+        return node;
+    }
+
     // Range Search 
     public MyArrayList<E> rangeSearch(E min, E max, Comparator<E> c) {
         MyArrayList result = new MyArrayList();
-        rangeSearchRecursive(root, min, max, c, result);
+        StructureCounters k = startCounting();
+        rangeSearchRecursive(root, min, max, k == null ? c : k.counting(c), result, k);
         return result;
     }
 
     public void rangeSearchRecursive(Node<E> node, E min, E max, Comparator<E> c, MyArrayList<E> result) {
+        rangeSearchRecursive(node, min, max, c, result, null);
+    }
+
+    private void rangeSearchRecursive(Node<E> node, E min, E max, Comparator<E> c,
+            MyArrayList<E> result, StructureCounters k) {
         if (node == null) {
             return;
         }
+        if (k != null) {
+            k.add(StructureCounters.Counter.NODES_VISITED, 1);
+        }
 
-        if (c.compare(min, node.value) < 0) {
-            rangeSearchRecursive(node.left, min, max, c, result);
+        // Values equal to the node can be on both sides (see the class
+        // comment), so the bounds themselves are searched on both sides
+        if (c.compare(min, node.value) <= 0) {
+            rangeSearchRecursive(node.left, min, max, c, result, k);
         }
 
         if (c.compare(min, node.value) <= 0 && c.compare(node.value, max) <= 0) {
             result.add(node.value);
         }
 
-        if (c.compare(node.value, max) < 0) {
-            rangeSearchRecursive(node.right, min, max, c, result);
+        if (c.compare(node.value, max) <= 0) {
+            rangeSearchRecursive(node.right, min, max, c, result, k);
+        }
+    }
+
+    /**
+     * @return number of values in the tree
+     */
+    public int size() {
+        return size;
+    }
+
+    // =========================================================
+    // COUNTERS
+    // =========================================================
+    /**
+     * @return the work counters of this tree (empty unless counting is
+     * enabled, see StructureCounters)
+     */
+    public StructureCounters getCounters() {
+        if (counters == null) {
+            counters = new StructureCounters();
+        }
+        return counters;
+    }
+
+    /**
+     * Counts one operation if counting is enabled.
+     *
+     * @return the counters the operation updates, or null when counting is
+     * disabled (the operation then runs its uncounted path)
+     */
+    private StructureCounters startCounting() {
+        if (!StructureCounters.isEnabled()) {
+            return null;
+        }
+        StructureCounters k = getCounters();
+        k.add(StructureCounters.Counter.TREE_OPERATIONS, 1);
+        return k;
+    }
+
+    // =========================================================
+    // FOOTPRINT
+    // =========================================================
+    /**
+     * Estimates the bytes taken by this tree and its nodes, without the
+     * values.
+     *
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint() {
+        return footprint(null);
+    }
+
+    /**
+     * Estimates the bytes taken by this tree, its nodes and its values.
+     *
+     * Walks the whole tree (iteratively, so it also works on very
+     * unbalanced trees).
+     *
+     * @param valueFootprint bytes of one value (null to leave the values
+     * out)
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint(ToLongFunction<? super E> valueFootprint) {
+        long bytes = Footprint.shallowSize(BinaryTree.class);
+        if (counters != null) {
+            bytes += counters.footprint();
+        }
+        if (root == null) {
+            return bytes;
+        }
+        long nodeBytes = Footprint.shallowSize(Node.class);
+        Queue<Node<E>> nodes = new LinkedQueue<>();
+        nodes.enqueue(root);
+        while (!nodes.isEmpty()) {
+            Node<E> node = nodes.dequeue();
+            bytes += nodeBytes;
+            if (valueFootprint != null) {
+                bytes += valueFootprint.applyAsLong(node.value);
+            }
+            if (node.left != null) {
+                nodes.enqueue(node.left);
+            }
+            if (node.right != null) {
+                nodes.enqueue(node.right);
+            }
+        }
+        return bytes;
+    }
+
+    // =========================================================
+    // HEIGHT
+    // =========================================================
+    /**
+     * Returns the number of levels of the tree (0 when empty).
+     *
+     * Kept up to date by add, so this is O(1) unless a delete or a bulk load
+     * happened since the last call, in which case the tree is walked level
+     * by level once (iterative, so it also works on very unbalanced trees).
+     *
+     * @return the height of the tree
+     */
+    public int getHeight() {
+        if (heightStale) {
+            height = countLevels();
+            heightStale = false;
+        }
+        return height;
+    }
+
+    private int countLevels() {
+        if (root == null) {
+            return 0;
+        }
+        int levels = 0;
+        Queue<Node<E>> nodes = new LinkedQueue<>();
+        nodes.enqueue(root);
+        while (!nodes.isEmpty()) {
+            // The queue holds exactly one level here
+            levels++;
+            for (int i = nodes.size(); i > 0; i--) {
+                Node<E> node = nodes.dequeue();
+                if (node.left != null) {
+                    nodes.enqueue(node.left);
+                }
+                if (node.right != null) {
+                    nodes.enqueue(node.right);
+                }
+            }
         }
+        return levels;
     }
 
     // =========================================================
@@ -0,0 +1,171 @@
+package simpleatmsystem.lib;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Footprint
+ * ---------
+ * Estimates how many bytes objects take on the heap, from the object
+ * layout of the running JVM: header size, reference size (compressed or
+ * not) and alignment are read from the HotSpot options at startup, and the
+ * fields of each class are read once by reflection.
+ *
+ * The estimate of an object is its header plus its fields, rounded up to
+ * the alignment, which matches HotSpot's field packing within a few bytes.
+ * The footprint methods of the lib structures (and of the accounts) add up
+ * the objects they own with these sizes; they are meant for capacity
+ * planning and for spotting memory regressions, not for exact accounting.
+ */
+public final class Footprint {
+
+    private static final int REFERENCE_SIZE;
+    private static final int HEADER_SIZE;
+    private static final int ALIGNMENT;
+
+    static {
+        boolean compressedOops = true;
+        boolean compressedClassPointers = true;
+        boolean compactHeaders = false;
+        int alignment = 8;
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            compressedOops = booleanOption(hotSpot, "UseCompressedOops", true);
+            compressedClassPointers = booleanOption(hotSpot, "UseCompressedClassPointers", true);
+            compactHeaders = booleanOption(hotSpot, "UseCompactObjectHeaders", false);
+            alignment = Integer.parseInt(hotSpot.getVMOption("ObjectAlignmentInBytes").getValue());
+        } catch (RuntimeException ex) {
+            // Not a HotSpot JVM: assume its defaults for a 64-bit heap below 32 GB
+        }
+        REFERENCE_SIZE = compressedOops ? 4 : 8;
+        HEADER_SIZE = compactHeaders ? 8 : compressedClassPointers ? 12 : 16;
+        ALIGNMENT = alignment;
+    }
+
+    private static boolean booleanOption(HotSpotDiagnosticMXBean hotSpot, String name, boolean otherwise) {
+        try {
+            return Boolean.parseBoolean(hotSpot.getVMOption(name).getValue());
+        } catch (IllegalArgumentException ex) {
+            // Option of another JDK version
+            return otherwise;
+        }
+    }
+
+    /**
+     * Size of the instances of each class, computed on first use
+     */
+    private static final ClassValue<Long> SHALLOW_SIZES = new ClassValue<Long>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            long fields = 0;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        fields += fieldSize(field.getType());
+                    }
+                }
+            }
+            return align(HEADER_SIZE + fields);
+        }
+    };
+
+    private Footprint() {
+    }
+
+    /**
+     * @param type a class
+     * @return bytes taken by one instance of the class, without the objects
+     * it refers to
+     */
+    public static long shallowSize(Class<?> type) {
+        return SHALLOW_SIZES.get(type);
+    }
+
+    /**
+     * @param length number of elements
+     * @return bytes taken by an array of references (without the elements)
+     */
+    public static long referenceArray(int length) {
+        return array(length, REFERENCE_SIZE);
+    }
+
+    /**
+     * @param length number of elements
+     * @param elementSize bytes per element (8 for long, 1 for byte...)
+     * @return bytes taken by an array of primitives
+     */
+    public static long array(int length, int elementSize) {
+        long base = HEADER_SIZE + 4;
+        if (elementSize == 8) {
+            // 8-byte elements start on an 8-byte boundary
+            base = (base + 7) & ~7L;
+        }
+        return align(base + (long) length * elementSize);
+    }
+
+    /**
+     * @param s a string (may be null)
+     * @return bytes taken by the string and its characters (0 for null)
+     */
+    public static long string(String s) {
+        if (s == null) {
+            return 0;
+        }
+        // Compact strings: one byte per character unless one is not Latin-1
+        int bytesPerChar = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xFF) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        return shallowSize(String.class) + array(s.length(), bytesPerChar);
+    }
+
+    /**
+     * @return bytes of a reference field or array element (4 with
+     * compressed references)
+     */
+    public static int getReferenceSize() {
+        return REFERENCE_SIZE;
+    }
+
+    /**
+     * @return bytes of an object header
+     */
+    public static int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    /**
+     * @return the object alignment, in bytes
+     */
+    public static int getAlignment() {
+        return ALIGNMENT;
+    }
+
+    /**
+     * Rounds a size up to the object alignment.
+     */
+    public static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE_SIZE;
+    }
+}
@@ -2,6 +2,7 @@ package simpleatmsystem.lib;
 
 
 import java.util.Iterator;
+import java.util.function.ToLongFunction;
 
 public class LinkedList<E> implements Iterable<E> {
 
@@ -10,6 +11,9 @@ public class LinkedList<E> implements Iterable<E> {
     private Node<E> tail;
     private Node<E> start;
 
+    // Work counters, created when counting is first enabled
+    private StructureCounters counters;
+
     public LinkedList() {
         this.size = 0;
     }
@@ -24,6 +28,7 @@ public class LinkedList<E> implements Iterable<E> {
 
     public void addFirst(E data) {
         Node<E> newNode = new Node<E>(data);
+        countAllocation();
 
         if (isEmpty()) {
             head = newNode;
@@ -40,6 +45,7 @@ public class LinkedList<E> implements Iterable<E> {
 
     public void addLast(E data) {
         Node<E> newNode = new Node<E>(data);
+        countAllocation();
 
         if (isEmpty()) {
             head = newNode;
@@ -63,6 +69,8 @@ public class LinkedList<E> implements Iterable<E> {
             addLast(data);
         } else if (index > 0 && index < size - 1) {
             Node<E> newNode = new Node<E>(data);
+            countAllocation();
+            countSteps(index);
 
             Node<E> current = head;
             Node<E> previous = null;
@@ -128,6 +136,7 @@ public class LinkedList<E> implements Iterable<E> {
         } else if (index == size - 1) {
             removeLast();
         } else if (index < size && index > 0) {
+            countSteps(index);
 
             Node<E> current = head;
             Node<E> prevoius = null;
@@ -160,6 +169,7 @@ public class LinkedList<E> implements Iterable<E> {
             return tail.data;
 
         } else if (index > 0 && index < size) {
+            countSteps(index);
             Node<E> current = head;
             for (int i = 0; i < size; i++) {
                 if (i == index) {
@@ -190,6 +200,61 @@ public class LinkedList<E> implements Iterable<E> {
         };
     }
 
+    /**
+     * @return the work counters of this list (empty unless counting is
+     * enabled, see StructureCounters)
+     */
+    public StructureCounters getCounters() {
+        if (counters == null) {
+            counters = new StructureCounters();
+        }
+        return counters;
+    }
+
+    /**
+     * Estimates the bytes taken by this list and its nodes, without the
+     * elements.
+     *
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint() {
+        return footprint(null);
+    }
+
+    /**
+     * Estimates the bytes taken by this list, its nodes and its elements.
+     *
+     * @param elementFootprint bytes of one element (null to leave the
+     * elements out)
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint(ToLongFunction<? super E> elementFootprint) {
+        long bytes = Footprint.shallowSize(LinkedList.class)
+                + size * Footprint.shallowSize(Node.class);
+        if (counters != null) {
+            bytes += counters.footprint();
+        }
+        if (elementFootprint != null) {
+            for (Node<E> node = head; node != null; node = node.next) {
+                bytes += elementFootprint.applyAsLong(node.data);
+            }
+        }
+        return bytes;
+    }
+
+    private void countAllocation() {
+        if (StructureCounters.isEnabled()) {
+            getCounters().add(StructureCounters.Counter.NODE_ALLOCATIONS, 1);
+        }
+    }
+
+    // A positional operation walks index nodes from the head
+    private void countSteps(int index) {
+        if (StructureCounters.isEnabled()) {
+            getCounters().add(StructureCounters.Counter.TRAVERSAL_STEPS, index);
+        }
+    }
+
     public Node<E> getHead() {
         return head;
     }
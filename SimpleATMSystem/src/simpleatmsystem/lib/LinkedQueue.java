@@ -1,6 +1,7 @@
 package simpleatmsystem.lib;
 
 import java.util.Iterator;
+import java.util.function.ToLongFunction;
 
 /**
  * LinkedQueue<E>
@@ -51,6 +52,27 @@ public class LinkedQueue<E> implements Queue<E> {
         return temp;
     }
 
+    /**
+     * Estimates the bytes taken by this queue and its nodes, without the
+     * elements.
+     *
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint() {
+        return footprint(null);
+    }
+
+    /**
+     * Estimates the bytes taken by this queue, its nodes and its elements.
+     *
+     * @param elementFootprint bytes of one element (null to leave the
+     * elements out)
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint(ToLongFunction<? super E> elementFootprint) {
+        return Footprint.shallowSize(LinkedQueue.class) + listedQueue.footprint(elementFootprint);
+    }
+
     /**
      * Returns the front element without removing it.
      *
@@ -3,6 +3,7 @@ package simpleatmsystem.lib;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.function.ToLongFunction;
 
 /**
  * MyArrayList is a simplified implementation of a dynamic array, similar in
@@ -29,6 +30,12 @@ public class MyArrayList<E> implements Iterable<E> {
      */
     private Object[] elements;
 
+    /**
+     * Work counters, created when counting is first enabled (see
+     * StructureCounters)
+     */
+    private StructureCounters counters;
+
     /**
      * Constructs an empty MyArrayList with initial capacity 10.
      */
@@ -67,6 +74,10 @@ public class MyArrayList<E> implements Iterable<E> {
         // Resize array if full
         if (size == elements.length) {
             elements = Arrays.copyOf(elements, size * 2);
+            if (StructureCounters.isEnabled()) {
+                getCounters().add(StructureCounters.Counter.RESIZES, 1);
+                getCounters().add(StructureCounters.Counter.COPIED_ELEMENTS, size);
+            }
         }
 
         elements[size] = data;
@@ -84,6 +95,10 @@ public class MyArrayList<E> implements Iterable<E> {
 
         elements[size - 1] = null;
         size--;
+
+        if (StructureCounters.isEnabled()) {
+            getCounters().add(StructureCounters.Counter.COPIED_ELEMENTS, size - index);
+        }
     }
 
     /**
@@ -143,6 +158,49 @@ public class MyArrayList<E> implements Iterable<E> {
         }
     }
 
+    /**
+     * @return the work counters of this list (empty unless counting is
+     * enabled, see StructureCounters)
+     */
+    public StructureCounters getCounters() {
+        if (counters == null) {
+            counters = new StructureCounters();
+        }
+        return counters;
+    }
+
+    /**
+     * Estimates the bytes taken by this list and its backing array (unused
+     * slots included), without the elements.
+     *
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint() {
+        return footprint(null);
+    }
+
+    /**
+     * Estimates the bytes taken by this list, its backing array and its
+     * elements.
+     *
+     * @param elementFootprint bytes of one element (null to leave the
+     * elements out)
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint(ToLongFunction<? super E> elementFootprint) {
+        long bytes = Footprint.shallowSize(MyArrayList.class)
+                + Footprint.referenceArray(elements.length);
+        if (counters != null) {
+            bytes += counters.footprint();
+        }
+        if (elementFootprint != null) {
+            for (int i = 0; i < size; i++) {
+                bytes += elementFootprint.applyAsLong(get(i));
+            }
+        }
+        return bytes;
+    }
+
     /**
      * Returns an iterator so this list can be used in a for-each loop.
      *
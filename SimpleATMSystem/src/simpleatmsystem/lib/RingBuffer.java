@@ -0,0 +1,170 @@
+package simpleatmsystem.lib;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RingBuffer<E>
+ * -------------
+ * A bounded FIFO queue for exactly one producer thread and one consumer
+ * thread, stored in a circular array.
+ *
+ * The producer only writes the tail and the consumer only writes the head,
+ * so no lock is needed: each side publishes its position with a volatile
+ * write after filling or emptying its slots. Both sides move elements in
+ * batches (putAll / takeBatch), so the positions are published once per
+ * batch instead of once per element.
+ *
+ * A producer finding the buffer full waits until the consumer makes room,
+ * which slows it down to the pace of the consumer (backpressure). Waiting
+ * spins briefly, then yields, then parks for short periods: the buffer is
+ * meant for stages that are busy most of the time.
+ *
+ * @param <E> type of elements stored in the buffer
+ */
+public class RingBuffer<E> {
+
+    /** Busy-wait rounds before a waiting side starts yielding */
+    private static final int SPINS = 100;
+
+    /** Yields before a waiting side starts parking */
+    private static final int YIELDS = 100;
+
+    /** Park time of a waiting side, in nanoseconds */
+    private static final long PARK_NANOS = 50_000;
+
+    private final Object[] slots;
+    private final int mask;
+
+    /** Number of elements taken so far (written by the consumer only) */
+    private volatile long head;
+
+    /** Number of elements put so far (written by the producer only) */
+    private volatile long tail;
+
+    /**
+     * Constructs an empty ring buffer.
+     *
+     * @param capacity minimum number of elements the buffer holds (rounded
+     *                 up to a power of two)
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive!");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element, waiting while the buffer is full (producer only).
+     *
+     * @param element element to add
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(E element) throws InterruptedException {
+        long t = tail;
+        int round = 0;
+        while (t - head == slots.length) {
+            round = backOff(round);
+        }
+        slots[(int) t & mask] = element;
+        tail = t + 1;
+    }
+
+    /**
+     * Adds the first count elements of an array, in order, waiting for room
+     * when the buffer is full (producer only).
+     *
+     * @param elements elements to add
+     * @param count    number of elements to add
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void putAll(E[] elements, int count) throws InterruptedException {
+        int done = 0;
+        long t = tail;
+        int round = 0;
+        while (done < count) {
+            int free = (int) (slots.length - (t - head));
+            if (free == 0) {
+                round = backOff(round);
+                continue;
+            }
+            round = 0;
+            int n = Math.min(free, count - done);
+            for (int i = 0; i < n; i++) {
+                slots[(int) (t + i) & mask] = elements[done + i];
+            }
+            t += n;
+            done += n;
+            // Publish the whole chunk at once
+            tail = t;
+        }
+    }
+
+    /**
+     * Removes up to batch.length elements into batch, waiting until at
+     * least one is available (consumer only).
+     *
+     * @param batch receives the elements, oldest first
+     * @return number of elements taken (at least 1)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    public int takeBatch(E[] batch) throws InterruptedException {
+        long h = head;
+        long available;
+        int round = 0;
+        while ((available = tail - h) == 0) {
+            round = backOff(round);
+        }
+        int n = (int) Math.min(available, batch.length);
+        for (int i = 0; i < n; i++) {
+            int index = (int) (h + i) & mask;
+            batch[i] = (E) slots[index];
+            // Do not keep taken elements reachable
+            slots[index] = null;
+        }
+        head = h + n;
+        return n;
+    }
+
+    /**
+     * Waits a little, longer after each round.
+     *
+     * @return the next round number
+     */
+    private static int backOff(int round) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (round < SPINS) {
+            Thread.onSpinWait();
+        } else if (round < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+            return round;
+        }
+        return round + 1;
+    }
+
+    /** @return number of elements in the buffer (approximate while in use) */
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    /** @return true if the buffer is empty (approximate while in use) */
+    public boolean isEmpty() {
+        return tail == head;
+    }
+
+    /** @return maximum number of elements the buffer holds */
+    public int getCapacity() {
+        return slots.length;
+    }
+}
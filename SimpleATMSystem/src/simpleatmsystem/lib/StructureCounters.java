@@ -0,0 +1,176 @@
+package simpleatmsystem.lib;
+
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StructureCounters
+ * -----------------
+ * Optional work counters of the lib data structures: array resizes and
+ * copied elements (MyArrayList), node allocations and traversal steps
+ * (LinkedList, BinaryTree), comparator calls and visited nodes
+ * (BinaryTree).
+ *
+ * Counting is off by default; turn it on with setEnabled (also available
+ * over JMX, see metrics.AtmMetrics) or at startup with
+ * -Dsimpleatmsystem.lib.counters=true. When off, an operation only reads
+ * one volatile flag, and structures do not even allocate their counters.
+ *
+ * Each structure keeps its own counters (see getCounters on MyArrayList,
+ * LinkedList and BinaryTree), updated by the thread using it, like the
+ * structure itself; every update also goes to process-wide totals, which
+ * are striped and can be read at any time.
+ */
+public class StructureCounters {
+
+    /**
+     * Kinds of work counted
+     */
+    public enum Counter {
+        /** MyArrayList backing array reallocations */
+        RESIZES,
+        /** Elements copied by MyArrayList resizes and removals */
+        COPIED_ELEMENTS,
+        /** Nodes allocated by LinkedList and BinaryTree */
+        NODE_ALLOCATIONS,
+        /** Nodes walked by the positional LinkedList operations */
+        TRAVERSAL_STEPS,
+        /** Comparator calls of BinaryTree */
+        COMPARISONS,
+        /** Nodes visited by BinaryTree operations */
+        NODES_VISITED,
+        /** BinaryTree operations (add, delete, contains, rangeSearch) */
+        TREE_OPERATIONS
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private static volatile boolean enabled = Boolean.getBoolean("simpleatmsystem.lib.counters");
+
+    private static final LongAdder[] TOTALS = new LongAdder[COUNTERS.length];
+
+    static {
+        for (int i = 0; i < TOTALS.length; i++) {
+            TOTALS[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts of one structure (not thread-safe, like the structures)
+     */
+    private final long[] counts = new long[COUNTERS.length];
+
+    /**
+     * @return true if the structures count their work
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns counting on or off for all structures.
+     *
+     * @param on true to count
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Adds to a counter of this structure and to the total.
+     *
+     * @param counter what was counted
+     * @param amount how much
+     */
+    public void add(Counter counter, long amount) {
+        counts[counter.ordinal()] += amount;
+        TOTALS[counter.ordinal()].add(amount);
+    }
+
+    /**
+     * @param counter a counter
+     * @return the count of this structure
+     */
+    public long get(Counter counter) {
+        return counts[counter.ordinal()];
+    }
+
+    /**
+     * Forgets the counts of this structure (not the totals).
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+    }
+
+    /**
+     * Wraps a comparator so that its calls are counted as COMPARISONS.
+     *
+     * @param <E> type compared
+     * @param comparator the comparator to count
+     * @return the counting comparator
+     */
+    <E> Comparator<E> counting(Comparator<E> comparator) {
+        return (a, b) -> {
+            add(Counter.COMPARISONS, 1);
+            return comparator.compare(a, b);
+        };
+    }
+
+    /**
+     * @param counter a counter
+     * @return the count of all structures since the start or the last
+     * resetTotals
+     */
+    public static long total(Counter counter) {
+        return TOTALS[counter.ordinal()].sum();
+    }
+
+    /**
+     * Forgets the totals (not the counts of each structure).
+     */
+    public static void resetTotals() {
+        for (LongAdder total : TOTALS) {
+            total.reset();
+        }
+    }
+
+    /**
+     * @return one line per counter with its total, plus the average number
+     * of nodes visited per tree operation
+     */
+    public static String totalsReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : COUNTERS) {
+            sb.append(String.format("%-18s %14d%n", counter.name().toLowerCase(Locale.ROOT), total(counter)));
+        }
+        long operations = total(Counter.TREE_OPERATIONS);
+        sb.append(String.format("%-18s %14.1f",
+                "visited/tree op", operations == 0 ? 0.0
+                : (double) total(Counter.NODES_VISITED) / operations));
+        return sb.toString();
+    }
+
+    /**
+     * @return estimated bytes taken by these counters (see Footprint)
+     */
+    long footprint() {
+        return Footprint.shallowSize(StructureCounters.class) + Footprint.array(counts.length, 8);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Counter counter : COUNTERS) {
+            if (counts[counter.ordinal()] != 0) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(counter.name().toLowerCase(Locale.ROOT)).append('=').append(counts[counter.ordinal()]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
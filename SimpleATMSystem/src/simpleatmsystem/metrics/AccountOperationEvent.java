@@ -0,0 +1,47 @@
+package simpleatmsystem.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * AccountOperationEvent --------------------- Flight Recorder event of one
+ * account operation (deposit, withdraw, transfer or record).
+ *
+ * Disabled by default, like the other events of this package. The
+ * settings file atm-events.jfc (next to this class) enables them all, next
+ * to the JDK events such as GC pauses:
+ *
+ * -XX:StartFlightRecording:settings=default,settings=atm-events.jfc
+ *
+ * (raise its thresholds to keep only the slow operations). While an event
+ * is disabled it is never committed and the JIT removes it, so the
+ * operations pay nothing; the tree height is only read when it is enabled.
+ */
+@Name("simpleatmsystem.AccountOperation")
+@Label("Account Operation")
+@Category({"Simple ATM System", "Accounts"})
+@Description("Deposit, withdrawal, transfer or recording of a transaction")
+@Enabled(false)
+@StackTrace(false)
+public class AccountOperationEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Account Number")
+    public String accountNumber;
+
+    @Label("Amount")
+    public double amount;
+
+    @Label("Outcome")
+    public String outcome;
+
+    @Label("Tree Height")
+    @Description("Height of the account's transactions tree after the operation")
+    public int treeHeight;
+}
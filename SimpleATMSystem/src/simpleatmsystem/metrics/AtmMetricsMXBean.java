@@ -0,0 +1,58 @@
+package simpleatmsystem.metrics;
+
+import java.util.Map;
+
+/**
+ * AtmMetricsMXBean ---------------- JMX view of AtmMetrics, registered as
+ * simpleatmsystem:type=AtmMetrics (see AtmMetrics.registerMBean).
+ *
+ * Maps are keyed by operation name (for example "deposit"), or by
+ * operation and outcome for the counts ("withdraw.insufficient_funds").
+ * Latencies are in microseconds.
+ */
+public interface AtmMetricsMXBean {
+
+    /**
+     * @return number of operations per operation and outcome (only the
+     * non-zero ones)
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return operations per second per operation, since the start or the
+     * last reset
+     */
+    Map<String, Double> getThroughputPerSecond();
+
+    Map<String, Double> getP50Micros();
+
+    Map<String, Double> getP99Micros();
+
+    Map<String, Double> getP999Micros();
+
+    Map<String, Double> getMaxMicros();
+
+    /**
+     * @return total work counted by the lib data structures, by counter
+     * (all 0 unless counting is enabled)
+     */
+    Map<String, Long> getStructureCounters();
+
+    boolean isStructureCountersEnabled();
+
+    /**
+     * Turns the work counters of the lib data structures on or off (see
+     * lib.StructureCounters).
+     */
+    void setStructureCountersEnabled(boolean enabled);
+
+    /**
+     * @return the same table as the menu shows
+     */
+    String getReport();
+
+    /**
+     * Starts counting again from zero.
+     */
+    void reset();
+}
@@ -0,0 +1,33 @@
+package simpleatmsystem.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * HistoryAddEvent --------------- Flight Recorder event of one description
+ * added to a TransactionsHistory (emitted by Account).
+ *
+ * Disabled by default (enable simpleatmsystem.HistoryAdd in the recording
+ * settings, see AccountOperationEvent). Tells whether the oldest
+ * description was evicted to make room.
+ */
+@Name("simpleatmsystem.HistoryAdd")
+@Label("History Add")
+@Category({"Simple ATM System", "Accounts"})
+@Description("Transaction description added to an account history")
+@Enabled(false)
+@StackTrace(false)
+public class HistoryAddEvent extends jdk.jfr.Event {
+
+    @Label("Size")
+    @Description("Number of descriptions stored after the add")
+    public int size;
+
+    @Label("Evicted")
+    @Description("Whether the oldest description was removed")
+    public boolean evicted;
+}
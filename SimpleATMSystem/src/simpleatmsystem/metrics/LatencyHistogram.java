@@ -0,0 +1,202 @@
+package simpleatmsystem.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram ---------------- Counts latencies in logarithmic buckets,
+ * cheap enough to be updated on every operation by many threads.
+ *
+ * Each power of two is split into 16 buckets, so a percentile read from the
+ * histogram is at most 1/16 (6.25%) above the real value, whatever its
+ * magnitude: nanoseconds and seconds are measured with the same relative
+ * precision, in a fixed amount of memory. Values above MAX_VALUE (about 18
+ * minutes in nanoseconds) are counted in the last bucket.
+ *
+ * Recording is one bucket computation and one atomic add. Threads are
+ * spread over several stripes (separate arrays), so threads measuring the
+ * same operation at the same time rarely update the same memory. Reading
+ * adds the stripes up, and is only meant for reports.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Buckets per power of two (as a number of bits)
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest value recorded exactly (2^40 - 1)
+     */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    /**
+     * Number of buckets needed up to MAX_VALUE
+     */
+    private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    /**
+     * Extra slots of each stripe, after the buckets
+     */
+    private static final int SUM_SLOT = BUCKETS;
+    private static final int SLOTS = BUCKETS + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    /**
+     * Creates an empty histogram with one stripe per processor (rounded up
+     * to a power of two, at most 16).
+     */
+    public LatencyHistogram() {
+        int count = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (count < processors && count < 16) {
+            count <<= 1;
+        }
+        this.stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(SLOTS);
+        }
+        this.stripeMask = count - 1;
+    }
+
+    /**
+     * Counts one value.
+     *
+     * @param value the value (negative values count as 0)
+     */
+    public void record(long value) {
+        long v = value < 0 ? 0 : Math.min(value, MAX_VALUE);
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().threadId() & stripeMask];
+        stripe.getAndIncrement(bucketIndex(v));
+        stripe.getAndAdd(SUM_SLOT, v);
+    }
+
+    /**
+     * Maps a value to its bucket: values below 16 have their own bucket,
+     * larger ones are indexed by their power of two and their next 4 bits.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value counted in a bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Adds the stripes up.
+     *
+     * @return a consistent-enough copy for reports (values recorded during
+     * the copy may be partly included)
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+            sum += stripe.get(SUM_SLOT);
+        }
+        return new Snapshot(counts, sum);
+    }
+
+    /**
+     * Forgets every value counted so far (values recorded during the reset
+     * may be kept or lost).
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < SLOTS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Snapshot -------- Counts of a histogram at one point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.sum = sum;
+        }
+
+        /**
+         * @return number of values counted
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return average of the values counted (0 if none)
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the value below which the given fraction of the values
+         * fall (as the upper bound of its bucket).
+         *
+         * @param fraction between 0 and 1 (0.99 for the 99th percentile)
+         * @return the percentile, or 0 if nothing was counted
+         */
+        public long getPercentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return bucketUpperBound(counts.length - 1);
+        }
+
+        /**
+         * @return upper bound of the highest non-empty bucket (0 if nothing
+         * was counted)
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
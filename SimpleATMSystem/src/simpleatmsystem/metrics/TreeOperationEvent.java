@@ -0,0 +1,37 @@
+package simpleatmsystem.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * TreeOperationEvent ------------------ Flight Recorder event of one add,
+ * delete or range search in the transactions tree of an account (emitted by
+ * Account: lib.BinaryTree does not depend on metrics).
+ *
+ * Disabled by default (enable simpleatmsystem.TreeOperation in the
+ * recording settings, see AccountOperationEvent). The height shows when a
+ * tree degenerates, for example with many equal amounts.
+ */
+@Name("simpleatmsystem.TreeOperation")
+@Label("Tree Operation")
+@Category({"Simple ATM System", "Collections"})
+@Description("Add, delete or range search in a binary tree")
+@Enabled(false)
+@StackTrace(false)
+public class TreeOperationEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Tree Height")
+    @Description("Height of the tree after the operation")
+    public int treeHeight;
+
+    @Label("Results")
+    @Description("Number of values found by a range search")
+    public int results;
+}
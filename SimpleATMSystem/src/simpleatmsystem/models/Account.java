@@ -1,9 +1,13 @@
 package simpleatmsystem.models;
 
-import simpleatmsystem.comparators.AmountComparator;
-import simpleatmsystem.exceptions.InsufficientFundsException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Locale;
 import simpleatmsystem.exceptions.InsufficientFundsException;
 import simpleatmsystem.lib.BinaryTree;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.metrics.AccountOperationEvent;
+import simpleatmsystem.metrics.AtmMetrics;
 
 /**
  * The Account class represents a generic bank account in the ATM system.
@@ -32,17 +36,63 @@ public abstract class Account {
     int pin;
 
     /**
-     * Current balance of the account (accessible by subclasses)
+     * Current balance of the account in whole cents.
+     *
+     * The balance is only changed through compare-and-set (see credit, debit
+     * and compareAndSetBalance), so concurrent sessions can never overdraw
+     * the account or lose a deposit, even when a change is applied outside
+     * of the account lock (see applyAndRecord).
+     */
+    private volatile long balanceCents;
+
+    /**
+     * VarHandle used for atomic updates of balanceCents
+     */
+    private static final VarHandle BALANCE;
+
+    static {
+        try {
+            BALANCE = MethodHandles.lookup()
+                    .findVarHandle(Account.class, "balanceCents", long.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * Journal receiving every recorded change (null when persistence is off).
+     *
+     * Shared by all accounts, see setJournal.
      */
-    protected double balance;
+    private static volatile AccountJournal journal;
 
     /**
-     * Stores the history of all transactions performed on the account
+     * Highest journal sequence number recorded by the current thread whose
+     * sync was deferred, or null if the thread waits for its own entries
+     * (see deferDurability)
      */
-    private TransactionsHistory history;
+    private static final ThreadLocal<long[]> DEFERRED_SYNC = new ThreadLocal<>();
 
-    private BinaryTree<TransactionsEntry> transactionsBinaryTree = new BinaryTree<>();
-    private AmountComparator amoutComparator = new AmountComparator();
+    /**
+     * Latencies and outcomes of the operations (see AtmMetrics)
+     */
+    private static final AtmMetrics METRICS = AtmMetrics.global();
+
+    /**
+     * Balance implied by the transactions recorded so far, in cents.
+     *
+     * Equal to the real balance whenever no operation is in progress. It is
+     * what the journal logs as the balance after each transaction, because
+     * it follows the recording order exactly (guarded by this account).
+     */
+    private long recordedBalanceCents;
+
+    /**
+     * The recorded transactions: history, tree, time index and the store
+     * holding them, each created on first use, so dormant accounts do not
+     * pay for them (guarded by this account)
+     */
+    private final TransactionsLedger ledger;
 
     /**
      * Constructs a new Account with essential account details.
@@ -55,20 +105,14 @@ public abstract class Account {
      */
     public Account(String accountNumber, String ownerName, int pin, double initialBalance) {
         // Prevent creation of an account with invalid balance
-        if (initialBalance <= 0) {
-            throw new IllegalArgumentException("Balance must be positive!");
-        }
+        long initialCents = Money.toPositiveCents(initialBalance, "Balance must be positive!");
 
         this.accountNumber = accountNumber;
         this.ownerName = ownerName;
         this.pin = pin;
-        this.balance = initialBalance;
-
-        // Initialize transaction history with fixed capacity
-        this.history = new TransactionsHistory(20);
-
-        // Record the account creation as the first transaction
-        this.history.add("Account is created with balance " + this.balance);
+        this.balanceCents = initialCents;
+        this.recordedBalanceCents = this.balanceCents;
+        this.ledger = new TransactionsLedger(initialBalance);
     }
 
     /**
@@ -85,53 +129,737 @@ public abstract class Account {
      * Deposits a valid positive amount into the account.
      *
      * @param amount the amount to deposit
+     * @return the recorded change (see BalanceChange.getBalanceAfterCents)
      * @throws IllegalArgumentException if the amount is zero or negative
      */
-    public void deposite(double amount) {
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Deposit amount must be positive!");
+    public BalanceChange deposite(double amount) {
+        AccountOperationEvent event = new AccountOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
+        AtmMetrics.Outcome outcome = AtmMetrics.Outcome.SUCCESS;
+        try {
+            return applyAndRecord(null, () -> applyDeposit(amount));
+        } catch (RuntimeException ex) {
+            outcome = AtmMetrics.outcomeOf(ex);
+            throw ex;
+        } finally {
+            reportOperation(AtmMetrics.Operation.DEPOSIT, amount, outcome, start, event);
         }
+    }
 
-        this.balance = this.balance + amount;
+    /**
+     * Withdraws money from the account.
+     *
+     * The withdrawal rules may differ between account types (see
+     * applyWithdrawal).
+     *
+     * @param amount the amount to withdraw
+     * @return the recorded change (see BalanceChange.getBalanceAfterCents)
+     * @throws IllegalArgumentException if the amount is invalid
+     * @throws InsufficientFundsException if the balance is insufficient
+     */
+    public BalanceChange withdraw(double amount) throws InsufficientFundsException {
+        AccountOperationEvent event = new AccountOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
+        AtmMetrics.Outcome outcome = AtmMetrics.Outcome.SUCCESS;
+        try {
+            return applyAndRecord(null, () -> applyWithdrawal(amount));
+        } catch (InsufficientFundsException | RuntimeException ex) {
+            outcome = AtmMetrics.outcomeOf(ex);
+            throw ex;
+        } finally {
+            reportOperation(AtmMetrics.Operation.WITHDRAW, amount, outcome, start, event);
+        }
+    }
 
-        String msg = "Deposited: " + amount + " | New Balance: " + this.balance;
+    /**
+     * Transfers money from this account to another account.
+     *
+     * Both balances are changed and both sides are recorded in their history
+     * and transactions tree while both accounts are locked, so money is
+     * never created or lost, and two transfers touching the same account are
+     * recorded in a single order. The two accounts are always locked in the
+     * same order (see locksBefore), so concurrent transfers in opposite
+     * directions can not deadlock.
+     *
+     * @param target the account receiving the money
+     * @param amount the amount to transfer
+     * @return the recorded change (see BalanceChange.getBalanceAfterCents)
+     * @throws IllegalArgumentException if the amount is invalid or the target
+     * is this account
+     * @throws InsufficientFundsException if this account's balance is
+     * insufficient
+     */
+    public BalanceChange transferTo(Account target, double amount)
+            throws InsufficientFundsException {
+        return transfer(target, amount, true);
+    }
+
+    /**
+     * Transfers money like transferTo, except for the target's side, which
+     * is left to the thread owning the target (see
+     * services.ShardedAccountBook): that thread must pass the returned
+     * change to the target's applyTransferCredit.
+     *
+     * Only this account is locked, and only its side is recorded and logged
+     * (see AccountJournal.logTransferOut). The log entry names the target
+     * and the amount, so a crash before the credit is logged can not lose
+     * the money: replay credits the target then. Until the credit is
+     * applied, the money is in neither balance.
+     *
+     * The target's limit is checked against its balance at the time of the
+     * transfer; credits already on their way to it are not counted.
+     *
+     * @param target the account receiving the money
+     * @param amount the amount to transfer
+     * @return the recorded change, to be passed to applyTransferCredit with
+     * the sequence number of its log entry
+     * @throws IllegalArgumentException if the amount is invalid or the target
+     * is this account
+     * @throws InsufficientFundsException if this account's balance is
+     * insufficient
+     */
+    public BalanceChange transferToDeferringCredit(Account target, double amount)
+            throws InsufficientFundsException {
+        return transfer(target, amount, false);
+    }
+
+    /**
+     * Adds the money of a transfer made by transferToDeferringCredit to the
+     * balance of its target (this account), and records and logs the
+     * target's side, under the lock of this account only (see
+     * AccountJournal.logTransferIn).
+     *
+     * @param change the change returned by transferToDeferringCredit
+     * @param outSequence the sequence number of the log entry of the
+     * source's side (0 if there is no journal)
+     * @return the balance after the credit, in cents
+     * @throws IllegalArgumentException if this account is not the target of
+     * the change, or its balance would overflow
+     * @throws java.io.UncheckedIOException if the journal can not be written
+     */
+    public long applyTransferCredit(BalanceChange change, long outSequence) {
+        if (change.getTarget() != this || !change.isCreditDeferred()) {
+            throw new IllegalArgumentException("Not a transfer to " + this.accountNumber + "!");
+        }
+        long cents = -change.getDeltaCents();
+        String from = change.getAccount().getAccountNumber();
+        AccountJournal j = journal;
+        long newBalance;
+        long sequence;
+        synchronized (this) {
+            newBalance = credit(cents);
+            long now = System.currentTimeMillis();
+            ledger.addEntry(ledger.getStore().append(TransactionsStore.TRANSFER_FROM,
+                    change.getShownAmount(), 0, newBalance, from, now));
+            this.recordedBalanceCents += cents;
+            sequence = j == null ? 0 : j.logTransferIn(this.accountNumber,
+                    this.recordedBalanceCents, TransactionsStore.describe(
+                            TransactionsStore.TRANSFER_FROM, change.getShownAmount(), 0,
+                            this.recordedBalanceCents, from),
+                    cents, change.getAmount(), now, outSequence);
+        }
+        if (j != null && sequence > 0) {
+            awaitDurable(j, sequence);
+        }
+        return newBalance;
+    }
 
-        // history (LinkedList-based)
-        this.history.add(msg);
+    private BalanceChange transfer(Account target, double amount, boolean creditTarget)
+            throws InsufficientFundsException {
+        AccountOperationEvent event = new AccountOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
+        AtmMetrics.Outcome outcome = AtmMetrics.Outcome.SUCCESS;
+        try {
+            return applyAndRecord(creditTarget ? target : null,
+                    () -> applyTransfer(target, amount, creditTarget));
+        } catch (InsufficientFundsException | RuntimeException ex) {
+            outcome = AtmMetrics.outcomeOf(ex);
+            throw ex;
+        } finally {
+            reportOperation(AtmMetrics.Operation.TRANSFER, amount, outcome, start, event);
+        }
+    }
 
-        // add to transactions tree
-        this.transactionsBinaryTree.add(new TransactionsEntry(amount, msg),
-                this.amoutComparator);
+    /**
+     * Reports an operation of this account (a deposit, a withdrawal, a
+     * transfer from it, a reversal or a correction) to the metrics and to
+     * Flight Recorder, once it is done. deposite, withdraw, transferTo,
+     * reverseTransaction and correctTransaction report themselves; a caller
+     * running the apply and record steps apart (see
+     * batch.PipelinedBatchProcessor) reports each operation the same way.
+     *
+     * @param operation the operation
+     * @param amount its amount
+     * @param outcome how it ended
+     * @param startNanos when it started (a System.nanoTime value)
+     * @param event the event begun when it started
+     */
+    public void reportOperation(AtmMetrics.Operation operation, double amount,
+            AtmMetrics.Outcome outcome, long startNanos, AccountOperationEvent event) {
+        METRICS.record(operation, outcome, startNanos);
+        commitEvent(event, operation.name().toLowerCase(Locale.ROOT), amount, outcome);
+    }
 
+    // ===================== Apply, then record =====================
+    // Every operation has two steps: apply changes the balance (the only
+    // step that can fail) and returns the change; recordChange adds it to
+    // the history, the tree and the journal. The public operations run both
+    // at once, under the lock of the account(s) (see applyAndRecord). A
+    // pipeline (see batch.PipelinedBatchProcessor) can run them on
+    // different threads, as long as it records the applied changes of each
+    // account in the order they were applied and nothing else changes the
+    // account meanwhile: until then the balance is ahead of the recorded
+    // balance, as it is during any operation.
+    /**
+     * Adds a valid positive amount to the balance, without recording it.
+     *
+     * @param amount the amount to deposit
+     * @return the applied change, to be passed to recordChange
+     * @throws IllegalArgumentException if the amount is zero or negative
+     */
+    public BalanceChange applyDeposit(double amount) {
+        long cents = Money.toPositiveCents(amount, "Deposit amount must be positive!");
+
+        long newBalance = credit(cents);
+
+        return new BalanceChange(this, cents, TransactionsStore.DEPOSIT, amount, 0, newBalance);
     }
 
     /**
-     * Withdraws money from the account.
+     * Takes an amount from the balance, without recording it.
      *
      * This method is abstract because withdrawal rules may differ between
      * account types.
      *
      * @param amount the amount to withdraw
+     * @return the applied change, to be passed to recordChange
+     * @throws IllegalArgumentException if the amount is invalid
      * @throws InsufficientFundsException if the balance is insufficient
      */
-    public abstract void withdraw(double amount) throws InsufficientFundsException;
+    public abstract BalanceChange applyWithdrawal(double amount) throws InsufficientFundsException;
+
+    /**
+     * Moves an amount from this account to another one, without recording
+     * it (see transferTo).
+     *
+     * @param target the account receiving the money
+     * @param amount the amount to transfer
+     * @return the applied change (both sides), to be passed to recordChange
+     * @throws IllegalArgumentException if the amount is invalid or the target
+     * is this account
+     * @throws InsufficientFundsException if this account's balance is
+     * insufficient
+     */
+    public BalanceChange applyTransfer(Account target, double amount)
+            throws InsufficientFundsException {
+        return applyTransfer(target, amount, true);
+    }
+
+    /**
+     * Moves an amount from this account, and to the target unless
+     * creditTarget is false (caller holds the lock of this account, and of
+     * the target when it is credited).
+     */
+    private BalanceChange applyTransfer(Account target, double amount, boolean creditTarget)
+            throws InsufficientFundsException {
+        long cents = Money.toPositiveCents(amount, "Transfer amount must be positive!");
+        if (target == this) {
+            throw new IllegalArgumentException("Can not transfer to the same account!");
+        }
+
+        long newBalance = debit(cents);
+        if (newBalance < 0) {
+            throw new InsufficientFundsException("Insufficient Funds for Transfer!");
+        }
+        long targetNewBalance;
+        try {
+            targetNewBalance = creditTarget ? target.credit(cents)
+                    : Money.addCents(target.getBalanceCents(), cents);
+        } catch (IllegalArgumentException ex) {
+            // The target can not hold that much: give the money back
+            credit(cents);
+            throw ex;
+        }
+
+        return new BalanceChange(this, -cents, TransactionsStore.TRANSFER_TO, amount, 0, newBalance,
+                target, creditTarget ? targetNewBalance : 0, !creditTarget);
+    }
 
     /**
-     * Records a custom transaction message in the history.
+     * Applies a change and records it while holding the lock of its account
+     * (and of the other account of a transfer), then waits until its
+     * journal entry is durable.
      *
-     * This method is protected so it can only be accessed by subclasses of
-     * Account.
+     * Holding the lock from the balance update to the journal entry makes
+     * the journal follow the order in which the balance changed: an
+     * operation relying on the money of an earlier one is logged after it,
+     * so it is never acknowledged before the earlier one is durable.
      *
-     * @param message the transaction description to record
+     * @param other the other account to lock (null if none)
+     * @param step applies the change
+     * @return the recorded change
+     * @throws X if the step fails (nothing is then recorded)
+     * @throws java.io.UncheckedIOException if the journal can not be written
+     * (see recordChange)
      */
+    protected final <X extends Exception> BalanceChange applyAndRecord(Account other,
+            ApplyStep<X> step) throws X {
+        Account first = this;
+        Account second = other == null ? this : other;
+        if (!locksBefore(first, second)) {
+            first = second;
+            second = this;
+        }
+
+        AccountOperationEvent event = new AccountOperationEvent();
+        BalanceChange change;
+        long sequence;
+        synchronized (first) {
+            synchronized (second) {
+                change = step.apply();
+                event.begin();
+                sequence = log(change);
+            }
+        }
+        awaitRecorded(event, change, sequence);
+        return change;
+    }
+
+    /**
+     * One apply step of an operation (see applyAndRecord)
+     *
+     * @param <X> the exception the step may throw
+     */
+    protected interface ApplyStep<X extends Exception> {
+
+        /**
+         * @return the applied change
+         * @throws X if the change can not be applied
+         */
+        BalanceChange apply() throws X;
+    }
+
+    /**
+     * Records an applied change in the history and the transactions tree of
+     * its account(s) and logs it to the journal (if any).
+     *
+     * A failed journal is fatal: the change stays applied in memory but is
+     * not durable, and the journal refuses every later entry, so the caller
+     * must stop acknowledging operations.
+     *
+     * @param change a change returned by one of the apply methods of this
+     * account
+     * @throws java.io.UncheckedIOException if the journal can not be written
+     */
+    public void recordChange(BalanceChange change) {
+        AccountOperationEvent event = new AccountOperationEvent();
+        event.begin();
+        awaitRecorded(event, change, log(change));
+    }
+
+    /**
+     * Tells whether a must be locked before b when both are locked at once:
+     * always in the same order, to avoid deadlocks.
+     */
+    private static boolean locksBefore(Account a, Account b) {
+        int order = a.getAccountNumber().compareTo(b.getAccountNumber());
+        return order < 0
+                || (order == 0 && System.identityHashCode(a) <= System.identityHashCode(b));
+    }
+
     // ===================== Recording =====================
-    // For messages with amount: record into BOTH history + tree
-    protected void record(double amount, String message) {
-        this.history.add(message);
+    // The history and the tree are plain (non thread-safe) structures, so
+    // they are guarded by their account only. The journal entry is buffered
+    // under the same lock (so the log follows the recording order) but its
+    // disk sync is awaited outside of it.
+    /**
+     * Records a change in the history and the transactions tree of its
+     * account(s) and buffers its journal entry (if any), under the lock of
+     * the account(s).
+     *
+     * @return the sequence number of the journal entry, or 0 if none
+     */
+    private long log(BalanceChange change) {
+        AccountJournal j = journal;
+        Account target = change.getTarget();
+        if (target == null) {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                ledger.addEntry(ledger.getStore().append(change, false, now));
+                this.recordedBalanceCents += change.getDeltaCents();
+                return j == null ? 0 : j.logRecord(this.accountNumber, change.getDeltaCents(),
+                        this.recordedBalanceCents, change.getAmount(), change.getMessage(), now);
+            }
+        }
+        long cents = -change.getDeltaCents();
+        if (change.isCreditDeferred()) {
+            // Only this side: the target records its own (see
+            // applyTransferCredit)
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                ledger.addEntry(ledger.getStore().append(change, false, now));
+                this.recordedBalanceCents -= cents;
+                return j == null ? 0 : j.logTransferOut(this.accountNumber,
+                        this.recordedBalanceCents, change.getMessage(), target.getAccountNumber(),
+                        cents, change.getAmount(), now);
+            }
+        }
+
+        // Both sides are recorded (and logged as one entry) while both
+        // accounts are locked
+        Account first = locksBefore(this, target) ? this : target;
+        Account second = first == this ? target : this;
+        synchronized (first) {
+            synchronized (second) {
+                long now = System.currentTimeMillis();
+                this.ledger.addEntry(this.ledger.getStore().append(change, false, now));
+                this.recordedBalanceCents -= cents;
+                target.ledger.addEntry(target.ledger.getStore().append(change, true, now));
+                target.recordedBalanceCents += cents;
+                return j == null ? 0 : j.logTransfer(this.getAccountNumber(),
+                        this.recordedBalanceCents, change.getMessage(), target.getAccountNumber(),
+                        target.recordedBalanceCents, change.getTargetMessage(),
+                        cents, change.getAmount(), now);
+            }
+        }
+    }
+
+    /**
+     * Waits until a recorded change is durable (see awaitDurable) and
+     * reports its recording.
+     */
+    private void awaitRecorded(AccountOperationEvent event, BalanceChange change, long sequence) {
+        AccountJournal j = journal;
+        if (j != null && sequence > 0) {
+            awaitDurable(j, sequence);
+        }
+        commitEvent(event, "record", change.getAmount(), AtmMetrics.Outcome.SUCCESS);
+    }
+
+    // ===================== Reversals =====================
+    /**
+     * Reverses a deposit, a withdrawal or an interest payment: its amount is
+     * given back to (or taken back from) the balance, and the transaction is
+     * deleted from the transactions tree. The history keeps it, marked as
+     * reversed, followed by the reversal.
+     *
+     * The transaction is found by its id (see TransactionsEntry.getId) in
+     * O(log n), even among transactions of the same amount.
+     *
+     * @param id the id of the transaction
+     * @throws IllegalArgumentException if there is no such transaction in
+     * the tree, or it is a transfer
+     * @throws InsufficientFundsException if the balance does not cover the
+     * reversal of a deposit
+     */
+    public void reverseTransaction(int id) throws InsufficientFundsException {
+        reverse(id, Double.NaN);
+    }
+
+    /**
+     * Corrects the amount of a deposit, a withdrawal or an interest payment:
+     * the transaction is reversed (see reverseTransaction) and recorded again
+     * with the new amount (and the same fee), in one atomic step.
+     *
+     * @param id the id of the transaction
+     * @param amount the correct amount
+     * @throws IllegalArgumentException if the amount is not positive, there
+     * is no such transaction in the tree, or it is a transfer
+     * @throws InsufficientFundsException if the balance does not cover the
+     * difference
+     */
+    public void correctTransaction(int id, double amount) throws InsufficientFundsException {
+        Money.toPositiveCents(amount, "Corrected amount must be positive!");
+        reverse(id, amount);
+    }
+
+    /**
+     * Reverses a transaction and, unless amount is NaN, records its
+     * correction. Both balance changes are applied at once, so a failed
+     * correction leaves the transaction untouched.
+     */
+    private void reverse(int id, double amount) throws InsufficientFundsException {
+        AccountOperationEvent event = new AccountOperationEvent();
+        event.begin();
+        long start = System.nanoTime();
+        AtmMetrics.Operation operation = Double.isNaN(amount)
+                ? AtmMetrics.Operation.REVERSE : AtmMetrics.Operation.CORRECT;
+        // A reversal reports the amount it reversed, a correction the new one
+        double reported = Double.isNaN(amount) ? 0 : amount;
+        AtmMetrics.Outcome outcome = AtmMetrics.Outcome.SUCCESS;
+        try {
+            reported = reverseAndRecord(id, amount);
+        } catch (InsufficientFundsException | RuntimeException ex) {
+            outcome = AtmMetrics.outcomeOf(ex);
+            throw ex;
+        } finally {
+            reportOperation(operation, reported, outcome, start, event);
+        }
+    }
+
+    /**
+     * Applies, records and logs a reversal (see reverse), and waits until it
+     * is durable.
+     *
+     * @return the reversed amount, or the corrected amount of a correction
+     */
+    private double reverseAndRecord(int id, double amount) throws InsufficientFundsException {
+        AccountJournal j = journal;
+        long sequence = 0;
+        double reversedAmount;
+        synchronized (this) {
+            TransactionsStore s = ledger.getStore();
+            if (!s.contains(id) || !ledger.getTree().contains(id, s.byAmount())) {
+                throw new IllegalArgumentException("No transaction " + id + " to reverse!");
+            }
+            long deltaCents = -s.getDeltaCents(id);
+            long correctionCents = 0;
+            if (!Double.isNaN(amount)) {
+                correctionCents = Long.signum(-deltaCents)
+                        * Money.addCents(Money.toCents(amount), Money.toCents(s.getFee(id)));
+            }
+
+            long netCents = Money.addCents(deltaCents, correctionCents);
+            if (netCents > 0) {
+                credit(netCents);
+            } else if (netCents < 0 && debit(-netCents) < 0) {
+                throw new InsufficientFundsException("Insufficient Funds to reverse the transaction!");
+            }
+
+            long now = System.currentTimeMillis();
+            reversedAmount = s.getAmount(id);
+            String reversedMessage = j == null ? null : s.getDescription(id);
+            int newerDuplicates = j == null ? 0 : ledger.countNewerDuplicates(id);
+            ledger.reverse(id);
+            this.recordedBalanceCents += deltaCents;
+            int reversal = s.append(TransactionsStore.REVERSAL, reversedAmount, 0,
+                    this.recordedBalanceCents, null, now);
+            ledger.addReversal(reversal);
 
-        // add to transactions tree
-        this.transactionsBinaryTree.add(new TransactionsEntry(amount, message),
-                this.amoutComparator);
+            int correction = -1;
+            if (correctionCents != 0) {
+                correction = s.append(s.getKind(id), amount, s.getFee(id),
+                        this.recordedBalanceCents + correctionCents, null, now);
+                ledger.addEntry(correction);
+                this.recordedBalanceCents += correctionCents;
+            }
+            if (j != null) {
+                sequence = j.logReversal(this.accountNumber, reversedAmount, reversedMessage,
+                        deltaCents, this.recordedBalanceCents - correctionCents,
+                        s.getDescription(reversal), correctionCents,
+                        correction < 0 ? 0 : s.getAmount(correction),
+                        correction < 0 ? null : s.getDescription(correction), now,
+                        s.getTime(id), newerDuplicates);
+            }
+        }
+        if (j != null) {
+            awaitDurable(j, sequence);
+        }
+        return Double.isNaN(amount) ? reversedAmount : amount;
+    }
+
+    // ===================== Atomic balance updates =====================
+    /**
+     * Atomically adds the given number of cents to the balance.
+     *
+     * @param cents the amount to add, in cents (must be positive)
+     * @return the balance after the addition, in cents
+     * @throws IllegalArgumentException if the balance would overflow (it is
+     * then left unchanged)
+     */
+    protected final long credit(long cents) {
+        while (true) {
+            long current = this.balanceCents;
+            long updated = Money.addCents(current, cents);
+            if (BALANCE.compareAndSet(this, current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Atomically subtracts the given number of cents from the balance, but
+     * only if the balance covers it.
+     *
+     * The check and the update happen in one compare-and-set, so two
+     * concurrent withdrawals can never both pass the check on the same money.
+     *
+     * @param cents the amount to subtract, in cents (must be positive)
+     * @return the balance after the subtraction, in cents, or -1 if the
+     * balance is insufficient (the balance is then left unchanged)
+     */
+    protected final long debit(long cents) {
+        while (true) {
+            long current = this.balanceCents;
+            if (cents > current) {
+                return -1;
+            }
+            long updated = Math.subtractExact(current, cents);
+            if (BALANCE.compareAndSet(this, current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Atomically sets the balance to updated if it is still expected.
+     *
+     * Used by subclasses for read-modify-write updates such as interest.
+     * The expected value must come from getBalanceCents.
+     *
+     * @param expected the balance the caller based its computation on
+     * @param updated the new balance
+     * @return true if the balance was updated, false if it changed meanwhile
+     */
+    protected final boolean compareAndSetBalance(long expected, long updated) {
+        return BALANCE.compareAndSet(this, expected, updated);
+    }
+
+    /**
+     * Commits a Flight Recorder event if it is enabled (the tree height is
+     * only read then, under this account's lock).
+     */
+    private void commitEvent(AccountOperationEvent event, String operation, double amount,
+            AtmMetrics.Outcome outcome) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.accountNumber = this.accountNumber;
+            event.amount = amount;
+            event.outcome = outcome.name();
+            synchronized (this) {
+                event.treeHeight = this.ledger.getTreeHeight();
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Waits until a journal entry is durable, or only remembers its sequence
+     * number if the current thread defers its syncs (see deferDurability).
+     */
+    static void awaitDurable(AccountJournal j, long sequence) {
+        long[] deferred = DEFERRED_SYNC.get();
+        if (deferred == null) {
+            j.awaitDurable(sequence);
+        } else if (sequence > deferred[0]) {
+            deferred[0] = sequence;
+        }
+    }
+
+    // ===================== Restore, replay and retention =====================
+    // Rebuilding an account from a snapshot or the journal (see
+    // persistence.AccountRestorer), trimming it (services.RetentionEngine)
+    // and measuring it (services.BookFootprint) work on its ledger, under
+    // the account's lock.
+    /**
+     * Returns the ledger holding the recorded transactions of this account.
+     *
+     * The ledger is guarded by this account: the caller must hold this
+     * account's lock while using it, which also gives it a consistent view
+     * of the ledger and the recorded balance.
+     *
+     * @return the ledger
+     */
+    public TransactionsLedger getLedger() {
+        return this.ledger;
+    }
+
+    /**
+     * Returns the balance implied by the recorded transactions (see
+     * getLedger for locking).
+     *
+     * @return the recorded balance, in cents
+     */
+    public long getRecordedBalanceCents() {
+        return this.recordedBalanceCents;
+    }
+
+    /**
+     * Sets the balance and the recorded balance of an account being restored
+     * from a snapshot (caller holds this account's lock).
+     *
+     * @param cents the restored balance, in cents
+     */
+    public void restoreBalance(long cents) {
+        this.balanceCents = cents;
+        this.recordedBalanceCents = cents;
+    }
+
+    /**
+     * Changes the balance and the recorded balance by a change read back
+     * from the journal, without any validation (caller holds this account's
+     * lock). The transaction itself is added to the ledger by the caller.
+     *
+     * @param deltaCents the change of the balance, in cents
+     */
+    public void replayBalanceChange(long deltaCents) {
+        BALANCE.getAndAdd(this, deltaCents);
+        this.recordedBalanceCents += deltaCents;
+    }
+
+    /**
+     * @return true if nothing happened to the account since its creation:
+     * no history, no transactions, and its balance is the initial balance
+     * (see OffHeapAccountTable)
+     */
+    synchronized boolean isDormant() {
+        return this.ledger.isEmpty()
+                && this.balanceCents == this.recordedBalanceCents
+                && this.balanceCents == Money.toCents(this.ledger.getInitialBalance());
+    }
+
+    /**
+     * Sets the journal that receives the changes of all accounts.
+     *
+     * Should be set once at startup, after the journal has been replayed
+     * (replaying must not log the changes again).
+     *
+     * @param accountJournal the journal, or null to disable journaling
+     */
+    public static void setJournal(AccountJournal accountJournal) {
+        journal = accountJournal;
+    }
+
+    /**
+     * @return the journal receiving the changes, or null if there is none
+     */
+    public static AccountJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Makes the operations of the current thread return as soon as their
+     * journal entries are logged, without waiting for them to be durable.
+     *
+     * Meant for threads executing operations on behalf of others (see
+     * services.ShardedAccountBook): such a thread must not wait for each
+     * disk sync in turn. It calls takeDeferredSequence after each operation
+     * and hands the sequence number to the caller, which waits for it with
+     * the journal's awaitDurable before acknowledging the operation.
+     */
+    public static void deferDurability() {
+        if (DEFERRED_SYNC.get() == null) {
+            DEFERRED_SYNC.set(new long[1]);
+        }
+    }
+
+    /**
+     * Returns the highest sequence number logged by the current thread since
+     * the last call, when it defers its syncs (see deferDurability).
+     *
+     * @return the sequence number to wait for, or 0 if nothing was logged
+     */
+    public static long takeDeferredSequence() {
+        long[] deferred = DEFERRED_SYNC.get();
+        if (deferred == null) {
+            return 0;
+        }
+        long sequence = deferred[0];
+        deferred[0] = 0;
+        return sequence;
     }
 
     /**
@@ -139,8 +867,125 @@ public abstract class Account {
      *
      * @param n the number of transactions to display
      */
-    public void printLastNTransactions(int n) {
-        this.history.printLast(n);
+    public synchronized void printLastNTransactions(int n) {
+        long start = System.nanoTime();
+        ledger.getHistory().printLast(n);
+        METRICS.record(AtmMetrics.Operation.HISTORY, AtmMetrics.Outcome.SUCCESS, start);
+    }
+
+    /**
+     * Returns the last N transactions from the transaction history, for
+     * callers that do not print to the console.
+     *
+     * @param n the number of transactions wanted
+     * @return the descriptions, from most recent to least recent
+     */
+    public synchronized MyArrayList<String> getLastNTransactions(int n) {
+        long start = System.nanoTime();
+        MyArrayList<String> result = new MyArrayList<>();
+        for (String description : ledger.getHistory()) {
+            if (result.size() == n) {
+                break;
+            }
+            result.add(description);
+        }
+        METRICS.record(AtmMetrics.Operation.HISTORY, AtmMetrics.Outcome.SUCCESS, start);
+        return result;
+    }
+
+    /**
+     * Returns the transactions whose amount is within [min, max], ordered by
+     * amount (the range search of the transactions explorer).
+     *
+     * Safe while other threads operate on the account, unlike a search on
+     * getTransactionsBinaryTree, which returns the tree without its lock.
+     *
+     * @param min the smallest amount wanted
+     * @param max the largest amount wanted
+     * @return the matching transactions
+     */
+    public synchronized MyArrayList<TransactionsEntry> findTransactionsByAmount(double min, double max) {
+        long start = System.nanoTime();
+        MyArrayList<TransactionsEntry> result = ledger.entries(ledger.treeRangeSearch(min, max));
+        METRICS.record(AtmMetrics.Operation.RANGE_SEARCH, AtmMetrics.Outcome.SUCCESS, start);
+        return result;
+    }
+
+    /**
+     * Returns the transactions recorded within [from, to], oldest first.
+     * The window is found by binary search in the time index.
+     *
+     * @param from the earliest time wanted (milliseconds since the epoch)
+     * @param to the latest time wanted
+     * @return the matching transactions
+     */
+    public MyArrayList<TransactionsEntry> findTransactionsByTime(long from, long to) {
+        return findTransactions(from, to, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Returns the transactions recorded within [from, to] whose amount is
+     * within [min, max], oldest first (the combined filter of the
+     * transactions explorer). The time window is found by binary search,
+     * then scanned for the amounts.
+     *
+     * @param from the earliest time wanted (milliseconds since the epoch)
+     * @param to the latest time wanted
+     * @param min the smallest amount wanted
+     * @param max the largest amount wanted
+     * @return the matching transactions
+     */
+    public synchronized MyArrayList<TransactionsEntry> findTransactions(long from, long to,
+            double min, double max) {
+        long start = System.nanoTime();
+        MyArrayList<TransactionsEntry> result = ledger.entries(
+                ledger.getTimeIndex().range(from, to, min, max));
+        METRICS.record(AtmMetrics.Operation.RANGE_SEARCH, AtmMetrics.Outcome.SUCCESS, start);
+        return result;
+    }
+
+    /**
+     * Returns all the transactions, ordered by amount.
+     *
+     * @return the transactions (new entries, see TransactionsStore)
+     */
+    public synchronized MyArrayList<TransactionsEntry> getTransactionsByAmount() {
+        return ledger.entries(ledger.getTree().inOrderList());
+    }
+
+    /**
+     * Runs an aggregate over the amounts of all the transactions of the
+     * tree, in cents, under this account's lock. The amounts are the packed
+     * column the store keeps up to date as transactions enter and leave the
+     * tree (see TransactionsStore.addTreeAmount), in no particular order, so
+     * the aggregates of lib.AmountAggregates scan them without a copy.
+     *
+     * @param <R> the result of the aggregate
+     * @param aggregate the aggregate; it must not keep the array
+     * @return the result of the aggregate
+     */
+    public synchronized <R> R aggregateTransactionAmounts(AmountsAggregate<R> aggregate) {
+        TransactionsStore s = this.ledger.peekStore();
+        if (s == null) {
+            return aggregate.apply(new long[0], 0, 0);
+        }
+        return aggregate.apply(s.getTreeAmountsCents(), 0, s.getTreeAmountsCount());
+    }
+
+    /**
+     * An aggregate over transaction amounts (see aggregateTransactionAmounts)
+     *
+     * @param <R> its result
+     */
+    public interface AmountsAggregate<R> {
+
+        /**
+         * @param cents the amounts, in cents, in cents[from, to)
+         * @param from first index (inclusive)
+         * @param to last index (exclusive)
+         * @return the result
+         */
+        R apply(long[] cents, int from, int to);
     }
 
     /**
@@ -171,23 +1016,60 @@ public abstract class Account {
         return ownerName;
     }
 
+    /**
+     * Returns the PIN (used to persist the account).
+     *
+     * @return the account PIN
+     */
+    public int getPin() {
+        return pin;
+    }
+
+    /**
+     * Returns the balance the account was opened with.
+     *
+     * @return the initial balance
+     */
+    public double getInitialBalance() {
+        return ledger.getInitialBalance();
+    }
+
     /**
      * Returns the current account balance.
      *
      * @return the current balance
      */
     public double getBalance() {
-        return balance;
+        return Money.toAmount(getBalanceCents());
     }
 
-    public BinaryTree<TransactionsEntry> getTransactionsBinaryTree() {
-        return transactionsBinaryTree;
+    /**
+     * Returns the current account balance in whole cents.
+     *
+     * @return the current balance in cents
+     */
+    public long getBalanceCents() {
+        return this.balanceCents;
     }
 
-    public AmountComparator getAmoutComparator() {
-        return amoutComparator;
+    /**
+     * Returns the tree of transactions ordered by amount. Its values are
+     * offsets in getTransactionsStore.
+     *
+     * @return the transactions tree (created on first use)
+     */
+    public synchronized BinaryTree<Integer> getTransactionsBinaryTree() {
+        return ledger.getTree();
+    }
+
+    /**
+     * Returns the store holding the transactions of the history and the
+     * tree (not thread-safe, like the tree).
+     *
+     * @return the transactions store (created on first use)
+     */
+    public synchronized TransactionsStore getTransactionsStore() {
+        return ledger.getStore();
     }
-    
-    
 
 }
@@ -0,0 +1,130 @@
+package simpleatmsystem.models;
+
+/**
+ * The AccountJournal interface receives every change made to the accounts,
+ * so that it can be made durable (see persistence.WriteAheadLog).
+ *
+ * The log methods are called while the account (or, for a transfer, both
+ * accounts) is locked, so for each account the journal sees the changes in
+ * exactly the order they were recorded. They must only buffer the change and
+ * return a sequence number. The caller then releases its locks and calls
+ * awaitDurable before acknowledging the operation, which lets a journal
+ * share one disk sync between many concurrent operations.
+ *
+ * A journal that fails to write or sync throws UncheckedIOException from
+ * then on. The change being logged is already applied in memory, so the
+ * failure is fatal: callers stop acknowledging operations.
+ */
+public interface AccountJournal {
+
+    /**
+     * Logs the creation of an account.
+     *
+     * @param account the new account
+     * @return the sequence number of the log entry
+     */
+    long logCreate(Account account);
+
+    /**
+     * Logs one recorded transaction.
+     *
+     * @param accountNumber the account the transaction belongs to
+     * @param deltaCents the change of the balance, in cents
+     * @param balanceAfterCents the balance after all transactions recorded so
+     * far on this account, in cents
+     * @param amount the amount stored in the transactions tree
+     * @param message the message stored in the history and the tree
+     * @param time the time of the transaction (milliseconds since the epoch)
+     * @return the sequence number of the log entry
+     */
+    long logRecord(String accountNumber, long deltaCents, long balanceAfterCents,
+            double amount, String message, long time);
+
+    /**
+     * Logs both sides of a transfer as one atomic log entry.
+     *
+     * @param from the account the money was taken from
+     * @param fromBalanceAfterCents balance of the source after the transfer
+     * @param fromMessage the message recorded on the source
+     * @param to the account the money was given to
+     * @param toBalanceAfterCents balance of the target after the transfer
+     * @param toMessage the message recorded on the target
+     * @param cents the transferred amount, in cents
+     * @param amount the transferred amount as entered
+     * @param time the time of the transfer
+     * @return the sequence number of the log entry
+     */
+    long logTransfer(String from, long fromBalanceAfterCents, String fromMessage,
+            String to, long toBalanceAfterCents, String toMessage,
+            long cents, double amount, long time);
+
+    /**
+     * Logs the source's side of a transfer whose target records its own
+     * side later (see Account.transferToDeferringCredit). The entry names
+     * the target and the amount: if no logTransferIn follows it, replay
+     * credits the target itself.
+     *
+     * @param from the account the money was taken from
+     * @param fromBalanceAfterCents balance of the source after the transfer
+     * @param fromMessage the message recorded on the source
+     * @param to the account the money is given to
+     * @param cents the transferred amount, in cents
+     * @param amount the transferred amount as entered
+     * @param time the time of the transfer
+     * @return the sequence number of the log entry
+     */
+    long logTransferOut(String from, long fromBalanceAfterCents, String fromMessage,
+            String to, long cents, double amount, long time);
+
+    /**
+     * Logs the target's side of a transfer logged by logTransferOut, once
+     * the target is credited.
+     *
+     * @param to the account the money was given to
+     * @param toBalanceAfterCents balance of the target after the credit
+     * @param toMessage the message recorded on the target
+     * @param cents the transferred amount, in cents
+     * @param amount the transferred amount as entered
+     * @param time the time of the credit
+     * @param outSequence the sequence number of the source's side
+     * @return the sequence number of the log entry
+     */
+    long logTransferIn(String to, long toBalanceAfterCents, String toMessage,
+            long cents, double amount, long time, long outSequence);
+
+    /**
+     * Logs the reversal of a transaction, and the transaction correcting it
+     * if any, as one atomic log entry.
+     *
+     * @param accountNumber the account the transaction belongs to
+     * @param reversedAmount the amount of the reversed transaction
+     * @param reversedMessage the message of the reversed transaction
+     * @param deltaCents the change of the balance made by the reversal, in
+     * cents
+     * @param balanceAfterCents the balance after the reversal, in cents
+     * @param message the message of the reversal in the history
+     * @param correctionDeltaCents the change of the balance made by the
+     * correction, in cents
+     * @param correctionAmount the amount of the correction
+     * @param correctionMessage the message of the correction, or null if
+     * the transaction was only reversed
+     * @param time the time of the reversal
+     * @param reversedTime the time of the reversed transaction
+     * @param newerDuplicates number of transactions of the tree identical to
+     * the reversed one (same amount, message and time) recorded after it
+     * @return the sequence number of the log entry
+     */
+    long logReversal(String accountNumber, double reversedAmount, String reversedMessage,
+            long deltaCents, long balanceAfterCents, String message,
+            long correctionDeltaCents, double correctionAmount, String correctionMessage,
+            long time, long reversedTime, int newerDuplicates);
+
+    /**
+     * Waits until the entry with the given sequence number is durable
+     * (according to the journal's sync policy).
+     *
+     * @param sequence a sequence number returned by one of the log methods
+     * @throws java.io.UncheckedIOException if the journal can not be written
+     */
+    void awaitDurable(long sequence);
+}
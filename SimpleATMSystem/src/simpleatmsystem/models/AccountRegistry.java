@@ -0,0 +1,354 @@
+package simpleatmsystem.models;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import simpleatmsystem.lib.Footprint;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.metrics.AtmMetrics;
+
+/**
+ * The AccountRegistry class stores all the accounts of the ATM system.
+ *
+ * Besides the list of all accounts (in creation order), the registry keeps
+ * one partition per account type. Batch jobs that only concern one type
+ * (for example the end-of-day interest run, which only concerns savings
+ * accounts) can therefore work on their partition without visiting the
+ * other accounts. An index by account number gives constant-time lookups
+ * for the non-interactive modes, which can not afford a linear search per
+ * operation.
+ *
+ * Adding accounts and taking snapshots are synchronized and lookups use a
+ * concurrent index, so the registry can be shared by several sessions.
+ *
+ * A registry can keep its dormant accounts (accounts nothing happened to
+ * since their creation) off heap, in an OffHeapAccountTable: addDormant
+ * stores such an account as a row, and find and authenticate bring it back
+ * as a regular account the first time it is used. The lists and partitions
+ * only hold the accounts on the heap.
+ */
+public class AccountRegistry {
+
+    /**
+     * All accounts, in creation order
+     */
+    private final MyArrayList<Account> accounts = new MyArrayList<>();
+
+    /**
+     * Partition holding only the savings accounts
+     */
+    private final MyArrayList<SavingsAccount> savingsAccounts = new MyArrayList<>();
+
+    /**
+     * Partition holding only the checking accounts
+     */
+    private final MyArrayList<CheckingAccount> checkingAccounts = new MyArrayList<>();
+
+    /**
+     * Index by normalized account number (see normalize). Concurrent, so
+     * lookups do not take the registry lock.
+     */
+    private final ConcurrentHashMap<String, Account> byNumber = new ConcurrentHashMap<>();
+
+    /**
+     * Dormant accounts kept off heap, or null if they are kept on the heap
+     */
+    private final OffHeapAccountTable dormantAccounts;
+
+    /**
+     * Creates a registry keeping every account on the heap.
+     */
+    public AccountRegistry() {
+        this(null);
+    }
+
+    /**
+     * Creates a registry keeping the dormant accounts given to addDormant
+     * in a table off heap.
+     *
+     * @param dormantAccounts an empty table, or null to keep them on the
+     * heap
+     */
+    public AccountRegistry(OffHeapAccountTable dormantAccounts) {
+        this.dormantAccounts = dormantAccounts;
+    }
+
+    /**
+     * Adds an account to the registry and to the partition of its type.
+     *
+     * If the accounts have a journal, the creation is logged and made
+     * durable before this method returns (unless the calling thread defers
+     * its syncs, see Account.deferDurability). The creation is logged
+     * before the account is published: if the journal refuses it, the
+     * account is not added, so no session can change an account whose
+     * creation is not in the log.
+     *
+     * @param account the account to add
+     * @throws java.io.UncheckedIOException if the journal can not be written
+     */
+    public void add(Account account) {
+        AccountJournal journal = Account.getJournal();
+        long sequence = 0;
+        synchronized (this) {
+            if (journal != null) {
+                sequence = journal.logCreate(account);
+            }
+            addToPartitions(account);
+        }
+        if (journal != null) {
+            Account.awaitDurable(journal, sequence);
+        }
+    }
+
+    /**
+     * Adds a new account that nothing happened to yet, keeping it off heap
+     * if the registry has a table for dormant accounts and the account fits
+     * in it (see OffHeapAccountTable.fits). Used when many accounts are
+     * loaded at once (replay, restore), so only the ones used later take
+     * heap. The creation is logged as in add.
+     *
+     * The caller must not use the account afterwards when it was stored
+     * off heap: find returns a new account for it.
+     *
+     * @param account the account to add
+     * @return true if the account was stored off heap, false if it was
+     * added as in add
+     * @throws java.io.UncheckedIOException if the journal can not be written
+     */
+    public boolean addDormant(Account account) {
+        if (dormantAccounts == null || !OffHeapAccountTable.fits(account)) {
+            add(account);
+            return false;
+        }
+        AccountJournal journal = Account.getJournal();
+        long sequence = 0;
+        boolean stored;
+        synchronized (this) {
+            if (journal != null) {
+                sequence = journal.logCreate(account);
+            }
+            // The first account with a number wins (see addToPartitions):
+            // a number already in use goes to the heap list
+            stored = !byNumber.containsKey(normalize(account.getAccountNumber()))
+                    && dormantAccounts.find(account.getAccountNumber()) < 0;
+            if (stored) {
+                dormantAccounts.add(account);
+            } else {
+                addToPartitions(account);
+            }
+        }
+        if (journal != null) {
+            Account.awaitDurable(journal, sequence);
+        }
+        return stored;
+    }
+
+    /**
+     * Adds an account to the list, the index and its partition (caller holds
+     * the lock).
+     */
+    private void addToPartitions(Account account) {
+        if (dormantAccounts != null) {
+            // A dormant account with the same number came first
+            promote(account.getAccountNumber());
+        }
+        accounts.add(account);
+
+        // Like the linear search in the menu, the first account with a given
+        // number wins
+        byNumber.putIfAbsent(normalize(account.getAccountNumber()), account);
+
+        if (account instanceof SavingsAccount) {
+            savingsAccounts.add((SavingsAccount) account);
+        } else if (account instanceof CheckingAccount) {
+            checkingAccounts.add((CheckingAccount) account);
+        }
+    }
+
+    /**
+     * Returns the list of the accounts on the heap (see addDormant).
+     *
+     * The list is live: it must not be modified directly (use add instead).
+     *
+     * @return the accounts, in creation order (promoted dormant accounts in
+     * promotion order)
+     */
+    public MyArrayList<Account> getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * Finds an account by its number, ignoring case and surrounding spaces.
+     *
+     * @param accountNumber the account number to look for
+     * @return the matching account, or null if there is none
+     */
+    public Account find(String accountNumber) {
+        Account account = byNumber.get(normalize(accountNumber));
+        if (account == null && dormantAccounts != null
+                && dormantAccounts.find(accountNumber) >= 0) {
+            account = promote(accountNumber);
+        }
+        return account;
+    }
+
+    /**
+     * Brings a dormant account onto the heap: the account its row describes
+     * is built and published, once.
+     *
+     * @return the account with that number (promoted meanwhile, or before),
+     * or null if there is none
+     */
+    private synchronized Account promote(String accountNumber) {
+        Account account = byNumber.get(normalize(accountNumber));
+        if (account != null) {
+            return account;
+        }
+        int row = dormantAccounts.find(accountNumber);
+        if (row < 0 || dormantAccounts.isPromoted(row)) {
+            return null;
+        }
+        account = dormantAccounts.promote(row);
+        addToPartitions(account);
+        return account;
+    }
+
+    /**
+     * Brings all the dormant accounts of a type onto the heap (caller holds
+     * the lock).
+     */
+    private void promoteAll(boolean savings) {
+        if (dormantAccounts == null) {
+            return;
+        }
+        for (int row = 0; row < dormantAccounts.size(); row++) {
+            if (!dormantAccounts.isPromoted(row) && dormantAccounts.isSavings(row) == savings) {
+                addToPartitions(dormantAccounts.promote(row));
+            }
+        }
+    }
+
+    /**
+     * @return the table keeping the dormant accounts off heap, or null if
+     * they are kept on the heap
+     */
+    public OffHeapAccountTable getDormantAccounts() {
+        return dormantAccounts;
+    }
+
+    /**
+     * Finds an account and checks its PIN.
+     *
+     * @param accountNumber the account number
+     * @param pin the PIN entered by the user
+     * @return the authenticated account, or null if the number or PIN is wrong
+     */
+    public Account authenticate(String accountNumber, int pin) {
+        long start = System.nanoTime();
+        Account account = byNumber.get(normalize(accountNumber));
+        // A wrong PIN does not bring a dormant account onto the heap
+        if (account == null && dormantAccounts != null
+                && dormantAccounts.checkPin(accountNumber, pin)) {
+            account = promote(accountNumber);
+        }
+        boolean valid = account != null && account.checkPIN(pin);
+        AtmMetrics.global().record(AtmMetrics.Operation.AUTHENTICATE,
+                valid ? AtmMetrics.Outcome.SUCCESS : AtmMetrics.Outcome.DENIED, start);
+        return valid ? account : null;
+    }
+
+    /**
+     * Account numbers are compared ignoring case (as in the menu). For
+     * numbers that are already trimmed and lower case this does not
+     * allocate.
+     */
+    private static String normalize(String accountNumber) {
+        return accountNumber.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Estimates the bytes taken by the registry itself (lists, partitions,
+     * index and the heap part of the dormant accounts table), without the
+     * accounts (see services.BookFootprint).
+     *
+     * @return estimated bytes (see lib.Footprint)
+     */
+    public synchronized long footprint() {
+        long bytes = Footprint.shallowSize(AccountRegistry.class)
+                + accounts.footprint() + savingsAccounts.footprint() + checkingAccounts.footprint();
+        if (dormantAccounts != null) {
+            bytes += dormantAccounts.footprint();
+        }
+
+        // ConcurrentHashMap: a power-of-two table kept at most 3/4 full, one
+        // node (hash, key, value, next) per entry
+        int table = 16;
+        while (table * 3L / 4 < byNumber.size()) {
+            table <<= 1;
+        }
+        long node = Footprint.align(Footprint.getHeaderSize() + 4 + 3L * Footprint.getReferenceSize());
+        bytes += Footprint.shallowSize(ConcurrentHashMap.class) + Footprint.referenceArray(table)
+                + byNumber.size() * node;
+        for (Map.Entry<String, Account> entry : byNumber.entrySet()) {
+            // The key is the account number itself when it is already normalized
+            if (entry.getKey() != entry.getValue().getAccountNumber()) {
+                bytes += Footprint.string(entry.getKey());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return total number of accounts, on the heap and dormant
+     */
+    public synchronized int size() {
+        return accounts.size() + (dormantAccounts == null ? 0 : dormantAccounts.getDormantCount());
+    }
+
+    /**
+     * Returns a copy of the list of the accounts on the heap. Dormant
+     * accounts kept off heap are not included (see getDormantAccounts):
+     * nothing happened to them.
+     *
+     * @return array of the accounts, in the order of getAccounts
+     */
+    public synchronized Account[] accountsSnapshot() {
+        Account[] snapshot = new Account[accounts.size()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = accounts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns a copy of the savings partition, safe to process in parallel
+     * while new accounts are being added. Dormant savings accounts are
+     * brought onto the heap first, since the callers change them (the
+     * interest run records a transaction on each).
+     *
+     * @return array of all savings accounts
+     */
+    public synchronized SavingsAccount[] savingsSnapshot() {
+        promoteAll(true);
+        SavingsAccount[] snapshot = new SavingsAccount[savingsAccounts.size()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = savingsAccounts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns a copy of the checking partition (dormant checking accounts
+     * are brought onto the heap first, see savingsSnapshot).
+     *
+     * @return array of all checking accounts
+     */
+    public synchronized CheckingAccount[] checkingSnapshot() {
+        promoteAll(false);
+        CheckingAccount[] snapshot = new CheckingAccount[checkingAccounts.size()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = checkingAccounts.get(i);
+        }
+        return snapshot;
+    }
+}
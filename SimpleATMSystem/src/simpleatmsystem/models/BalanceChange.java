@@ -0,0 +1,142 @@
+package simpleatmsystem.models;
+
+/**
+ * BalanceChange ------------- A change already applied to the balance of an
+ * account (or, for a transfer, of two accounts) but not recorded yet.
+ *
+ * Returned by the apply methods of Account and passed back to
+ * Account.recordChange, which adds it to the history, the transactions tree
+ * and the journal. Messages are only built when asked for: the history and
+ * the tree keep the template and the values (see TransactionsStore).
+ */
+public final class BalanceChange {
+
+    private final Account account;
+    private final long deltaCents;
+    private final byte kind;
+    private final double shownAmount;
+    private final double fee;
+    private final long balanceAfterCents;
+
+    // Transfer target (null for the other changes)
+    private final Account target;
+    private final long targetBalanceAfterCents;
+
+    /**
+     * True for a transfer whose credit is applied and recorded later by the
+     * target (see Account.transferToDeferringCredit)
+     */
+    private final boolean creditDeferred;
+
+    BalanceChange(Account account, long deltaCents, byte kind, double shownAmount, double fee,
+            long balanceAfterCents) {
+        this(account, deltaCents, kind, shownAmount, fee, balanceAfterCents, null, 0, false);
+    }
+
+    BalanceChange(Account account, long deltaCents, byte kind, double shownAmount, double fee,
+            long balanceAfterCents, Account target, long targetBalanceAfterCents,
+            boolean creditDeferred) {
+        this.account = account;
+        this.deltaCents = deltaCents;
+        this.kind = kind;
+        this.shownAmount = shownAmount;
+        this.fee = fee;
+        this.balanceAfterCents = balanceAfterCents;
+        this.target = target;
+        this.targetBalanceAfterCents = targetBalanceAfterCents;
+        this.creditDeferred = creditDeferred;
+    }
+
+    /**
+     * @return the account the change was applied to (the source of a
+     * transfer)
+     */
+    public Account getAccount() {
+        return account;
+    }
+
+    /**
+     * @return the change of the account's balance, in cents
+     */
+    public long getDeltaCents() {
+        return deltaCents;
+    }
+
+    /**
+     * @return the amount stored in the transactions tree (including the fee
+     * of a checking withdrawal)
+     */
+    public double getAmount() {
+        return shownAmount + fee;
+    }
+
+    /**
+     * @return the message stored in the history and the tree (built on
+     * each call, see TransactionsStore)
+     */
+    public String getMessage() {
+        return TransactionsStore.describe(kind, shownAmount, fee, balanceAfterCents,
+                target == null ? null : target.getAccountNumber());
+    }
+
+    /**
+     * @return the account's balance right after the change, in cents
+     */
+    public long getBalanceAfterCents() {
+        return balanceAfterCents;
+    }
+
+    /**
+     * @return the account receiving a transfer, or null for the other
+     * changes
+     */
+    public Account getTarget() {
+        return target;
+    }
+
+    /**
+     * @return true if this is a transfer whose target is credited later (see
+     * Account.applyTransferCredit)
+     */
+    public boolean isCreditDeferred() {
+        return creditDeferred;
+    }
+
+    /**
+     * @return the message recorded on the target of a transfer (whose credit
+     * is not deferred)
+     */
+    public String getTargetMessage() {
+        return TransactionsStore.describe(TransactionsStore.TRANSFER_FROM, shownAmount, 0,
+                targetBalanceAfterCents, account.getAccountNumber());
+    }
+
+    /**
+     * @return the template of the message (see TransactionsStore)
+     */
+    byte getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the amount shown in the message
+     */
+    double getShownAmount() {
+        return shownAmount;
+    }
+
+    /**
+     * @return the fee of a checking withdrawal, 0 otherwise
+     */
+    double getFee() {
+        return fee;
+    }
+
+    /**
+     * @return the target's balance right after a transfer (whose credit is
+     * not deferred), in cents
+     */
+    long getTargetBalanceAfterCents() {
+        return targetBalanceAfterCents;
+    }
+}
@@ -8,7 +8,7 @@ import simpleatmsystem.exceptions.InsufficientFundsException;
  * Unlike savings accounts, a checking account applies a transaction fee
  * for every withdrawal operation.
  * 
- * This class overrides the withdraw method to account for this additional fee.
+ * This class overrides applyWithdrawal to account for this additional fee.
  */
 public class CheckingAccount extends Account {
 
@@ -25,6 +25,7 @@ public class CheckingAccount extends Account {
      * @param transactionFee the withdrawal transaction fee
      *
      * @throws IllegalArgumentException if the transaction fee is negative
+     * or not a whole number of cents
      */
     public CheckingAccount(String accountNumber, String ownerName,
                            int pin, double initialBalance, double transactionFee) {
@@ -32,50 +33,56 @@ public class CheckingAccount extends Account {
         // Call parent constructor to initialize common account properties
         super(accountNumber, ownerName, pin, initialBalance);
 
-        // Validate transaction fee
-        if (transactionFee < 0) {
+        // Validate transaction fee (NaN included)
+        if (!(transactionFee >= 0)) {
             throw new IllegalArgumentException("Transaction Fee must be positive!");
         }
+        Money.toWholeCents(transactionFee);
 
         this.transactionFee = transactionFee;
     }
 
     /**
-     * Withdraws a specified amount from the checking account.
+     * Withdraws a specified amount from the checking account, without
+     * recording it (see Account.withdraw).
      * 
      * The total deducted amount includes:
      * - The withdrawal amount
      * - The transaction fee
      *
      * @param amount the amount to withdraw (excluding the transaction fee)
+     * @return the applied change
      * @throws IllegalArgumentException     if the withdrawal amount is invalid
      * @throws InsufficientFundsException  if the balance is not enough to cover
      *                                     both the withdrawal and the fee
      */
     @Override
-    public void withdraw(double amount) throws InsufficientFundsException {
+    public BalanceChange applyWithdrawal(double amount) throws InsufficientFundsException {
         // Validate withdrawal amount
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Withdraw amount must be positive!");
-        }
-
-        // Calculate the total amount to be deducted including the fee
-        double totalAmount = amount + this.transactionFee;
+        long cents = Money.toPositiveCents(amount, "Withdraw amount must be positive!");
 
-        // Check for sufficient funds before performing withdrawal
-        if (totalAmount > balance) {
+        // Check for sufficient funds and deduct in one atomic step
+        long totalCents = Money.addCents(cents, Money.toCents(this.transactionFee));
+        long newBalance = debit(totalCents);
+        if (newBalance < 0) {
             throw new InsufficientFundsException(
                     "Insufficient Funds in Checking Account!"
             );
         }
 
-        // Deduct the total amount from the balance
-        balance -= totalAmount;
+        // recorded into history + tree by recordChange, with the fee
+        // included in the amount (see BalanceChange.getAmount)
+        return new BalanceChange(this, -totalCents, TransactionsStore.CHECKING_WITHDRAWAL, amount,
+                this.transactionFee, newBalance);
+    }
 
-        // record into history + tree using record(amount, msg)
-        record(totalAmount, "Checking Account Withdrawal: " + amount
-                + " | Fee: " + this.transactionFee
-                + " | New Balance: " + balance);
+    /**
+     * Returns the fee applied to each withdrawal.
+     *
+     * @return the transaction fee
+     */
+    public double getTransactionFee() {
+        return transactionFee;
     }
 
 }
\ No newline at end of file
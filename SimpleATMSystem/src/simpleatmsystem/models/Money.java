@@ -0,0 +1,115 @@
+package simpleatmsystem.models;
+
+/**
+ * Money is a small helper for converting between user-facing amounts
+ * (doubles such as 12.5) and the fixed-point cents (longs such as 1250) used
+ * to store account balances.
+ *
+ * Working in whole cents keeps balances exact and lets them be updated with
+ * a single atomic compare-and-set on a long.
+ */
+public final class Money {
+
+    /**
+     * Number of cents in one unit of currency
+     */
+    public static final long CENTS_PER_UNIT = 100;
+
+    /**
+     * Largest amount (in absolute value) that converts to cents without
+     * overflowing a long
+     */
+    private static final double MAX_AMOUNT = (double) Long.MAX_VALUE / CENTS_PER_UNIT;
+
+    private Money() {
+    }
+
+    /**
+     * Converts an amount to cents, rounding to the nearest cent. Meant for
+     * computed amounts (sums, interest); amounts entered by the user go
+     * through toPositiveCents, which does not round.
+     *
+     * @param amount the amount to convert
+     * @return the amount in whole cents
+     * @throws IllegalArgumentException if the amount is not a finite number,
+     * or too large to be held in cents
+     */
+    public static long toCents(double amount) {
+        if (Double.isNaN(amount)) {
+            throw new IllegalArgumentException("Amount must be a number!");
+        }
+        if (Math.abs(amount) >= MAX_AMOUNT) {
+            throw new IllegalArgumentException("Amount is too large!");
+        }
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+
+    /**
+     * Converts an amount that must be positive to cents. The amount must be
+     * a whole number of cents (10.004 is rejected rather than recorded as
+     * 10.00), so that the balance always changes by the amount recorded in
+     * the history.
+     *
+     * @param amount the amount to convert
+     * @param message the error message if the amount is not positive
+     * @return the amount in whole cents (at least 1)
+     * @throws IllegalArgumentException if the amount is not positive (with
+     * the given message), not a whole number of cents, not finite or too
+     * large
+     */
+    public static long toPositiveCents(double amount, String message) {
+        if (!(amount > 0)) {
+            throw new IllegalArgumentException(message);
+        }
+        long cents = toWholeCents(amount);
+        if (cents <= 0) {
+            throw new IllegalArgumentException(message);
+        }
+        return cents;
+    }
+
+    /**
+     * Converts an amount that must be a whole number of cents.
+     *
+     * @param amount the amount to convert
+     * @return the amount in cents
+     * @throws IllegalArgumentException if the amount has a fraction of a
+     * cent, is not finite or is too large
+     */
+    public static long toWholeCents(double amount) {
+        long cents = toCents(amount);
+        // Decimal amounts such as 12.34 are not exact in binary: allow the
+        // representation error of the scaled amount, not a fraction of a cent
+        double scaled = amount * CENTS_PER_UNIT;
+        if (Math.abs(scaled - cents) > Math.max(1e-6, Math.ulp(scaled))) {
+            throw new IllegalArgumentException("Amount must be a whole number of cents!");
+        }
+        return cents;
+    }
+
+    /**
+     * Adds two balances or amounts in cents.
+     *
+     * @param cents a number of cents
+     * @param moreCents the number of cents to add
+     * @return the sum
+     * @throws IllegalArgumentException if the sum does not fit in a long
+     */
+    public static long addCents(long cents, long moreCents) {
+        try {
+            return Math.addExact(cents, moreCents);
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Amount is too large!");
+        }
+    }
+
+    /**
+     * Converts cents back to an amount.
+     *
+     * @param cents the amount in whole cents
+     * @return the amount as a double
+     */
+    public static double toAmount(long cents) {
+        return (double) cents / CENTS_PER_UNIT;
+    }
+}
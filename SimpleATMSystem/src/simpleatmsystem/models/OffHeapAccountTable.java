@@ -0,0 +1,480 @@
+package simpleatmsystem.models;
+
+import java.io.Closeable;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import simpleatmsystem.lib.Footprint;
+
+/**
+ * The OffHeapAccountTable class keeps the dormant accounts of a registry
+ * outside of the Java heap, in fixed-width columns, so that a book of
+ * millions of mostly idle accounts does not fill the heap with objects the
+ * garbage collector has to trace at every collection.
+ *
+ * A dormant account is one nothing happened to since it was created: no
+ * transaction, so no history and no tree, and its balance is its initial
+ * balance. Such an account is fully described by its creation details, so a
+ * row holds only those:
+ *
+ * - id hash: 64-bit hash of the normalized account number (lookups)
+ * - initial balance, and interest rate (savings) or transaction fee
+ * (checking)
+ * - owner: offset and length of the owner name in the names area
+ * - PIN, account number (at most NUMBER_BYTES ASCII characters) and type
+ * - promotion: 0 while the row is dormant, else its promotion number
+ *
+ * Rows are allocated in blocks of BLOCK_ROWS rows. Inside a block each
+ * column is contiguous, so a pass over one column streams through memory.
+ *
+ * Rows never change: the first time an account is used, the registry
+ * promotes its row (see AccountRegistry.find), which builds the regular
+ * Account the row describes. That account is authoritative from then on,
+ * and it is an ordinary heap account: it records, journals and transfers
+ * like any other. Accounts are never moved back off heap.
+ *
+ * Rows are added and promoted under the registry's lock; lookups and reads
+ * take no lock. All the memory belongs to one shared arena, released by
+ * close.
+ */
+public class OffHeapAccountTable implements Closeable {
+
+    /**
+     * Rows per block (a power of two)
+     */
+    static final int BLOCK_ROWS = 4096;
+    private static final int BLOCK_SHIFT = Integer.numberOfTrailingZeros(BLOCK_ROWS);
+
+    /**
+     * Maximum length of an account number kept off heap, in ASCII
+     * characters (longer numbers stay on the heap)
+     */
+    public static final int NUMBER_BYTES = 16;
+
+    /**
+     * Size of each block of the names area
+     */
+    private static final int NAME_BLOCK_BYTES = 1 << 20;
+
+    private static final byte SAVINGS = 0;
+    private static final byte CHECKING = 1;
+
+    // Byte offset of each column inside a block (column widths x BLOCK_ROWS)
+    private static final long ID_HASH = 0;
+    private static final long INITIAL = ID_HASH + 8L * BLOCK_ROWS;
+    private static final long RATE = INITIAL + 8L * BLOCK_ROWS;
+    private static final long OWNER = RATE + 8L * BLOCK_ROWS;
+    private static final long PIN = OWNER + 8L * BLOCK_ROWS;
+    private static final long PROMOTION = PIN + 4L * BLOCK_ROWS;
+    private static final long NUMBER = PROMOTION + 4L * BLOCK_ROWS;
+    private static final long TYPE = NUMBER + (long) NUMBER_BYTES * BLOCK_ROWS;
+    private static final long BLOCK_BYTES = TYPE + BLOCK_ROWS;
+
+    private final Arena arena = Arena.ofShared();
+
+    // Replaced (never modified in place once published) when they grow
+    private volatile MemorySegment[] blocks = new MemorySegment[0];
+    private volatile MemorySegment[] nameBlocks = new MemorySegment[0];
+    private long namesEnd;
+
+    /**
+     * Open-addressing index by id hash: row + 1, or 0 for an empty slot
+     * (replaced when it grows)
+     */
+    private volatile int[] index = new int[1024];
+
+    /**
+     * Number of rows. Written after the row and its index entry, so a row
+     * below the size read by a thread is fully visible to it.
+     */
+    private volatile int size;
+
+    /**
+     * Number of rows promoted so far (the promotion number of the last one)
+     */
+    private volatile int promotionsCount;
+
+    /**
+     * Rows up to this one are in the last snapshot (see
+     * persistence.Snapshot)
+     */
+    private volatile int savedRows;
+
+    /**
+     * Creates an empty table.
+     */
+    public OffHeapAccountTable() {
+    }
+
+    // ===================== Adding =====================
+    /**
+     * Tells whether an account can be kept as a row: a savings or checking
+     * account (not a subclass, which may hold more state) that is dormant,
+     * with a short ASCII number.
+     *
+     * @param account the account
+     * @return true if add accepts it
+     */
+    static boolean fits(Account account) {
+        Class<?> type = account.getClass();
+        if (type != SavingsAccount.class && type != CheckingAccount.class) {
+            return false;
+        }
+        String number = account.getAccountNumber();
+        if (number.length() > NUMBER_BYTES
+                || !StandardCharsets.US_ASCII.newEncoder().canEncode(number)
+                || account.getOwnerName().getBytes(StandardCharsets.UTF_8).length > 0xFFFF) {
+            return false;
+        }
+        return account.isDormant();
+    }
+
+    /**
+     * Adds a row describing a dormant account (caller holds the registry
+     * lock, and checked fits).
+     *
+     * @param account the account
+     * @return the row of the account
+     */
+    int add(Account account) {
+        boolean savings = account instanceof SavingsAccount;
+        double rate = savings ? ((SavingsAccount) account).getInterestRate()
+                : ((CheckingAccount) account).getTransactionFee();
+        byte[] number = account.getAccountNumber().getBytes(StandardCharsets.US_ASCII);
+        long idHash = idHash(account.getAccountNumber());
+
+        int row = size;
+        if ((row >>> BLOCK_SHIFT) == blocks.length) {
+            MemorySegment[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+            grown[blocks.length] = arena.allocate(BLOCK_BYTES, 8);
+            blocks = grown;
+        }
+        MemorySegment block = blocks[row >>> BLOCK_SHIFT];
+        int i = slot(row);
+        block.set(ValueLayout.JAVA_LONG, ID_HASH + 8L * i, idHash);
+        block.set(ValueLayout.JAVA_DOUBLE, INITIAL + 8L * i, account.getInitialBalance());
+        block.set(ValueLayout.JAVA_DOUBLE, RATE + 8L * i, rate);
+        block.set(ValueLayout.JAVA_LONG, OWNER + 8L * i, storeName(account.getOwnerName()));
+        block.set(ValueLayout.JAVA_INT, PIN + 4L * i, account.getPin());
+        block.set(ValueLayout.JAVA_INT, PROMOTION + 4L * i, 0);
+        // Blocks are zeroed: a shorter number ends at the first 0 byte
+        MemorySegment.copy(number, 0, block, ValueLayout.JAVA_BYTE,
+                NUMBER + (long) NUMBER_BYTES * i, number.length);
+        block.set(ValueLayout.JAVA_BYTE, TYPE + i, savings ? SAVINGS : CHECKING);
+
+        addToIndex(idHash, row);
+        size = row + 1;
+        return row;
+    }
+
+    /**
+     * Appends a name to the names area (caller holds the registry lock).
+     *
+     * @return the offset of the name (high bits) and its length (low 16
+     * bits)
+     */
+    private long storeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        long blockStart = namesEnd / NAME_BLOCK_BYTES * NAME_BLOCK_BYTES;
+        if (namesEnd + bytes.length > blockStart + NAME_BLOCK_BYTES) {
+            // Names never cross a block boundary
+            namesEnd = blockStart + NAME_BLOCK_BYTES;
+        }
+        int blockIndex = (int) (namesEnd / NAME_BLOCK_BYTES);
+        if (blockIndex == nameBlocks.length) {
+            MemorySegment[] grown = Arrays.copyOf(nameBlocks, nameBlocks.length + 1);
+            grown[blockIndex] = arena.allocate(NAME_BLOCK_BYTES, 8);
+            nameBlocks = grown;
+        }
+        MemorySegment.copy(bytes, 0, nameBlocks[blockIndex], ValueLayout.JAVA_BYTE,
+                namesEnd % NAME_BLOCK_BYTES, bytes.length);
+        long reference = namesEnd << 16 | bytes.length;
+        namesEnd += bytes.length;
+        return reference;
+    }
+
+    // ===================== Index =====================
+    /**
+     * Adds a row to the index, growing it past half full (caller holds the
+     * registry lock).
+     */
+    private void addToIndex(long idHash, int row) {
+        int[] slots = index;
+        if ((size + 1) * 2L > slots.length) {
+            int[] grown = new int[slots.length * 2];
+            for (int r = 0; r < size; r++) {
+                insert(grown, idHashAt(r), r);
+            }
+            insert(grown, idHash, row);
+            index = grown;
+        } else {
+            insert(slots, idHash, row);
+        }
+    }
+
+    private static void insert(int[] slots, long idHash, int row) {
+        int mask = slots.length - 1;
+        int slot = (int) idHash & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+    }
+
+    /**
+     * Finds an account by number, ignoring case and surrounding spaces
+     * (like AccountRegistry.find), whether its row is dormant or promoted.
+     *
+     * @param accountNumber the number to look for
+     * @return its row, or -1 if it is not in the table
+     */
+    int find(String accountNumber) {
+        int limit = size;
+        int[] slots = index;
+        long idHash = idHash(accountNumber);
+        String normalized = normalize(accountNumber);
+        int mask = slots.length - 1;
+        for (int slot = (int) idHash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (row < limit && idHashAt(row) == idHash
+                    && normalize(getNumber(row)).equals(normalized)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private static String normalize(String accountNumber) {
+        return accountNumber.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 64-bit hash of the normalized number (FNV-1a, then mixed)
+     */
+    private static long idHash(String accountNumber) {
+        String normalized = normalize(accountNumber);
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            h = (h ^ normalized.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Final mixer of MurmurHash3: spreads every input bit over the result
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // ===================== Promotion =====================
+    /**
+     * Checks the PIN of a dormant account without promoting it, so a wrong
+     * PIN does not bring the account onto the heap.
+     *
+     * @param accountNumber the account number
+     * @param pin the PIN entered by the user
+     * @return true if the table holds the account and the PIN matches
+     */
+    boolean checkPin(String accountNumber, int pin) {
+        int row = find(accountNumber);
+        return row >= 0 && getPin(row) == pin;
+    }
+
+    /**
+     * Builds the account a dormant row describes and marks the row promoted
+     * (caller holds the registry lock, which publishes the account).
+     *
+     * @param row a dormant row
+     * @return the new heap account
+     */
+    Account promote(int row) {
+        Account account = isSavings(row)
+                ? new SavingsAccount(getNumber(row), getOwner(row), getPin(row),
+                        getInitialBalance(row), getRateOrFee(row))
+                : new CheckingAccount(getNumber(row), getOwner(row), getPin(row),
+                        getInitialBalance(row), getRateOrFee(row));
+        int promotion = promotionsCount + 1;
+        block(row).set(ValueLayout.JAVA_INT, PROMOTION + 4L * slot(row), promotion);
+        promotionsCount = promotion;
+        return account;
+    }
+
+    /**
+     * @param row a row of the table
+     * @return true if its account was promoted to the heap
+     */
+    boolean isPromoted(int row) {
+        return block(row).get(ValueLayout.JAVA_INT, PROMOTION + 4L * slot(row)) != 0;
+    }
+
+    /**
+     * Tells whether a row was still dormant when getPromotionsCount
+     * returned promotionsCount: rows promoted later count as dormant. A
+     * snapshot reads the count together with its cut, so each account is
+     * either a row or a heap account in it, never both nor neither.
+     *
+     * @param row a row of the table
+     * @param promotionsCount a value of getPromotionsCount
+     * @return true if the row was dormant then
+     */
+    public boolean wasDormant(int row, int promotionsCount) {
+        int promotion = block(row).get(ValueLayout.JAVA_INT, PROMOTION + 4L * slot(row));
+        return promotion == 0 || promotion > promotionsCount;
+    }
+
+    /**
+     * @return number of rows promoted so far
+     */
+    public int getPromotionsCount() {
+        return promotionsCount;
+    }
+
+    // ===================== Reading rows =====================
+    private MemorySegment block(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("No row " + row);
+        }
+        return blocks[row >>> BLOCK_SHIFT];
+    }
+
+    private static int slot(int row) {
+        return row & (BLOCK_ROWS - 1);
+    }
+
+    private long idHashAt(int row) {
+        return blocks[row >>> BLOCK_SHIFT].get(ValueLayout.JAVA_LONG, ID_HASH + 8L * slot(row));
+    }
+
+    /**
+     * @param row a row of the table
+     * @return the account number
+     */
+    public String getNumber(int row) {
+        MemorySegment block = block(row);
+        byte[] bytes = new byte[NUMBER_BYTES];
+        MemorySegment.copy(block, ValueLayout.JAVA_BYTE, NUMBER + (long) NUMBER_BYTES * slot(row),
+                bytes, 0, NUMBER_BYTES);
+        int length = 0;
+        while (length < NUMBER_BYTES && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param row a row of the table
+     * @return the owner name
+     */
+    public String getOwner(int row) {
+        long reference = block(row).get(ValueLayout.JAVA_LONG, OWNER + 8L * slot(row));
+        long offset = reference >>> 16;
+        int length = (int) (reference & 0xFFFF);
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(nameBlocks[(int) (offset / NAME_BLOCK_BYTES)], ValueLayout.JAVA_BYTE,
+                offset % NAME_BLOCK_BYTES, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param row a row of the table
+     * @return the PIN
+     */
+    public int getPin(int row) {
+        return block(row).get(ValueLayout.JAVA_INT, PIN + 4L * slot(row));
+    }
+
+    /**
+     * @param row a row of the table
+     * @return true for a savings account, false for a checking account
+     */
+    public boolean isSavings(int row) {
+        return block(row).get(ValueLayout.JAVA_BYTE, TYPE + slot(row)) == SAVINGS;
+    }
+
+    /**
+     * @param row a row of the table
+     * @return the initial balance, which is also the balance
+     */
+    public double getInitialBalance(int row) {
+        return block(row).get(ValueLayout.JAVA_DOUBLE, INITIAL + 8L * slot(row));
+    }
+
+    /**
+     * @param row a row of the table
+     * @return the interest rate (savings) or transaction fee (checking)
+     */
+    public double getRateOrFee(int row) {
+        return block(row).get(ValueLayout.JAVA_DOUBLE, RATE + 8L * slot(row));
+    }
+
+    // ===================== Snapshots =====================
+    /**
+     * @return the rows up to this one are in the last snapshot
+     */
+    public int getSavedRows() {
+        return savedRows;
+    }
+
+    /**
+     * Records that the rows up to savedRows are in a snapshot, so the next
+     * incremental snapshot only saves the rows added after them.
+     *
+     * @param savedRows number of rows saved
+     */
+    public void markRowsSaved(int savedRows) {
+        this.savedRows = savedRows;
+    }
+
+    // ===================== Size =====================
+    /**
+     * @return number of rows, dormant or promoted
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of accounts still dormant
+     */
+    public int getDormantCount() {
+        return size - promotionsCount;
+    }
+
+    /**
+     * @return bytes allocated outside of the heap (rows and names)
+     */
+    public long offHeapBytes() {
+        return blocks.length * BLOCK_BYTES + (long) nameBlocks.length * NAME_BLOCK_BYTES;
+    }
+
+    /**
+     * Estimates the heap taken by the table: the table, its index and its
+     * block lists (see lib.Footprint).
+     *
+     * @return estimated bytes
+     */
+    public long footprint() {
+        return Footprint.shallowSize(OffHeapAccountTable.class)
+                + Footprint.array(index.length, 4)
+                + Footprint.referenceArray(blocks.length)
+                + Footprint.referenceArray(nameBlocks.length);
+    }
+
+    /**
+     * Releases the off-heap memory. The table can not be used anymore
+     * (promoted accounts stay valid).
+     */
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,141 @@
+package simpleatmsystem.models;
+
+import java.util.Locale;
+
+/**
+ * RetentionPolicy --------------- How long the transactions of an account
+ * are kept in its history and transactions tree: either up to a maximum age,
+ * or up to a maximum number of transactions.
+ *
+ * Applied by services.RetentionEngine.applyRetention, usually from the
+ * background slices of services.RetentionEngine. Transactions of unknown
+ * time (0, read back from files written before times were recorded) count
+ * as the oldest ones.
+ */
+public final class RetentionPolicy {
+
+    /**
+     * Maximum age of a transaction in milliseconds, or -1 if the policy
+     * counts transactions
+     */
+    private final long maxAgeMillis;
+
+    /**
+     * Maximum number of transactions kept, or -1 if the policy is by age
+     */
+    private final int maxCount;
+
+    private RetentionPolicy(long maxAgeMillis, int maxCount) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Creates a policy keeping the transactions recorded in the last
+     * maxAgeMillis milliseconds.
+     *
+     * @param maxAgeMillis the maximum age of a transaction
+     * @return the policy
+     * @throws IllegalArgumentException if the age is not positive
+     */
+    public static RetentionPolicy byAge(long maxAgeMillis) {
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Retention age must be positive!");
+        }
+        return new RetentionPolicy(maxAgeMillis, -1);
+    }
+
+    /**
+     * Creates a policy keeping the last maxCount transactions of each
+     * account (in the tree; the history keeps at most as many).
+     *
+     * @param maxCount the maximum number of transactions
+     * @return the policy
+     * @throws IllegalArgumentException if the count is negative
+     */
+    public static RetentionPolicy byCount(int maxCount) {
+        if (maxCount < 0) {
+            throw new IllegalArgumentException("Retention count can not be negative!");
+        }
+        return new RetentionPolicy(-1, maxCount);
+    }
+
+    /**
+     * Parses a policy: an age is a number followed by its unit (s, m, h or
+     * d, as in "30d"), a count is a plain number (as in "1000").
+     *
+     * @param text the policy
+     * @return the policy
+     * @throws IllegalArgumentException if the text is not a valid policy
+     */
+    public static RetentionPolicy parse(String text) {
+        String value = text.trim().toLowerCase(Locale.ROOT);
+        long unitMillis;
+        switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 's':
+                unitMillis = 1000L;
+                break;
+            case 'm':
+                unitMillis = 60 * 1000L;
+                break;
+            case 'h':
+                unitMillis = 60 * 60 * 1000L;
+                break;
+            case 'd':
+                unitMillis = 24 * 60 * 60 * 1000L;
+                break;
+            default:
+                unitMillis = 0;
+        }
+        try {
+            if (unitMillis == 0) {
+                return byCount(Integer.parseInt(value));
+            }
+            return byAge(Math.multiplyExact(
+                    Long.parseLong(value.substring(0, value.length() - 1)), unitMillis));
+        } catch (NumberFormatException | ArithmeticException ex) {
+            throw new IllegalArgumentException("Invalid retention policy: " + text);
+        }
+    }
+
+    /**
+     * @return true if the policy limits the age of the transactions, false
+     * if it limits their number
+     */
+    public boolean isByAge() {
+        return maxAgeMillis >= 0;
+    }
+
+    /**
+     * @return the maximum age of a transaction in milliseconds, or -1 if the
+     * policy counts transactions
+     */
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * @return the maximum number of transactions kept, or -1 if the policy
+     * is by age
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * Tells whether a transaction has expired.
+     *
+     * @param time the time of the transaction (milliseconds since the epoch)
+     * @param now the current time
+     * @param count the number of transactions kept, this one included
+     * @return true if the transaction should no longer be kept
+     */
+    public boolean isExpired(long time, long now, int count) {
+        return isByAge() ? time < now - maxAgeMillis : count > maxCount;
+    }
+
+    @Override
+    public String toString() {
+        return isByAge() ? "max age " + maxAgeMillis + " ms" : "max " + maxCount + " transactions";
+    }
+}
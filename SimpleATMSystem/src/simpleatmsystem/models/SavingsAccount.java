@@ -40,34 +40,32 @@ public class SavingsAccount extends Account {
     }
 
     /**
-     * Withdraws a specified amount from the savings account.
+     * Withdraws a specified amount from the savings account, without
+     * recording it (see Account.withdraw).
      *
      * Unlike a checking account, no transaction fee is applied.
      *
      * @param amount the amount to withdraw
+     * @return the applied change
      * @throws IllegalArgumentException if the withdrawal amount is invalid
      * @throws InsufficientFundsException if the account balance is insufficient
      */
     @Override
-    public void withdraw(double amount) throws InsufficientFundsException {
+    public BalanceChange applyWithdrawal(double amount) throws InsufficientFundsException {
         // Validate withdrawal amount
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Withdraw amount must be positive!");
-        }
+        long cents = Money.toPositiveCents(amount, "Withdraw amount must be positive!");
 
-        // Check if balance is sufficient
-        if (amount > balance) {
+        // Check if balance is sufficient and deduct in one atomic step
+        long newBalance = debit(cents);
+        if (newBalance < 0) {
             throw new InsufficientFundsException(
                     "Insufficient Funds in Savings Account!"
             );
         }
 
-        // Deduct the requested amount
-        balance -= amount;
-
-        // Record the successful withdrawal
-// record into history + tree using record(amount, msg)
-        record(amount, "Savings Withdrawal: " + amount + " | New Balance: " + balance);
+        // The successful withdrawal is recorded by recordChange
+        return new BalanceChange(this, -cents, TransactionsStore.SAVINGS_WITHDRAWAL, amount, 0,
+                newBalance);
     }
 
     /**
@@ -75,18 +73,40 @@ public class SavingsAccount extends Account {
      *
      * The formula used: interestAmount = balance × interestRate
      *
-     * The calculated interest is added directly to the account balance.
+     * The calculated interest (rounded to the nearest cent) is added
+     * directly to the account balance. If the balance changes while the
+     * interest is being computed, the computation is retried on the new
+     * balance.
+     *
+     * @return the interest amount that was added
      */
-    public void applyInterest() {
-        // Calculate the interest amount
-        double interestAmount = balance * this.interestRate;
+    public double applyInterest() {
+        // record into history + tree, under the same lock as the update
+        BalanceChange change = applyAndRecord(null, () -> {
+            long current;
+            long interestCents;
+            do {
+                // Calculate the interest amount
+                current = getBalanceCents();
+                interestCents = Math.round(current * this.interestRate);
 
-        // Add interest to the balance
-        balance += interestAmount;
+                // Add interest to the balance
+            } while (!compareAndSetBalance(current, Money.addCents(current, interestCents)));
 
-        // record into history + tree using record(interestAmount, msg)
-        record(interestAmount,"Interest Applied: " + interestAmount
-                + " | New Balance: " + balance);
+            return new BalanceChange(this, interestCents, TransactionsStore.INTEREST,
+                    Money.toAmount(interestCents), 0, current + interestCents);
+        });
+
+        return change.getAmount();
+    }
+
+    /**
+     * Returns the interest rate of the account.
+     *
+     * @return the interest rate
+     */
+    public double getInterestRate() {
+        return interestRate;
     }
 
 }
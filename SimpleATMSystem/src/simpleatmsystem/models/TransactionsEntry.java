@@ -5,11 +5,23 @@ public class TransactionsEntry {
     private double amount;
     private String msg;
 
+    /**
+     * Time the transaction was recorded, in milliseconds since the epoch (0
+     * when unknown)
+     */
+    private long time;
+
     public TransactionsEntry(double amount, String msg) {
         this.amount = amount;
         this.msg = msg;
     }
 
+    public TransactionsEntry(double amount, String msg, long time) {
+        this.amount = amount;
+        this.msg = msg;
+        this.time = time;
+    }
+
     public String getMsg() {
         return msg;
     }
@@ -26,6 +38,23 @@ public class TransactionsEntry {
         this.amount = amount;
     }
 
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * @return the id of the transaction in its account (see
+     * Account.reverseTransaction), or -1 if the entry is not a recorded
+     * transaction
+     */
+    public int getId() {
+        return -1;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
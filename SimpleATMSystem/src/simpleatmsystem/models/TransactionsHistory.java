@@ -1,6 +1,8 @@
 package simpleatmsystem.models;
 
-import simpleatmsystem.lib.LinkedList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import simpleatmsystem.lib.Footprint;
 
 /**
  * The TransactionsHistory class implements a fixed-size circular buffer for
@@ -9,44 +11,141 @@ import simpleatmsystem.lib.LinkedList;
  * It keeps track of: - The most recent transactions only - The current
  * insertion index - The actual number of stored transactions
  *
+ * The buffer holds offsets of transactions in the account's
+ * TransactionsStore; descriptions are rebuilt from the store when they are
+ * read.
+ *
  * This design ensures efficient memory usage and constant-time insertions.
  */
-public class TransactionsHistory {
+public class TransactionsHistory implements Iterable<String> {
 
+    private final TransactionsStore store;
+    private final int[] offsets;
 
-    private LinkedList<String> transactions;
-    private int capacity;
+    /**
+     * Index of the most recent transaction in offsets
+     */
+    private int newest = -1;
+    private int size;
 
     /**
      * Constructs a TransactionsHistory object with a fixed capacity.
      *
+     * @param store the store holding the transactions
      * @param capacity the maximum number of transactions to store
      * @throws IllegalArgumentException if capacity is zero or negative
      */
-    public TransactionsHistory(int capacity) {
+    public TransactionsHistory(TransactionsStore store, int capacity) {
         if (capacity <= 0) {
             throw new IllegalArgumentException("Capacity must be positive!");
         }
-        this.capacity = capacity;
-        this.transactions = new LinkedList();
-
+        this.store = store;
+        this.offsets = new int[capacity];
     }
 
     /**
-     * Adds a new transaction description to the history.
+     * Adds a new transaction to the history.
      *
      * If the history is full, the oldest transaction is overwritten using
      * circular indexing.
      *
-     * @param description the transaction description to store
+     * @param offset the offset of the transaction in the store
      */
-    public void add(String description) {
-        this.transactions.addFirst(description);
-        if (this.transactions.size() > capacity) {
-            this.transactions.removeLast();
+    public void add(int offset) {
+        this.newest = (this.newest + 1) % this.offsets.length;
+        this.offsets[this.newest] = offset;
+        if (this.size < this.offsets.length) {
+            this.size++;
         }
     }
 
+    /**
+     * @return the offset of the least recent transaction, or -1 if the
+     * history is empty
+     */
+    public int oldest() {
+        return this.size == 0 ? -1
+                : this.offsets[Math.floorMod(this.newest - this.size + 1, this.offsets.length)];
+    }
+
+    /**
+     * Removes the least recent transaction (see
+     * services.RetentionEngine.applyRetention).
+     *
+     * @throws IllegalStateException if the history is empty
+     */
+    public void removeOldest() {
+        if (this.size == 0) {
+            throw new IllegalStateException("The history is empty!");
+        }
+        this.size--;
+    }
+
+    /**
+     * @return the smallest offset of the stored transactions, or
+     * Integer.MAX_VALUE if the history is empty
+     */
+    public int minOffset() {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < this.size; i++) {
+            min = Math.min(min, this.offsets[Math.floorMod(this.newest - i, this.offsets.length)]);
+        }
+        return min;
+    }
+
+    /**
+     * @return number of stored transactions
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return maximum number of stored transactions
+     */
+    public int getCapacity() {
+        return this.offsets.length;
+    }
+
+    /**
+     * Estimates the bytes taken by this history and its buffer (the
+     * transactions belong to the store).
+     *
+     * @return estimated bytes (see Footprint)
+     */
+    public long footprint() {
+        return Footprint.shallowSize(TransactionsHistory.class)
+                + Footprint.array(this.offsets.length, 4);
+    }
+
+    /**
+     * Iterates over the stored transactions from most recent to least
+     * recent.
+     *
+     * @return iterator over the transaction descriptions
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int returned;
+
+            @Override
+            public boolean hasNext() {
+                return this.returned < size;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int index = Math.floorMod(newest - this.returned, offsets.length);
+                this.returned++;
+                return store.getDescription(offsets[index]);
+            }
+        };
+    }
+
     /**
      * Prints the last N transactions from most recent to least recent.
      *
@@ -54,20 +153,20 @@ public class TransactionsHistory {
      */
     public void printLast(int n) {
         // Case 1: No transactions exist yet
-        if (this.transactions.isEmpty()) {
+        if (this.size == 0) {
             System.out.println("No transactions yet!");
             return;
         }
 
         // Adjust N if it exceeds the number of stored transactions
-        if (n > this.transactions.size()) {
-            n = this.transactions.size();
+        if (n > this.size) {
+            n = this.size;
         }
 
         System.out.println("Last " + n + " transactions:");
 
         int printedTransactionsCount = 0;
-        for (String transacrion : this.transactions) {
+        for (String transacrion : this) {
             System.out.println("- " + transacrion);
             printedTransactionsCount++;
             if (printedTransactionsCount == n) {
@@ -0,0 +1,601 @@
+package simpleatmsystem.models;
+
+import java.util.Arrays;
+import simpleatmsystem.lib.BinaryTree;
+import simpleatmsystem.lib.Footprint;
+import simpleatmsystem.lib.LinkedList;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.metrics.HistoryAddEvent;
+import simpleatmsystem.metrics.TreeOperationEvent;
+
+/**
+ * The TransactionsLedger class holds the recorded transactions of one
+ * account: the store holding them, the history of the latest ones, the tree
+ * ordering them by amount and the index ordering them by time. Each of them
+ * is created on first use, so dormant accounts do not pay for them.
+ *
+ * The ledger also counts the transactions recorded, so that snapshots can
+ * tell whether the account changed, and keeps the ones recorded since the
+ * last snapshot, so that an incremental snapshot can save only those.
+ *
+ * A ledger is guarded by its account: every method must be called while
+ * holding the account's lock (see Account.getLedger). The account records
+ * its operations in it; persistence.AccountRestorer rebuilds it,
+ * services.RetentionEngine trims it and services.BookFootprint measures it.
+ */
+public final class TransactionsLedger {
+
+    /**
+     * Maximum number of descriptions kept in the transaction history
+     */
+    private static final int HISTORY_CAPACITY = 20;
+
+    /**
+     * Balance the account was opened with (used to seed the history lazily)
+     */
+    private final double initialBalance;
+
+    /**
+     * Stores the history of all transactions performed on the account.
+     */
+    private TransactionsHistory history;
+
+    /**
+     * Transactions ordered by amount, as offsets in the store. The offset is
+     * the id of the transaction: it also orders transactions of equal
+     * amounts, so each one can be found and deleted in O(log n).
+     */
+    private BinaryTree<Integer> transactionsBinaryTree;
+
+    /**
+     * The transactions of the tree ordered by time
+     */
+    private TransactionsTimeIndex timeIndex;
+
+    /**
+     * Columns of the transactions referred to by the history and the tree
+     */
+    private TransactionsStore transactions;
+
+    /**
+     * Number of transactions recorded on this account. Tells snapshots
+     * whether the account changed.
+     */
+    private long version;
+
+    /**
+     * Version contained in the last snapshot, or -1 if the account was never
+     * saved
+     */
+    private long savedVersion = -1;
+
+    /**
+     * Transactions recorded after version unsavedFrom, in recording order,
+     * so that an incremental snapshot can save only the new tree entries.
+     * Null until a snapshot first reads the account, so nothing is kept
+     * when snapshots are not used, and after a reversal (an incremental
+     * snapshot can not delete entries, so the next one saves the tree).
+     */
+    private LinkedList<Integer> unsavedEntries;
+    private long unsavedFrom;
+
+    /**
+     * Creates the empty ledger of a new account.
+     *
+     * @param initialBalance the balance the account was opened with
+     */
+    TransactionsLedger(double initialBalance) {
+        this.initialBalance = initialBalance;
+    }
+
+    /**
+     * Returns the transaction history, creating it on first use.
+     *
+     * The account creation is recorded as the first transaction, exactly as
+     * if the history had been created together with the account.
+     *
+     * @return the transaction history
+     */
+    public TransactionsHistory getHistory() {
+        if (this.history == null) {
+            this.history = new TransactionsHistory(getStore(), HISTORY_CAPACITY);
+            addToHistory(getStore().append(TransactionsStore.CREATED, this.initialBalance, 0,
+                    Money.toCents(this.initialBalance), null, 0));
+        }
+        return this.history;
+    }
+
+    /**
+     * Returns the transactions tree, creating it on first use.
+     *
+     * @return the tree of transactions ordered by amount
+     */
+    public BinaryTree<Integer> getTree() {
+        if (this.transactionsBinaryTree == null) {
+            this.transactionsBinaryTree = new BinaryTree<>();
+        }
+        return this.transactionsBinaryTree;
+    }
+
+    /**
+     * Returns the time index, creating it on first use.
+     *
+     * @return the index of the transactions of the tree ordered by time
+     */
+    public TransactionsTimeIndex getTimeIndex() {
+        if (this.timeIndex == null) {
+            this.timeIndex = new TransactionsTimeIndex(getStore());
+        }
+        return this.timeIndex;
+    }
+
+    /**
+     * Returns the transactions store, creating it on first use.
+     *
+     * @return the store of the transactions
+     */
+    public TransactionsStore getStore() {
+        if (this.transactions == null) {
+            this.transactions = new TransactionsStore();
+        }
+        return this.transactions;
+    }
+
+    /**
+     * @return the history, or null if it was not created yet
+     */
+    public TransactionsHistory peekHistory() {
+        return this.history;
+    }
+
+    /**
+     * @return the tree, or null if it was not created yet
+     */
+    public BinaryTree<Integer> peekTree() {
+        return this.transactionsBinaryTree;
+    }
+
+    /**
+     * @return the time index, or null if it was not created yet
+     */
+    public TransactionsTimeIndex peekTimeIndex() {
+        return this.timeIndex;
+    }
+
+    /**
+     * @return the store, or null if it was not created yet
+     */
+    public TransactionsStore peekStore() {
+        return this.transactions;
+    }
+
+    /**
+     * @return true if nothing was recorded yet: no history and no store
+     */
+    public boolean isEmpty() {
+        return this.history == null && this.transactions == null;
+    }
+
+    /**
+     * Drops the history, the tree, the time index and the store (before a
+     * restore, see persistence.AccountRestorer).
+     */
+    public void clear() {
+        this.history = null;
+        this.transactionsBinaryTree = null;
+        this.timeIndex = null;
+        this.transactions = null;
+    }
+
+    /**
+     * Replaces the history by an empty one, without the creation of the
+     * account, or removes it.
+     *
+     * @param keep false to remove the history
+     */
+    public void resetHistory(boolean keep) {
+        this.history = keep ? new TransactionsHistory(getStore(), HISTORY_CAPACITY) : null;
+    }
+
+    /**
+     * @return the maximum number of entries kept in the history
+     */
+    public static int getHistoryCapacity() {
+        return HISTORY_CAPACITY;
+    }
+
+    // ===================== Recording =====================
+    // The history and the tree know nothing about Flight Recorder (lib does
+    // not depend on metrics): their events are emitted here.
+    /**
+     * Adds a stored transaction to the history, the tree and the time index,
+     * as a new version of the account.
+     *
+     * @param offset the offset of the transaction in the store
+     */
+    public void addEntry(int offset) {
+        addToHistory(offset);
+
+        // add to transactions tree (the same box is kept by unsavedEntries)
+        Integer entry = offset;
+        addToTree(entry);
+
+        this.version++;
+        if (this.unsavedEntries != null) {
+            this.unsavedEntries.addLast(entry);
+        }
+    }
+
+    /**
+     * Adds the stored reversal of a transaction to the history, as a new
+     * version of the account. The reversed transaction must already be
+     * deleted from the tree (see reverse); the next snapshot saves the
+     * whole tree.
+     *
+     * @param offset the offset of the reversal in the store
+     */
+    public void addReversal(int offset) {
+        addToHistory(offset);
+        this.version++;
+        this.unsavedEntries = null;
+    }
+
+    /**
+     * Adds a stored transaction to the history only.
+     *
+     * @param offset the offset of the transaction in the store
+     */
+    public void addToHistory(int offset) {
+        HistoryAddEvent event = new HistoryAddEvent();
+        event.begin();
+        TransactionsHistory h = getHistory();
+        boolean evicted = h.size() == h.getCapacity();
+        h.add(offset);
+        if (event.shouldCommit()) {
+            event.size = h.size();
+            event.evicted = evicted;
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds a stored transaction to the tree and the time index only.
+     *
+     * @param offset the offset of the transaction in the store
+     */
+    public void addToTree(Integer offset) {
+        treeAdd(offset);
+        getTimeIndex().add(offset);
+    }
+
+    /**
+     * Adds a stored transaction to the tree.
+     */
+    private void treeAdd(Integer offset) {
+        TreeOperationEvent event = new TreeOperationEvent();
+        event.begin();
+        getTree().add(offset, getStore().byAmount());
+        getStore().addTreeAmount(offset);
+        commitTreeEvent(event, "add", 0);
+    }
+
+    /**
+     * Marks a transaction of the tree as reversed and deletes it from the
+     * tree. The history keeps it, marked as reversed (see addReversal for
+     * the reversal itself).
+     *
+     * @param offset the offset of the transaction in the store
+     */
+    public void reverse(int offset) {
+        getStore().markReversed(offset);
+        treeDelete(offset);
+    }
+
+    /**
+     * Deletes a stored transaction from the tree.
+     *
+     * @param offset the offset of the transaction in the store
+     */
+    public void treeDelete(int offset) {
+        TreeOperationEvent event = new TreeOperationEvent();
+        event.begin();
+        boolean found = getTree().delete(offset, getStore().byAmount());
+        if (found) {
+            getStore().removeTreeAmount(offset);
+        }
+        commitTreeEvent(event, "delete", found ? 1 : 0);
+    }
+
+    /**
+     * Finds the transactions of the tree whose amount is between min and
+     * max.
+     *
+     * @param min the smallest amount wanted
+     * @param max the largest amount wanted
+     * @return their offsets, ordered by amount
+     */
+    public MyArrayList<Integer> treeRangeSearch(double min, double max) {
+        TreeOperationEvent event = new TreeOperationEvent();
+        event.begin();
+        MyArrayList<Integer> result = getTree().rangeSearch(
+                TransactionsStore.PROBE_LOW, TransactionsStore.PROBE_HIGH,
+                getStore().byAmountWithin(min, max));
+        commitTreeEvent(event, "rangeSearch", result.size());
+        return result;
+    }
+
+    /**
+     * Commits a tree event if it is enabled (the height is only computed
+     * then).
+     */
+    private void commitTreeEvent(TreeOperationEvent event, String operation, int results) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.treeHeight = this.transactionsBinaryTree.getHeight();
+            event.results = results;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return the height of the tree, 0 if there is none
+     */
+    public int getTreeHeight() {
+        return this.transactionsBinaryTree == null ? 0 : this.transactionsBinaryTree.getHeight();
+    }
+
+    /**
+     * Counts the transactions of the tree identical to the given one (same
+     * amount, description and time) recorded after it, in O(log n) plus the
+     * number of transactions of that amount. With its time, this tells the
+     * replay which transaction was reversed (see findRecorded).
+     *
+     * @param id the offset of the transaction
+     * @return the number of identical transactions recorded after it
+     */
+    public int countNewerDuplicates(int id) {
+        TransactionsStore s = getStore();
+        String description = s.getDescription(id);
+        int count = 0;
+        for (Integer other : treeRangeSearch(s.getAmount(id), s.getAmount(id))) {
+            if (other > id && s.getTime(other) == s.getTime(id)
+                    && s.getDescription(other).equals(description)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Finds a transaction of the tree by its amount, description and time
+     * (any time if time is -1), in O(log n) plus the number of transactions
+     * of that amount. Several may match: the most recent one is returned
+     * after skipping the given number of newer ones.
+     *
+     * @param amount the amount of the transaction
+     * @param description its description
+     * @param time its time, or -1 for any time
+     * @param skipped number of matching transactions, the most recent
+     * first, to pass over
+     * @return its offset, or -1 if the tree has none
+     */
+    public int findRecorded(double amount, String description, long time, int skipped) {
+        if (this.transactionsBinaryTree == null) {
+            return -1;
+        }
+        MyArrayList<Integer> sameAmount = treeRangeSearch(amount, amount);
+        for (int i = sameAmount.size() - 1; i >= 0; i--) {
+            int id = sameAmount.get(i);
+            if ((time < 0 || getStore().getTime(id) == time)
+                    && getStore().getDescription(id).equals(description) && skipped-- == 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    // ===================== Restore =====================
+    /**
+     * Stores a transaction read back from a snapshot or the journal (see
+     * TransactionsStore.append), without adding it anywhere.
+     *
+     * @param amount the amount stored in the tree, or NaN for a history
+     * entry
+     * @param description the original description
+     * @param time the time it was recorded (0 if unknown)
+     * @return the offset of the transaction
+     */
+    public int append(double amount, String description, long time) {
+        return getStore().append(amount, description, time);
+    }
+
+    /**
+     * Stores the credit of a transfer, without adding it anywhere.
+     *
+     * @param amount the transferred amount as entered
+     * @param balanceAfterCents the balance after the credit
+     * @param from the number of the source account
+     * @param time the time of the transfer
+     * @return the offset of the transaction
+     */
+    public int appendTransferCredit(double amount, long balanceAfterCents, String from,
+            long time) {
+        return getStore().append(TransactionsStore.TRANSFER_FROM, amount, 0, balanceAfterCents,
+                from, time);
+    }
+
+    /**
+     * Returns the amount a description shows, as the store reads it back.
+     *
+     * @param description a transaction description
+     * @return its amount, or 0 if it matches no template
+     */
+    public double parseAmount(String description) {
+        double amount = getStore().getAmount(getStore().append(Double.NaN, description, 0));
+        getStore().removeLast();
+        return amount;
+    }
+
+    /**
+     * Loads stored transactions into the tree and the time index at once,
+     * in O(n) when they are already ordered by amount (see
+     * BinaryTree.loadSorted). They are sorted first if they are not.
+     *
+     * @param offsets the offsets of the transactions, usually ordered by
+     * amount (sorted in place otherwise)
+     */
+    public void loadTree(Integer[] offsets) {
+        TransactionsStore s = getStore();
+        for (int i = 1; i < offsets.length; i++) {
+            if (s.byAmount().compare(offsets[i - 1], offsets[i]) > 0) {
+                Arrays.sort(offsets, s.byAmount());
+                break;
+            }
+        }
+        MyArrayList<Integer> sorted = new MyArrayList<>();
+        for (Integer offset : offsets) {
+            sorted.add(offset);
+            s.addTreeAmount(offset);
+        }
+        getTree().loadSorted(sorted, s.byAmount());
+        getTimeIndex().load(sorted);
+    }
+
+    /**
+     * Turns offsets of the store into entries.
+     */
+    MyArrayList<TransactionsEntry> entries(Iterable<Integer> offsets) {
+        MyArrayList<TransactionsEntry> result = new MyArrayList<>();
+        for (Integer offset : offsets) {
+            result.add(this.transactions.getEntry(offset));
+        }
+        return result;
+    }
+
+    // ===================== Snapshots =====================
+    /**
+     * Returns the transactions of the tree ordered by amount, without
+     * creating the tree.
+     *
+     * @return the entries, or null if no transaction was recorded yet
+     */
+    public MyArrayList<TransactionsEntry> peekTransactionsByAmount() {
+        return this.transactionsBinaryTree == null ? null : entries(this.transactionsBinaryTree.inOrderList());
+    }
+
+    /**
+     * Returns the version of the account and starts keeping the entries
+     * recorded after it, for the next incremental snapshot.
+     *
+     * @return number of transactions recorded so far
+     */
+    public long captureVersion() {
+        if (this.unsavedEntries == null) {
+            this.unsavedEntries = new LinkedList<>();
+            this.unsavedFrom = this.version;
+        }
+        return this.version;
+    }
+
+    /**
+     * Tells whether an incremental snapshot can save the account as the
+     * entries returned by peekUnsavedEntries. If not, the whole tree must be
+     * saved.
+     *
+     * @return true if the account was saved before and all its later
+     * entries are known
+     */
+    public boolean hasUnsavedEntries() {
+        return this.savedVersion >= 0 && this.unsavedFrom == this.savedVersion
+                && this.unsavedEntries != null;
+    }
+
+    /**
+     * Returns the entries recorded since the last snapshot, oldest first
+     * (see hasUnsavedEntries).
+     *
+     * @return the unsaved entries
+     */
+    public MyArrayList<TransactionsEntry> peekUnsavedEntries() {
+        return this.unsavedEntries == null ? null : entries(this.unsavedEntries);
+    }
+
+    /**
+     * @return the offset of the oldest entry recorded since the last
+     * snapshot, or Integer.MAX_VALUE if there is none
+     */
+    public int getFirstUnsavedOffset() {
+        return this.unsavedEntries == null || this.unsavedEntries.isEmpty()
+                ? Integer.MAX_VALUE : this.unsavedEntries.get(0);
+    }
+
+    /**
+     * Forgets the entries recorded since the last snapshot, when one of
+     * them left the tree: an incremental snapshot can not delete entries,
+     * so the next one saves the tree.
+     */
+    public void dropUnsavedEntries() {
+        this.unsavedEntries = null;
+    }
+
+    /**
+     * @return true if the account changed since it was last saved (or was
+     * never saved)
+     */
+    public boolean isDirty() {
+        return this.savedVersion != this.version;
+    }
+
+    /**
+     * Records that a durable snapshot now holds the account up to the given
+     * version (as returned by captureVersion), and forgets the entries it
+     * contains.
+     *
+     * @param savedVersion the version written to the snapshot
+     */
+    public void markSaved(long savedVersion) {
+        if (savedVersion <= this.savedVersion) {
+            return;
+        }
+        while (this.unsavedEntries != null && this.unsavedFrom < savedVersion
+                && !this.unsavedEntries.isEmpty()) {
+            this.unsavedEntries.removeFirst();
+            this.unsavedFrom++;
+        }
+        this.savedVersion = savedVersion;
+    }
+
+    /**
+     * Records that the ledger was just restored from a snapshot: its state
+     * is the saved state.
+     */
+    public void markRestored() {
+        this.version = 0;
+        this.savedVersion = 0;
+        this.unsavedEntries = new LinkedList<>();
+        this.unsavedFrom = 0;
+    }
+
+    /**
+     * @return the balance the account was opened with
+     */
+    public double getInitialBalance() {
+        return initialBalance;
+    }
+
+    /**
+     * Estimates the bytes of the ledger object and of its list of unsaved
+     * entries (whose boxed offsets belong to the tree). The history, the
+     * tree, the time index and the store are measured apart (see
+     * services.BookFootprint).
+     *
+     * @return estimated bytes (see lib.Footprint)
+     */
+    public long footprint() {
+        long bytes = Footprint.shallowSize(TransactionsLedger.class);
+        if (this.unsavedEntries != null) {
+            bytes += this.unsavedEntries.footprint();
+        }
+        return bytes;
+    }
+}
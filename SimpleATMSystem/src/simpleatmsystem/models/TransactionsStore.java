@@ -0,0 +1,689 @@
+package simpleatmsystem.models;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import simpleatmsystem.lib.Footprint;
+import simpleatmsystem.lib.MyArrayList;
+
+/**
+ * The TransactionsStore class keeps the transactions of one account in
+ * columns (struct of arrays): amount, balance after the transaction, time,
+ * kind and one parameter per transaction, in parallel primitive arrays.
+ *
+ * Descriptions are not stored: they all come from a handful of templates
+ * ("Deposited: 10.0 | New Balance: 510.0"), so each transaction keeps the
+ * template id (its kind) and the values, and its description is rebuilt
+ * when it is read. The few strings a description needs (the other account
+ * of a transfer) and the descriptions that match no template (read back
+ * from an old journal for example) go to a dictionary, each once.
+ *
+ * Transactions are identified by their offset in the store, which never
+ * changes: the history and the transactions tree of the account hold
+ * offsets instead of objects. The tree orders them by amount, then by
+ * offset, so each transaction has its own place in the tree and can be
+ * deleted exactly (see Account.reverseTransaction).
+ *
+ * The amounts of the transactions of the tree are also kept in cents, in a
+ * packed column the aggregates of lib.AmountAggregates scan directly (see
+ * addTreeAmount and Account.aggregateTransactionAmounts).
+ *
+ * Offsets follow the recording order, which is also the time order.
+ * Transactions that left the history and the tree for good are trimmed from
+ * the front of the store (see trimBefore and
+ * services.RetentionEngine.applyRetention).
+ *
+ * Not thread-safe: guarded by the account's lock, like the history and the
+ * tree.
+ */
+public class TransactionsStore {
+
+    // ===================== Templates =====================
+    /** "Account is created with balance amount" (history only) */
+    static final byte CREATED = 0;
+    /** "Deposited: amount | New Balance: balance" */
+    static final byte DEPOSIT = 1;
+    /** "Savings Withdrawal: amount | New Balance: balance" */
+    static final byte SAVINGS_WITHDRAWAL = 2;
+    /** "Checking Account Withdrawal: amount | Fee: fee | New Balance: balance" */
+    static final byte CHECKING_WITHDRAWAL = 3;
+    /** "Transfer to text: amount | New Balance: balance" */
+    static final byte TRANSFER_TO = 4;
+    /** "Transfer from text: amount | New Balance: balance" */
+    static final byte TRANSFER_FROM = 5;
+    /** "Interest Applied: amount | New Balance: balance" */
+    static final byte INTEREST = 6;
+    /** "Reversed: amount | New Balance: balance" (history only) */
+    static final byte REVERSAL = 7;
+    /** Any other description, kept whole in the dictionary */
+    static final byte TEXT = 8;
+
+    /**
+     * Flag set in the kind of a transaction that was reversed (the rest of
+     * the byte is the template)
+     */
+    private static final byte REVERSED = 0x40;
+    private static final byte TEMPLATE = 0x3F;
+
+    private static final String[] PREFIXES = {
+        "Account is created with balance ", "Deposited: ", "Savings Withdrawal: ",
+        "Checking Account Withdrawal: ", "Transfer to ", "Transfer from ", "Interest Applied: ",
+        "Reversed: "
+    };
+    private static final String FEE = " | Fee: ";
+    private static final String NEW_BALANCE = " | New Balance: ";
+    private static final String REVERSED_SUFFIX = " (reversed)";
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    // ===================== Columns =====================
+    /**
+     * Amount shown in the description (the amount withdrawn, without the
+     * fee, for a checking withdrawal; see getAmount)
+     */
+    private double[] amounts = new double[INITIAL_CAPACITY];
+    private long[] balances = new long[INITIAL_CAPACITY];
+
+    /**
+     * Time the transaction was recorded, in milliseconds since the epoch (0
+     * when unknown: read back from an old journal or snapshot). Never
+     * decreases from one offset to the next (see append).
+     */
+    private long[] times = new long[INITIAL_CAPACITY];
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+
+    /**
+     * Fee (raw bits) of a checking withdrawal, dictionary id of the text of
+     * a transfer or TEXT transaction, 0 otherwise
+     */
+    private long[] params = new long[INITIAL_CAPACITY];
+
+    /**
+     * Slot of the transaction in treeCents, or -1 if it is not in the tree
+     */
+    private int[] slots = new int[INITIAL_CAPACITY];
+
+    // ===================== Amounts of the tree =====================
+    /**
+     * Amounts (in cents, see getAmount) of the transactions of the tree,
+     * packed in treeCents[0, treeCount) in no particular order, for the
+     * aggregates of lib.AmountAggregates. treeOffsets holds the offset of
+     * the transaction of each slot, so a removal moves the last slot into
+     * the freed one.
+     */
+    private long[] treeCents = new long[INITIAL_CAPACITY];
+    private int[] treeOffsets = new int[INITIAL_CAPACITY];
+    private int treeCount;
+
+    /**
+     * Offset after the last transaction
+     */
+    private int size;
+
+    /**
+     * Offset of the transaction held in row 0 of the columns
+     */
+    private int base;
+
+    /**
+     * Offset of the first transaction kept: the ones before were trimmed
+     * (see trimBefore), their rows are dropped at the next compaction
+     */
+    private int first;
+
+    /**
+     * Time of the transaction added last
+     */
+    private long lastTime;
+
+    /**
+     * Dictionary of the strings used by descriptions (created on first use)
+     */
+    private MyArrayList<String> texts;
+    private HashMap<String, Integer> textIds;
+
+    /**
+     * Offsets standing for the bounds of a range search in the tree (see
+     * byAmountWithin)
+     */
+    static final int PROBE_LOW = -1;
+    static final int PROBE_HIGH = -2;
+
+    /**
+     * Orders offsets by the amount of their transaction, then by offset
+     */
+    private final Comparator<Integer> byAmount = (a, b) -> {
+        int cmp = Double.compare(amountOf(a), amountOf(b));
+        return cmp != 0 ? cmp : Integer.compare(a, b);
+    };
+
+    // ===================== Adding =====================
+    /**
+     * Adds a transaction.
+     *
+     * @param kind its template
+     * @param amount the amount shown in the description
+     * @param fee the fee of a checking withdrawal (0 otherwise)
+     * @param balanceAfterCents the balance after the transaction
+     * @param text the other account of a transfer, or the description of a
+     * TEXT transaction (null otherwise)
+     * @param time the time it was recorded (milliseconds since the epoch);
+     * a time older than the one of the previous transaction (a clock set
+     * back) is replaced by that one, so the store stays in time order
+     * @return the offset of the transaction
+     */
+    int append(byte kind, double amount, double fee, long balanceAfterCents, String text,
+            long time) {
+        if (size - base == kinds.length) {
+            // Drops the trimmed rows as well
+            int kept = size - first;
+            resize(kept + (kept >> 1) + 1);
+        }
+        int row = size - base;
+        amounts[row] = amount;
+        balances[row] = balanceAfterCents;
+        lastTime = Math.max(time, lastTime);
+        times[row] = lastTime;
+        kinds[row] = kind;
+        params[row] = kind == CHECKING_WITHDRAWAL ? Double.doubleToRawLongBits(fee)
+                : text != null ? textId(text) : 0;
+        slots[row] = -1;
+        return size++;
+    }
+
+    /**
+     * Copies the rows of the kept transactions to columns of the given
+     * capacity.
+     */
+    private void resize(int capacity) {
+        int from = first - base;
+        amounts = Arrays.copyOfRange(amounts, from, from + capacity);
+        balances = Arrays.copyOfRange(balances, from, from + capacity);
+        times = Arrays.copyOfRange(times, from, from + capacity);
+        kinds = Arrays.copyOfRange(kinds, from, from + capacity);
+        params = Arrays.copyOfRange(params, from, from + capacity);
+        slots = Arrays.copyOfRange(slots, from, from + capacity);
+        base = first;
+    }
+
+    /**
+     * Adds the transaction of an applied change (or the target side of a
+     * transfer).
+     *
+     * @param time the time it was recorded
+     * @return the offset of the transaction
+     */
+    int append(BalanceChange change, boolean targetSide, long time) {
+        if (targetSide) {
+            return append(TRANSFER_FROM, change.getShownAmount(), 0,
+                    change.getTargetBalanceAfterCents(), change.getAccount().getAccountNumber(), time);
+        }
+        return append(change.getKind(), change.getShownAmount(), change.getFee(),
+                change.getBalanceAfterCents(),
+                change.getTarget() == null ? null : change.getTarget().getAccountNumber(), time);
+    }
+
+    /**
+     * Adds a transaction known by its description only (read back from a
+     * snapshot or the journal). The description is matched against the
+     * templates; it is kept whole if it matches none, or if it would not be
+     * rebuilt exactly.
+     *
+     * @param amount the amount stored in the tree, or NaN for a history
+     * entry (not checked)
+     * @param description the original description
+     * @param time the time it was recorded (0 if unknown)
+     * @return the offset of the transaction
+     */
+    int append(double amount, String description, long time) {
+        for (byte kind = CREATED; kind < TEXT; kind++) {
+            if (description.startsWith(PREFIXES[kind])) {
+                int offset = parse(kind, description, time);
+                if (offset >= 0 && (Double.isNaN(amount) || getAmount(offset) == amount)
+                        && getDescription(offset).equals(description)) {
+                    return offset;
+                }
+                if (offset >= 0) {
+                    size--;
+                }
+                break;
+            }
+        }
+        return append(TEXT, Double.isNaN(amount) ? 0 : amount, 0, 0, description, time);
+    }
+
+    /**
+     * Removes the transaction added last (to undo an append whose
+     * transaction turned out to be stored already).
+     */
+    void removeLast() {
+        size--;
+    }
+
+    /**
+     * Trims the transactions before an offset: they can no longer be read,
+     * and their rows are dropped once they take half of the columns, which
+     * then shrink (O(1) amortized per trimmed transaction). The offsets of
+     * the others do not change.
+     *
+     * @param offset the first transaction to keep (the end of the store to
+     * trim them all)
+     */
+    public void trimBefore(int offset) {
+        if (offset <= first) {
+            return;
+        }
+        first = Math.min(offset, size);
+        if (first - base > kinds.length / 2) {
+            int kept = size - first;
+            resize(Math.max(INITIAL_CAPACITY, kept + (kept >> 1)));
+        }
+    }
+
+    /**
+     * @return the offset of the first transaction kept (see trimBefore)
+     */
+    public int getFirstOffset() {
+        return first;
+    }
+
+    /**
+     * @param offset an offset
+     * @return true if the store holds a transaction at this offset (not
+     * trimmed yet)
+     */
+    boolean contains(int offset) {
+        return offset >= first && offset < size;
+    }
+
+    /**
+     * Marks a transaction as reversed: its description then says so.
+     *
+     * @param offset a transaction
+     */
+    void markReversed(int offset) {
+        checkOffset(offset);
+        kinds[offset - base] |= REVERSED;
+    }
+
+    /**
+     * @param offset a transaction
+     * @return true if it was reversed
+     */
+    public boolean isReversed(int offset) {
+        checkOffset(offset);
+        return (kinds[offset - base] & REVERSED) != 0;
+    }
+
+    /**
+     * Appends the transaction a description was built from, or returns -1
+     * if it does not have the shape of its template.
+     */
+    private int parse(byte kind, String description, long time) {
+        try {
+            int start = PREFIXES[kind].length();
+            if (kind == CREATED) {
+                return append(kind, Double.parseDouble(description.substring(start)), 0, 0, null, time);
+            }
+            int balanceAt = description.lastIndexOf(NEW_BALANCE);
+            if (balanceAt < start) {
+                return -1;
+            }
+            long balance = Money.toCents(Double.parseDouble(description.substring(balanceAt + NEW_BALANCE.length())));
+            String text = null;
+            if (kind == TRANSFER_TO || kind == TRANSFER_FROM) {
+                int colon = description.lastIndexOf(": ", balanceAt);
+                if (colon < start) {
+                    return -1;
+                }
+                text = description.substring(start, colon);
+                start = colon + 2;
+            }
+            double fee = 0;
+            int amountEnd = balanceAt;
+            if (kind == CHECKING_WITHDRAWAL) {
+                amountEnd = description.lastIndexOf(FEE, balanceAt);
+                if (amountEnd < start) {
+                    return -1;
+                }
+                fee = Double.parseDouble(description.substring(amountEnd + FEE.length(), balanceAt));
+            }
+            double shown = Double.parseDouble(description.substring(start, amountEnd));
+            return append(kind, shown, fee, balance, text, time);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private int textId(String text) {
+        if (texts == null) {
+            texts = new MyArrayList<>();
+            textIds = new HashMap<>();
+        }
+        Integer id = textIds.get(text);
+        if (id == null) {
+            id = texts.size();
+            texts.add(text);
+            textIds.put(text, id);
+        }
+        return id;
+    }
+
+    /**
+     * Adds the amount of a transaction entering the tree to the amounts of
+     * the tree, in O(1) (amortized).
+     *
+     * @param offset a transaction, not in the tree
+     */
+    void addTreeAmount(int offset) {
+        long cents = Money.toCents(getAmount(offset));
+        if (treeCount == treeCents.length) {
+            int capacity = treeCount + (treeCount >> 1) + 1;
+            treeCents = Arrays.copyOf(treeCents, capacity);
+            treeOffsets = Arrays.copyOf(treeOffsets, capacity);
+        }
+        treeCents[treeCount] = cents;
+        treeOffsets[treeCount] = offset;
+        slots[offset - base] = treeCount++;
+    }
+
+    /**
+     * Removes the amount of a transaction leaving the tree from the amounts
+     * of the tree, in O(1).
+     *
+     * @param offset a transaction
+     */
+    void removeTreeAmount(int offset) {
+        checkOffset(offset);
+        int slot = slots[offset - base];
+        if (slot < 0) {
+            return;
+        }
+        int last = --treeCount;
+        treeCents[slot] = treeCents[last];
+        treeOffsets[slot] = treeOffsets[last];
+        slots[treeOffsets[slot] - base] = slot;
+        slots[offset - base] = -1;
+    }
+
+    /**
+     * @return the amounts of the tree, in cents, in the first
+     * getTreeAmountsCount cells (the array itself: only read it under the
+     * account's lock)
+     */
+    long[] getTreeAmountsCents() {
+        return treeCents;
+    }
+
+    /**
+     * @return number of transactions in the tree
+     */
+    int getTreeAmountsCount() {
+        return treeCount;
+    }
+
+    // ===================== Reading =====================
+    /**
+     * @param offset a transaction
+     * @return the amount stored in the tree for the transaction (for a
+     * checking withdrawal, the amount withdrawn plus the fee)
+     */
+    public double getAmount(int offset) {
+        checkOffset(offset);
+        return amountOf(offset);
+    }
+
+    private double amountOf(int offset) {
+        double amount = amounts[offset - base];
+        return (kinds[offset - base] & TEMPLATE) == CHECKING_WITHDRAWAL
+                ? amount + Double.longBitsToDouble(params[offset - base]) : amount;
+    }
+
+    /**
+     * @param offset a transaction
+     * @return its description, as it was when it was recorded
+     */
+    public String getDescription(int offset) {
+        checkOffset(offset);
+        return describeStored(kinds[offset - base], amounts[offset - base], getFee(offset), balances[offset - base],
+                textOf(offset));
+    }
+
+    /**
+     * @param offset a transaction
+     * @return the time it was recorded, in milliseconds since the epoch (0
+     * if unknown)
+     */
+    public long getTime(int offset) {
+        checkOffset(offset);
+        return times[offset - base];
+    }
+
+    /**
+     * @param offset a transaction
+     * @return its template
+     */
+    byte getKind(int offset) {
+        checkOffset(offset);
+        return (byte) (kinds[offset - base] & TEMPLATE);
+    }
+
+    /**
+     * @param offset a transaction
+     * @return the amount shown in its description
+     */
+    double getShownAmount(int offset) {
+        checkOffset(offset);
+        return amounts[offset - base];
+    }
+
+    /**
+     * @param offset a transaction
+     * @return the fee of a checking withdrawal, 0 for the other templates
+     */
+    double getFee(int offset) {
+        return getKind(offset) == CHECKING_WITHDRAWAL ? Double.longBitsToDouble(params[offset - base]) : 0;
+    }
+
+    /**
+     * @param offset a transaction
+     * @return the other account of a transfer, the description of a TEXT
+     * transaction, null otherwise
+     */
+    private String textOf(int offset) {
+        byte kind = getKind(offset);
+        return kind == TRANSFER_TO || kind == TRANSFER_FROM || kind == TEXT
+                ? texts.get((int) params[offset - base]) : null;
+    }
+
+    /**
+     * Returns the change of the balance a transaction made, to reverse it.
+     *
+     * @param offset a transaction
+     * @return the change, in cents
+     * @throws IllegalArgumentException if the transaction is not a deposit,
+     * a withdrawal or interest (a transfer changed two accounts)
+     */
+    long getDeltaCents(int offset) {
+        long cents = Money.toCents(getShownAmount(offset));
+        switch (getKind(offset)) {
+            case DEPOSIT:
+            case INTEREST:
+                return cents;
+            case SAVINGS_WITHDRAWAL:
+                return -cents;
+            case CHECKING_WITHDRAWAL:
+                return -(cents + Money.toCents(getFee(offset)));
+            default:
+                throw new IllegalArgumentException("Only deposits, withdrawals and interest can be reversed!");
+        }
+    }
+
+    /**
+     * @param offset a transaction
+     * @return the transaction as an entry (a new object, whose description
+     * is only built if it is read)
+     */
+    public TransactionsEntry getEntry(int offset) {
+        return new StoredEntry(offset, getAmount(offset), times[offset - base], kinds[offset - base],
+                amounts[offset - base], getFee(offset), balances[offset - base], textOf(offset));
+    }
+
+    /**
+     * Entry holding the values of a stored transaction, which builds its
+     * description on first use. It copies the values, so it can be read
+     * after the account's lock is released.
+     */
+    private static final class StoredEntry extends TransactionsEntry {
+
+        private final int id;
+        private final byte kind;
+        private final double shownAmount;
+        private final double fee;
+        private final long balanceAfterCents;
+        private final String text;
+
+        StoredEntry(int id, double amount, long time, byte kind, double shownAmount, double fee,
+                long balanceAfterCents, String text) {
+            super(amount, null, time);
+            this.id = id;
+            this.kind = kind;
+            this.shownAmount = shownAmount;
+            this.fee = fee;
+            this.balanceAfterCents = balanceAfterCents;
+            this.text = text;
+        }
+
+        @Override
+        public String getMsg() {
+            String msg = super.getMsg();
+            if (msg == null) {
+                msg = describeStored(kind, shownAmount, fee, balanceAfterCents, text);
+                setMsg(msg);
+            }
+            return msg;
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return getMsg();
+        }
+    }
+
+    /**
+     * Builds the description of a transaction from its template.
+     *
+     * @param kind the template
+     * @param amount the amount shown
+     * @param fee the fee of a checking withdrawal
+     * @param balanceAfterCents the balance after the transaction
+     * @param text the other account of a transfer, or the whole description
+     * of a TEXT transaction
+     * @return the description
+     */
+    static String describe(byte kind, double amount, double fee, long balanceAfterCents, String text) {
+        switch (kind) {
+            case CREATED:
+                return PREFIXES[CREATED] + amount;
+            case CHECKING_WITHDRAWAL:
+                return PREFIXES[kind] + amount + FEE + fee + NEW_BALANCE + Money.toAmount(balanceAfterCents);
+            case TRANSFER_TO:
+            case TRANSFER_FROM:
+                return PREFIXES[kind] + text + ": " + amount + NEW_BALANCE + Money.toAmount(balanceAfterCents);
+            case TEXT:
+                return text;
+            default:
+                return PREFIXES[kind] + amount + NEW_BALANCE + Money.toAmount(balanceAfterCents);
+        }
+    }
+
+    /**
+     * Builds the description of a stored transaction, whose kind may have
+     * the REVERSED flag.
+     */
+    private static String describeStored(byte kind, double amount, double fee,
+            long balanceAfterCents, String text) {
+        String description = describe((byte) (kind & TEMPLATE), amount, fee, balanceAfterCents, text);
+        return (kind & REVERSED) == 0 ? description : description + REVERSED_SUFFIX;
+    }
+
+    private void checkOffset(int offset) {
+        if (!contains(offset)) {
+            throw new IndexOutOfBoundsException("No transaction " + offset);
+        }
+    }
+
+    /**
+     * @return the comparator ordering offsets by amount, then by offset (the
+     * order of the transactions tree)
+     */
+    Comparator<Integer> byAmount() {
+        return byAmount;
+    }
+
+    /**
+     * Returns a comparator ordering offsets like byAmount, where PROBE_LOW
+     * stands for the amount low (before all the offsets of that amount) and
+     * PROBE_HIGH for the amount high (after all of them). Built for one range
+     * search, so searches never share bounds.
+     *
+     * @param low smallest amount searched
+     * @param high largest amount searched
+     * @return the comparator of the search
+     */
+    Comparator<Integer> byAmountWithin(double low, double high) {
+        return (a, b) -> {
+            int cmp = Double.compare(probedAmount(a, low, high), probedAmount(b, low, high));
+            return cmp != 0 ? cmp : Integer.compare(a == PROBE_HIGH ? Integer.MAX_VALUE : a,
+                    b == PROBE_HIGH ? Integer.MAX_VALUE : b);
+        };
+    }
+
+    private double probedAmount(int offset, double low, double high) {
+        return offset == PROBE_LOW ? low : offset == PROBE_HIGH ? high : amountOf(offset);
+    }
+
+    /**
+     * @return number of transactions stored (trimmed ones excluded)
+     */
+    public int size() {
+        return size - first;
+    }
+
+    /**
+     * @return number of strings in the dictionary
+     */
+    public int getDictionarySize() {
+        return texts == null ? 0 : texts.size();
+    }
+
+    /**
+     * Estimates the bytes taken by this store: its columns and its
+     * dictionary.
+     *
+     * @return estimated bytes (see lib.Footprint)
+     */
+    public long footprint() {
+        long bytes = Footprint.shallowSize(TransactionsStore.class)
+                + Footprint.array(amounts.length, 8) + Footprint.array(balances.length, 8)
+                + Footprint.array(times.length, 8)
+                + Footprint.array(params.length, 8) + Footprint.array(kinds.length, 1)
+                + Footprint.array(slots.length, 4) + Footprint.array(treeCents.length, 8)
+                + Footprint.array(treeOffsets.length, 4);
+        if (texts != null) {
+            // The map shares the strings of the list; each entry is a node
+            // (hash, key, value, next) and a boxed id
+            long node = Footprint.align(Footprint.getHeaderSize() + 4 + 3 * Footprint.getReferenceSize());
+            int table = Integer.highestOneBit(Math.max(1, texts.size() * 4 / 3) * 2 - 1);
+            bytes += texts.footprint(Footprint::string) + Footprint.shallowSize(HashMap.class)
+                    + Footprint.referenceArray(Math.max(16, table))
+                    + texts.size() * (node + Footprint.shallowSize(Integer.class));
+        }
+        return bytes;
+    }
+}
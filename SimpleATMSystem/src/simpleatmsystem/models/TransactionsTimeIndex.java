@@ -0,0 +1,176 @@
+package simpleatmsystem.models;
+
+import java.util.Arrays;
+import simpleatmsystem.lib.Footprint;
+import simpleatmsystem.lib.MyArrayList;
+
+/**
+ * The TransactionsTimeIndex class keeps the transactions of the tree of an
+ * account ordered by time, as offsets in its TransactionsStore.
+ *
+ * The store keeps its transactions in time order, so the index is the
+ * sequence of the offsets of the tree's transactions: adding one is O(1),
+ * at the end of the array, and a time window [from, to] is found by binary
+ * search, in O(log n). The oldest transactions leave the index from its
+ * front (see removeOldest), whose space is reclaimed once it takes half of
+ * the array.
+ *
+ * Reversed transactions stay in the index and are skipped by the queries
+ * (see TransactionsStore.isReversed).
+ *
+ * Not thread-safe: guarded by the account's lock, like the tree.
+ */
+public class TransactionsTimeIndex {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final TransactionsStore store;
+    private int[] offsets = new int[INITIAL_CAPACITY];
+
+    /**
+     * The offsets of the index are offsets[start, end)
+     */
+    private int start;
+    private int end;
+
+    /**
+     * Constructs an empty index over the transactions of a store.
+     *
+     * @param store the store holding the transactions
+     */
+    public TransactionsTimeIndex(TransactionsStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Adds a transaction, in O(1) (amortized).
+     *
+     * @param offset the offset of the transaction in the store, after all
+     * the offsets of the index
+     */
+    void add(int offset) {
+        if (end == offsets.length) {
+            int kept = end - start;
+            compact(kept + (kept >> 1) + 1);
+        }
+        offsets[end++] = offset;
+    }
+
+    /**
+     * Replaces the content of the index with the given transactions, in any
+     * order (used when restoring an account).
+     *
+     * @param unsorted the offsets of the transactions
+     */
+    void load(MyArrayList<Integer> unsorted) {
+        // Offset order is time order (see TransactionsStore)
+        offsets = new int[Math.max(INITIAL_CAPACITY, unsorted.size())];
+        for (int i = 0; i < unsorted.size(); i++) {
+            offsets[i] = unsorted.get(i);
+        }
+        start = 0;
+        end = unsorted.size();
+        Arrays.sort(offsets, 0, end);
+    }
+
+    /**
+     * @return the offset of the oldest transaction, or -1 if the index is
+     * empty
+     */
+    public int oldest() {
+        return start == end ? -1 : offsets[start];
+    }
+
+    /**
+     * Removes the oldest transaction, in O(1) (amortized).
+     */
+    public void removeOldest() {
+        if (start == end) {
+            throw new IllegalStateException("The time index is empty!");
+        }
+        start++;
+        if (start > offsets.length / 2) {
+            int kept = end - start;
+            compact(Math.max(INITIAL_CAPACITY, kept + (kept >> 1)));
+        }
+    }
+
+    /**
+     * Moves offsets[start, end) to the front of an array of the given
+     * capacity.
+     */
+    private void compact(int capacity) {
+        offsets = Arrays.copyOfRange(offsets, start, start + capacity);
+        end -= start;
+        start = 0;
+    }
+
+    /**
+     * @return the position of the first transaction recorded at or after
+     * time
+     */
+    private int firstAtOrAfter(long time) {
+        int low = start;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (store.getTime(offsets[middle]) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the position of the first transaction recorded after time
+     */
+    private int firstAfter(long time) {
+        return time == Long.MAX_VALUE ? end : firstAtOrAfter(time + 1);
+    }
+
+    /**
+     * Returns the transactions recorded within [from, to] whose amount is
+     * within [min, max], oldest first. The window is found by binary search,
+     * then scanned for the amounts.
+     *
+     * @param from the earliest time wanted (milliseconds since the epoch)
+     * @param to the latest time wanted
+     * @param min the smallest amount wanted
+     * @param max the largest amount wanted
+     * @return the offsets of the matching transactions
+     */
+    MyArrayList<Integer> range(long from, long to, double min, double max) {
+        MyArrayList<Integer> result = new MyArrayList<>();
+        if (from > to) {
+            return result;
+        }
+        for (int i = firstAtOrAfter(from), end = firstAfter(to); i < end; i++) {
+            int offset = offsets[i];
+            double amount = store.getAmount(offset);
+            if (amount >= min && amount <= max && !store.isReversed(offset)) {
+                result.add(offset);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of transactions in the index (reversed ones included)
+     */
+    public int size() {
+        return end - start;
+    }
+
+    /**
+     * Estimates the bytes taken by this index (the transactions belong to
+     * the store).
+     *
+     * @return estimated bytes (see lib.Footprint)
+     */
+    public long footprint() {
+        return Footprint.shallowSize(TransactionsTimeIndex.class)
+                + Footprint.array(offsets.length, 4);
+    }
+}
@@ -0,0 +1,213 @@
+package simpleatmsystem.persistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.TransactionsEntry;
+import simpleatmsystem.models.TransactionsLedger;
+
+/**
+ * AccountRestorer --------------- Rebuilds the state of accounts from what
+ * was saved: the records of a snapshot (see Snapshot.restore) and the
+ * changes read back from the write-ahead log (see LogEntry.applyTo and
+ * WriteAheadLog.replay).
+ *
+ * It works on the ledger of each account (see Account.getLedger), under the
+ * account's lock. Nothing is validated nor logged: the changes were
+ * validated and logged when they were first made.
+ *
+ * Descriptions are matched against the templates of TransactionsStore, so
+ * restored transactions take as little memory as recorded ones.
+ */
+class AccountRestorer {
+
+    private AccountRestorer() {
+    }
+
+    // ===================== Snapshots =====================
+    /**
+     * Restores the state of a freshly created account from a snapshot.
+     *
+     * The history entries are stored apart from the tree entries, as a
+     * snapshot does not tell which ones are the same (see restoreHistory).
+     *
+     * @param account the account to restore
+     * @param balanceCents the balance, in cents
+     * @param history the restored history, oldest first, or null if there
+     * was none
+     * @param sortedEntries the restored tree entries, ordered by amount, or
+     * null if there was no tree
+     */
+    static void restoreState(Account account, long balanceCents, MyArrayList<String> history,
+            MyArrayList<TransactionsEntry> sortedEntries) {
+        synchronized (account) {
+            TransactionsLedger ledger = account.getLedger();
+            ledger.clear();
+            if (sortedEntries != null) {
+                // Stored in time order, the order of the offsets (see
+                // TransactionsStore), then put back in the order of the amounts
+                int count = sortedEntries.size();
+                Integer[] byTime = new Integer[count];
+                for (int i = 0; i < count; i++) {
+                    byTime[i] = i;
+                }
+                Arrays.sort(byTime, (a, b) -> Long.compare(sortedEntries.get(a).getTime(),
+                        sortedEntries.get(b).getTime()));
+                Integer[] sorted = new Integer[count];
+                for (Integer i : byTime) {
+                    TransactionsEntry entry = sortedEntries.get(i);
+                    sorted[i] = ledger.append(entry.getAmount(), entry.getMsg(), entry.getTime());
+                }
+                // Transactions of the same amount are already in offset order,
+                // unless the snapshot was written before times were ordered
+                // (loadTree sorts them then)
+                ledger.loadTree(sorted);
+            }
+            restoreHistory(account, balanceCents, history);
+        }
+    }
+
+    /**
+     * Restores the entries an incremental snapshot added to an account
+     * restored before: they are added to the tree, in recording order, and
+     * the history is replaced.
+     *
+     * @param account the account to restore
+     * @param balanceCents the balance, in cents
+     * @param history the restored history, oldest first, or null if there
+     * was none
+     * @param addedEntries the new tree entries, in recording order
+     */
+    static void restoreAddedEntries(Account account, long balanceCents,
+            MyArrayList<String> history, MyArrayList<TransactionsEntry> addedEntries) {
+        synchronized (account) {
+            TransactionsLedger ledger = account.getLedger();
+            for (TransactionsEntry entry : addedEntries) {
+                ledger.addToTree(ledger.append(entry.getAmount(), entry.getMsg(),
+                        entry.getTime()));
+            }
+            restoreHistory(account, balanceCents, history);
+        }
+    }
+
+    /**
+     * Replaces the history and the balance of an account being restored
+     * (caller holds the account's lock). The restored state is the saved
+     * state.
+     */
+    private static void restoreHistory(Account account, long balanceCents,
+            MyArrayList<String> history) {
+        TransactionsLedger ledger = account.getLedger();
+        ledger.resetHistory(history != null);
+        if (history != null) {
+            // Shares each transaction with the tree when it is there, so
+            // that a reversal also marks it in the history. The history
+            // holds the latest transactions: newest first, each description
+            // takes the latest transaction of the tree a newer one did not
+            // take, so identical transactions are not all shared with one.
+            int[] recorded = new int[history.size()];
+            Map<String, Integer> taken = new HashMap<>();
+            for (int i = history.size() - 1; i >= 0; i--) {
+                String description = history.get(i);
+                double amount = ledger.parseAmount(description);
+                int skipped = taken.getOrDefault(description, 0);
+                recorded[i] = ledger.findRecorded(amount, description, -1, skipped);
+                if (recorded[i] >= 0) {
+                    taken.put(description, skipped + 1);
+                }
+            }
+            for (int i = 0; i < history.size(); i++) {
+                ledger.addToHistory(recorded[i] >= 0
+                        ? recorded[i] : ledger.append(Double.NaN, history.get(i), 0));
+            }
+        }
+        account.restoreBalance(balanceCents);
+        ledger.markRestored();
+    }
+
+    // ===================== Log replay =====================
+    /**
+     * Re-applies a transaction read back from the journal: the balance is
+     * changed by deltaCents, and the transaction is recorded with its
+     * original message.
+     *
+     * @param account the account of the transaction
+     * @param deltaCents the change of the balance, in cents
+     * @param amount the transaction amount (stored in the tree)
+     * @param message the original transaction description
+     * @param time the time of the transaction (0 if unknown)
+     */
+    static void replayRecord(Account account, long deltaCents, double amount, String message,
+            long time) {
+        synchronized (account) {
+            TransactionsLedger ledger = account.getLedger();
+            account.replayBalanceChange(deltaCents);
+            ledger.addEntry(ledger.append(amount, message, time));
+        }
+    }
+
+    /**
+     * Re-applies the credit of a transfer whose source's side was logged
+     * but whose credit never was (the program stopped in between, see
+     * Account.transferToDeferringCredit), like Account.applyTransferCredit.
+     *
+     * @param target the account credited
+     * @param from the number of the source account
+     * @param cents the transferred amount, in cents
+     * @param amount the transferred amount as entered
+     * @param time the time of the transfer
+     * @return the message recorded, for the log entry the replay adds
+     */
+    static String replayTransferCredit(Account target, String from, long cents, double amount,
+            long time) {
+        synchronized (target) {
+            TransactionsLedger ledger = target.getLedger();
+            target.replayBalanceChange(cents);
+            int offset = ledger.appendTransferCredit(amount, target.getRecordedBalanceCents(),
+                    from, time);
+            ledger.addEntry(offset);
+            return ledger.getStore().getDescription(offset);
+        }
+    }
+
+    /**
+     * Re-applies a reversal read back from the journal (see replayRecord):
+     * the balance is changed by deltaCents, the reversed transaction is
+     * deleted from the tree and marked in the history, and the reversal is
+     * added to the history.
+     *
+     * The reversed transaction is the one with the logged amount,
+     * description and time that has newerDuplicates identical transactions
+     * after it (see TransactionsLedger.countNewerDuplicates), so the right
+     * one is deleted even among transactions that only differ by their
+     * position.
+     *
+     * @param account the account of the reversed transaction
+     * @param deltaCents the change of the balance, in cents
+     * @param reversedAmount the amount of the reversed transaction
+     * @param reversedMessage the description of the reversed transaction
+     * @param reversedTime the time of the reversed transaction, or -1 if the
+     * log did not say (the most recent transaction with the amount and
+     * description is then reversed)
+     * @param newerDuplicates number of identical transactions recorded after
+     * the reversed one
+     * @param message the description of the reversal
+     * @param time the time of the reversal (0 if unknown)
+     */
+    static void replayReversal(Account account, long deltaCents, double reversedAmount,
+            String reversedMessage, long reversedTime, int newerDuplicates, String message,
+            long time) {
+        synchronized (account) {
+            TransactionsLedger ledger = account.getLedger();
+            int id = ledger.findRecorded(reversedAmount, reversedMessage, reversedTime,
+                    newerDuplicates);
+            if (id >= 0) {
+                ledger.reverse(id);
+            }
+            account.replayBalanceChange(deltaCents);
+            ledger.addReversal(ledger.append(Double.NaN, message, time));
+        }
+    }
+}
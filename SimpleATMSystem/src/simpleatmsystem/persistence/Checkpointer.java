@@ -0,0 +1,209 @@
+package simpleatmsystem.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import simpleatmsystem.models.AccountRegistry;
+
+/**
+ * Checkpointer ------------ Takes snapshots of the accounts and removes from
+ * the write-ahead log what the snapshot already contains.
+ *
+ * Without checkpoints, every start replays the whole log, so startup time
+ * grows with the history of the bank. With them, a start restores the last
+ * snapshot (one pass, proportional to the number of accounts and the size of
+ * their histories) and replays only the log written since.
+ *
+ * Checkpoints run while the accounts keep changing: each account is copied
+ * under its own lock, and the log is only compacted once the snapshot is
+ * durable.
+ *
+ * Most checkpoints are incremental: they only write the accounts changed
+ * since the previous checkpoint, so their cost follows the activity, not the
+ * size of the bank. Every fullEvery checkpoints (or when the increments grow
+ * larger than half the full snapshot) the increments are compacted into a
+ * new full snapshot. The first checkpoint after a start is always full.
+ */
+public class Checkpointer {
+
+    private final Path snapshotFile;
+    private final AccountRegistry registry;
+    private final WriteAheadLog wal;
+
+    /**
+     * Number of checkpoints between two full snapshots
+     */
+    private final int fullEvery;
+
+    /**
+     * Cut of the current full snapshot, or -1 if none was written yet by
+     * this checkpointer
+     */
+    private long baseCutSequence = -1;
+
+    private int incrementsSinceFull;
+
+    /**
+     * Background thread taking periodic checkpoints (null if none)
+     */
+    private Thread periodicCheckpointer;
+
+    private long checkpointsCount;
+
+    /**
+     * Creates a checkpointer for the accounts of a registry, writing a full
+     * snapshot every 10 checkpoints.
+     *
+     * @param snapshotFile where the snapshot is written
+     * @param registry the accounts
+     * @param wal the log the accounts are journaled to
+     */
+    public Checkpointer(Path snapshotFile, AccountRegistry registry, WriteAheadLog wal) {
+        this(snapshotFile, registry, wal, 10);
+    }
+
+    /**
+     * Creates a checkpointer for the accounts of a registry.
+     *
+     * @param snapshotFile where the snapshot is written
+     * @param registry the accounts
+     * @param wal the log the accounts are journaled to
+     * @param fullEvery number of checkpoints between two full snapshots (1
+     * for full snapshots only)
+     * @throws IllegalArgumentException if fullEvery is not positive
+     */
+    public Checkpointer(Path snapshotFile, AccountRegistry registry, WriteAheadLog wal,
+            int fullEvery) {
+        if (fullEvery <= 0) {
+            throw new IllegalArgumentException("fullEvery must be positive!");
+        }
+        this.snapshotFile = snapshotFile;
+        this.registry = registry;
+        this.wal = wal;
+        this.fullEvery = fullEvery;
+    }
+
+    /**
+     * Writes a snapshot of the accounts (full or incremental), then removes
+     * from the log every entry the snapshot contains.
+     *
+     * @throws IOException if the snapshot can not be written (the log is
+     * then left unchanged)
+     */
+    public synchronized void checkpoint() throws IOException {
+        long cutSequence;
+        if (needsFullSnapshot()) {
+            // Reset first: if the write fails, the next checkpoint is full
+            baseCutSequence = -1;
+            cutSequence = Snapshot.write(snapshotFile, registry, wal);
+            baseCutSequence = cutSequence;
+            incrementsSinceFull = 0;
+        } else {
+            cutSequence = Snapshot.writeIncrement(snapshotFile, baseCutSequence, registry, wal);
+            incrementsSinceFull++;
+        }
+        wal.compact(cutSequence);
+        checkpointsCount++;
+    }
+
+    private boolean needsFullSnapshot() throws IOException {
+        if (baseCutSequence < 0 || incrementsSinceFull + 1 >= fullEvery) {
+            return true;
+        }
+        Path increments = Snapshot.incrementsFile(snapshotFile);
+        return Files.exists(increments)
+                && Files.size(increments) > Files.size(snapshotFile) / 2;
+    }
+
+    /**
+     * Starts a daemon thread taking a checkpoint every periodSeconds. A
+     * failed checkpoint is reported and retried at the next period.
+     *
+     * @param periodSeconds time between two checkpoints
+     * @throws IllegalArgumentException if the period is not positive
+     */
+    public synchronized void start(long periodSeconds) {
+        if (periodSeconds <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive!");
+        }
+        if (periodicCheckpointer != null) {
+            return;
+        }
+        periodicCheckpointer = new Thread(() -> checkpointPeriodically(periodSeconds * 1000),
+                "checkpointer");
+        periodicCheckpointer.setDaemon(true);
+        periodicCheckpointer.start();
+    }
+
+    private void checkpointPeriodically(long periodMillis) {
+        while (true) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Checkpoint failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic checkpoints (a running checkpoint completes).
+     */
+    public synchronized void stop() {
+        if (periodicCheckpointer != null) {
+            periodicCheckpointer.interrupt();
+            periodicCheckpointer = null;
+        }
+    }
+
+    /**
+     * @return number of checkpoints taken so far
+     */
+    public synchronized long getCheckpointsCount() {
+        return checkpointsCount;
+    }
+
+    /**
+     * Rebuilds the accounts at startup: restores the snapshot (if there is
+     * one), then replays the log entries it does not contain.
+     *
+     * Both reports are printed to the standard error stream.
+     *
+     * @param snapshotFile the snapshot file (may not exist yet)
+     * @param logFile the write-ahead log file (may not exist yet)
+     * @param registry the (empty) registry receiving the accounts
+     * @return the replay report; its last sequence number must be passed to
+     * WriteAheadLog.open
+     * @throws IOException if a file can not be read or is damaged
+     */
+    public static WriteAheadLog.ReplayReport recover(Path snapshotFile, Path logFile,
+            AccountRegistry registry) throws IOException {
+        return recover(snapshotFile, logFile, registry, WriteAheadLog.DEFAULT_REPLAY_THREADS);
+    }
+
+    /**
+     * Rebuilds the accounts at startup (see above), replaying the log on the
+     * given number of threads.
+     *
+     * @param snapshotFile the snapshot file (may not exist yet)
+     * @param logFile the write-ahead log file (may not exist yet)
+     * @param registry the (empty) registry receiving the accounts
+     * @param replayThreads threads applying the log entries
+     * @return the replay report
+     * @throws IOException if a file can not be read or is damaged
+     */
+    public static WriteAheadLog.ReplayReport recover(Path snapshotFile, Path logFile,
+            AccountRegistry registry, int replayThreads) throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return WriteAheadLog.replay(logFile, registry, 0, account -> 0, replayThreads);
+        }
+        Snapshot.RestoreReport restored = Snapshot.restore(snapshotFile, registry);
+        System.err.println(restored);
+        return WriteAheadLog.replay(logFile, registry, restored.getCutSequence(),
+                restored::getSequence, replayThreads);
+    }
+}
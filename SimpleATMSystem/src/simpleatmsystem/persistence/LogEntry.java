@@ -0,0 +1,250 @@
+package simpleatmsystem.persistence;
+
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.SavingsAccount;
+
+/**
+ * LogEntry -------- One change read back from the write-ahead log.
+ *
+ * There are three kinds of entries:
+ *
+ * - CREATE: an account was created (type, number, owner, PIN, initial
+ * balance, interest rate or transaction fee)
+ *
+ * - RECORD: a transaction was recorded on an account (balance change, amount,
+ * message and time of the transaction, balance after it)
+ *
+ * - REVERSE: a transaction of an account was reversed (amount, message and
+ * time of the reversed transaction and how many identical transactions
+ * followed it, balance change, message of the reversal, balance after it)
+ *
+ * A transfer is stored as one atomic log frame but is read back as two
+ * RECORD entries, one per account. Likewise a corrected transaction is read
+ * back as a REVERSE entry followed by the RECORD of the correction. A
+ * transfer whose target recorded its own side (see
+ * services.ShardedAccountBook) is stored as two frames: the RECORD of the
+ * source names the target (getCreditTarget), and the RECORD of the target
+ * names the frame of the source (getOutSequence).
+ */
+public class LogEntry {
+
+    /**
+     * Kind of a log entry
+     */
+    public enum Type {
+        CREATE, RECORD, REVERSE
+    }
+
+    /**
+     * Account type stored in CREATE entries
+     */
+    static final byte SAVINGS = 1;
+    static final byte CHECKING = 2;
+
+    private final Type type;
+    private final long sequence;
+    private final String accountNumber;
+
+    // CREATE fields
+    private final byte accountKind;
+    private final String ownerName;
+    private final int pin;
+    private final double initialBalance;
+    private final double rateOrFee;
+
+    // RECORD fields
+    private final long deltaCents;
+    private final long balanceAfterCents;
+    private final double amount;
+    private final String message;
+
+    // REVERSE fields (amount is the one of the reversed transaction; its
+    // time is -1 if the frame does not say, see AccountRestorer.replayReversal)
+    private final String reversedMessage;
+    private final long reversedTime;
+    private final int newerDuplicates;
+
+    // RECORD and REVERSE: time of the transaction, 0 if unknown
+    private final long time;
+
+    // RECORD of a transfer logged as two frames: the target named by the
+    // source's side, the sequence number of the source's side named by the
+    // target's side
+    private final String creditTarget;
+    private final long outSequence;
+
+    private LogEntry(Type type, long sequence, String accountNumber, byte accountKind,
+            String ownerName, int pin, double initialBalance, double rateOrFee,
+            long deltaCents, long balanceAfterCents, double amount, String message,
+            String reversedMessage, long reversedTime, int newerDuplicates, long time,
+            String creditTarget, long outSequence) {
+        this.type = type;
+        this.sequence = sequence;
+        this.accountNumber = accountNumber;
+        this.accountKind = accountKind;
+        this.ownerName = ownerName;
+        this.pin = pin;
+        this.initialBalance = initialBalance;
+        this.rateOrFee = rateOrFee;
+        this.deltaCents = deltaCents;
+        this.balanceAfterCents = balanceAfterCents;
+        this.amount = amount;
+        this.message = message;
+        this.reversedMessage = reversedMessage;
+        this.reversedTime = reversedTime;
+        this.newerDuplicates = newerDuplicates;
+        this.time = time;
+        this.creditTarget = creditTarget;
+        this.outSequence = outSequence;
+    }
+
+    static LogEntry create(long sequence, byte accountKind, String accountNumber,
+            String ownerName, int pin, double initialBalance, double rateOrFee) {
+        return new LogEntry(Type.CREATE, sequence, accountNumber, accountKind, ownerName,
+                pin, initialBalance, rateOrFee, 0, 0, 0, null, null, -1, 0, 0, null, 0);
+    }
+
+    static LogEntry record(long sequence, String accountNumber, long deltaCents,
+            long balanceAfterCents, double amount, String message, long time) {
+        return new LogEntry(Type.RECORD, sequence, accountNumber, (byte) 0, null,
+                0, 0, 0, deltaCents, balanceAfterCents, amount, message, null, -1, 0, time, null, 0);
+    }
+
+    static LogEntry transferOut(long sequence, String accountNumber, long deltaCents,
+            long balanceAfterCents, double amount, String message, long time,
+            String creditTarget) {
+        return new LogEntry(Type.RECORD, sequence, accountNumber, (byte) 0, null,
+                0, 0, 0, deltaCents, balanceAfterCents, amount, message, null, -1, 0, time,
+                creditTarget, 0);
+    }
+
+    static LogEntry transferIn(long sequence, String accountNumber, long deltaCents,
+            long balanceAfterCents, double amount, String message, long time,
+            long outSequence) {
+        return new LogEntry(Type.RECORD, sequence, accountNumber, (byte) 0, null,
+                0, 0, 0, deltaCents, balanceAfterCents, amount, message, null, -1, 0, time,
+                null, outSequence);
+    }
+
+    static LogEntry reverse(long sequence, String accountNumber, long deltaCents,
+            long balanceAfterCents, double reversedAmount, String reversedMessage, String message,
+            long time, long reversedTime, int newerDuplicates) {
+        return new LogEntry(Type.REVERSE, sequence, accountNumber, (byte) 0, null,
+                0, 0, 0, deltaCents, balanceAfterCents, reversedAmount, message, reversedMessage,
+                reversedTime, newerDuplicates, time, null, 0);
+    }
+
+    /**
+     * Builds the account described by a CREATE entry.
+     *
+     * @return a new account with the logged details
+     * @throws IllegalStateException if this is not a CREATE entry
+     */
+    public Account newAccount() {
+        if (type != Type.CREATE) {
+            throw new IllegalStateException("Not a CREATE entry!");
+        }
+        if (accountKind == SAVINGS) {
+            return new SavingsAccount(accountNumber, ownerName, pin, initialBalance, rateOrFee);
+        }
+        return new CheckingAccount(accountNumber, ownerName, pin, initialBalance, rateOrFee);
+    }
+
+    /**
+     * Re-applies a RECORD or REVERSE entry to its account.
+     *
+     * @param account the account this entry belongs to
+     * @throws IllegalStateException if this is a CREATE entry
+     */
+    public void applyTo(Account account) {
+        if (type == Type.REVERSE) {
+            AccountRestorer.replayReversal(account, deltaCents, amount, reversedMessage,
+                    reversedTime, newerDuplicates, message, time);
+            return;
+        }
+        if (type != Type.RECORD) {
+            throw new IllegalStateException("Not a RECORD entry!");
+        }
+        AccountRestorer.replayRecord(account, deltaCents, amount, message, time);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return sequence number of the log frame holding this entry (both
+     * sides of a transfer share one frame)
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    public long getDeltaCents() {
+        return deltaCents;
+    }
+
+    public long getBalanceAfterCents() {
+        return balanceAfterCents;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the time of the transaction, in milliseconds since the epoch
+     * (0 if the log entry was written without it)
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the message of the reversed transaction (REVERSE entries only)
+     */
+    public String getReversedMessage() {
+        return reversedMessage;
+    }
+
+    /**
+     * @return the time of the reversed transaction, or -1 if the entry does
+     * not say (REVERSE entries only)
+     */
+    public long getReversedTime() {
+        return reversedTime;
+    }
+
+    /**
+     * @return number of transactions identical to the reversed one (same
+     * amount, message and time) recorded after it (REVERSE entries only)
+     */
+    public int getNewerDuplicates() {
+        return newerDuplicates;
+    }
+
+    /**
+     * @return the account credited by the target's own frame, for the
+     * source's side of a transfer logged as two frames (null otherwise)
+     */
+    public String getCreditTarget() {
+        return creditTarget;
+    }
+
+    /**
+     * @return the sequence number of the source's frame, for the target's
+     * side of a transfer logged as two frames (0 otherwise)
+     */
+    public long getOutSequence() {
+        return outSequence;
+    }
+}
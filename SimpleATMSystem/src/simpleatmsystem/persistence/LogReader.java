@@ -0,0 +1,280 @@
+package simpleatmsystem.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * LogReader --------- Reads the entries of a write-ahead log file in order.
+ *
+ * Only complete frames with a valid checksum are returned. A frame that was
+ * only partly written (the process died during the write) ends the log: it
+ * and everything after it are ignored, and getValidLength tells where the
+ * valid part of the file ends.
+ */
+public class LogReader implements Closeable {
+
+    private final DataInputStream in;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Second entry of a transfer frame, returned by the next call to next()
+     */
+    private LogEntry pending;
+
+    /**
+     * Length of the file up to the end of the last valid frame
+     */
+    private long validLength;
+
+    /**
+     * Sequence number of the next frame
+     */
+    private long nextSequence;
+
+    private boolean ended;
+
+    /**
+     * Opens a log file and checks its header.
+     *
+     * @param file the log file
+     * @throws IOException if the file can not be read or is not a log file
+     */
+    public LogReader(Path file) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != WriteAheadLog.MAGIC) {
+                throw new EOFException();
+            }
+            int version = in.readInt();
+            if (version == WriteAheadLog.VERSION || version == WriteAheadLog.VERSION_3
+                    || version == WriteAheadLog.VERSION_2) {
+                this.nextSequence = in.readLong();
+                this.validLength = WriteAheadLog.HEADER_LENGTH;
+            } else if (version == WriteAheadLog.VERSION_1) {
+                this.nextSequence = 1;
+                this.validLength = WriteAheadLog.VERSION_1_HEADER_LENGTH;
+            } else {
+                throw new EOFException();
+            }
+        } catch (EOFException ex) {
+            in.close();
+            throw new IOException("Not a write-ahead log file: " + file);
+        }
+    }
+
+    /**
+     * Returns the next entry of the log.
+     *
+     * @return the next entry, or null at the end of the valid log
+     * @throws IOException if the file can not be read
+     */
+    public LogEntry next() throws IOException {
+        if (pending != null) {
+            LogEntry entry = pending;
+            pending = null;
+            return entry;
+        }
+        if (ended) {
+            return null;
+        }
+
+        byte[] payload = readFrame();
+        if (payload == null) {
+            ended = true;
+            return null;
+        }
+        long sequence = nextSequence++;
+
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = frame.readByte();
+        boolean utf8 = (type & WriteAheadLog.UTF8_STRINGS) != 0;
+        type &= ~WriteAheadLog.UTF8_STRINGS;
+        switch (type) {
+            case WriteAheadLog.CREATE: {
+                byte kind = frame.readByte();
+                String accountNumber = readString(frame, utf8);
+                String ownerName = readString(frame, utf8);
+                int pin = frame.readInt();
+                double initialBalance = frame.readDouble();
+                double rateOrFee = frame.readDouble();
+                return LogEntry.create(sequence, kind, accountNumber, ownerName, pin, initialBalance, rateOrFee);
+            }
+            case WriteAheadLog.RECORD: {
+                String accountNumber = readString(frame, utf8);
+                long deltaCents = frame.readLong();
+                long balanceAfterCents = frame.readLong();
+                double amount = frame.readDouble();
+                String message = readString(frame, utf8);
+                return LogEntry.record(sequence, accountNumber, deltaCents, balanceAfterCents, amount,
+                        message, readTime(frame));
+            }
+            case WriteAheadLog.TRANSFER: {
+                String from = readString(frame, utf8);
+                long fromBalanceAfterCents = frame.readLong();
+                String fromMessage = readString(frame, utf8);
+                String to = readString(frame, utf8);
+                long toBalanceAfterCents = frame.readLong();
+                String toMessage = readString(frame, utf8);
+                long cents = frame.readLong();
+                double amount = frame.readDouble();
+                long time = readTime(frame);
+                pending = LogEntry.record(sequence, to, cents, toBalanceAfterCents, amount, toMessage, time);
+                return LogEntry.record(sequence, from, -cents, fromBalanceAfterCents, amount, fromMessage,
+                        time);
+            }
+            case WriteAheadLog.TRANSFER_OUT: {
+                String from = readString(frame, utf8);
+                long fromBalanceAfterCents = frame.readLong();
+                String fromMessage = readString(frame, utf8);
+                String to = readString(frame, utf8);
+                long cents = frame.readLong();
+                double amount = frame.readDouble();
+                return LogEntry.transferOut(sequence, from, -cents, fromBalanceAfterCents, amount,
+                        fromMessage, readTime(frame), to);
+            }
+            case WriteAheadLog.TRANSFER_IN: {
+                String to = readString(frame, utf8);
+                long toBalanceAfterCents = frame.readLong();
+                String toMessage = readString(frame, utf8);
+                long cents = frame.readLong();
+                double amount = frame.readDouble();
+                long outSequence = frame.readLong();
+                return LogEntry.transferIn(sequence, to, cents, toBalanceAfterCents, amount,
+                        toMessage, readTime(frame), outSequence);
+            }
+            case WriteAheadLog.REVERSE: {
+                String accountNumber = readString(frame, utf8);
+                double reversedAmount = frame.readDouble();
+                String reversedMessage = readString(frame, utf8);
+                long deltaCents = frame.readLong();
+                long balanceAfterCents = frame.readLong();
+                String message = readString(frame, utf8);
+                boolean corrected = frame.readBoolean();
+                long correctionDeltaCents = corrected ? frame.readLong() : 0;
+                double correctionAmount = corrected ? frame.readDouble() : 0;
+                String correctionMessage = corrected ? readString(frame, utf8) : null;
+                long time = readTime(frame);
+                // Frames before the key: the latest match is reversed
+                long reversedTime = -1;
+                int newerDuplicates = 0;
+                if (frame.available() >= 12) {
+                    reversedTime = frame.readLong();
+                    newerDuplicates = frame.readInt();
+                }
+                if (corrected) {
+                    pending = LogEntry.record(sequence, accountNumber, correctionDeltaCents,
+                            balanceAfterCents + correctionDeltaCents, correctionAmount,
+                            correctionMessage, time);
+                }
+                return LogEntry.reverse(sequence, accountNumber, deltaCents, balanceAfterCents,
+                        reversedAmount, reversedMessage, message, time, reversedTime,
+                        newerDuplicates);
+            }
+            default:
+                throw new IOException("Unknown log entry type " + type);
+        }
+    }
+
+    /**
+     * Reads a string of a frame: [length][UTF-8 bytes], or for the frames
+     * of logs before version 4, the format of writeUTF.
+     */
+    private static String readString(DataInputStream frame, boolean utf8) throws IOException {
+        if (!utf8) {
+            return frame.readUTF();
+        }
+        int length = frame.readInt();
+        if (length < 0 || length > frame.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        frame.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the time that ends a frame, or returns 0 for a frame written
+     * before transactions had times.
+     */
+    private static long readTime(DataInputStream frame) throws IOException {
+        return frame.available() >= 8 ? frame.readLong() : 0;
+    }
+
+    /**
+     * @return length of the file up to the end of the last valid frame read
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    /**
+     * Reads one frame and checks its checksum.
+     *
+     * Only a torn last frame ends the log: one cut by the end of the file,
+     * one whose checksum fails with nothing after it, or a zero-filled tail
+     * (space allocated by the file system before the write reached it). A
+     * bad frame followed by more data is damage in the middle of the log:
+     * cutting it off there would drop committed frames, so it is reported.
+     *
+     * @return the frame payload, or null if the log ends here
+     * @throws IOException if the file can not be read, or a frame in the
+     * middle of the log is damaged
+     */
+    private byte[] readFrame() throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > WriteAheadLog.MAX_FRAME_LENGTH) {
+                if (length == 0 && checksum == 0 && zerosUntilEnd()) {
+                    return null;
+                }
+                throw damaged("invalid frame length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                if (in.read() == -1) {
+                    return null;
+                }
+                throw damaged("checksum mismatch");
+            }
+            validLength += WriteAheadLog.FRAME_HEADER_LENGTH + length;
+            return payload;
+        } catch (EOFException ex) {
+            // Torn write at the end of the log
+            return null;
+        }
+    }
+
+    /**
+     * @return true if all the bytes left in the file are zeros
+     */
+    private boolean zerosUntilEnd() throws IOException {
+        int b;
+        while ((b = in.read()) == 0) {
+            // skip
+        }
+        return b == -1;
+    }
+
+    private IOException damaged(String reason) {
+        return new IOException("Damaged write-ahead log: " + reason + " in frame "
+                + nextSequence + " at offset " + validLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,233 @@
+package simpleatmsystem.persistence;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import simpleatmsystem.models.Account;
+
+/**
+ * ReplayEngine ------------ Re-applies log records to their accounts, in
+ * parallel.
+ *
+ * Accounts evolve independently, so the records are partitioned by account
+ * number: all the records of an account go to the same worker thread, in
+ * log order, and different workers never touch the same account. The log is
+ * still read and decoded by one thread, which hands the records over in
+ * batches.
+ *
+ * Every record carries the balance its account had after it. Each worker
+ * checks it against the balance rebuilt by the replay and counts the
+ * records that do not match, which reveals a log that was damaged or
+ * replayed on top of the wrong snapshot.
+ *
+ * With one thread (or less) the records are applied directly by the
+ * reading thread, with the same checks.
+ */
+class ReplayEngine {
+
+    private static final int BATCH_SIZE = 512;
+    private static final int QUEUE_CAPACITY = 16;
+
+    /**
+     * Marks the end of the log in a worker queue
+     */
+    private static final Batch END = new Batch();
+
+    private final Worker[] workers;
+
+    /**
+     * Batch being filled for each worker
+     */
+    private final Batch[] filling;
+
+    /**
+     * Counters of the sequential mode (workers have their own)
+     */
+    private long mismatchesCount;
+    private String firstMismatch;
+
+    private boolean finished;
+
+    /**
+     * Creates an engine and starts its worker threads.
+     *
+     * @param threads number of worker threads (at most 1 applies the records
+     * on the calling thread)
+     */
+    ReplayEngine(int threads) {
+        int count = threads > 1 ? threads : 0;
+        this.workers = new Worker[count];
+        this.filling = new Batch[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = new Worker();
+            filling[i] = new Batch();
+            Thread thread = new Thread(workers[i], "replay-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Applies a RECORD entry to its account, after all the records of the
+     * same account submitted before.
+     *
+     * @param account the account of the entry
+     * @param entry the RECORD entry
+     */
+    void submit(Account account, LogEntry entry) throws InterruptedException {
+        if (workers.length == 0) {
+            if (!apply(account, entry)) {
+                mismatchesCount++;
+                if (firstMismatch == null) {
+                    firstMismatch = describe(account, entry);
+                }
+            }
+            return;
+        }
+
+        int index = partition(account.getAccountNumber());
+        Batch batch = filling[index];
+        batch.add(account, entry);
+        if (batch.size == BATCH_SIZE) {
+            workers[index].queue.put(batch);
+            filling[index] = new Batch();
+        }
+    }
+
+    /**
+     * Waits until every submitted record is applied and stops the workers.
+     *
+     * @throws RuntimeException if a worker failed to apply a record
+     */
+    void finish() throws InterruptedException {
+        finished = true;
+        for (int i = 0; i < workers.length; i++) {
+            if (filling[i].size > 0) {
+                workers[i].queue.put(filling[i]);
+            }
+            workers[i].queue.put(END);
+        }
+        RuntimeException failure = null;
+        for (Worker worker : workers) {
+            worker.done.acquireUninterruptibly();
+            mismatchesCount += worker.mismatchesCount;
+            if (firstMismatch == null) {
+                firstMismatch = worker.firstMismatch;
+            }
+            if (failure == null) {
+                failure = worker.failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the workers without waiting for them, when the replay is
+     * abandoned (does nothing after finish).
+     */
+    void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (Worker worker : workers) {
+            // The workers keep draining their queue, so this does not block
+            // for long
+            worker.queue.clear();
+            worker.queue.add(END);
+        }
+    }
+
+    /**
+     * @return number of records after which the rebuilt balance differed from
+     * the logged one (valid after finish)
+     */
+    long getMismatchesCount() {
+        return mismatchesCount;
+    }
+
+    /**
+     * @return description of the first mismatch, or null if there was none
+     */
+    String getFirstMismatch() {
+        return firstMismatch;
+    }
+
+    private int partition(String accountNumber) {
+        int h = accountNumber.trim().toLowerCase(Locale.ROOT).hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, workers.length);
+    }
+
+    /**
+     * @return true if the balance after the record is the logged one
+     */
+    private static boolean apply(Account account, LogEntry entry) {
+        entry.applyTo(account);
+        return account.getRecordedBalanceCents() == entry.getBalanceAfterCents();
+    }
+
+    private static String describe(Account account, LogEntry entry) {
+        return "account " + account.getAccountNumber() + " at log entry " + entry.getSequence()
+                + ": " + account.getRecordedBalanceCents() + " cents instead of "
+                + entry.getBalanceAfterCents();
+    }
+
+    /**
+     * Batch ----- Records handed over to one worker at once.
+     */
+    private static class Batch {
+
+        final Account[] accounts = new Account[BATCH_SIZE];
+        final LogEntry[] entries = new LogEntry[BATCH_SIZE];
+        int size;
+
+        void add(Account account, LogEntry entry) {
+            accounts[size] = account;
+            entries[size] = entry;
+            size++;
+        }
+    }
+
+    /**
+     * Worker ------ Applies the records of one partition, in order.
+     */
+    private static class Worker implements Runnable {
+
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final Semaphore done = new Semaphore(0);
+
+        long mismatchesCount;
+        String firstMismatch;
+        RuntimeException failure;
+
+        @Override
+        public void run() {
+            try {
+                Batch batch;
+                while ((batch = queue.take()) != END) {
+                    // After a failure, keep draining so the reader never blocks
+                    for (int i = 0; i < batch.size && failure == null; i++) {
+                        try {
+                            if (!apply(batch.accounts[i], batch.entries[i])) {
+                                mismatchesCount++;
+                                if (firstMismatch == null) {
+                                    firstMismatch = describe(batch.accounts[i], batch.entries[i]);
+                                }
+                            }
+                        } catch (RuntimeException ex) {
+                            failure = ex;
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                failure = new IllegalStateException("Replay interrupted", ex);
+            } finally {
+                done.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,708 @@
+package simpleatmsystem.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.Money;
+import simpleatmsystem.models.OffHeapAccountTable;
+import simpleatmsystem.models.SavingsAccount;
+import simpleatmsystem.models.TransactionsEntry;
+import simpleatmsystem.models.TransactionsHistory;
+import simpleatmsystem.models.TransactionsLedger;
+
+/**
+ * Snapshot -------- Binary image of all accounts, their histories and their
+ * transaction trees.
+ *
+ * File layout: a header (magic number, version, last log sequence number
+ * covered, number of accounts), then one record per account, then the CRC32
+ * of all records. Each record is [record length][record] and holds:
+ *
+ * - type, number, owner, PIN, initial balance, interest rate or fee
+ *
+ * - recorded balance (in cents)
+ *
+ * - the log sequence number up to which the account's transactions are
+ * included (each account is copied under its own lock, so a snapshot can be
+ * taken while the accounts keep changing)
+ *
+ * - the history, oldest first, and the tree entries in sorted order
+ *
+ * - the times of the tree entries, in the same order (records written
+ * before transactions had times end before them: their entries get time 0)
+ *
+ * Version 1 files also hold a flag after the interest rate or fee (for a
+ * balance mode that no longer exists): restore skips it.
+ *
+ * The dormant accounts a registry keeps off heap (see
+ * models.OffHeapAccountTable) are saved like the others, with an empty
+ * history and tree. Restore gives every dormant account back to
+ * AccountRegistry.addDormant, so a book restored into a registry with a
+ * table keeps its idle accounts off heap.
+ *
+ * Strings are stored as [length][UTF-8 bytes]. The file is written to a
+ * temporary file, synced and then renamed over the old snapshot, so a crash
+ * during a checkpoint leaves the previous snapshot intact.
+ *
+ * Restore maps the file in memory and rebuilds each tree in one pass from
+ * its sorted entries (BinaryTree.loadSorted) instead of adding the entries
+ * one by one, so it costs one pass over the file.
+ *
+ * Incremental snapshots are appended to a second file (the snapshot file
+ * name followed by ".inc"). Each increment holds only the accounts changed
+ * since the previous snapshot, with the tree entries they recorded since
+ * (or their whole tree, for an account that was never saved). Its header
+ * names the full snapshot it applies to, so increments left over from an
+ * older full snapshot are ignored.
+ */
+public class Snapshot {
+
+    static final int MAGIC = 0x41544D53;
+    static final int VERSION = 2;
+    static final int VERSION_1 = 1;
+    static final int HEADER_LENGTH = 24;
+
+    static final int INCREMENT_MAGIC = 0x41544D49;
+    static final int INCREMENT_HEADER_LENGTH = 20;
+
+    /**
+     * How the tree entries of an increment record are stored
+     */
+    private static final byte TREE_SORTED = 0;
+    private static final byte TREE_ADDED = 1;
+
+    /**
+     * Largest part of the file mapped at once
+     */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private Snapshot() {
+    }
+
+    /**
+     * @param file a full snapshot file
+     * @return the file holding its increments
+     */
+    public static Path incrementsFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".inc");
+    }
+
+    /**
+     * Writes a full snapshot of all accounts of the registry and removes
+     * the increments of the previous one.
+     *
+     * @param file the snapshot file (replaced atomically)
+     * @param registry the accounts to save
+     * @param wal the log the accounts are journaled to; its sequence numbers
+     * tell replay which log entries are already in the snapshot
+     * @return the cut: every log entry up to this sequence number is in the
+     * snapshot, so the log can be compacted up to it
+     * @throws IOException if the snapshot can not be written
+     */
+    public static long write(Path file, AccountRegistry registry, WriteAheadLog wal)
+            throws IOException {
+        // Creations are logged under the registry lock: the list holds
+        // exactly the accounts created up to the cut
+        long cutSequence;
+        Account[] accounts;
+        OffHeapAccountTable dormant = registry.getDormantAccounts();
+        int rows = 0;
+        int promotions = 0;
+        synchronized (registry) {
+            cutSequence = wal.getLastSequence();
+            accounts = registry.accountsSnapshot();
+            if (dormant != null) {
+                rows = dormant.size();
+                promotions = dormant.getPromotionsCount();
+            }
+        }
+        long[] versions = new long[accounts.length];
+        int dormantCount = 0;
+        for (int row = 0; row < rows; row++) {
+            if (dormant.wasDormant(row, promotions)) {
+                dormantCount++;
+            }
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(cutSequence);
+            out.writeInt(accounts.length + dormantCount);
+            out.writeInt(0);
+
+            WriteAheadLog.FrameBuffer record = new WriteAheadLog.FrameBuffer();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            for (int i = 0; i < accounts.length; i++) {
+                record.reset();
+                versions[i] = writeAccount(recordOut, accounts[i], wal, false);
+                out.writeInt(record.size());
+                out.write(record.array(), 0, record.size());
+                crc.update(record.array(), 0, record.size());
+            }
+            for (int row = 0; row < rows; row++) {
+                if (dormant.wasDormant(row, promotions)) {
+                    record.reset();
+                    writeDormant(recordOut, dormant, row, cutSequence, false);
+                    out.writeInt(record.size());
+                    out.write(record.array(), 0, record.size());
+                    crc.update(record.array(), 0, record.size());
+                }
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        // The accounts may hold changes whose frames are still buffered: a
+        // snapshot must not survive them (see WriteAheadLog.replay)
+        wal.sync();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(incrementsFile(file));
+
+        for (int i = 0; i < accounts.length; i++) {
+            synchronized (accounts[i]) {
+                accounts[i].getLedger().markSaved(versions[i]);
+            }
+        }
+        if (dormant != null) {
+            dormant.markRowsSaved(rows);
+        }
+        return cutSequence;
+    }
+
+    /**
+     * Appends an increment holding only the accounts changed since the last
+     * (full or incremental) snapshot.
+     *
+     * @param file the full snapshot file the increment applies to
+     * @param baseCutSequence the cut of that full snapshot
+     * @param registry the accounts to save
+     * @param wal the log the accounts are journaled to
+     * @return the cut of the increment (see write)
+     * @throws IOException if the increment can not be written (the file is
+     * then cut back to its previous length)
+     */
+    public static long writeIncrement(Path file, long baseCutSequence, AccountRegistry registry,
+            WriteAheadLog wal) throws IOException {
+        long cutSequence;
+        Account[] accounts;
+        OffHeapAccountTable dormant = registry.getDormantAccounts();
+        int rows = 0;
+        int promotions = 0;
+        synchronized (registry) {
+            cutSequence = wal.getLastSequence();
+            accounts = registry.accountsSnapshot();
+            if (dormant != null) {
+                rows = dormant.size();
+                promotions = dormant.getPromotionsCount();
+            }
+        }
+        Account[] written = new Account[accounts.length];
+        long[] versions = new long[accounts.length];
+        int writtenCount = 0;
+
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(incrementsFile(file),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long start = channel.size();
+            channel.position(start);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(INCREMENT_MAGIC);
+                out.writeLong(baseCutSequence);
+                out.writeLong(cutSequence);
+
+                WriteAheadLog.FrameBuffer record = new WriteAheadLog.FrameBuffer();
+                DataOutputStream recordOut = new DataOutputStream(record);
+                for (Account account : accounts) {
+                    if (!isDirty(account)) {
+                        continue;
+                    }
+                    record.reset();
+                    versions[writtenCount] = writeAccount(recordOut, account, wal, true);
+                    written[writtenCount++] = account;
+                    out.writeInt(record.size());
+                    out.write(record.array(), 0, record.size());
+                    crc.update(record.array(), 0, record.size());
+                }
+                // Rows never change: only the ones added since are new
+                for (int row = dormant == null ? 0 : dormant.getSavedRows(); row < rows; row++) {
+                    if (dormant.wasDormant(row, promotions)) {
+                        record.reset();
+                        writeDormant(recordOut, dormant, row, cutSequence, true);
+                        out.writeInt(record.size());
+                        out.write(record.array(), 0, record.size());
+                        crc.update(record.array(), 0, record.size());
+                    }
+                }
+                // Before the increment is complete (see write)
+                wal.sync();
+                out.writeInt(-1);
+                out.writeInt((int) crc.getValue());
+                out.flush();
+                channel.force(false);
+            } catch (IOException ex) {
+                channel.truncate(start);
+                throw ex;
+            }
+        }
+
+        for (int i = 0; i < writtenCount; i++) {
+            synchronized (written[i]) {
+                written[i].getLedger().markSaved(versions[i]);
+            }
+        }
+        if (dormant != null) {
+            dormant.markRowsSaved(rows);
+        }
+        return cutSequence;
+    }
+
+    /**
+     * Writes the record of a dormant account kept off heap: its creation
+     * details, its initial balance and no history nor tree. Nothing of it
+     * is logged up to the cut (a row promoted after the cut is saved as it
+     * was then), so the cut is its sequence number.
+     */
+    private static void writeDormant(DataOutputStream out, OffHeapAccountTable dormant, int row,
+            long cutSequence, boolean incremental) throws IOException {
+        out.writeByte(dormant.isSavings(row) ? LogEntry.SAVINGS : LogEntry.CHECKING);
+        writeString(out, dormant.getNumber(row));
+        writeString(out, dormant.getOwner(row));
+        out.writeInt(dormant.getPin(row));
+        out.writeDouble(dormant.getInitialBalance(row));
+        out.writeDouble(dormant.getRateOrFee(row));
+        out.writeLong(cutSequence);
+        out.writeLong(Money.toCents(dormant.getInitialBalance(row)));
+        out.writeInt(-1);
+        if (incremental) {
+            out.writeByte(TREE_SORTED);
+        }
+        out.writeInt(-1);
+    }
+
+    /**
+     * @return true if the account changed since it was last saved
+     */
+    private static boolean isDirty(Account account) {
+        synchronized (account) {
+            return account.getLedger().isDirty();
+        }
+    }
+
+    /**
+     * Writes one account record.
+     *
+     * @param incremental if true, the tree section starts with its mode and
+     * holds only the entries added since the last snapshot when possible
+     * @return the version of the account that was written
+     */
+    private static long writeAccount(DataOutputStream out, Account account, WriteAheadLog wal,
+            boolean incremental) throws IOException {
+        boolean savings = account instanceof SavingsAccount;
+        out.writeByte(savings ? LogEntry.SAVINGS : LogEntry.CHECKING);
+        writeString(out, account.getAccountNumber());
+        writeString(out, account.getOwnerName());
+        out.writeInt(account.getPin());
+        out.writeDouble(account.getInitialBalance());
+        out.writeDouble(savings ? ((SavingsAccount) account).getInterestRate()
+                : ((CheckingAccount) account).getTransactionFee());
+
+        synchronized (account) {
+            // Transactions are logged under this lock too, so every entry of
+            // this account up to this sequence number is already recorded
+            out.writeLong(wal.getLastSequence());
+            out.writeLong(account.getRecordedBalanceCents());
+            TransactionsLedger ledger = account.getLedger();
+            boolean onlyAdded = incremental && ledger.hasUnsavedEntries();
+            long version = ledger.captureVersion();
+
+            TransactionsHistory history = ledger.peekHistory();
+            if (history == null) {
+                out.writeInt(-1);
+            } else {
+                // Stored oldest first, so restore can simply add them
+                String[] messages = new String[history.size()];
+                int i = messages.length;
+                for (String message : history) {
+                    messages[--i] = message;
+                }
+                out.writeInt(messages.length);
+                for (String message : messages) {
+                    writeString(out, message);
+                }
+            }
+
+            if (incremental) {
+                out.writeByte(onlyAdded ? TREE_ADDED : TREE_SORTED);
+            }
+            if (onlyAdded) {
+                MyArrayList<TransactionsEntry> added = ledger.peekUnsavedEntries();
+                out.writeInt(added.size());
+                for (TransactionsEntry entry : added) {
+                    out.writeDouble(entry.getAmount());
+                    writeString(out, entry.getMsg());
+                }
+                writeTimes(out, added);
+                return version;
+            }
+
+            MyArrayList<TransactionsEntry> entries = ledger.peekTransactionsByAmount();
+            if (entries == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(entries.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    TransactionsEntry entry = entries.get(i);
+                    out.writeDouble(entry.getAmount());
+                    writeString(out, entry.getMsg());
+                }
+                writeTimes(out, entries);
+            }
+            return version;
+        }
+    }
+
+    private static void writeTimes(DataOutputStream out, MyArrayList<TransactionsEntry> entries)
+            throws IOException {
+        for (int i = 0; i < entries.size(); i++) {
+            out.writeLong(entries.get(i).getTime());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Rebuilds the accounts of a snapshot and of its increments into an
+     * empty registry. A partly written last increment is cut off.
+     *
+     * Must be called before the log is replayed and before a journal is set.
+     *
+     * @param file the snapshot file
+     * @param registry the (empty) registry receiving the accounts
+     * @return what was restored, including what replay must skip
+     * @throws IOException if the file can not be read or is damaged
+     */
+    public static RestoreReport restore(Path file, AccountRegistry registry) throws IOException {
+        long start = System.nanoTime();
+        Map<Account, Long> sequences = new IdentityHashMap<>();
+        CRC32 crc = new CRC32();
+
+        long cutSequence;
+        int accountsCount;
+        long size;
+        // Version 1 records hold a flag that later versions dropped (the
+        // increments are in the format of their full snapshot)
+        boolean flagged;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size < HEADER_LENGTH + 4) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, MAP_WINDOW));
+            if (window.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int version = window.getInt();
+            if (version != VERSION && version != VERSION_1) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            flagged = version == VERSION_1;
+            cutSequence = window.getLong();
+            accountsCount = window.getInt();
+            window.getInt();
+
+            long windowStart = 0;
+            for (int n = 0; n < accountsCount; n++) {
+                // Remap at a record boundary when the record is not entirely
+                // inside the current window
+                if (window.remaining() < 4) {
+                    windowStart += window.position();
+                    window = map(channel, windowStart, 4, size, file);
+                }
+                int length = window.getInt(window.position());
+                if (length < 0 || window.remaining() < 4 + length) {
+                    windowStart += window.position();
+                    window = map(channel, windowStart, 4 + (long) length, size, file);
+                }
+                window.getInt();
+
+                ByteBuffer record = window.slice();
+                record.limit(length);
+                crc.update(record);
+                record.flip();
+                window.position(window.position() + length);
+
+                restoreAccount(record, false, flagged, registry, sequences);
+            }
+
+            if (window.remaining() < 4) {
+                windowStart += window.position();
+                window = map(channel, windowStart, 4, size, file);
+            }
+            if (window.getInt() != (int) crc.getValue()) {
+                throw new IOException("Damaged snapshot file: " + file);
+            }
+        }
+
+        int incrementsCount = 0;
+        Path increments = incrementsFile(file);
+        if (Files.exists(increments)) {
+            long[] incrementCut = {cutSequence};
+            incrementsCount = restoreIncrements(increments, cutSequence, flagged, registry,
+                    sequences, incrementCut);
+            cutSequence = incrementCut[0];
+        }
+        return new RestoreReport(accountsCount, incrementsCount, size, cutSequence, sequences,
+                System.nanoTime() - start);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long needed,
+            long size, Path file) throws IOException {
+        if (needed < 0 || position + needed > size || needed > Integer.MAX_VALUE) {
+            throw new IOException("Damaged snapshot file: " + file);
+        }
+        long length = Math.min(size - position, Math.max(MAP_WINDOW, needed));
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+     * Applies, in order, the complete increments made on top of the given
+     * full snapshot, and cuts off what follows the last complete increment.
+     *
+     * @param flagged true if the records are in the version 1 format
+     * @param cutSequence receives the cut of the last applied increment
+     * @return number of increments applied
+     */
+    private static int restoreIncrements(Path file, long baseCutSequence, boolean flagged,
+            AccountRegistry registry, Map<Account, Long> sequences, long[] cutSequence)
+            throws IOException {
+        int applied = 0;
+        long validLength = 0;
+        long fileLength = Files.size(file);
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                // The records of an increment are applied only once the whole
+                // increment is known to be valid
+                MyArrayList<byte[]> records = new MyArrayList<>();
+                long length = INCREMENT_HEADER_LENGTH;
+                long base;
+                long incrementCut;
+                try {
+                    if (in.readInt() != INCREMENT_MAGIC) {
+                        break;
+                    }
+                    base = in.readLong();
+                    incrementCut = in.readLong();
+
+                    crc.reset();
+                    int recordLength;
+                    while ((recordLength = in.readInt()) >= 0) {
+                        if (recordLength > fileLength - validLength - length) {
+                            throw new EOFException();
+                        }
+                        byte[] record = new byte[recordLength];
+                        in.readFully(record);
+                        crc.update(record, 0, recordLength);
+                        records.add(record);
+                        length += 4 + recordLength;
+                    }
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    length += 8;
+                } catch (EOFException ex) {
+                    // Torn write at the end of the file
+                    break;
+                }
+
+                validLength += length;
+                if (base != baseCutSequence) {
+                    continue;
+                }
+                for (int i = 0; i < records.size(); i++) {
+                    restoreAccount(ByteBuffer.wrap(records.get(i)), true, flagged, registry,
+                            sequences);
+                }
+                cutSequence[0] = incrementCut;
+                applied++;
+            }
+        }
+
+        if (validLength < fileLength) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Restores one account record: a new account, or (for an increment
+     * record of an account already restored) a newer state of it.
+     */
+    private static void restoreAccount(ByteBuffer in, boolean incremental, boolean flagged,
+            AccountRegistry registry, Map<Account, Long> sequences) {
+        byte kind = in.get();
+        String accountNumber = readString(in);
+        String ownerName = readString(in);
+        int pin = in.getInt();
+        double initialBalance = in.getDouble();
+        double rateOrFee = in.getDouble();
+        if (flagged) {
+            in.get();
+        }
+        long sequence = in.getLong();
+        long balanceCents = in.getLong();
+
+        Account account = incremental ? registry.find(accountNumber) : null;
+        boolean created = account == null;
+        if (created) {
+            account = kind == LogEntry.SAVINGS
+                    ? new SavingsAccount(accountNumber, ownerName, pin, initialBalance, rateOrFee)
+                    : new CheckingAccount(accountNumber, ownerName, pin, initialBalance, rateOrFee);
+        }
+
+        MyArrayList<String> history = null;
+        int historySize = in.getInt();
+        if (historySize >= 0) {
+            history = new MyArrayList<>();
+            for (int i = 0; i < historySize; i++) {
+                history.add(readString(in));
+            }
+        }
+
+        byte treeMode = incremental ? in.get() : TREE_SORTED;
+        MyArrayList<TransactionsEntry> entries = null;
+        int treeSize = in.getInt();
+        if (treeSize >= 0) {
+            // Ordered by amount, or for TREE_ADDED the new entries of an
+            // account restored before, in recording order
+            entries = new MyArrayList<>();
+            for (int i = 0; i < treeSize; i++) {
+                double amount = in.getDouble();
+                entries.add(new TransactionsEntry(amount, readString(in)));
+            }
+            if (in.remaining() >= 8L * treeSize) {
+                for (int i = 0; i < treeSize; i++) {
+                    entries.get(i).setTime(in.getLong());
+                }
+            }
+        }
+
+        if (treeMode == TREE_ADDED) {
+            AccountRestorer.restoreAddedEntries(account, balanceCents, history, entries);
+        } else {
+            AccountRestorer.restoreState(account, balanceCents, history, entries);
+        }
+        // A dormant account has nothing in the log before the snapshot: it
+        // needs no sequence number, even once it is promoted
+        if (created && registry.addDormant(account)) {
+            return;
+        }
+        sequences.put(account, sequence);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * RestoreReport ----------- Result of Snapshot.restore.
+     */
+    public static class RestoreReport {
+
+        private final int accountsCount;
+        private final int incrementsCount;
+        private final long fileLength;
+        private final long cutSequence;
+        private final Map<Account, Long> sequences;
+        private final long elapsedNanos;
+
+        RestoreReport(int accountsCount, int incrementsCount, long fileLength, long cutSequence,
+                Map<Account, Long> sequences, long elapsedNanos) {
+            this.accountsCount = accountsCount;
+            this.incrementsCount = incrementsCount;
+            this.fileLength = fileLength;
+            this.cutSequence = cutSequence;
+            this.sequences = sequences;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return every log entry up to this sequence number is in the
+         * snapshot or its increments
+         */
+        public long getCutSequence() {
+            return cutSequence;
+        }
+
+        /**
+         * Returns the log sequence number up to which the transactions of an
+         * account are in the snapshot.
+         *
+         * @param account an account of the registry
+         * @return the sequence number, or 0 if the account is not in the
+         * snapshot
+         */
+        public long getSequence(Account account) {
+            Long sequence = sequences.get(account);
+            return sequence == null ? 0 : sequence;
+        }
+
+        public int getAccountsCount() {
+            return accountsCount;
+        }
+
+        /**
+         * @return number of increments applied after the full snapshot
+         */
+        public int getIncrementsCount() {
+            return incrementsCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Restored %d accounts from a %d-byte snapshot and %d increments"
+                    + " in %.1f ms", accountsCount, fileLength, incrementsCount, elapsedNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,1033 @@
+package simpleatmsystem.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountJournal;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.SavingsAccount;
+
+/**
+ * WriteAheadLog ------------- Makes account changes durable by appending
+ * them to a log file before they are acknowledged.
+ *
+ * File layout: a header (magic number, version, sequence number of the first
+ * frame) followed by frames. Each frame is [payload length][CRC32 of the
+ * payload][payload], and the payload holds one entry: an account creation, a
+ * recorded transaction, both sides of a transfer (so a transfer is
+ * all-or-nothing on replay), or the reversal of a transaction with its
+ * correction. A transfer whose target records its own side (see
+ * services.ShardedAccountBook) takes two frames: the source's side, naming
+ * the target, then the target's side, naming the source's frame. Replay
+ * credits the target of a source's frame that has no target's frame, and
+ * compact keeps such frames until their target's frame is logged. The time
+ * of the transaction ends the payload; frames written before transactions
+ * had times end without it, and read back with time 0. A reversal frame
+ * then names the reversed transaction by its time and by how many identical
+ * transactions of the same time were recorded after it, so the replay
+ * reverses that one and not merely the latest with the same description;
+ * older reversal frames end before this key.
+ * Strings are stored as [length][UTF-8 bytes], so they are only limited by
+ * the frame length; frames of logs before version 4 used writeUTF, limited
+ * to 65535 bytes, and are marked by their type byte (see UTF8_STRINGS).
+ * Frames are numbered consecutively, and the numbering continues across
+ * restarts and compactions, so a snapshot can tell exactly which frames it
+ * already contains.
+ *
+ * Group commit: log methods only copy the entry into an in-memory buffer
+ * (under a short lock) and return its sequence number. In awaitDurable the
+ * first waiting session becomes the leader: it takes the whole buffer,
+ * writes it and syncs the file once, while the other sessions wait (or keep
+ * appending to a fresh buffer). Every session whose entry was in that batch
+ * is released by the same sync, so N concurrent sessions share one fsync
+ * instead of paying for N. A failed write or sync is kept: every later
+ * log or awaitDurable call fails with it, so nothing is acknowledged once
+ * the file may have lost entries.
+ *
+ * On startup, replay rebuilds the accounts, their histories and transaction
+ * trees from the log (in parallel, see ReplayEngine), and cuts off a frame
+ * that was only partly written. A damaged frame followed by more frames
+ * stops the replay with an error instead: the log is left as it is.
+ * After a checkpoint, compact drops the frames the snapshot already covers.
+ */
+public class WriteAheadLog implements AccountJournal, Closeable {
+
+    /**
+     * When an operation is acknowledged, relative to the disk
+     */
+    public enum SyncPolicy {
+        /**
+         * Acknowledge after the entry is synced to disk (survives power loss)
+         */
+        FSYNC,
+        /**
+         * Acknowledge after the entry is written to the operating system
+         * (survives a crash of the program, not of the machine)
+         */
+        WRITE,
+        /**
+         * Acknowledge immediately; a background thread writes and syncs the
+         * log every period (may lose the last period on power loss)
+         */
+        PERIODIC
+    }
+
+    static final int MAGIC = 0x41544D4C; // "ATML"
+    static final int VERSION = 4;
+    static final int HEADER_LENGTH = 16;
+
+    /**
+     * Version 3 logs have the same layout but only frames with writeUTF
+     * strings, and version 2 logs have no REVERSE frames either (older
+     * readers can not read the newer frames); they are upgraded in place
+     * when opened for writing
+     */
+    static final int VERSION_3 = 3;
+    static final int VERSION_2 = 2;
+
+    /**
+     * Version 1 logs (no first sequence number in the header) can still be
+     * replayed; their first frame is number 1
+     */
+    static final int VERSION_1 = 1;
+    static final int VERSION_1_HEADER_LENGTH = 8;
+    static final int FRAME_HEADER_LENGTH = 8;
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * Threads applying the transactions during a replay, by default
+     */
+    public static final int DEFAULT_REPLAY_THREADS = Runtime.getRuntime().availableProcessors();
+
+    static final byte CREATE = 1;
+    static final byte RECORD = 2;
+    static final byte TRANSFER = 3;
+    static final byte REVERSE = 4;
+    static final byte TRANSFER_OUT = 5;
+    static final byte TRANSFER_IN = 6;
+
+    /**
+     * Set in the type byte of the frames whose strings are stored as
+     * [length][UTF-8 bytes] (all the frames written since version 4)
+     */
+    static final byte UTF8_STRINGS = 0x40;
+
+    private final Path file;
+    private FileChannel channel;
+    private OutputStream channelOut;
+    private final SyncPolicy policy;
+    private final Thread periodicSyncer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchWritten = lock.newCondition();
+
+    /**
+     * Entries appended but not written yet (guarded by lock)
+     */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+
+    /**
+     * Second buffer, swapped with pending by the leader (guarded by lock)
+     */
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream(1 << 16);
+
+    /**
+     * Scratch space used to encode one frame (guarded by lock)
+     */
+    private final FrameBuffer frame = new FrameBuffer();
+    private final DataOutputStream frameOut = new DataOutputStream(frame);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Sequence number of the first frame in the file
+     */
+    private long baseSequence;
+
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean writing;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Sequence numbers of the TRANSFER_OUT frames whose TRANSFER_IN frame
+     * is not logged yet (guarded by lock): compact keeps them
+     */
+    private final TreeSet<Long> openTransfers = new TreeSet<>();
+
+    /**
+     * Number of write (and sync) operations performed, for reporting how
+     * well entries are grouped
+     */
+    private long batchesCount;
+
+    private WriteAheadLog(Path file, FileChannel channel, long baseSequence, long lastSequence,
+            SyncPolicy policy, long periodMillis) {
+        this.file = file;
+        this.channel = channel;
+        this.channelOut = Channels.newOutputStream(channel);
+        this.baseSequence = baseSequence;
+        this.appendedSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        this.policy = policy;
+
+        if (policy == SyncPolicy.PERIODIC) {
+            this.periodicSyncer = new Thread(() -> syncPeriodically(periodMillis), "wal-syncer");
+            this.periodicSyncer.setDaemon(true);
+            this.periodicSyncer.start();
+        } else {
+            this.periodicSyncer = null;
+        }
+    }
+
+    /**
+     * Opens (or creates) a log file for appending.
+     *
+     * Call replay first when the file already exists: it removes a partly
+     * written last frame and returns the last sequence number, which must be
+     * passed here so that the numbering continues. An old (version 1) log is
+     * first rewritten in the current format.
+     *
+     * @param file the log file
+     * @param policy when operations are acknowledged
+     * @param periodMillis sync period for the PERIODIC policy
+     * @param lastSequence sequence number of the last frame in the file (or
+     * of the last frame covered by a snapshot, for a new file)
+     * @return the open log
+     * @throws IOException if the file can not be opened or is not a log file
+     */
+    public static WriteAheadLog open(Path file, SyncPolicy policy, long periodMillis,
+            long lastSequence) throws IOException {
+        int version = Files.exists(file) && Files.size(file) > 0 ? readVersion(file) : VERSION;
+        if (version == VERSION_1) {
+            rewrite(file, VERSION_1_HEADER_LENGTH, 1);
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long baseSequence;
+        try {
+            if (channel.size() == 0) {
+                baseSequence = lastSequence + 1;
+                writeHeader(channel, baseSequence);
+                channel.force(true);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC
+                        || (version = header.getInt()) != VERSION && version != VERSION_3
+                        && version != VERSION_2) {
+                    throw new IOException("Not a write-ahead log file: " + file);
+                }
+                baseSequence = header.getLong();
+                if (version != VERSION) {
+                    ByteBuffer current = ByteBuffer.allocate(4).putInt(VERSION).flip();
+                    while (current.hasRemaining()) {
+                        channel.write(current, 4 + current.position());
+                    }
+                    channel.force(true);
+                }
+            }
+            channel.position(channel.size());
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new WriteAheadLog(file, channel, baseSequence, lastSequence, policy, periodMillis);
+    }
+
+    private static void writeHeader(FileChannel channel, long baseSequence) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putLong(baseSequence).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static int readVersion(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(VERSION_1_HEADER_LENGTH);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < VERSION_1_HEADER_LENGTH || header.getInt() != MAGIC) {
+                throw new IOException("Not a write-ahead log file: " + file);
+            }
+            return header.getInt();
+        }
+    }
+
+    /**
+     * Atomically replaces a log file by a current-format copy of its frames
+     * starting at the given offset.
+     *
+     * @param file the log file
+     * @param offset offset of the first frame to keep
+     * @param baseSequence sequence number of that frame
+     */
+    private static void rewrite(Path file, long offset, long baseSequence) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeHeader(out, baseSequence);
+            long size = in.size();
+            long position = offset;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // =========================================================
+    // AccountJournal (append side)
+    // =========================================================
+    @Override
+    public long logCreate(Account account) {
+        byte kind;
+        double rateOrFee;
+        if (account instanceof SavingsAccount) {
+            kind = LogEntry.SAVINGS;
+            rateOrFee = ((SavingsAccount) account).getInterestRate();
+        } else if (account instanceof CheckingAccount) {
+            kind = LogEntry.CHECKING;
+            rateOrFee = ((CheckingAccount) account).getTransactionFee();
+        } else {
+            throw new IllegalArgumentException("Unknown account type: " + account.getAccountType());
+        }
+
+        lock.lock();
+        try {
+            startFrame(CREATE);
+            frameOut.writeByte(kind);
+            writeString(account.getAccountNumber());
+            writeString(account.getOwnerName());
+            frameOut.writeInt(account.getPin());
+            frameOut.writeDouble(account.getInitialBalance());
+            frameOut.writeDouble(rateOrFee);
+            return commitFrame();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long logRecord(String accountNumber, long deltaCents, long balanceAfterCents,
+            double amount, String message, long time) {
+        lock.lock();
+        try {
+            startFrame(RECORD);
+            writeString(accountNumber);
+            frameOut.writeLong(deltaCents);
+            frameOut.writeLong(balanceAfterCents);
+            frameOut.writeDouble(amount);
+            writeString(message);
+            frameOut.writeLong(time);
+            return commitFrame();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long logTransfer(String from, long fromBalanceAfterCents, String fromMessage,
+            String to, long toBalanceAfterCents, String toMessage,
+            long cents, double amount, long time) {
+        lock.lock();
+        try {
+            startFrame(TRANSFER);
+            writeString(from);
+            frameOut.writeLong(fromBalanceAfterCents);
+            writeString(fromMessage);
+            writeString(to);
+            frameOut.writeLong(toBalanceAfterCents);
+            writeString(toMessage);
+            frameOut.writeLong(cents);
+            frameOut.writeDouble(amount);
+            frameOut.writeLong(time);
+            return commitFrame();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long logTransferOut(String from, long fromBalanceAfterCents, String fromMessage,
+            String to, long cents, double amount, long time) {
+        lock.lock();
+        try {
+            startFrame(TRANSFER_OUT);
+            writeString(from);
+            frameOut.writeLong(fromBalanceAfterCents);
+            writeString(fromMessage);
+            writeString(to);
+            frameOut.writeLong(cents);
+            frameOut.writeDouble(amount);
+            frameOut.writeLong(time);
+            long sequence = commitFrame();
+            openTransfers.add(sequence);
+            return sequence;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long logTransferIn(String to, long toBalanceAfterCents, String toMessage,
+            long cents, double amount, long time, long outSequence) {
+        lock.lock();
+        try {
+            startFrame(TRANSFER_IN);
+            writeString(to);
+            frameOut.writeLong(toBalanceAfterCents);
+            writeString(toMessage);
+            frameOut.writeLong(cents);
+            frameOut.writeDouble(amount);
+            frameOut.writeLong(outSequence);
+            frameOut.writeLong(time);
+            long sequence = commitFrame();
+            openTransfers.remove(outSequence);
+            return sequence;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long logReversal(String accountNumber, double reversedAmount, String reversedMessage,
+            long deltaCents, long balanceAfterCents, String message,
+            long correctionDeltaCents, double correctionAmount, String correctionMessage,
+            long time, long reversedTime, int newerDuplicates) {
+        lock.lock();
+        try {
+            startFrame(REVERSE);
+            writeString(accountNumber);
+            frameOut.writeDouble(reversedAmount);
+            writeString(reversedMessage);
+            frameOut.writeLong(deltaCents);
+            frameOut.writeLong(balanceAfterCents);
+            writeString(message);
+            frameOut.writeBoolean(correctionMessage != null);
+            if (correctionMessage != null) {
+                frameOut.writeLong(correctionDeltaCents);
+                frameOut.writeDouble(correctionAmount);
+                writeString(correctionMessage);
+            }
+            frameOut.writeLong(time);
+            frameOut.writeLong(reversedTime);
+            frameOut.writeInt(newerDuplicates);
+            return commitFrame();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts encoding a frame (caller holds the lock). A failed write or
+     * sync is fatal: no frame is accepted after it, since the ones already
+     * pending may never reach the file.
+     */
+    private void startFrame(byte type) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The write-ahead log is closed!");
+        }
+        if (failure != null) {
+            throw new IOException("The write-ahead log failed: " + failure.getMessage(), failure);
+        }
+        frame.reset();
+        frameOut.writeByte(type | UTF8_STRINGS);
+    }
+
+    /**
+     * Encodes a string of the frame as [length][UTF-8 bytes] (caller holds
+     * the lock).
+     */
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        frameOut.writeInt(bytes.length);
+        frameOut.write(bytes);
+    }
+
+    /**
+     * Adds the encoded frame to the pending buffer (caller holds the lock).
+     *
+     * @return the sequence number of the frame
+     * @throws IOException if the frame is longer than a reader accepts (it
+     * is then dropped, and the log stays usable)
+     */
+    private long commitFrame() throws IOException {
+        int length = frame.size();
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Log entry too large: " + length + " bytes");
+        }
+        crc.reset();
+        crc.update(frame.array(), 0, length);
+
+        writeInt(pending, length);
+        writeInt(pending, (int) crc.getValue());
+        pending.write(frame.array(), 0, length);
+        return ++appendedSequence;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    // =========================================================
+    // Group commit
+    // =========================================================
+    @Override
+    public void awaitDurable(long sequence) {
+        if (policy == SyncPolicy.PERIODIC) {
+            // Acknowledged before the sync; only report earlier failures
+            IOException error = failure;
+            if (error != null) {
+                throw new UncheckedIOException(error);
+            }
+            return;
+        }
+        flush(sequence);
+    }
+
+    /**
+     * Makes sure all frames up to the given sequence number are written
+     * (and synced, unless the policy is WRITE).
+     */
+    private void flush(long sequence) {
+        lock.lock();
+        try {
+            while (durableSequence < sequence) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+                if (writing) {
+                    // Another session is writing: our frame is in its batch
+                    // or will be in the next one
+                    batchWritten.awaitUninterruptibly();
+                    continue;
+                }
+
+                // Become the leader for everything appended so far
+                writing = true;
+                ByteArrayOutputStream batch = pending;
+                pending = spare;
+                long upTo = appendedSequence;
+
+                IOException error = null;
+                lock.unlock();
+                try {
+                    batch.writeTo(channelOut);
+                    if (policy != SyncPolicy.WRITE) {
+                        channel.force(false);
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                } finally {
+                    lock.lock();
+                }
+
+                batch.reset();
+                spare = batch;
+                writing = false;
+                batchesCount++;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSequence = upTo;
+                }
+                batchWritten.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncPeriodically(long periodMillis) {
+        while (true) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            long upTo;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                upTo = appendedSequence;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flush(upTo);
+            } catch (UncheckedIOException ex) {
+                // Kept in failure and reported to the next operation
+            }
+        }
+    }
+
+    /**
+     * @return sequence number of the last frame appended (0 if none ever)
+     */
+    public long getLastSequence() {
+        lock.lock();
+        try {
+            return appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and syncs every frame appended so far, whatever the sync
+     * policy. A snapshot calls it before it is installed, so that it never
+     * holds a change the log could still lose.
+     *
+     * @throws IOException if the log can not be written
+     */
+    void sync() throws IOException {
+        lock.lock();
+        try {
+            awaitIdle();
+            writing = true;
+            try {
+                writePending();
+            } finally {
+                writing = false;
+                batchWritten.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until no batch is being written, and checks that the log can
+     * still be written (caller holds the lock).
+     */
+    private void awaitIdle() throws IOException {
+        while (writing) {
+            batchWritten.awaitUninterruptibly();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IllegalStateException("The write-ahead log is closed!");
+        }
+    }
+
+    /**
+     * Writes and syncs the pending frames (caller holds the lock and has set
+     * writing).
+     */
+    private void writePending() throws IOException {
+        pending.writeTo(channelOut);
+        pending.reset();
+        channel.force(false);
+        durableSequence = appendedSequence;
+    }
+
+    /**
+     * Removes from the file all frames up to the given sequence number
+     * (because a durable snapshot already contains them), except the
+     * source's frames of transfers whose target's frame is not logged yet,
+     * and the frames after them.
+     *
+     * The frames after it are copied to a new file that atomically replaces
+     * the log. Appends wait during the copy, which is short when it follows
+     * a checkpoint: only the frames logged while the snapshot was written are
+     * copied.
+     *
+     * @param upToSequence the last sequence number covered by the snapshot
+     * @throws IOException if the log can not be rewritten (it is then left
+     * unchanged)
+     */
+    public void compact(long upToSequence) throws IOException {
+        lock.lock();
+        try {
+            awaitIdle();
+            if (!openTransfers.isEmpty()) {
+                // The snapshot does not hold their credit yet
+                upToSequence = Math.min(upToSequence, openTransfers.first() - 1);
+            }
+            if (upToSequence < baseSequence) {
+                return;
+            }
+
+            // Keep group commit leaders out while the file is replaced
+            writing = true;
+            try {
+                // Write what is pending, so every frame is in the file
+                writePending();
+
+                // Skip the frames covered by the snapshot
+                long offset = HEADER_LENGTH;
+                long sequence = baseSequence;
+                long size = channel.size();
+                ByteBuffer length = ByteBuffer.allocate(4);
+                while (sequence <= upToSequence && offset < size) {
+                    length.clear();
+                    channel.read(length, offset);
+                    length.flip();
+                    offset += FRAME_HEADER_LENGTH + length.getInt();
+                    sequence++;
+                }
+
+                rewrite(file, offset, sequence);
+
+                channel.close();
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                channelOut = Channels.newOutputStream(channel);
+                baseSequence = sequence;
+            } finally {
+                writing = false;
+                batchWritten.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of batches written since the log was opened (each one
+     * is a single write and, except for WRITE, a single sync)
+     */
+    public long getBatchesCount() {
+        lock.lock();
+        try {
+            return batchesCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and syncs everything appended so far, then closes the file.
+     *
+     * @throws IOException if the last batch can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        long upTo;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            upTo = appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+        if (periodicSyncer != null) {
+            periodicSyncer.interrupt();
+        }
+        try {
+            flush(upTo);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // =========================================================
+    // Replay
+    // =========================================================
+    /**
+     * Rebuilds accounts, histories and transaction trees from a log file.
+     *
+     * Must be called before the log is opened for appending and before it is
+     * set as the accounts' journal. A partly written last frame is cut off.
+     * A damaged frame in the middle of the log is an error (see LogReader).
+     *
+     * @param file the log file (nothing happens if it does not exist)
+     * @param registry the registry receiving the rebuilt accounts
+     * @return a report of the replay
+     * @throws IOException if the file can not be read, or is damaged before
+     * its last frame
+     */
+    public static ReplayReport replay(Path file, AccountRegistry registry) throws IOException {
+        return replay(file, registry, 0, account -> 0, DEFAULT_REPLAY_THREADS);
+    }
+
+    /**
+     * Replays the frames of a log file that are not already contained in a
+     * restored snapshot, with the default number of threads.
+     *
+     * @param file the log file (nothing happens if it does not exist)
+     * @param registry the registry holding the restored accounts
+     * @param snapshotSequence frames up to this sequence number are skipped
+     * @param accountSequence for each restored account, the sequence number
+     * up to which its own transactions are already in the snapshot
+     * @return a report of the replay
+     * @throws IOException if the file can not be read, or is damaged before
+     * its last frame
+     */
+    public static ReplayReport replay(Path file, AccountRegistry registry, long snapshotSequence,
+            ToLongFunction<Account> accountSequence) throws IOException {
+        return replay(file, registry, snapshotSequence, accountSequence, DEFAULT_REPLAY_THREADS);
+    }
+
+    /**
+     * Replays the frames of a log file that are not already contained in a
+     * restored snapshot.
+     *
+     * The log is read on the calling thread, which also creates the
+     * accounts; the transactions are applied by replay threads, each owning
+     * the accounts of one partition (see ReplayEngine).
+     *
+     * The transfers whose source's frame has no target's frame (the program
+     * stopped before the target was credited) are credited at the end, and
+     * their target's frames are appended to the log.
+     *
+     * @param file the log file (nothing happens if it does not exist)
+     * @param registry the registry holding the restored accounts
+     * @param snapshotSequence frames up to this sequence number are skipped
+     * @param accountSequence for each restored account, the sequence number
+     * up to which its own transactions are already in the snapshot
+     * @param threads number of threads applying the transactions (1 to apply
+     * them on the calling thread)
+     * @return a report of the replay
+     * @throws IOException if the file can not be read, or is damaged before
+     * its last frame
+     */
+    public static ReplayReport replay(Path file, AccountRegistry registry, long snapshotSequence,
+            ToLongFunction<Account> accountSequence, int threads) throws IOException {
+        long start = System.nanoTime();
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            return new ReplayReport(0, 0, 0, 0, 0, snapshotSequence, 0, null,
+                    System.nanoTime() - start);
+        }
+
+        long accountsCount = 0;
+        long recordsCount = 0;
+        long orphansCount = 0;
+        long lastSequence = snapshotSequence;
+        long validLength;
+        // Source's frames of transfers by sequence number, until their
+        // target's frame is read (whether the frames are applied or not)
+        Map<Long, LogEntry> openTransfers = new LinkedHashMap<>();
+        ReplayEngine engine = new ReplayEngine(threads);
+        try (LogReader reader = new LogReader(file)) {
+            LogEntry entry;
+            while ((entry = reader.next()) != null) {
+                lastSequence = Math.max(lastSequence, entry.getSequence());
+                if (entry.getCreditTarget() != null) {
+                    openTransfers.put(entry.getSequence(), entry);
+                } else if (entry.getOutSequence() > 0) {
+                    openTransfers.remove(entry.getOutSequence());
+                }
+                if (entry.getSequence() <= snapshotSequence) {
+                    continue;
+                }
+                if (entry.getType() == LogEntry.Type.CREATE) {
+                    registry.addDormant(entry.newAccount());
+                    accountsCount++;
+                } else {
+                    Account account = registry.find(entry.getAccountNumber());
+                    if (account == null) {
+                        orphansCount++;
+                        continue;
+                    }
+                    if (entry.getSequence() <= accountSequence.applyAsLong(account)) {
+                        continue;
+                    }
+                    engine.submit(account, entry);
+                    recordsCount++;
+                }
+            }
+            validLength = reader.getValidLength();
+            engine.finish();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay interrupted");
+        } finally {
+            engine.abort();
+        }
+
+        long truncated = Files.size(file) - validLength;
+        if (truncated > 0) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+
+        long creditsCount = 0;
+        if (!openTransfers.isEmpty()) {
+            try (WriteAheadLog log = open(file, SyncPolicy.FSYNC, 0, lastSequence)) {
+                for (LogEntry out : openTransfers.values()) {
+                    Account target = registry.find(out.getCreditTarget());
+                    if (target == null) {
+                        orphansCount++;
+                        continue;
+                    }
+                    long cents = -out.getDeltaCents();
+                    String message = AccountRestorer.replayTransferCredit(target,
+                            out.getAccountNumber(), cents, out.getAmount(), out.getTime());
+                    log.awaitDurable(log.logTransferIn(target.getAccountNumber(),
+                            target.getRecordedBalanceCents(), message, cents, out.getAmount(),
+                            out.getTime(), out.getSequence()));
+                    creditsCount++;
+                }
+                lastSequence = log.getLastSequence();
+            }
+        }
+        return new ReplayReport(accountsCount, recordsCount, creditsCount, orphansCount,
+                truncated, lastSequence, engine.getMismatchesCount(), engine.getFirstMismatch(),
+                System.nanoTime() - start);
+    }
+
+    /**
+     * ReplayReport ------------ Result of replaying a log.
+     */
+    public static class ReplayReport {
+
+        private final long accountsCount;
+        private final long recordsCount;
+        private final long creditsCount;
+        private final long orphansCount;
+        private final long truncatedBytes;
+        private final long lastSequence;
+        private final long mismatchesCount;
+        private final String firstMismatch;
+        private final long elapsedNanos;
+
+        ReplayReport(long accountsCount, long recordsCount, long creditsCount, long orphansCount,
+                long truncatedBytes, long lastSequence, long mismatchesCount,
+                String firstMismatch, long elapsedNanos) {
+            this.accountsCount = accountsCount;
+            this.recordsCount = recordsCount;
+            this.creditsCount = creditsCount;
+            this.orphansCount = orphansCount;
+            this.truncatedBytes = truncatedBytes;
+            this.lastSequence = lastSequence;
+            this.mismatchesCount = mismatchesCount;
+            this.firstMismatch = firstMismatch;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return sequence number of the last valid frame (to pass to open)
+         */
+        public long getLastSequence() {
+            return lastSequence;
+        }
+
+        /**
+         * @return number of accounts created
+         */
+        public long getAccountsCount() {
+            return accountsCount;
+        }
+
+        /**
+         * @return number of transactions re-applied
+         */
+        public long getRecordsCount() {
+            return recordsCount;
+        }
+
+        /**
+         * @return number of transfer credits that were never logged, applied
+         * at the end of the replay
+         */
+        public long getCreditsCount() {
+            return creditsCount;
+        }
+
+        /**
+         * @return number of transactions whose account was not found
+         */
+        public long getOrphansCount() {
+            return orphansCount;
+        }
+
+        /**
+         * @return number of bytes of a torn last frame that were cut off
+         */
+        public long getTruncatedBytes() {
+            return truncatedBytes;
+        }
+
+        /**
+         * @return number of transactions after which the rebuilt balance was
+         * not the balance written in the log
+         */
+        public long getMismatchesCount() {
+            return mismatchesCount;
+        }
+
+        @Override
+        public String toString() {
+            String report = String.format("Replayed %d accounts and %d transactions in %.1f ms"
+                    + " (%d orphan transactions, %d torn bytes removed)",
+                    accountsCount, recordsCount, elapsedNanos / 1e6, orphansCount, truncatedBytes);
+            if (creditsCount > 0) {
+                report += String.format("%nRecovered %d transfer credits", creditsCount);
+            }
+            if (mismatchesCount > 0) {
+                report += String.format("%nWARNING: %d balance mismatches, first in %s",
+                        mismatchesCount, firstMismatch);
+            }
+            return report;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream giving access to its array, so a frame (or a
+     * snapshot record) can be checksummed and copied without an extra copy.
+     */
+    static class FrameBuffer extends ByteArrayOutputStream {
+
+        FrameBuffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package simpleatmsystem.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import simpleatmsystem.batch.BatchProcessor;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.services.InterestBatchEngine;
+import simpleatmsystem.services.ShardedAccountBook;
+
+/**
+ * AtmServer ----------- Serves the ATM operations to many clients at once
+ * over TCP, on the loopback interface only.
+ *
+ * Each connection is a session speaking the line protocol of BatchProcessor
+ * (one command per line, one OK/ERR line per command, quit to leave),
+ * without the create and interest commands, which need no PIN. All sessions
+ * share one account registry, so they see each other's changes. A failure
+ * of the journal stops the server, since no change can be acknowledged
+ * after it.
+ *
+ * Every session runs on its own virtual thread. A session waiting for its
+ * next command parks its virtual thread instead of blocking an operating
+ * system thread, and its buffers are small (SESSION_BUFFER_SIZE), so tens of
+ * thousands of mostly idle sessions cost little memory. The account
+ * operations are handed over to the single-writer shards of a
+ * ShardedAccountBook, so a session thread never holds an account lock (on
+ * Java 21 a virtual thread waiting inside a synchronized block pins its
+ * carrier thread, and a few such sessions waiting for the journal could
+ * stall the whole server).
+ *
+ * Needs Java 21 or later (virtual threads).
+ */
+public class AtmServer implements Closeable {
+
+    /**
+     * Size of the input and the output buffer of each session
+     */
+    private static final int SESSION_BUFFER_SIZE = 1024;
+
+    /**
+     * Pending connections the operating system keeps before accept
+     */
+    private static final int BACKLOG = 4096;
+
+    /**
+     * Pause after a failed accept before accepting again
+     */
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final AccountRegistry registry;
+    private final InterestBatchEngine interestBatch;
+    private final ShardedAccountBook shards;
+
+    private final Thread.Builder sessionThreads = Thread.ofVirtual().name("atm-session-", 1);
+
+    /**
+     * Open connections, closed when the server stops
+     */
+    private final ConcurrentHashMap.KeySetView<Socket, Boolean> sessions
+            = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong sessionsCount = new AtomicLong();
+    private final AtomicLong commandsCount = new AtomicLong();
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+
+    /**
+     * Creates a server working on the given registry, with one shard per
+     * processor.
+     *
+     * @param registry the accounts shared by all sessions
+     * @param interestBatch used by interest commands
+     */
+    public AtmServer(AccountRegistry registry, InterestBatchEngine interestBatch) {
+        this(registry, interestBatch, ShardedAccountBook.DEFAULT_SHARDS);
+    }
+
+    /**
+     * Creates a server working on the given registry.
+     *
+     * @param registry the accounts shared by all sessions
+     * @param interestBatch used by interest commands
+     * @param shardsCount number of threads executing the account operations
+     * @throws IllegalArgumentException if shardsCount is not positive
+     */
+    public AtmServer(AccountRegistry registry, InterestBatchEngine interestBatch,
+            int shardsCount) {
+        this.registry = registry;
+        this.interestBatch = interestBatch;
+        this.shards = new ShardedAccountBook(registry, shardsCount);
+    }
+
+    /**
+     * Binds the server to a port of the loopback interface and starts
+     * accepting sessions in the background. The accepting thread keeps the
+     * program running until the server is closed.
+     *
+     * @param port the TCP port (0 for any free port)
+     * @throws IOException if the port can not be bound
+     * @throws IllegalStateException if the server is already started
+     */
+    public synchronized void start(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("The server is already started!");
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        acceptor = Thread.ofPlatform().name("atm-acceptor").start(this::acceptSessions);
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public synchronized int getPort() {
+        if (serverSocket == null) {
+            throw new IllegalStateException("The server is not started!");
+        }
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptSessions() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                // Too many open files for example: wait for sessions to end
+                System.err.println("Accept failed: " + ex.getMessage());
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            sessions.add(socket);
+            sessionsCount.incrementAndGet();
+            sessionThreads.start(() -> serve(socket));
+        }
+    }
+
+    /**
+     * Runs one session until the client quits or disconnects.
+     */
+    private void serve(Socket socket) {
+        // No create or interest: they need no PIN
+        BatchProcessor processor = new BatchProcessor(registry, interestBatch, shards, false);
+        try (socket) {
+            // Answers are small and awaited by the client: do not delay them
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            processor.run(in, out, SESSION_BUFFER_SIZE);
+        } catch (SocketException ex) {
+            // The client disconnected, or the server is stopping
+        } catch (IOException ex) {
+            System.err.println("Session error: " + ex.getMessage());
+        } catch (UncheckedIOException ex) {
+            // Nothing can be made durable any more: stop serving
+            System.err.println("Journal failure, stopping the server: " + ex.getMessage());
+            try {
+                close();
+            } catch (IOException closeError) {
+                System.err.println("Error: " + closeError.getMessage());
+            }
+        } finally {
+            sessions.remove(socket);
+            commandsCount.addAndGet(processor.getCommandsCount());
+        }
+    }
+
+    /**
+     * @return number of sessions currently open
+     */
+    public int getOpenSessionsCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return number of sessions accepted since the server started
+     */
+    public long getSessionsCount() {
+        return sessionsCount.get();
+    }
+
+    /**
+     * @return number of commands executed by the sessions already closed
+     */
+    public long getCommandsCount() {
+        return commandsCount.get();
+    }
+
+    /**
+     * Stops accepting sessions and closes the open ones.
+     *
+     * @throws IOException if the server socket can not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket == null) {
+            return;
+        }
+        serverSocket.close();
+        for (Socket socket : sessions) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Already closing
+            }
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        shards.close();
+    }
+}
@@ -0,0 +1,247 @@
+package simpleatmsystem.services;
+
+import simpleatmsystem.lib.Footprint;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.OffHeapAccountTable;
+import simpleatmsystem.models.TransactionsLedger;
+
+/**
+ * BookFootprint ------------- Estimates the heap taken by a book of accounts,
+ * split by what it is spent on: the accounts themselves, their transaction
+ * histories, their transactions trees, their time indexes, the stores
+ * holding the transactions and the registry holding the accounts.
+ *
+ * Sizes come from the object layout of the running JVM (see lib.Footprint)
+ * and count every object once: the history and the tree only refer to the
+ * transactions of the store. Dividing each part by its number of items
+ * gives the cost per account, per history entry, per tree node and per
+ * stored transaction, which is what capacity planning needs.
+ *
+ * Each account is measured under its own lock (see Account.getLedger), so
+ * the summary of a book in use is consistent per account but not across
+ * accounts.
+ *
+ * Dormant accounts a registry keeps off heap (see OffHeapAccountTable) are
+ * reported apart, with the bytes they take outside of the heap: they are
+ * not part of the heap total (the heap part of their table is counted with
+ * the registry).
+ */
+public class BookFootprint {
+
+    private long accounts;
+    private long accountBytes;
+    private long historyEntries;
+    private long historyBytes;
+    private long treeNodes;
+    private long treeBytes;
+    private long timeIndexEntries;
+    private long timeIndexBytes;
+    private long storeEntries;
+    private long storeBytes;
+    private long registryBytes;
+    private long dormantAccounts;
+    private long offHeapBytes;
+
+    private BookFootprint() {
+    }
+
+    /**
+     * Measures all the accounts of a registry, and the registry itself.
+     *
+     * @param registry the registry to measure
+     * @return the summary
+     */
+    public static BookFootprint of(AccountRegistry registry) {
+        BookFootprint summary = new BookFootprint();
+        for (Account account : registry.accountsSnapshot()) {
+            summary.add(account);
+        }
+        summary.registryBytes = registry.footprint();
+        OffHeapAccountTable dormant = registry.getDormantAccounts();
+        if (dormant != null) {
+            summary.dormantAccounts = dormant.getDormantCount();
+            summary.offHeapBytes = dormant.offHeapBytes();
+        }
+        return summary;
+    }
+
+    /**
+     * Measures one account: the account itself, its strings and its ledger,
+     * then each structure of the ledger.
+     *
+     * @param account the account to measure
+     * @return the bytes of heap retained by the account
+     */
+    public static long of(Account account) {
+        BookFootprint summary = new BookFootprint();
+        summary.add(account);
+        return summary.getTotalBytes();
+    }
+
+    private void add(Account account) {
+        synchronized (account) {
+            TransactionsLedger ledger = account.getLedger();
+            accounts++;
+            accountBytes += Footprint.shallowSize(account.getClass())
+                    + Footprint.string(account.getAccountNumber())
+                    + Footprint.string(account.getOwnerName()) + ledger.footprint();
+
+            if (ledger.peekHistory() != null) {
+                historyEntries += ledger.peekHistory().size();
+                historyBytes += ledger.peekHistory().footprint();
+            }
+            if (ledger.peekTree() != null) {
+                // Integer.valueOf shares the boxes of the small offsets
+                long boxBytes = Footprint.shallowSize(Integer.class);
+                long[] nodes = new long[1];
+                treeBytes += ledger.peekTree().footprint(offset -> {
+                    nodes[0]++;
+                    return offset < 128 ? 0 : boxBytes;
+                });
+                treeNodes += nodes[0];
+            }
+            if (ledger.peekTimeIndex() != null) {
+                timeIndexEntries += ledger.peekTimeIndex().size();
+                timeIndexBytes += ledger.peekTimeIndex().footprint();
+            }
+            if (ledger.peekStore() != null) {
+                storeEntries += ledger.peekStore().size();
+                storeBytes += ledger.peekStore().footprint();
+            }
+        }
+    }
+
+    /**
+     * @return number of accounts measured
+     */
+    public long getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @return bytes of the account objects, their number and owner strings,
+     * and their ledgers with their lists of unsaved entries
+     */
+    public long getAccountBytes() {
+        return accountBytes;
+    }
+
+    /**
+     * @return number of entries in all histories
+     */
+    public long getHistoryEntries() {
+        return historyEntries;
+    }
+
+    /**
+     * @return bytes of the histories
+     */
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    /**
+     * @return number of nodes in all transactions trees
+     */
+    public long getTreeNodes() {
+        return treeNodes;
+    }
+
+    /**
+     * @return bytes of the trees and their boxed offsets
+     */
+    public long getTreeBytes() {
+        return treeBytes;
+    }
+
+    /**
+     * @return number of entries in all time indexes
+     */
+    public long getTimeIndexEntries() {
+        return timeIndexEntries;
+    }
+
+    /**
+     * @return bytes of the time indexes
+     */
+    public long getTimeIndexBytes() {
+        return timeIndexBytes;
+    }
+
+    /**
+     * @return number of transactions in all stores
+     */
+    public long getStoreEntries() {
+        return storeEntries;
+    }
+
+    /**
+     * @return bytes of the stores: their columns and dictionaries
+     */
+    public long getStoreBytes() {
+        return storeBytes;
+    }
+
+    /**
+     * @return bytes of the registry lists and index
+     */
+    public long getRegistryBytes() {
+        return registryBytes;
+    }
+
+    /**
+     * @return number of dormant accounts kept off heap
+     */
+    public long getDormantAccounts() {
+        return dormantAccounts;
+    }
+
+    /**
+     * @return bytes allocated off heap for the dormant accounts (rows and
+     * names, promoted rows included)
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * @return all the heap bytes measured
+     */
+    public long getTotalBytes() {
+        return accountBytes + historyBytes + treeBytes + timeIndexBytes + storeBytes + registryBytes;
+    }
+
+    private static double per(long bytes, long count) {
+        return count == 0 ? 0 : (double) bytes / count;
+    }
+
+    /**
+     * @return a table of the parts, with their bytes per item
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %12s %16s %12s%n", "part", "items", "bytes", "bytes/item"));
+        sb.append(String.format("%-10s %12d %16d %12.1f%n", "accounts",
+                accounts, accountBytes, per(accountBytes, accounts)));
+        sb.append(String.format("%-10s %12d %16d %12.1f%n", "history",
+                historyEntries, historyBytes, per(historyBytes, historyEntries)));
+        sb.append(String.format("%-10s %12d %16d %12.1f%n", "tree",
+                treeNodes, treeBytes, per(treeBytes, treeNodes)));
+        sb.append(String.format("%-10s %12d %16d %12.1f%n", "time index",
+                timeIndexEntries, timeIndexBytes, per(timeIndexBytes, timeIndexEntries)));
+        sb.append(String.format("%-10s %12d %16d %12.1f%n", "store",
+                storeEntries, storeBytes, per(storeBytes, storeEntries)));
+        sb.append(String.format("%-10s %12s %16d%n", "registry", "", registryBytes));
+        if (dormantAccounts > 0 || offHeapBytes > 0) {
+            sb.append(String.format("%-10s %12d %16d %12.1f (off heap)%n", "dormant",
+                    dormantAccounts, offHeapBytes, per(offHeapBytes, dormantAccounts)));
+        }
+        sb.append(String.format("Total: %d bytes (%.1f MB), %.1f bytes per account%n",
+                getTotalBytes(), getTotalBytes() / (1024.0 * 1024.0), per(getTotalBytes(), accounts)));
+        sb.append(String.format("Layout: %d-byte headers, %d-byte references, %d-byte alignment",
+                Footprint.getHeaderSize(), Footprint.getReferenceSize(), Footprint.getAlignment()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package simpleatmsystem.services;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import simpleatmsystem.metrics.AtmMetrics;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.Money;
+import simpleatmsystem.models.SavingsAccount;
+
+/**
+ * InterestBatchEngine -------------------- Applies the end-of-day interest to
+ * every savings account of the registry, in parallel.
+ *
+ * The engine only takes the savings partition of the registry, so checking
+ * accounts are never visited. The partition is split recursively in halves
+ * (fork/join) until a slice is small enough to be processed by one worker.
+ *
+ * Each account's applyInterest updates its balance atomically and records
+ * the interest in the account's history and transactions tree.
+ */
+public class InterestBatchEngine {
+
+    /**
+     * Slices with at most this many accounts are processed sequentially
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates an engine that runs on the common fork/join pool.
+     */
+    public InterestBatchEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an engine that runs on the given fork/join pool.
+     *
+     * @param pool the pool running the batch
+     */
+    public InterestBatchEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Applies interest to all savings accounts of the registry.
+     *
+     * @param registry the account registry
+     * @return a report with the number of accounts, total interest and
+     * throughput of the run
+     */
+    public Report run(AccountRegistry registry) {
+        SavingsAccount[] savings = registry.savingsSnapshot();
+
+        long start = System.nanoTime();
+        long totalInterestCents = pool.invoke(new ApplyInterestTask(savings, 0, savings.length));
+        long elapsed = System.nanoTime() - start;
+        AtmMetrics.global().record(AtmMetrics.Operation.INTEREST, AtmMetrics.Outcome.SUCCESS, start);
+
+        return new Report(savings.length, totalInterestCents, elapsed);
+    }
+
+    /**
+     * Fork/join task applying interest to savings[from, to) (never
+     * serialized).
+     */
+    @SuppressWarnings("serial")
+    private static class ApplyInterestTask extends RecursiveTask<Long> {
+
+        private final SavingsAccount[] savings;
+        private final int from;
+        private final int to;
+
+        ApplyInterestTask(SavingsAccount[] savings, int from, int to) {
+            this.savings = savings;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                long interestCents = 0;
+                for (int i = from; i < to; i++) {
+                    interestCents += Money.toCents(savings[i].applyInterest());
+                }
+                return interestCents;
+            }
+
+            int middle = (from + to) >>> 1;
+            ApplyInterestTask left = new ApplyInterestTask(savings, from, middle);
+            ApplyInterestTask right = new ApplyInterestTask(savings, middle, to);
+            left.fork();
+            long rightInterest = right.compute();
+            return left.join() + rightInterest;
+        }
+    }
+
+    /**
+     * Report ------ Result of one interest batch run.
+     */
+    public static class Report {
+
+        private final int accountsCount;
+        private final long totalInterestCents;
+        private final long elapsedNanos;
+
+        Report(int accountsCount, long totalInterestCents, long elapsedNanos) {
+            this.accountsCount = accountsCount;
+            this.totalInterestCents = totalInterestCents;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return number of savings accounts processed
+         */
+        public int getAccountsCount() {
+            return accountsCount;
+        }
+
+        /**
+         * @return total interest credited, in cents
+         */
+        public long getTotalInterestCents() {
+            return totalInterestCents;
+        }
+
+        /**
+         * @return duration of the run in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return processed accounts per second
+         */
+        public double getAccountsPerSecond() {
+            return elapsedNanos == 0 ? 0 : accountsCount / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Interest applied to %d savings accounts | Total interest: %s"
+                    + " | Elapsed: %.1f ms | Throughput: %.0f accounts/s",
+                    accountsCount, Money.toAmount(totalInterestCents),
+                    elapsedNanos / 1e6, getAccountsPerSecond());
+        }
+    }
+}
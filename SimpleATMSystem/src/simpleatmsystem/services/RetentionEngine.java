@@ -0,0 +1,275 @@
+package simpleatmsystem.services;
+
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.RetentionPolicy;
+import simpleatmsystem.models.TransactionsHistory;
+import simpleatmsystem.models.TransactionsLedger;
+import simpleatmsystem.models.TransactionsStore;
+import simpleatmsystem.models.TransactionsTimeIndex;
+
+/**
+ * RetentionEngine --------------- Applies a retention policy to every account
+ * of the registry, in small slices run by a background thread, so the
+ * transactions trees and histories stop growing without long pauses.
+ *
+ * A sweep visits the accounts one after the other (see applyRetention).
+ * Each slice removes at most sliceSize transactions and visits at most
+ * sliceSize accounts, so it holds each account's lock for a bounded time,
+ * and the thread sleeps between two slices. An account with more expired
+ * transactions than a slice removes is visited again by the next slice.
+ */
+public class RetentionEngine {
+
+    /**
+     * Default maximum number of transactions removed per slice
+     */
+    public static final int DEFAULT_SLICE_SIZE = 256;
+
+    private final AccountRegistry registry;
+    private final RetentionPolicy policy;
+    private final int sliceSize;
+
+    /**
+     * Accounts of the current sweep (null between two sweeps) and the next
+     * one to visit
+     */
+    private Account[] sweep;
+    private int cursor;
+
+    /**
+     * Background thread running the slices (null if none)
+     */
+    private Thread slicer;
+
+    private long removedCount;
+    private long slicesCount;
+    private long sweepsCount;
+    private long longestSliceNanos;
+
+    /**
+     * Creates an engine removing at most DEFAULT_SLICE_SIZE transactions per
+     * slice.
+     *
+     * @param registry the accounts
+     * @param policy the retention policy applied to them
+     */
+    public RetentionEngine(AccountRegistry registry, RetentionPolicy policy) {
+        this(registry, policy, DEFAULT_SLICE_SIZE);
+    }
+
+    /**
+     * Creates an engine.
+     *
+     * @param registry the accounts
+     * @param policy the retention policy applied to them
+     * @param sliceSize maximum number of transactions removed (and of
+     * accounts visited) per slice
+     * @throws IllegalArgumentException if sliceSize is not positive
+     */
+    public RetentionEngine(AccountRegistry registry, RetentionPolicy policy, int sliceSize) {
+        if (sliceSize <= 0) {
+            throw new IllegalArgumentException("Slice size must be positive!");
+        }
+        this.registry = registry;
+        this.policy = policy;
+        this.sliceSize = sliceSize;
+    }
+
+    /**
+     * Runs one slice of the current sweep (starting a new sweep if there is
+     * none).
+     *
+     * @return true if the slice completed a sweep
+     */
+    public synchronized boolean runSlice() {
+        long start = System.nanoTime();
+        if (sweep == null) {
+            sweep = registry.accountsSnapshot();
+            cursor = 0;
+        }
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        int visited = 0;
+        while (cursor < sweep.length && removed < sliceSize && visited < sliceSize) {
+            int budget = sliceSize - removed;
+            int accountRemoved = applyRetention(sweep[cursor], policy, now, budget);
+            removed += accountRemoved;
+            visited++;
+            if (accountRemoved < budget) {
+                cursor++;
+            }
+        }
+        boolean swept = cursor == sweep.length;
+        if (swept) {
+            sweep = null;
+            sweepsCount++;
+        }
+        removedCount += removed;
+        slicesCount++;
+        longestSliceNanos = Math.max(longestSliceNanos, System.nanoTime() - start);
+        return swept;
+    }
+
+    /**
+     * Applies a retention policy to one account: the expired transactions
+     * leave the tree (O(log n) each, see TransactionsTimeIndex) and the
+     * history, oldest first, then the store trims the ones neither of them
+     * holds any more.
+     *
+     * At most budget transactions are removed per call, so the account's
+     * lock is only held for a short time; the others are left to the next
+     * calls. Removals are not journaled: after a restart, the transactions
+     * still in the journal or in an incremental snapshot come back, and are
+     * removed again by the next calls.
+     *
+     * @param account the account
+     * @param policy the retention policy
+     * @param now the current time (milliseconds since the epoch)
+     * @param budget maximum number of transactions to remove
+     * @return number of transactions removed (budget if there may be more)
+     */
+    public static int applyRetention(Account account, RetentionPolicy policy, long now,
+            int budget) {
+        synchronized (account) {
+            TransactionsLedger ledger = account.getLedger();
+            TransactionsStore s = ledger.peekStore();
+            if (s == null) {
+                return 0;
+            }
+            TransactionsTimeIndex timeIndex = ledger.peekTimeIndex();
+            TransactionsHistory history = ledger.peekHistory();
+            int firstUnsaved = ledger.getFirstUnsavedOffset();
+            int removed = 0;
+            if (timeIndex != null) {
+                int offset;
+                while (removed < budget && (offset = timeIndex.oldest()) >= 0
+                        && policy.isExpired(s.getTime(offset), now, ledger.peekTree().size())) {
+                    if (!s.isReversed(offset)) {
+                        ledger.treeDelete(offset);
+                    }
+                    timeIndex.removeOldest();
+                    if (offset >= firstUnsaved) {
+                        // An incremental snapshot can not delete entries, so
+                        // the next one saves the tree
+                        ledger.dropUnsavedEntries();
+                        firstUnsaved = Integer.MAX_VALUE;
+                    }
+                    removed++;
+                }
+            }
+            if (history != null) {
+                while (removed < budget && history.size() > 0
+                        && policy.isExpired(s.getTime(history.oldest()), now, history.size())) {
+                    history.removeOldest();
+                    removed++;
+                }
+            }
+
+            int kept = s.getFirstOffset() + s.size();
+            if (timeIndex != null && timeIndex.oldest() >= 0) {
+                kept = timeIndex.oldest();
+            }
+            if (history != null) {
+                kept = Math.min(kept, history.minOffset());
+            }
+            s.trimBefore(Math.min(kept, firstUnsaved));
+            return removed;
+        }
+    }
+
+    /**
+     * Runs slices until a whole sweep is done (the current one, or a new
+     * one).
+     */
+    public void runSweep() {
+        while (!runSlice()) {
+            // next slice
+        }
+    }
+
+    /**
+     * Starts a daemon thread running a slice every periodMillis. A failed
+     * slice is reported and the next one goes on with the next accounts.
+     *
+     * @param periodMillis time between two slices
+     * @throws IllegalArgumentException if the period is not positive
+     */
+    public synchronized void start(long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Retention interval must be positive!");
+        }
+        if (slicer != null) {
+            return;
+        }
+        slicer = new Thread(() -> slicePeriodically(periodMillis), "retention");
+        slicer.setDaemon(true);
+        slicer.start();
+    }
+
+    private void slicePeriodically(long periodMillis) {
+        while (true) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                runSlice();
+            } catch (RuntimeException ex) {
+                System.err.println("Retention slice failed: " + ex.getMessage());
+                synchronized (this) {
+                    // Skips the account that failed
+                    if (sweep != null && cursor < sweep.length) {
+                        cursor++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the slices (a running slice completes).
+     */
+    public synchronized void stop() {
+        if (slicer != null) {
+            slicer.interrupt();
+            slicer = null;
+        }
+    }
+
+    /**
+     * @return the retention policy applied
+     */
+    public RetentionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return number of transactions removed so far
+     */
+    public synchronized long getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * @return number of slices run so far
+     */
+    public synchronized long getSlicesCount() {
+        return slicesCount;
+    }
+
+    /**
+     * @return number of sweeps completed so far
+     */
+    public synchronized long getSweepsCount() {
+        return sweepsCount;
+    }
+
+    /**
+     * @return duration of the longest slice so far, in nanoseconds
+     */
+    public synchronized long getLongestSliceNanos() {
+        return longestSliceNanos;
+    }
+}
@@ -0,0 +1,493 @@
+package simpleatmsystem.services;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import simpleatmsystem.exceptions.InsufficientFundsException;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountJournal;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.BalanceChange;
+
+/**
+ * ShardedAccountBook ------------------ Executes the account operations of
+ * many sessions on single-writer shards of the accounts.
+ *
+ * The accounts are split into shards by the hash of their account number.
+ * Each shard is owned by one thread, which takes the commands of its
+ * mailbox one by one and executes them: all the commands of an account run
+ * on the same thread, in the order they were submitted, and never in
+ * parallel with each other. Sessions submit commands and wait for their
+ * completion instead of competing for the account.
+ *
+ * The account classes stay thread-safe (the interest batch, snapshots and
+ * the menu still use them directly), but as long as an account is only
+ * changed through its shard, its compare-and-set never retries and its lock
+ * is only contended by the transfers it receives. Throughput grows with the number of shards, up to the
+ * number of processors, and a busy account only delays the accounts of its
+ * own shard. A transfer runs on the shard of its source account, which
+ * debits the source and records and logs the source's side; the credit is
+ * then handed over to the target's shard, which credits the target and
+ * records and logs its side (see Account.transferToDeferringCredit), so
+ * only its own shard changes an account. An account creation runs on the shard of the new account
+ * number, so two sessions can not create the same account.
+ *
+ * The shard threads are platform threads, so sessions running on virtual
+ * threads never hold an account lock themselves: they only park while
+ * waiting for a command, which frees their carrier thread (on Java 21 a
+ * virtual thread blocked inside a synchronized block keeps its carrier).
+ *
+ * The shard threads do not wait for the journal: each completed command
+ * carries the sequence number of its log entry, and the submitting session
+ * waits for it to be durable. Many sessions can so still share one disk
+ * sync, while the shard already executes the next commands.
+ */
+public class ShardedAccountBook implements Closeable {
+
+    /**
+     * Kind of a command executed by a shard
+     */
+    public enum Operation {
+        CREATE, DEPOSIT, WITHDRAW, TRANSFER, QUERY
+    }
+
+    /**
+     * Default number of shards: one per processor
+     */
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Commands of sessions a mailbox holds before submitting sessions have
+     * to wait (transfer credits sent by other shards are not counted)
+     */
+    private static final int MAILBOX_CAPACITY = 4096;
+
+    /**
+     * Marks the end of the commands in a mailbox
+     */
+    private static final Command STOP = new Command(null, null, null, 0);
+
+    private final AccountRegistry registry;
+    private final Shard[] shards;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a book with the given number of shards and starts their
+     * threads.
+     *
+     * @param registry the accounts (new accounts are added to it)
+     * @param shardsCount number of shards (one thread each)
+     * @throws IllegalArgumentException if shardsCount is not positive
+     */
+    public ShardedAccountBook(AccountRegistry registry, int shardsCount) {
+        if (shardsCount <= 0) {
+            throw new IllegalArgumentException("Shards count must be positive!");
+        }
+        this.registry = registry;
+        this.shards = new Shard[shardsCount];
+        for (int i = 0; i < shardsCount; i++) {
+            shards[i] = new Shard();
+            Thread thread = new Thread(shards[i], "account-shard-" + i);
+            thread.setDaemon(true);
+            shards[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Adds a new account to the registry through the shard of its number
+     * and waits for it.
+     *
+     * @param account the new account
+     * @throws IllegalArgumentException if an account with the same number
+     * already exists
+     */
+    public void create(Account account) {
+        awaitUnchecked(submit(Operation.CREATE, account, null, 0));
+    }
+
+    /**
+     * Deposits an amount through the account's shard and waits for it.
+     *
+     * @param account the account
+     * @param amount the amount to deposit
+     * @return the balance after the deposit, in cents
+     * @throws IllegalArgumentException if the amount is invalid
+     */
+    public long deposit(Account account, double amount) {
+        return awaitUnchecked(submit(Operation.DEPOSIT, account, null, amount));
+    }
+
+    /**
+     * Withdraws an amount through the account's shard and waits for it.
+     *
+     * @param account the account
+     * @param amount the amount to withdraw
+     * @return the balance after the withdrawal, in cents
+     * @throws IllegalArgumentException if the amount is invalid
+     * @throws InsufficientFundsException if the balance is insufficient
+     */
+    public long withdraw(Account account, double amount) throws InsufficientFundsException {
+        return await(submit(Operation.WITHDRAW, account, null, amount));
+    }
+
+    /**
+     * Transfers an amount through the shard of the source account and waits
+     * for it.
+     *
+     * @param from the account to take the money from
+     * @param to the account to give the money to
+     * @param amount the amount to transfer
+     * @return the balance of the source after the transfer, in cents
+     * @throws IllegalArgumentException if the amount is invalid or both
+     * accounts are the same
+     * @throws InsufficientFundsException if the source balance is insufficient
+     */
+    public long transfer(Account from, Account to, double amount)
+            throws InsufficientFundsException {
+        return await(submit(Operation.TRANSFER, from, to, amount));
+    }
+
+    /**
+     * Reads the balance through the account's shard, after every command of
+     * the account submitted before.
+     *
+     * @param account the account
+     * @return the balance, in cents
+     */
+    public long query(Account account) {
+        return awaitUnchecked(submit(Operation.QUERY, account, null, 0));
+    }
+
+    /**
+     * Hands a command over to the shard of its account without waiting for
+     * it. The mailbox is bounded: when it is full, this waits for room.
+     *
+     * The returned future completes with the balance of the account after
+     * the command, in cents, once the command is executed. Its journal entry
+     * may not be durable yet: use await, or wait for getSequence with the
+     * journal.
+     *
+     * @param operation what to do
+     * @param account the account (the new one for CREATE, the source for
+     * TRANSFER)
+     * @param target the target of a TRANSFER (ignored otherwise)
+     * @param amount the amount (ignored by CREATE and QUERY)
+     * @return the pending command
+     * @throws IllegalStateException if the book is closed
+     */
+    public Command submit(Operation operation, Account account, Account target, double amount) {
+        if (closed) {
+            throw closedError();
+        }
+        Command command = new Command(operation, account, target, amount);
+        Shard shard = shards[shardIndex(account)];
+        try {
+            shard.room.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while submitting a command", ex);
+        }
+        shard.mailbox.add(command);
+        // Closed meanwhile: the shard may already be gone. Whoever removes
+        // the command (this thread, or close) fails it.
+        if (closed && shard.mailbox.remove(command)) {
+            shard.room.release();
+            command.completeExceptionally(closedError());
+        }
+        return command;
+    }
+
+    private static IllegalStateException closedError() {
+        return new IllegalStateException("The account book is closed!");
+    }
+
+    /**
+     * Hands the credit of a transfer over to the shard of its target, from
+     * the shard of its source. Credits do not take room in the mailbox:
+     * waiting for room could deadlock two shards sending credits to each
+     * other, so only the target's shard ever applies them.
+     *
+     * @param outSequence sequence number of the log entry of the source's
+     * side
+     */
+    private void sendCredit(BalanceChange change, long outSequence) {
+        shards[shardIndex(change.getTarget())].mailbox.add(new Command(change, outSequence));
+    }
+
+    /**
+     * Waits until a command is executed and its journal entry is durable.
+     *
+     * @param command a command returned by submit
+     * @return the balance after the command, in cents
+     * @throws IllegalArgumentException if the command was invalid
+     * @throws InsufficientFundsException if the balance was insufficient
+     */
+    public static long await(Command command) throws InsufficientFundsException {
+        long balanceCents;
+        try {
+            balanceCents = command.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a command", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof InsufficientFundsException) {
+                throw (InsufficientFundsException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        AccountJournal journal = Account.getJournal();
+        if (journal != null && command.sequence > 0) {
+            journal.awaitDurable(command.sequence);
+        }
+        return balanceCents;
+    }
+
+    /**
+     * Waits for a command that can not fail for lack of funds.
+     */
+    private static long awaitUnchecked(Command command) {
+        try {
+            return await(command);
+        } catch (InsufficientFundsException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardsCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard a shard index
+     * @return number of commands executed by the shard so far
+     */
+    public long getExecutedCount(int shard) {
+        return shards[shard].executedCount;
+    }
+
+    /**
+     * Maps an account to its shard. Account numbers are compared ignoring
+     * case elsewhere in the system, so they are normalized the same way here.
+     */
+    private int shardIndex(Account account) {
+        int h = account.getAccountNumber().trim().toLowerCase(Locale.ROOT).hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, shards.length);
+    }
+
+    /**
+     * Stops accepting commands, lets the shards execute the commands already
+     * submitted, and waits for their threads to end. Commands submitted
+     * while closing fail, but the credits of the transfers already executed
+     * are applied.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Shard shard : shards) {
+                shard.mailbox.put(STOP);
+            }
+            for (Shard shard : shards) {
+                shard.thread.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // Left by a shard that ended before they arrived
+        for (Shard shard : shards) {
+            shard.drainLate();
+        }
+    }
+
+    /**
+     * Command ------- One operation submitted to a shard, completed with the
+     * balance of its account after it (in cents).
+     */
+    public static class Command extends CompletableFuture<Long> {
+
+        private final Operation operation;
+        private final Account account;
+        private final Account target;
+        private final double amount;
+
+        /**
+         * Transfer whose credit this command applies to its target (sent by
+         * the shard of the source, see sendCredit), or null
+         */
+        private final BalanceChange credit;
+
+        /**
+         * Sequence number of the log entry of the source's side of the
+         * credit
+         */
+        private final long outSequence;
+
+        /**
+         * Sequence number of the journal entry of the command (0 if none),
+         * written before the command completes
+         */
+        private long sequence;
+
+        Command(Operation operation, Account account, Account target, double amount) {
+            this.operation = operation;
+            this.account = account;
+            this.target = target;
+            this.amount = amount;
+            this.credit = null;
+            this.outSequence = 0;
+        }
+
+        Command(BalanceChange credit, long outSequence) {
+            this.operation = Operation.TRANSFER;
+            this.account = credit.getTarget();
+            this.target = null;
+            this.amount = 0;
+            this.credit = credit;
+            this.outSequence = outSequence;
+        }
+
+        /**
+         * @return sequence number of the journal entry of the command, or 0
+         * if it logged nothing (valid once the command completed)
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Executes the command on the shard thread.
+         */
+        void execute(ShardedAccountBook book) {
+            if (credit != null) {
+                // Nobody waits for a credit: the source's log entry already
+                // makes it durable
+                try {
+                    complete(account.applyTransferCredit(credit, outSequence));
+                } catch (RuntimeException ex) {
+                    completeExceptionally(ex);
+                    System.err.println("Transfer credit to " + account.getAccountNumber()
+                            + " failed: " + ex.getMessage());
+                }
+                Account.takeDeferredSequence();
+                return;
+            }
+            try {
+                long balanceCents;
+                switch (operation) {
+                    case CREATE:
+                        if (book.registry.find(account.getAccountNumber()) != null) {
+                            throw new IllegalArgumentException("Account "
+                                    + account.getAccountNumber() + " already exists!");
+                        }
+                        book.registry.add(account);
+                        balanceCents = account.getBalanceCents();
+                        break;
+                    case DEPOSIT:
+                        balanceCents = account.deposite(amount).getBalanceAfterCents();
+                        break;
+                    case WITHDRAW:
+                        balanceCents = account.withdraw(amount).getBalanceAfterCents();
+                        break;
+                    case TRANSFER: {
+                        BalanceChange change = account.transferToDeferringCredit(target, amount);
+                        sequence = Account.takeDeferredSequence();
+                        book.sendCredit(change, sequence);
+                        complete(change.getBalanceAfterCents());
+                        return;
+                    }
+                    default:
+                        balanceCents = account.getBalanceCents();
+                        break;
+                }
+                sequence = Account.takeDeferredSequence();
+                complete(balanceCents);
+            } catch (InsufficientFundsException | RuntimeException ex) {
+                // A failed operation may still have logged (for example if
+                // the journal could not be written)
+                sequence = Account.takeDeferredSequence();
+                completeExceptionally(ex);
+            }
+        }
+
+        /**
+         * Ends a command submitted too late: a credit is still applied, any
+         * other command fails.
+         */
+        void executeLate(ShardedAccountBook book) {
+            if (credit != null) {
+                execute(book);
+            } else {
+                completeExceptionally(closedError());
+            }
+        }
+    }
+
+    /**
+     * Shard ----- A mailbox and the thread draining it.
+     */
+    private class Shard implements Runnable {
+
+        final BlockingQueue<Command> mailbox = new LinkedBlockingQueue<>();
+
+        /**
+         * Room left in the mailbox for the commands of sessions
+         */
+        final Semaphore room = new Semaphore(MAILBOX_CAPACITY);
+
+        Thread thread;
+
+        /**
+         * Written by the shard thread only
+         */
+        volatile long executedCount;
+
+        @Override
+        public void run() {
+            // Sessions wait for the durability of their own commands
+            Account.deferDurability();
+            while (true) {
+                Command command;
+                try {
+                    command = mailbox.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (command == STOP) {
+                    break;
+                }
+                if (command.credit == null) {
+                    room.release();
+                }
+                command.execute(ShardedAccountBook.this);
+                executedCount++;
+            }
+            // Submitted while the book was closing
+            drainLate();
+        }
+
+        void drainLate() {
+            Command late;
+            while ((late = mailbox.poll()) != null) {
+                late.executeLate(ShardedAccountBook.this);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package simpleatmsystem.lib;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BinaryTreeTest -------------- Adds and deletes values in random order and
+ * checks after each step that the tree still holds them in order, and stays
+ * balanced.
+ */
+public class BinaryTreeTest {
+
+    /**
+     * Orders by a key with many duplicates, then by the value, like the
+     * transactions tree orders by amount, then by id
+     */
+    private static final Comparator<Integer> BY_KEY_THEN_VALUE
+            = Comparator.<Integer>comparingInt(value -> value % 16)
+                    .thenComparingInt(value -> value);
+
+    /**
+     * Checks that the tree holds exactly the expected values, in order, and
+     * is no deeper than a scapegoat tree may be.
+     */
+    private static void assertValid(BinaryTree<Integer> tree, TreeSet<Integer> expected) {
+        assertEquals(expected.size(), tree.size());
+        assertEquals(new ArrayList<>(expected), toList(tree.inOrderList()));
+        // At most log(size) / log(3/2) edges after an add, and deletes
+        // rebuild the tree before a third of it is gone
+        double maxLevels = Math.log(1.5 * expected.size() + 2) / Math.log(1.5) + 1;
+        assertTrue("height " + tree.getHeight() + " for " + expected.size() + " values",
+                tree.getHeight() <= maxLevels);
+    }
+
+    private static List<Integer> toList(MyArrayList<Integer> values) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            list.add(values.get(i));
+        }
+        return list;
+    }
+
+    @Test
+    public void deletesKeepOrderAndBalance() {
+        BinaryTree<Integer> tree = new BinaryTree<>();
+        TreeSet<Integer> expected = new TreeSet<>(BY_KEY_THEN_VALUE);
+        Random random = new Random(48);
+        // Added in increasing order, the worst case of a plain search tree
+        for (int value = 0; value < 4000; value++) {
+            tree.add(value, BY_KEY_THEN_VALUE);
+            expected.add(value);
+        }
+        assertValid(tree, expected);
+
+        for (int step = 0; step < 6000; step++) {
+            int value = random.nextInt(6000);
+            if (random.nextInt(3) == 0) {
+                if (expected.add(value)) {
+                    tree.add(value, BY_KEY_THEN_VALUE);
+                }
+            } else {
+                assertEquals(expected.remove(value), tree.delete(value, BY_KEY_THEN_VALUE));
+                assertFalse(tree.contains(value, BY_KEY_THEN_VALUE));
+            }
+            if (step % 100 == 0) {
+                assertValid(tree, expected);
+            }
+        }
+        assertValid(tree, expected);
+
+        // Down to nothing: the deletes rebuild the tree several times
+        for (int value : new ArrayList<>(expected)) {
+            assertTrue(tree.delete(value, BY_KEY_THEN_VALUE));
+            expected.remove(value);
+            if (expected.size() % 97 == 0) {
+                assertValid(tree, expected);
+            }
+        }
+        assertValid(tree, expected);
+        assertEquals(0, tree.getHeight());
+    }
+
+    @Test
+    public void deleteRemovesOneOfEqualValues() {
+        BinaryTree<Integer> tree = new BinaryTree<>();
+        Comparator<Integer> byValue = Comparator.naturalOrder();
+        for (int i = 0; i < 50; i++) {
+            tree.add(i % 5, byValue);
+        }
+        assertTrue(tree.delete(3, byValue));
+        assertEquals(49, tree.size());
+        assertEquals(9, tree.rangeSearch(3, 3, byValue).size());
+        assertFalse(tree.delete(7, byValue));
+        assertEquals(49, tree.size());
+    }
+}
@@ -0,0 +1,47 @@
+package simpleatmsystem.persistence;
+
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.TransactionsEntry;
+import simpleatmsystem.models.TransactionsLedger;
+
+/**
+ * AccountStates ------------- Describes the accounts of a registry as text,
+ * so a rebuilt registry can be compared with the one it was saved from.
+ *
+ * The description holds what is visible of each account: its type, owner,
+ * balance, history and transactions tree.
+ */
+class AccountStates {
+
+    private AccountStates() {
+    }
+
+    /**
+     * @param registry the accounts
+     * @param accountNumbers the accounts described, in this order
+     * @return the description of the accounts
+     */
+    static String describe(AccountRegistry registry, String... accountNumbers) {
+        StringBuilder sb = new StringBuilder();
+        for (String number : accountNumbers) {
+            Account account = registry.find(number);
+            sb.append(number).append(':');
+            if (account == null) {
+                sb.append("missing\n");
+                continue;
+            }
+            sb.append(account.getAccountType()).append(' ').append(account.getOwnerName())
+                    .append(' ').append(account.getBalanceCents()).append('\n');
+            for (String description
+                    : account.getLastNTransactions(TransactionsLedger.getHistoryCapacity())) {
+                sb.append("  | ").append(description).append('\n');
+            }
+            for (TransactionsEntry entry : account.getTransactionsByAmount()) {
+                sb.append("  # ").append(entry.getAmount()).append(' ').append(entry.getMsg())
+                        .append(' ').append(entry.getTime()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,140 @@
+package simpleatmsystem.persistence;
+
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.SavingsAccount;
+import simpleatmsystem.models.TransactionsEntry;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CheckpointerTest ---------------- Takes checkpoints of journaled accounts,
+ * then recovers them from the snapshot and the rest of the log.
+ */
+public class CheckpointerTest {
+
+    private static final String[] ACCOUNTS = {"S1", "S2", "C1", "C2"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WriteAheadLog wal;
+
+    @After
+    public void closeLog() throws Exception {
+        Account.setJournal(null);
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    private AccountRegistry openAccounts(Path log) throws Exception {
+        wal = WriteAheadLog.open(log, WriteAheadLog.SyncPolicy.WRITE, 20, 0);
+        Account.setJournal(wal);
+        AccountRegistry registry = new AccountRegistry();
+        registry.add(new SavingsAccount("S1", "Savings one", 1111, 500, 0.02));
+        registry.add(new SavingsAccount("S2", "Savings two", 2222, 50, 0.01));
+        registry.add(new CheckingAccount("C1", "Checking one", 3333, 300, 1.5));
+        registry.add(new CheckingAccount("C2", "Checking two", 4444, 20, 0.5));
+        return registry;
+    }
+
+    /**
+     * Some deposits, withdrawals and transfers between the accounts
+     */
+    private static void operate(AccountRegistry registry, int round) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            registry.find(ACCOUNTS[i % ACCOUNTS.length]).deposite(round + i + 0.25);
+            registry.find("S1").transferTo(registry.find(ACCOUNTS[1 + i % 3]), 1 + i);
+            registry.find("C1").withdraw(2);
+        }
+    }
+
+    private void close() throws Exception {
+        Account.setJournal(null);
+        wal.close();
+        wal = null;
+    }
+
+    @Test
+    public void recoverRestoresSnapshotThenReplaysLog() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("atm.log");
+        Path snapshot = folder.getRoot().toPath().resolve("atm.snap");
+        AccountRegistry registry = openAccounts(log);
+        operate(registry, 1);
+        new Checkpointer(snapshot, registry, wal, 1).checkpoint();
+        operate(registry, 2);
+        String expected = AccountStates.describe(registry, ACCOUNTS);
+        close();
+
+        AccountRegistry recovered = new AccountRegistry();
+        WriteAheadLog.ReplayReport report = Checkpointer.recover(snapshot, log, recovered);
+        assertEquals(expected, AccountStates.describe(recovered, ACCOUNTS));
+        // Only the operations after the checkpoint were replayed (a transfer
+        // is a record on each side)
+        assertEquals(0, report.getAccountsCount());
+        assertEquals(40, report.getRecordsCount());
+    }
+
+    @Test
+    public void restoreAppliesIncrementsBeforeTheLog() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("atm.log");
+        Path snapshot = folder.getRoot().toPath().resolve("atm.snap");
+        AccountRegistry registry = openAccounts(log);
+        Checkpointer checkpointer = new Checkpointer(snapshot, registry, wal, 3);
+        operate(registry, 1);
+        checkpointer.checkpoint();
+        // Only some accounts change before each increment
+        registry.find("S2").deposite(7);
+        registry.find("C2").withdraw(3);
+        checkpointer.checkpoint();
+        registry.add(new SavingsAccount("S3", "Savings three", 5555, 10, 0.03));
+        registry.find("S3").transferTo(registry.find("C2"), 4);
+        checkpointer.checkpoint();
+        operate(registry, 3);
+        String[] accounts = {"S1", "S2", "S3", "C1", "C2"};
+        String expected = AccountStates.describe(registry, accounts);
+        close();
+
+        AccountRegistry restored = new AccountRegistry();
+        Snapshot.RestoreReport restoreReport = Snapshot.restore(snapshot, restored);
+        assertEquals(2, restoreReport.getIncrementsCount());
+        // S3 was only saved by the second increment
+        assertEquals(5, restored.size());
+        WriteAheadLog.replay(log, restored, restoreReport.getCutSequence(),
+                restoreReport::getSequence);
+        assertEquals(expected, AccountStates.describe(restored, accounts));
+    }
+
+    @Test
+    public void reversalAfterCheckpointMarksTheRightDuplicate() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("atm.log");
+        Path snapshot = folder.getRoot().toPath().resolve("atm.snap");
+        AccountRegistry registry = openAccounts(log);
+        Account account = registry.find("S2");
+        // Three deposits with the same description (and often the same time)
+        for (int i = 0; i < 3; i++) {
+            account.deposite(5);
+            account.withdraw(2);
+            account.withdraw(3);
+        }
+        // Transactions of the same amount come in recording order
+        MyArrayList<TransactionsEntry> deposits = account.findTransactionsByAmount(5, 5);
+        account.reverseTransaction(deposits.get(0).getId());
+        new Checkpointer(snapshot, registry, wal, 1).checkpoint();
+        // The snapshot does not keep ids: replay finds the deposit again
+        account.reverseTransaction(deposits.get(1).getId());
+        String expected = AccountStates.describe(registry, "S2");
+        close();
+
+        AccountRegistry recovered = new AccountRegistry();
+        Checkpointer.recover(snapshot, log, recovered);
+        assertEquals(expected, AccountStates.describe(recovered, "S2"));
+    }
+}
@@ -0,0 +1,154 @@
+package simpleatmsystem.persistence;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import simpleatmsystem.exceptions.InsufficientFundsException;
+import simpleatmsystem.lib.MyArrayList;
+import simpleatmsystem.models.Account;
+import simpleatmsystem.models.AccountRegistry;
+import simpleatmsystem.models.CheckingAccount;
+import simpleatmsystem.models.SavingsAccount;
+import simpleatmsystem.models.TransactionsEntry;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * WriteAheadLogTest ----------------- Journals accounts to a log file, then
+ * rebuilds them from it.
+ */
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WriteAheadLog wal;
+
+    @After
+    public void closeLog() throws Exception {
+        Account.setJournal(null);
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    private WriteAheadLog open(Path log, long lastSequence) throws Exception {
+        wal = WriteAheadLog.open(log, WriteAheadLog.SyncPolicy.WRITE, 20, lastSequence);
+        Account.setJournal(wal);
+        return wal;
+    }
+
+    private void close() throws Exception {
+        Account.setJournal(null);
+        wal.close();
+        wal = null;
+    }
+
+    @Test
+    public void replayCutsTornLastFrame() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("atm.log");
+        open(log, 0);
+        Account account = new SavingsAccount("A1", "Owner", 1234, 100, 0.01);
+        new AccountRegistry().add(account);
+        account.deposite(10);
+        long validLength = Files.size(log);
+        account.deposite(20);
+        long fullLength = Files.size(log);
+        close();
+
+        // The process died while the last frame was being written
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(fullLength - 3);
+        }
+
+        AccountRegistry restored = new AccountRegistry();
+        WriteAheadLog.ReplayReport report = WriteAheadLog.replay(log, restored);
+        assertEquals(fullLength - 3 - validLength, report.getTruncatedBytes());
+        assertEquals(validLength, Files.size(log));
+        Account replayed = restored.find("A1");
+        assertEquals(11000, replayed.getBalanceCents());
+        assertEquals(account.getLastNTransactions(2).get(1),
+                replayed.getLastNTransactions(1).get(0));
+
+        // New frames go after the last valid one
+        open(log, report.getLastSequence());
+        replayed.deposite(5);
+        close();
+        restored = new AccountRegistry();
+        report = WriteAheadLog.replay(log, restored);
+        assertEquals(0, report.getTruncatedBytes());
+        assertEquals(11500, restored.find("A1").getBalanceCents());
+    }
+
+    @Test
+    public void parallelReplayMatchesSequentialReplay() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("atm.log");
+        open(log, 0);
+        AccountRegistry registry = new AccountRegistry();
+        String[] accounts = new String[40];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = "A" + i;
+            registry.add(i % 2 == 0
+                    ? new SavingsAccount(accounts[i], "Owner " + i, 1000 + i, 100 + i, 0.01)
+                    : new CheckingAccount(accounts[i], "Owner " + i, 1000 + i, 50 + i, 0.5));
+        }
+        Random random = new Random(35);
+        for (int i = 0; i < 2000; i++) {
+            int from = random.nextInt(accounts.length);
+            Account account = registry.find(accounts[from]);
+            int amount = 1 + random.nextInt(40);
+            int to = (from + 1 + random.nextInt(accounts.length - 1)) % accounts.length;
+            try {
+                switch (random.nextInt(3)) {
+                    case 0 -> account.deposite(amount);
+                    case 1 -> account.withdraw(amount);
+                    default -> account.transferTo(registry.find(accounts[to]), amount);
+                }
+            } catch (InsufficientFundsException ex) {
+                // Refused, so not logged
+            }
+        }
+        String expected = AccountStates.describe(registry, accounts);
+        close();
+
+        AccountRegistry sequential = new AccountRegistry();
+        WriteAheadLog.replay(log, sequential, 0, account -> 0, 1);
+        AccountRegistry parallel = new AccountRegistry();
+        WriteAheadLog.ReplayReport report = WriteAheadLog.replay(log, parallel, 0,
+                account -> 0, 4);
+        assertEquals(expected, AccountStates.describe(sequential, accounts));
+        assertEquals(expected, AccountStates.describe(parallel, accounts));
+        assertEquals(accounts.length, report.getAccountsCount());
+        assertEquals(0, report.getMismatchesCount());
+    }
+
+    @Test
+    public void replayReversesTheRightDuplicate() throws Exception {
+        Path log = folder.getRoot().toPath().resolve("atm.log");
+        open(log, 0);
+        AccountRegistry registry = new AccountRegistry();
+        Account account = new SavingsAccount("A1", "Owner", 1234, 100, 0.01);
+        registry.add(account);
+        // Three deposits with the same description (and often the same time)
+        for (int i = 0; i < 3; i++) {
+            account.deposite(5);
+            account.withdraw(2);
+            account.withdraw(3);
+        }
+        MyArrayList<TransactionsEntry> deposits = account.findTransactionsByAmount(5, 5);
+        assertEquals(3, deposits.size());
+        // Transactions of the same amount come in recording order
+        account.reverseTransaction(deposits.get(1).getId());
+        String expected = AccountStates.describe(registry, "A1");
+        close();
+
+        AccountRegistry restored = new AccountRegistry();
+        WriteAheadLog.replay(log, restored);
+        assertEquals(expected, AccountStates.describe(restored, "A1"));
+    }
+}
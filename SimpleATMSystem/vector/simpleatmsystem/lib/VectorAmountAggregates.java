@@ -0,0 +1,101 @@
+package simpleatmsystem.lib;
+
+import java.util.Objects;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorAmountAggregates
+ * ----------------------
+ * SIMD implementation of AmountAggregates on the Vector API: each loop
+ * handles as many values per instruction as the CPU's preferred vector
+ * holds (4 longs with AVX2, 8 with AVX-512), and the tail that does not
+ * fill a vector goes through the scalar code.
+ *
+ * Only loaded by AmountAggregates.get when jdk.incubator.vector is present.
+ * Kept out of the src root so the default build does not need the
+ * incubating module: it is compiled into the jar only when the build runs
+ * with -Dvector.enabled=true (see build.xml).
+ */
+final class VectorAmountAggregates extends AmountAggregates {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+
+    @Override
+    public long sum(long[] values, int from, int to) {
+        Objects.checkFromToIndex(from, to, values.length);
+        int upper = from + SPECIES.loopBound(to - from);
+        LongVector sums = LongVector.zero(SPECIES);
+        for (int i = from; i < upper; i += SPECIES.length()) {
+            sums = sums.add(LongVector.fromArray(SPECIES, values, i));
+        }
+        return sums.reduceLanes(VectorOperators.ADD) + super.sum(values, upper, to);
+    }
+
+    @Override
+    public long min(long[] values, int from, int to) {
+        Objects.checkFromToIndex(from, to, values.length);
+        int upper = from + SPECIES.loopBound(to - from);
+        LongVector mins = LongVector.broadcast(SPECIES, Long.MAX_VALUE);
+        for (int i = from; i < upper; i += SPECIES.length()) {
+            mins = mins.min(LongVector.fromArray(SPECIES, values, i));
+        }
+        return Math.min(mins.reduceLanes(VectorOperators.MIN), super.min(values, upper, to));
+    }
+
+    @Override
+    public long max(long[] values, int from, int to) {
+        Objects.checkFromToIndex(from, to, values.length);
+        int upper = from + SPECIES.loopBound(to - from);
+        LongVector maxes = LongVector.broadcast(SPECIES, Long.MIN_VALUE);
+        for (int i = from; i < upper; i += SPECIES.length()) {
+            maxes = maxes.max(LongVector.fromArray(SPECIES, values, i));
+        }
+        return Math.max(maxes.reduceLanes(VectorOperators.MAX), super.max(values, upper, to));
+    }
+
+    @Override
+    public int countInRange(long[] values, int from, int to, long low, long high) {
+        Objects.checkFromToIndex(from, to, values.length);
+        int upper = from + SPECIES.loopBound(to - from);
+        int count = 0;
+        for (int i = from; i < upper; i += SPECIES.length()) {
+            LongVector v = LongVector.fromArray(SPECIES, values, i);
+            VectorMask<Long> inside = v.compare(VectorOperators.GE, low)
+                    .and(v.compare(VectorOperators.LE, high));
+            count += inside.trueCount();
+        }
+        return count + super.countInRange(values, upper, to, low, high);
+    }
+
+    /**
+     * Counts, for each bound, the values at or above it (one compare per
+     * bound and vector), then derives the buckets.
+     */
+    @Override
+    public int[] histogram(long[] values, int from, int to, long[] bounds) {
+        Objects.checkFromToIndex(from, to, values.length);
+        checkBounds(bounds);
+        int upper = from + SPECIES.loopBound(to - from);
+        int[] atLeast = new int[bounds.length];
+        for (int i = from; i < upper; i += SPECIES.length()) {
+            LongVector v = LongVector.fromArray(SPECIES, values, i);
+            for (int k = 0; k < bounds.length; k++) {
+                atLeast[k] += v.compare(VectorOperators.GE, bounds[k]).trueCount();
+            }
+        }
+        for (int i = upper; i < to; i++) {
+            for (int k = 0; k < bounds.length && values[i] >= bounds[k]; k++) {
+                atLeast[k]++;
+            }
+        }
+        return bucketsFromAtLeast(to - from, atLeast);
+    }
+}